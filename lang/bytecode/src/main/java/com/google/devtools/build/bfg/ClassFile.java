@@ -0,0 +1,441 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+
+/**
+ * The parts of a class file that tell which classes it refers to, read without loading the class.
+ *
+ * <p>A class refers to another one if the other's name appears in its constant pool, e.g., because
+ * it's instantiated, cast to or has a method called, in the descriptor or generic signature of a
+ * field, method or method call, or as the type of an annotation that is kept in class files.
+ * Constants that javac inlines, and annotations with source retention, leave no trace.
+ *
+ * <p>See https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html.
+ */
+final class ClassFile {
+
+  private static final int MAGIC = 0xCAFEBABE;
+
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_INTERFACE = 0x0200;
+  static final int ACC_ABSTRACT = 0x0400;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  private static final String MAIN_DESCRIPTOR = "([Ljava/lang/String;)V";
+
+  /** The binary name of the class, e.g., "com.Foo$Bar". */
+  final String name;
+
+  final int accessFlags;
+
+  /** The name of the source file the class was compiled from, e.g., "Foo.java", if known. */
+  @Nullable final String sourceFile;
+
+  /** The binary names of the classes this class refers to, other than itself, sorted. */
+  final ImmutableSet<String> referencedClasses;
+
+  /** True if the class has a 'static void main(String[])' method. */
+  final boolean hasMainMethod;
+
+  private ClassFile(
+      String name,
+      int accessFlags,
+      @Nullable String sourceFile,
+      ImmutableSet<String> referencedClasses,
+      boolean hasMainMethod) {
+    this.name = name;
+    this.accessFlags = accessFlags;
+    this.sourceFile = sourceFile;
+    this.referencedClasses = referencedClasses;
+    this.hasMainMethod = hasMainMethod;
+  }
+
+  /** Reads the class file 'bytes'. */
+  static ClassFile read(byte[] bytes) throws IOException {
+    return new Reader(bytes).read();
+  }
+
+  /** Reads a class file in the order its parts are laid out in. */
+  private static class Reader {
+    private final DataInputStream in;
+
+    /** The tag of each constant pool entry. */
+    private int[] tags;
+
+    /** Utf8 entries, by index. */
+    private String[] utf8;
+
+    /** For Class, MethodType and NameAndType entries, the index of the Utf8 entry they refer to. */
+    private int[] utf8Index;
+
+    /** Binary names of the referenced classes, with '/' separators. */
+    private final Set<String> referenced = new TreeSet<>();
+
+    Reader(byte[] bytes) {
+      this.in = new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    ClassFile read() throws IOException {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor_version
+      in.readUnsignedShort(); // major_version
+      readConstantPool();
+      int accessFlags = in.readUnsignedShort();
+      String name = className(in.readUnsignedShort());
+      in.readUnsignedShort(); // super_class, also a Class entry
+      skip(2 * in.readUnsignedShort()); // interfaces, also Class entries
+
+      boolean hasMainMethod = false;
+      int fieldCount = in.readUnsignedShort();
+      for (int i = 0; i < fieldCount; i++) {
+        readMember();
+      }
+      int methodCount = in.readUnsignedShort();
+      for (int i = 0; i < methodCount; i++) {
+        hasMainMethod |= readMember();
+      }
+      String sourceFile = readAttributes();
+
+      for (int i = 1; i < tags.length; i++) {
+        if (tags[i] == CONSTANT_CLASS) {
+          String className = utf8[utf8Index[i]];
+          if (className.startsWith("[")) {
+            addSignature(className);
+          } else {
+            referenced.add(className);
+          }
+        } else if (tags[i] == CONSTANT_NAME_AND_TYPE || tags[i] == CONSTANT_METHOD_TYPE) {
+          addSignature(utf8[utf8Index[i]]);
+        }
+      }
+      referenced.remove(name);
+      return new ClassFile(
+          name.replace('/', '.'),
+          accessFlags,
+          sourceFile,
+          referenced.stream().map(s -> s.replace('/', '.')).collect(ImmutableSet.toImmutableSet()),
+          hasMainMethod);
+    }
+
+    private void readConstantPool() throws IOException {
+      int count = in.readUnsignedShort();
+      tags = new int[count];
+      utf8 = new String[count];
+      utf8Index = new int[count];
+      for (int i = 1; i < count; i++) {
+        int tag = in.readUnsignedByte();
+        tags[i] = tag;
+        switch (tag) {
+          case CONSTANT_UTF8:
+            utf8[i] = in.readUTF();
+            break;
+          case CONSTANT_CLASS:
+          case CONSTANT_METHOD_TYPE:
+            utf8Index[i] = in.readUnsignedShort();
+            break;
+          case CONSTANT_NAME_AND_TYPE:
+            in.readUnsignedShort(); // name_index
+            utf8Index[i] = in.readUnsignedShort(); // descriptor_index
+            break;
+          case CONSTANT_STRING:
+          case CONSTANT_MODULE:
+          case CONSTANT_PACKAGE:
+            skip(2);
+            break;
+          case CONSTANT_METHOD_HANDLE:
+            skip(3);
+            break;
+          case CONSTANT_INTEGER:
+          case CONSTANT_FLOAT:
+          case CONSTANT_FIELDREF:
+          case CONSTANT_METHODREF:
+          case CONSTANT_INTERFACE_METHODREF:
+          case CONSTANT_DYNAMIC:
+          case CONSTANT_INVOKE_DYNAMIC:
+            skip(4);
+            break;
+          case CONSTANT_LONG:
+          case CONSTANT_DOUBLE:
+            skip(8);
+            // Takes up two entries.
+            i++;
+            break;
+          default:
+            throw new IOException(String.format("Unknown constant pool tag %d at %d", tag, i));
+        }
+      }
+    }
+
+    /** Reads a field or method. Returns true if it's a main method. */
+    private boolean readMember() throws IOException {
+      int accessFlags = in.readUnsignedShort();
+      String memberName = utf8(in.readUnsignedShort());
+      String descriptor = utf8(in.readUnsignedShort());
+      addSignature(descriptor);
+      readAttributes();
+      return (accessFlags & ACC_STATIC) != 0
+          && memberName.equals("main")
+          && descriptor.equals(MAIN_DESCRIPTOR);
+    }
+
+    /**
+     * Reads the attributes of a class, field or method, and adds the classes in their signatures
+     * and annotations. Returns the SourceFile attribute, if any.
+     */
+    @Nullable
+    private String readAttributes() throws IOException {
+      String sourceFile = null;
+      int count = in.readUnsignedShort();
+      for (int i = 0; i < count; i++) {
+        String attributeName = utf8(in.readUnsignedShort());
+        int length = in.readInt();
+        switch (attributeName) {
+          case "SourceFile":
+            sourceFile = utf8(in.readUnsignedShort());
+            break;
+          case "Signature":
+            addSignature(utf8(in.readUnsignedShort()));
+            break;
+          case "RuntimeVisibleAnnotations":
+          case "RuntimeInvisibleAnnotations":
+            readAnnotations();
+            break;
+          case "RuntimeVisibleParameterAnnotations":
+          case "RuntimeInvisibleParameterAnnotations":
+            int parameterCount = in.readUnsignedByte();
+            for (int j = 0; j < parameterCount; j++) {
+              readAnnotations();
+            }
+            break;
+          case "AnnotationDefault":
+            readElementValue();
+            break;
+          default:
+            skip(length);
+        }
+      }
+      return sourceFile;
+    }
+
+    private void readAnnotations() throws IOException {
+      int count = in.readUnsignedShort();
+      for (int i = 0; i < count; i++) {
+        readAnnotation();
+      }
+    }
+
+    private void readAnnotation() throws IOException {
+      addSignature(utf8(in.readUnsignedShort())); // type_index
+      int pairCount = in.readUnsignedShort();
+      for (int i = 0; i < pairCount; i++) {
+        in.readUnsignedShort(); // element_name_index
+        readElementValue();
+      }
+    }
+
+    private void readElementValue() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 'e':
+          addSignature(utf8(in.readUnsignedShort())); // type_name_index
+          in.readUnsignedShort(); // const_name_index
+          break;
+        case 'c':
+          addSignature(utf8(in.readUnsignedShort())); // class_info_index, a return descriptor
+          break;
+        case '@':
+          readAnnotation();
+          break;
+        case '[':
+          int count = in.readUnsignedShort();
+          for (int i = 0; i < count; i++) {
+            readElementValue();
+          }
+          break;
+        default:
+          // A constant: B, C, D, F, I, J, S, Z or s.
+          in.readUnsignedShort();
+      }
+    }
+
+    /**
+     * Adds the classes in a descriptor or a generic signature, e.g., "(I[Ljava/util/List;)V" or
+     * "<T:Ljava/lang/Object;>(TT;Ljava/util/List<+Lcom/Foo;>;)V".
+     */
+    private void addSignature(String signature) {
+      new SignatureParser(signature, referenced).parse();
+    }
+
+    private String className(int classIndex) throws IOException {
+      if (tags[classIndex] != CONSTANT_CLASS) {
+        throw new IOException(String.format("Constant %d isn't a class", classIndex));
+      }
+      return utf8[utf8Index[classIndex]];
+    }
+
+    private String utf8(int index) throws IOException {
+      if (index <= 0 || index >= tags.length || tags[index] != CONSTANT_UTF8) {
+        throw new IOException(String.format("Constant %d isn't a Utf8 constant", index));
+      }
+      return utf8[index];
+    }
+
+    private void skip(int bytes) throws IOException {
+      in.readFully(new byte[bytes]);
+    }
+  }
+
+  /** Parses the JVM signature grammar just enough to find the class names in a signature. */
+  private static class SignatureParser {
+    private final String signature;
+    private final Set<String> out;
+    private int pos;
+
+    SignatureParser(String signature, Set<String> out) {
+      this.signature = signature;
+      this.out = out;
+    }
+
+    void parse() {
+      if (peek() == '<') {
+        typeParameters();
+      }
+      while (pos < signature.length()) {
+        char c = peek();
+        if (c == '(' || c == ')' || c == '^') {
+          pos++;
+        } else {
+          type();
+        }
+      }
+    }
+
+    /** E.g., "<K:Ljava/lang/Object;V::Ljava/lang/Comparable<TV;>;>". */
+    private void typeParameters() {
+      pos++;
+      while (pos < signature.length() && peek() != '>') {
+        // The identifier, followed by the class bound, which may be empty, and interface bounds.
+        pos = signature.indexOf(':', pos);
+        if (pos == -1) {
+          pos = signature.length();
+          return;
+        }
+        while (pos < signature.length() && peek() == ':') {
+          pos++;
+          char c = peek();
+          if (c == 'L' || c == 'T' || c == '[') {
+            type();
+          }
+        }
+      }
+      pos++;
+    }
+
+    private void type() {
+      char c = signature.charAt(pos);
+      switch (c) {
+        case 'L':
+          classType();
+          break;
+        case 'T':
+          int end = signature.indexOf(';', pos);
+          pos = end == -1 ? signature.length() : end + 1;
+          break;
+        case '[':
+          pos++;
+          if (pos < signature.length()) {
+            type();
+          }
+          break;
+        default:
+          // A primitive type, or something we don't understand.
+          pos++;
+      }
+    }
+
+    /** E.g., "Lcom/Outer<TT;>.Inner<Ljava/lang/String;>;". Only the outer class is added. */
+    private void classType() {
+      pos++;
+      int start = pos;
+      while (pos < signature.length() && !isClassNameEnd(peek())) {
+        pos++;
+      }
+      out.add(signature.substring(start, pos));
+      while (pos < signature.length()) {
+        char c = peek();
+        if (c == ';') {
+          pos++;
+          return;
+        } else if (c == '<') {
+          typeArguments();
+        } else {
+          // '.' followed by the name of an inner class, or the rest of the inner class's name.
+          pos++;
+        }
+      }
+    }
+
+    private void typeArguments() {
+      pos++;
+      while (pos < signature.length() && peek() != '>') {
+        char c = peek();
+        if (c == '*') {
+          pos++;
+          continue;
+        }
+        if (c == '+' || c == '-') {
+          pos++;
+        }
+        type();
+      }
+      pos++;
+    }
+
+    private char peek() {
+      return pos < signature.length() ? signature.charAt(pos) : 0;
+    }
+
+    private static boolean isClassNameEnd(char c) {
+      return c == ';' || c == '<' || c == '.';
+    }
+  }
+}
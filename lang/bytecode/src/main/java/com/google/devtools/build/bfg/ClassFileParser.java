@@ -0,0 +1,228 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Builds the class graph of compiled classes, as {@link JavaSourceFileParser} builds it from
+ * sources. Useful when sources are generated, too slow to parse, or don't resolve without a build.
+ *
+ * <p>Classes are grouped by the source file they were compiled from, which is told by their package
+ * and SourceFile attribute, and looked up under the content roots. Like the source parser, a file
+ * is represented by its class of the same name, and depends on the top-level classes that any of
+ * its classes refer to.
+ *
+ * <p>Bytecode differs from source in a few ways. Compile-time constants are inlined, and
+ * annotations with source retention are dropped, so the classes they come from are missing. On the
+ * other hand, a class's bytecode names the declaring classes of the members it uses, and the types
+ * of method calls, even when the source doesn't mention them.
+ */
+class ClassFileParser {
+
+  /**
+   * Reads the classes in 'inputs', which are directories of class files or jars, and adds a file
+   * to 'sink' for every source file they were compiled from.
+   *
+   * @return the names of classes whose source file wasn't found under 'contentRoots'. They are
+   *     left out of the graph.
+   */
+  static ImmutableSet<String> parse(
+      Iterable<Path> inputs,
+      ImmutableList<Path> contentRoots,
+      JavaSourceFileParser.ClassGraphSink sink)
+      throws IOException {
+    List<ClassFile> classFiles = new ArrayList<>();
+    for (Path input : inputs) {
+      if (Files.isDirectory(input)) {
+        readDirectory(input, classFiles);
+      } else {
+        readJar(input, classFiles);
+      }
+    }
+
+    // Classes by the source file they were compiled from, e.g., "com/Foo.java".
+    Map<String, List<ClassFile>> classesBySource = new TreeMap<>();
+    for (ClassFile classFile : classFiles) {
+      classesBySource
+          .computeIfAbsent(relativeSourcePath(classFile), k -> new ArrayList<>())
+          .add(classFile);
+    }
+
+    // Maps each top-level class to the class representing its source file. They differ for the
+    // other top-level classes of a file, e.g., package-private classes next to a public one.
+    Map<String, String> fileClassName = new HashMap<>();
+    classesBySource.forEach(
+        (sourcePath, classes) -> {
+          String className = classNameOf(sourcePath);
+          for (ClassFile classFile : classes) {
+            fileClassName.put(ClassNames.getOuterClassName(classFile.name), className);
+          }
+        });
+
+    ImmutableList<Path> absoluteRoots =
+        contentRoots.stream().map(p -> p.toAbsolutePath().normalize()).collect(toImmutableList());
+    Set<String> unresolved = new TreeSet<>();
+    for (Map.Entry<String, List<ClassFile>> entry : classesBySource.entrySet()) {
+      String className = classNameOf(entry.getKey());
+      List<ClassFile> classes = entry.getValue();
+      Path srcFilePath = findSourceFile(entry.getKey(), absoluteRoots);
+      if (srcFilePath == null) {
+        classes.forEach(c -> unresolved.add(c.name));
+        continue;
+      }
+      ImmutableSet<String> dependencies =
+          classes
+              .stream()
+              .flatMap(c -> c.referencedClasses.stream())
+              .map(ClassNames::getOuterClassName)
+              .map(name -> fileClassName.getOrDefault(name, name))
+              .filter(name -> !name.equals(className) && !isInJavaLang(name))
+              .collect(toImmutableSet());
+      sink.addFile(
+          srcFilePath.toString(),
+          className,
+          dependencies,
+          decideRuleKind(className, classes, dependencies));
+    }
+    sink.addEdges(ImmutableSetMultimap.of());
+    return ImmutableSet.copyOf(unresolved);
+  }
+
+  private static void readDirectory(Path directory, List<ClassFile> outClassFiles)
+      throws IOException {
+    List<Path> paths;
+    try (Stream<Path> stream = Files.walk(directory)) {
+      paths =
+          stream
+              .filter(p -> isClassFile(directory.relativize(p).toString()))
+              .sorted()
+              .collect(toImmutableList());
+    }
+    for (Path path : paths) {
+      outClassFiles.add(read(Files.readAllBytes(path), path.toString()));
+    }
+  }
+
+  private static void readJar(Path jar, List<ClassFile> outClassFiles) throws IOException {
+    try (ZipInputStream in = new ZipInputStream(Files.newInputStream(jar))) {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        if (!entry.isDirectory() && isClassFile(entry.getName())) {
+          outClassFiles.add(read(ByteStreams.toByteArray(in), jar + "!" + entry.getName()));
+        }
+      }
+    }
+  }
+
+  private static ClassFile read(byte[] bytes, String location) throws IOException {
+    try {
+      return ClassFile.read(bytes);
+    } catch (IOException e) {
+      throw new IOException("Can't read class file " + location, e);
+    }
+  }
+
+  /**
+   * Returns true for class files that are classes, as opposed to module and package descriptors,
+   * or versioned classes of a multi-release jar.
+   */
+  private static boolean isClassFile(String path) {
+    return path.endsWith(".class")
+        && !path.startsWith("META-INF")
+        && !path.endsWith("module-info.class")
+        && !path.endsWith("package-info.class");
+  }
+
+  /**
+   * Returns the path of the source file 'classFile' was compiled from, relative to its content
+   * root, e.g., "com/Foo.java". Without a SourceFile attribute, assumes the outer class's name.
+   */
+  private static String relativeSourcePath(ClassFile classFile) {
+    int packageEnd = classFile.name.lastIndexOf('.');
+    String packagePath =
+        packageEnd == -1 ? "" : classFile.name.substring(0, packageEnd + 1).replace('.', '/');
+    if (classFile.sourceFile != null) {
+      return packagePath + classFile.sourceFile;
+    }
+    String outerClass = ClassNames.getOuterClassName(classFile.name);
+    return packagePath + outerClass.substring(packageEnd + 1) + ".java";
+  }
+
+  /** E.g., "com/Foo.java" -> "com.Foo". */
+  private static String classNameOf(String relativeSourcePath) {
+    int extension = relativeSourcePath.lastIndexOf('.');
+    return relativeSourcePath.substring(0, extension).replace('/', '.');
+  }
+
+  @Nullable
+  private static Path findSourceFile(String relativeSourcePath, ImmutableList<Path> contentRoots) {
+    for (Path root : contentRoots) {
+      Path path = root.resolve(relativeSourcePath);
+      if (Files.isRegularFile(path)) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /** Classes in java.lang are always available, as in the source parser. */
+  private static boolean isInJavaLang(String className) {
+    return className.startsWith("java.lang.") && className.indexOf('.', 10) == -1;
+  }
+
+  /** Same rules as {@link JavaSourceFileParser}, applied to the file's class of the same name. */
+  private static String decideRuleKind(
+      String className, List<ClassFile> classes, Set<String> dependencies) {
+    ClassFile mainClass =
+        classes.stream().filter(c -> c.name.equals(className)).findFirst().orElse(null);
+    if (mainClass == null) {
+      return "java_library";
+    }
+    if ((mainClass.accessFlags & ClassFile.ACC_ABSTRACT) != 0
+        && (mainClass.accessFlags & ClassFile.ACC_INTERFACE) == 0) {
+      // Class is abstract, can't be a test.
+      return "java_library";
+    }
+    // JUnit 4 tests
+    if (className.endsWith("Test") && dependencies.contains("org.junit.Test")) {
+      return "java_test";
+    }
+    if (mainClass.hasMainMethod) {
+      return "java_binary";
+    }
+    return "java_library";
+  }
+}
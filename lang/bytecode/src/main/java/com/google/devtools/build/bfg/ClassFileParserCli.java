@@ -0,0 +1,115 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.collect.Streams.stream;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+/**
+ * Entry point to the class file frontend. Given jars and directories of compiled classes, it
+ * writes to stdout the same ParserOutput JavaSourceFileParserCli writes for their sources. See
+ * {@link ClassFileParser}.
+ */
+public class ClassFileParserCli {
+
+  private static final Logger logger = Logger.getLogger(ClassFileParserCli.class.getName());
+
+  @Option(
+    name = "--roots",
+    usage =
+        "Comma-separated list of paths where the source/test files the classes were compiled "
+            + "from reside, relative to the WORKSPACE file."
+  )
+  private String contentRootPaths = "src/main/java/,src/test/java/";
+
+  @Option(
+    name = "--one_rule_per_package_roots",
+    usage =
+        "BUILD File Generator creates one Bazel rule per file, by default. "
+            + "All classes that are defined in 'oneRulePerPackageRoots' directories, "
+            + "however, will be put in a single rule per Bazel package"
+  )
+  private String oneRulePerPackageRoots = "src/main/java";
+
+  @Argument(
+    usage =
+        "Jars and directories of class files. '@file' reads more arguments from 'file', one per "
+            + "line."
+  )
+  private List<String> inputs = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    new ClassFileParserCli().run(args);
+  }
+
+  private void run(String[] args) throws Exception {
+    CmdLineParser cmdLineParser =
+        new CmdLineParser(this, ParserProperties.defaults().withAtSyntax(true));
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      e.getParser().printUsage(System.err);
+      System.exit(1);
+    }
+    if (inputs.isEmpty()) {
+      System.err.println("Must provide jars or directories of class files.");
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    ImmutableList<Path> contentRoots =
+        stream(Splitter.on(',').split(contentRootPaths))
+            .map(root -> Paths.get(root))
+            .collect(toImmutableList());
+    ImmutableSet<Path> oneRulePerPackagePaths =
+        stream(Splitter.on(',').omitEmptyStrings().split(oneRulePerPackageRoots))
+            .map(root -> Paths.get(root))
+            .collect(toImmutableSet());
+
+    ParserOutputMerger merger = new ParserOutputMerger();
+    ImmutableSet<String> classesWithoutSource =
+        ClassFileParser.parse(
+            inputs.stream().map(Paths::get).collect(toImmutableList()), contentRoots, merger);
+    if (!classesWithoutSource.isEmpty()) {
+      logger.warning(
+          String.format(
+              "Source files not found for classes %s",
+              Joiner.on("\n\t").join(classesWithoutSource)));
+    }
+
+    OutputStream out = new BufferedOutputStream(System.out);
+    merger.merge(oneRulePerPackagePaths).writeTo(out);
+    out.flush();
+  }
+}
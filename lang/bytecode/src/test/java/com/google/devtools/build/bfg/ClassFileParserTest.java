@@ -0,0 +1,225 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+
+/**
+ * Tests for {@link ClassFileParser}. Sources are compiled with the system Java compiler, and the
+ * class graph read from the class files.
+ */
+@RunWith(JUnit4.class)
+public class ClassFileParserTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path srcRoot;
+
+  private Path testRoot;
+
+  private Path classes;
+
+  @Before
+  public void setUp() throws IOException {
+    Path workspace = temporaryFolder.getRoot().toPath().toRealPath();
+    srcRoot = workspace.resolve("src/main/java");
+    testRoot = workspace.resolve("src/test/java");
+    classes = workspace.resolve("classes");
+    Files.createDirectories(classes);
+  }
+
+  /**
+   * Tests that references in field types, method bodies, generic signatures and annotations are
+   * found, collapsed to top-level classes, and that classes in java.lang are left out.
+   */
+  @Test
+  public void referencesAreCollapsedToTopLevelClasses() throws IOException {
+    writeFile(srcRoot, "com/A.java",
+        "package com;",
+        "@Ann class A {",
+        "  B b;",
+        "  java.util.List<C> cs;",
+        "  void f() { Object o = new D(); String s = toString(); }",
+        "  static class Inner { E e; }",
+        "}");
+    writeFile(srcRoot, "com/B.java", "package com; public class B {}");
+    writeFile(srcRoot, "com/C.java", "package com; public class C {}");
+    writeFile(srcRoot, "com/D.java", "package com; public class D {}");
+    writeFile(srcRoot, "com/E.java", "package com; public class E {}");
+    writeFile(srcRoot, "com/Ann.java",
+        "package com;",
+        "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+        "@interface Ann {}");
+    compile(srcRoot);
+
+    ParserOutput output = parse(classes);
+
+    assertThat(output.getClassToClassMap().get("com.A").getElementsList())
+        .containsExactly("com.Ann", "com.B", "com.C", "com.D", "com.E", "java.util.List");
+    assertThat(output.getClassToFileMap().get("com.A").getElementsList())
+        .containsExactly(srcRoot.resolve("com/A.java").toString());
+    assertThat(output.getClassToClassMap()).doesNotContainKey("com.A$Inner");
+  }
+
+  /**
+   * Tests that the other top-level classes of a source file are mapped to the file's class of the
+   * same name, as the source parser only knows the file.
+   */
+  @Test
+  public void secondaryTopLevelClassesBelongToTheirFile() throws IOException {
+    writeFile(srcRoot, "com/A.java",
+        "package com;", "public class A {}", "class Helper { B b; }");
+    writeFile(srcRoot, "com/B.java", "package com; public class B { Helper h; }");
+    compile(srcRoot);
+
+    ParserOutput output = parse(classes);
+
+    assertThat(output.getClassToClassMap().keySet()).containsExactly("com.A", "com.B");
+    assertThat(output.getClassToClassMap().get("com.A").getElementsList())
+        .containsExactly("com.B");
+    assertThat(output.getClassToClassMap().get("com.B").getElementsList())
+        .containsExactly("com.A");
+  }
+
+  @Test
+  public void ruleKinds() throws IOException {
+    writeFile(srcRoot, "com/Main.java",
+        "package com; public class Main { public static void main(String[] args) {} }");
+    writeFile(srcRoot, "com/AbstractMain.java",
+        "package com;",
+        "public abstract class AbstractMain { public static void main(String[] args) {} }");
+    writeFile(srcRoot, "com/Lib.java",
+        "package com; public class Lib { public void main(String[] args) {} }");
+    writeFile(testRoot, "com/LibTest.java",
+        "package com; public class LibTest { @org.junit.Test public void test() {} }");
+    compile(srcRoot, testRoot);
+
+    ParserOutput output = parse(classes);
+
+    assertThat(output.getFileToRuleKindMap())
+        .containsExactly(
+            srcRoot.resolve("com/Main.java").toString(), "java_binary",
+            srcRoot.resolve("com/AbstractMain.java").toString(), "java_library",
+            srcRoot.resolve("com/Lib.java").toString(), "java_library",
+            testRoot.resolve("com/LibTest.java").toString(), "java_test");
+  }
+
+  @Test
+  public void readsJars() throws IOException {
+    writeFile(srcRoot, "com/A.java", "package com; public class A { B b; }");
+    writeFile(srcRoot, "com/B.java", "package com; public class B {}");
+    compile(srcRoot);
+    Path jar = temporaryFolder.getRoot().toPath().resolve("classes.jar");
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+        Stream<Path> paths = Files.walk(classes)) {
+      for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+        out.putNextEntry(new JarEntry(classes.relativize(path).toString()));
+        out.write(Files.readAllBytes(path));
+      }
+    }
+
+    ParserOutput output = parse(jar);
+
+    assertThat(output.getClassToClassMap().get("com.A").getElementsList())
+        .containsExactly("com.B");
+    assertThat(output.getClassToFileMap().keySet()).containsExactly("com.A", "com.B");
+  }
+
+  /** Tests that classes whose source isn't under the content roots are reported and left out. */
+  @Test
+  public void classesWithoutSourceAreReturned() throws IOException {
+    writeFile(srcRoot, "com/A.java", "package com; public class A { B b; }");
+    writeFile(srcRoot, "com/B.java", "package com; public class B {}");
+    compile(srcRoot);
+    Files.delete(srcRoot.resolve("com/B.java"));
+
+    ParserOutputMerger merger = new ParserOutputMerger();
+    ImmutableSet<String> classesWithoutSource =
+        ClassFileParser.parse(ImmutableList.of(classes), ImmutableList.of(srcRoot), merger);
+
+    assertThat(classesWithoutSource).containsExactly("com.B");
+    ParserOutput output = merger.merge(ImmutableSet.of());
+    assertThat(output.getClassToFileMap().keySet()).containsExactly("com.A");
+    assertThat(output.getClassToClassMap().get("com.A").getElementsList())
+        .containsExactly("com.B");
+  }
+
+  @Test
+  public void malformedClassFile_throws() throws IOException {
+    Files.write(classes.resolve("Bad.class"), new byte[] {(byte) 0xCA, (byte) 0xFE});
+
+    try {
+      parse(classes);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("Bad.class");
+    }
+  }
+
+  private ParserOutput parse(Path input) throws IOException {
+    ParserOutputMerger merger = new ParserOutputMerger();
+    ClassFileParser.parse(ImmutableList.of(input), ImmutableList.of(srcRoot, testRoot), merger);
+    return merger.merge(ImmutableSet.of());
+  }
+
+  private static void writeFile(Path root, String relativePath, String... lines)
+      throws IOException {
+    Path path = root.resolve(relativePath);
+    Files.createDirectories(path.getParent());
+    Files.write(path, ImmutableList.copyOf(lines), UTF_8);
+  }
+
+  /** Compiles all the sources under 'roots' into 'classes'. */
+  private void compile(Path... roots) throws IOException {
+    List<String> args = new ArrayList<>();
+    args.add("-d");
+    args.add(classes.toString());
+    args.add("-cp");
+    args.add(System.getProperty("java.class.path"));
+    for (Path root : roots) {
+      try (Stream<Path> paths = Files.walk(root)) {
+        paths.filter(p -> p.toString().endsWith(".java")).forEach(p -> args.add(p.toString()));
+      }
+    }
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    int exitCode = compiler.run(null /* in */, null /* out */, errors, args.toArray(new String[0]));
+    assertThat(errors.toString()).isEmpty();
+    assertThat(exitCode).isEqualTo(0);
+  }
+}
@@ -0,0 +1,279 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.Nullable;
+
+/**
+ * Tells whether a class has a source file of its own under the content roots, e.g., whether
+ * "src/main/java/com/Foo.java" exists for class "com.Foo" and content root "src/main/java".
+ *
+ * <p>{@link ReferencedClassesParser} asks this for every simple name it can't resolve through
+ * imports. {@link #onFileSystem} answers by checking the file system each time, which can add up to
+ * millions of file system calls per run. The other implementations look names up in an index that
+ * is built once.
+ *
+ * <p>Implementations are thread-safe.
+ */
+public abstract class ContentRootIndex {
+
+  private static final Joiner SLASH_JOINER = Joiner.on('/');
+
+  /** Stands for a content root that wasn't a directory when it was walked. */
+  private static final FileTime MISSING = FileTime.fromMillis(Long.MIN_VALUE);
+
+  /**
+   * Returns true iff a file named '<className>.java' exists in the directory of package
+   * 'packageName' under any of the content roots.
+   */
+  abstract boolean containsClass(String packageName, String className);
+
+  /**
+   * Returns true if the index still reflects the file system, i.e., it can be reused for another
+   * run. False if files may have been added or removed since it was built, or if that can't be
+   * told.
+   */
+  abstract boolean isUpToDate() throws IOException;
+
+  /** Returns an index that checks whether a class's source file exists on every lookup. */
+  public static ContentRootIndex onFileSystem(Collection<Path> contentRoots) {
+    return new FileSystemIndex(contentRoots);
+  }
+
+  /**
+   * Walks 'contentRoots' on 'numThreads' threads, and returns an index of all the source files
+   * found under them. Symbolic links to directories are followed, same as in {@link
+   * #onFileSystem}, unless they lead back to a directory that is being walked.
+   */
+  public static ContentRootIndex walk(Collection<Path> contentRoots, int numThreads)
+      throws IOException {
+    checkArgument(numThreads > 0, "numThreads must be positive, got %s", numThreads);
+    Set<String> relativePaths = ConcurrentHashMap.newKeySet();
+    Map<Path, FileTime> directoryTimes = new ConcurrentHashMap<>();
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      for (Path root : contentRoots) {
+        if (Files.isDirectory(root)) {
+          pool.invoke(
+              new WalkDirectory(root, null /* parent */, "", relativePaths, directoryTimes));
+        } else {
+          directoryTimes.put(root, MISSING);
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdownNow();
+    }
+    return new PathSetIndex(
+        ImmutableSet.copyOf(relativePaths), ImmutableMap.copyOf(directoryTimes));
+  }
+
+  /**
+   * Returns an index of 'sourceFiles' that lie under 'contentRoots'. Unlike {@link #walk}, this
+   * doesn't touch the file system, but it is only accurate if 'sourceFiles' includes every source
+   * file under the content roots.
+   */
+  public static ContentRootIndex ofSourceFiles(
+      Collection<Path> contentRoots, Collection<Path> sourceFiles) {
+    ImmutableList<Path> absoluteRoots =
+        contentRoots
+            .stream()
+            .map(p -> p.toAbsolutePath().normalize())
+            .collect(toImmutableList());
+    ImmutableSet.Builder<String> relativePaths = ImmutableSet.builder();
+    for (Path sourceFile : sourceFiles) {
+      Path absoluteFile = sourceFile.toAbsolutePath().normalize();
+      for (Path root : absoluteRoots) {
+        if (absoluteFile.startsWith(root)) {
+          relativePaths.add(SLASH_JOINER.join(root.relativize(absoluteFile)));
+        }
+      }
+    }
+    return new PathSetIndex(relativePaths.build(), null /* directoryTimes */);
+  }
+
+  /** The old behavior: one file system call per content root per lookup. */
+  private static class FileSystemIndex extends ContentRootIndex {
+    private final ImmutableList<Path> contentRoots;
+
+    FileSystemIndex(Collection<Path> contentRoots) {
+      this.contentRoots = ImmutableList.copyOf(contentRoots);
+    }
+
+    @Override
+    boolean containsClass(String packageName, String className) {
+      String packagePath = packageName.replace(".", File.separator);
+      for (Path root : contentRoots) {
+        if (Files.exists(root.resolve(packagePath).resolve(className + ".java"))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    boolean isUpToDate() {
+      return true;
+    }
+  }
+
+  /**
+   * Stores the paths of source files relative to their content root, with '/' separated
+   * components, e.g., "com/Foo.java".
+   */
+  private static class PathSetIndex extends ContentRootIndex {
+    private final ImmutableSet<String> relativePaths;
+
+    /**
+     * The last modified time of every directory that was listed to build the index, or null if the
+     * index wasn't built by listing directories. Adding or removing a file changes the last
+     * modified time of its directory, unless it happens so soon after the walk that the time
+     * doesn't change at the file system's timestamp resolution.
+     */
+    @Nullable private final ImmutableMap<Path, FileTime> directoryTimes;
+
+    PathSetIndex(
+        ImmutableSet<String> relativePaths,
+        @Nullable ImmutableMap<Path, FileTime> directoryTimes) {
+      this.relativePaths = relativePaths;
+      this.directoryTimes = directoryTimes;
+    }
+
+    @Override
+    boolean containsClass(String packageName, String className) {
+      String relativePath =
+          packageName.isEmpty()
+              ? className + ".java"
+              : packageName.replace('.', '/') + '/' + className + ".java";
+      return relativePaths.contains(relativePath);
+    }
+
+    @Override
+    boolean isUpToDate() throws IOException {
+      if (directoryTimes == null) {
+        return false;
+      }
+      for (Map.Entry<Path, FileTime> entry : directoryTimes.entrySet()) {
+        Path directory = entry.getKey();
+        FileTime time =
+            Files.isDirectory(directory) ? Files.getLastModifiedTime(directory) : MISSING;
+        if (!time.equals(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Lists a directory, and forks a task for each of its subdirectories. */
+  private static class WalkDirectory extends RecursiveAction {
+    private static final long serialVersionUID = 0L;
+
+    private final Path directory;
+
+    /** The task that walks the directory 'directory' is in, or null for a content root. */
+    @Nullable private final WalkDirectory parent;
+
+    /** Path of 'directory' relative to its content root, ending in '/' unless it's the root. */
+    private final String relativePath;
+
+    private final Set<String> out;
+
+    private final Map<Path, FileTime> directoryTimes;
+
+    WalkDirectory(
+        Path directory,
+        @Nullable WalkDirectory parent,
+        String relativePath,
+        Set<String> out,
+        Map<Path, FileTime> directoryTimes) {
+      this.directory = directory;
+      this.parent = parent;
+      this.relativePath = relativePath;
+      this.out = out;
+      this.directoryTimes = directoryTimes;
+    }
+
+    @Override
+    protected void compute() {
+      List<WalkDirectory> subdirectories = new ArrayList<>();
+      try {
+        // Read before listing, so that a file added while listing makes the index out of date.
+        directoryTimes.put(directory, Files.getLastModifiedTime(directory));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          String name = entry.getFileName().toString();
+          // Anything named '*.java' counts, same as in FileSystemIndex. This saves checking what
+          // kind of file each source file is.
+          if (name.endsWith(".java")) {
+            out.add(relativePath + name);
+            continue;
+          }
+          BasicFileAttributes attributes =
+              Files.readAttributes(entry, BasicFileAttributes.class, NOFOLLOW_LINKS);
+          if (attributes.isDirectory()
+              || (attributes.isSymbolicLink() && Files.isDirectory(entry) && !isAncestor(entry))) {
+            subdirectories.add(
+                new WalkDirectory(entry, this, relativePath + name + '/', out, directoryTimes));
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      invokeAll(subdirectories);
+    }
+
+    /**
+     * Returns true if 'linkedDirectory' is the directory of this task or of one of its parents, in
+     * which case following the link would walk it over and over.
+     */
+    private boolean isAncestor(Path linkedDirectory) throws IOException {
+      for (WalkDirectory task = this; task != null; task = task.parent) {
+        if (Files.isSameFile(linkedDirectory, task.directory)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
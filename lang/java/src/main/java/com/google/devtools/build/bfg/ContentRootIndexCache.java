@@ -0,0 +1,49 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link ContentRootIndex} walked for each list of content roots, and hands it out again
+ * for as long as no files were added to or removed from the content roots.
+ *
+ * <p>A single {@link JavaSourceFileParserCli} run walks each list of content roots once anyway, so
+ * this only saves time in {@link JavaSourceFileParserServer}, where it outlives the run.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ContentRootIndexCache {
+
+  private final Map<ImmutableList<Path>, ContentRootIndex> indices = new HashMap<>();
+
+  /**
+   * Returns the result of {@link ContentRootIndex#walk} for 'contentRoots', walking them again only
+   * if the index from a previous call is no longer up to date.
+   */
+  synchronized ContentRootIndex walk(ImmutableList<Path> contentRoots, int numThreads)
+      throws IOException {
+    ContentRootIndex index = indices.get(contentRoots);
+    if (index == null || !index.isUpToDate()) {
+      index = ContentRootIndex.walk(contentRoots, numThreads);
+      indices.put(contentRoots, index);
+    }
+    return index;
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import java.io.IOException;
+import java.io.OutputStream;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/**
+ * Writes the class graph as a stream of length-delimited {@link ParserOutput} messages, one per
+ * source file, followed by one holding the edges that put one-rule-per-package classes on cycles.
+ *
+ * <p>Each message is written as soon as its file is parsed, so the consumer can start building its
+ * graph before parsing is done, and neither side holds the whole graph in a single message. Merging
+ * the messages, with the edges of a class being the union of its edges in all messages, gives the
+ * same graph as a single {@link ParserOutput}.
+ */
+class DelimitedParserOutputWriter implements JavaSourceFileParser.ClassGraphSink {
+
+  private final OutputStream out;
+
+  DelimitedParserOutputWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void addFile(
+      String srcFilePath, String className, ImmutableSet<String> dependencies, String ruleKind)
+      throws IOException {
+    ParserOutput.newBuilder()
+        .putClassToClass(className, Strings.newBuilder().addAllElements(dependencies).build())
+        .putClassToFile(className, Strings.newBuilder().addElements(srcFilePath).build())
+        .putFileToRuleKind(srcFilePath, ruleKind)
+        .build()
+        .writeDelimitedTo(out);
+  }
+
+  @Override
+  public void addEdges(ImmutableSetMultimap<String, String> edges) throws IOException {
+    ParserOutput.Builder result = ParserOutput.newBuilder();
+    edges
+        .asMap()
+        .forEach(
+            (u, successors) ->
+                result.putClassToClass(u, Strings.newBuilder().addAllElements(successors).build()));
+    result.build().writeDelimitedTo(out);
+    out.flush();
+  }
+}
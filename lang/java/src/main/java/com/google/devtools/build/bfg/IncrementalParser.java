@@ -0,0 +1,349 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/**
+ * Updates the output of an earlier parse after some source files were added, modified or deleted,
+ * by parsing only the files whose output may have changed.
+ *
+ * <p>Those are the changed files themselves, and:
+ *
+ * <ul>
+ *   <li>the other files in the package of an added or deleted file, under every content root,
+ *       since a simple name in them may now resolve, or no longer resolve, to the added or deleted
+ *       class. A file's package is its directory relative to its content root.
+ *   <li>the files that import such a package on demand, for the same reason. They are found by
+ *       scanning the imports of the other files, which is only done if a package has gained or
+ *       lost files.
+ *   <li>all the files in a directory under the one-rule-per-package roots that has any file to
+ *       parse. Its classes are put on a new cycle, and the edges of the old cycle can't be told
+ *       apart from the other edges in the earlier output.
+ * </ul>
+ *
+ * <p>The output of the files to parse is dropped from the earlier output, and replaced with their
+ * new output. The files in the earlier output and the changed files are matched by their
+ * absolute, normalized paths.
+ */
+class IncrementalParser {
+
+  private static final Joiner SLASH_JOINER = Joiner.on('/');
+
+  private final ParserOutput previous;
+
+  private final ImmutableList<Path> contentRoots;
+
+  private final ImmutableSet<Path> oneRulePerPackageRoots;
+
+  /** The files to parse, as they should appear in the output. */
+  private final ImmutableList<Path> filesToParse;
+
+  /** The files in the earlier output whose output is dropped, as they appear in it. */
+  private final ImmutableSet<String> filesToDrop;
+
+  /** All the source files after the change. */
+  private final ImmutableList<Path> sourceFiles;
+
+  /**
+   * @param previous the earlier output, as written with --output_format=PARSER_OUTPUT
+   * @param changedFiles files that were added, modified or deleted since 'previous' was written.
+   *     Files that don't exist are taken as deleted. Files whose name doesn't end in ".java" are
+   *     ignored.
+   * @param contentRoots the content roots that 'previous' was parsed with
+   * @param workingDirectory what relative file names in 'previous' are relative to
+   * @throws IOException if the imports of a file in 'previous' can't be read
+   */
+  IncrementalParser(
+      ParserOutput previous,
+      Collection<Path> changedFiles,
+      ImmutableList<Path> contentRoots,
+      ImmutableSet<Path> oneRulePerPackageRoots,
+      Path workingDirectory)
+      throws IOException {
+    this.previous = previous;
+    this.contentRoots = contentRoots;
+    this.oneRulePerPackageRoots = oneRulePerPackageRoots;
+    ImmutableList<Path> absoluteContentRoots =
+        contentRoots.stream().map(IncrementalParser::normalize).collect(toImmutableList());
+    ImmutableSet<Path> absoluteOneRulePerPackageRoots =
+        oneRulePerPackageRoots.stream().map(IncrementalParser::normalize).collect(toImmutableSet());
+
+    // The files in 'previous', by absolute path, by directory, and by package.
+    Map<Path, String> previousFiles = new LinkedHashMap<>();
+    for (Strings files : previous.getClassToFileMap().values()) {
+      for (String file : files.getElementsList()) {
+        previousFiles.put(normalize(workingDirectory.resolve(file)), file);
+      }
+    }
+    for (String file : previous.getFileToRuleKindMap().keySet()) {
+      previousFiles.put(normalize(workingDirectory.resolve(file)), file);
+    }
+    SetMultimap<Path, Path> previousFilesByDirectory = HashMultimap.create();
+    previousFiles.keySet().forEach(file -> previousFilesByDirectory.put(file.getParent(), file));
+    SetMultimap<String, Path> previousFilesByPackage = HashMultimap.create();
+    for (Path file : previousFiles.keySet()) {
+      for (String packagePath : packagePaths(file, absoluteContentRoots)) {
+        previousFilesByPackage.put(packagePath, file);
+      }
+    }
+
+    Map<Path, Path> toParse = new LinkedHashMap<>();
+    Set<Path> deleted = new HashSet<>();
+    Set<String> dirtyPackages = new LinkedHashSet<>();
+    for (Path file : changedFiles) {
+      if (!file.getFileName().toString().endsWith(".java")) {
+        continue;
+      }
+      Path absoluteFile = normalize(file);
+      boolean exists = Files.exists(file);
+      if (!exists) {
+        deleted.add(absoluteFile);
+      } else {
+        // Keeps the file's name as it is in the earlier output, if it is there.
+        String previousName = previousFiles.get(absoluteFile);
+        toParse.put(
+            absoluteFile, previousName == null ? file : workingDirectory.resolve(previousName));
+      }
+      if (!exists || !previousFiles.containsKey(absoluteFile)) {
+        dirtyPackages.addAll(packagePaths(absoluteFile, absoluteContentRoots));
+      }
+    }
+    for (String packagePath : dirtyPackages) {
+      addPreviousFiles(
+          previousFilesByPackage.get(packagePath),
+          previousFiles,
+          deleted,
+          workingDirectory,
+          toParse);
+    }
+    if (!dirtyPackages.isEmpty()) {
+      List<Path> importingFiles = new ArrayList<>();
+      for (Path absoluteFile : previousFiles.keySet()) {
+        if (!deleted.contains(absoluteFile)
+            && !toParse.containsKey(absoluteFile)
+            && importsOnDemand(absoluteFile, dirtyPackages)) {
+          importingFiles.add(absoluteFile);
+        }
+      }
+      addPreviousFiles(importingFiles, previousFiles, deleted, workingDirectory, toParse);
+    }
+    Set<Path> cycleDirectories = new LinkedHashSet<>();
+    for (Path file : Iterables.concat(toParse.keySet(), deleted)) {
+      Path directory = file.getParent();
+      if (absoluteOneRulePerPackageRoots.stream().anyMatch(directory::startsWith)) {
+        cycleDirectories.add(directory);
+      }
+    }
+    for (Path directory : cycleDirectories) {
+      addPreviousFiles(
+          previousFilesByDirectory.get(directory),
+          previousFiles,
+          deleted,
+          workingDirectory,
+          toParse);
+    }
+
+    this.filesToParse = ImmutableList.copyOf(toParse.values());
+    ImmutableSet.Builder<String> filesToDrop = ImmutableSet.builder();
+    for (Path file : Iterables.concat(toParse.keySet(), deleted)) {
+      if (previousFiles.containsKey(file)) {
+        filesToDrop.add(previousFiles.get(file));
+      }
+    }
+    this.filesToDrop = filesToDrop.build();
+
+    ImmutableList.Builder<Path> sourceFiles = ImmutableList.builder();
+    previousFiles.forEach(
+        (absoluteFile, file) -> {
+          if (!deleted.contains(absoluteFile) && !toParse.containsKey(absoluteFile)) {
+            sourceFiles.add(workingDirectory.resolve(file));
+          }
+        });
+    this.sourceFiles = sourceFiles.addAll(filesToParse).build();
+  }
+
+  /**
+   * Returns the package of 'absoluteFile' as its directory relative to each of the content roots it
+   * lies under, e.g., "com/foo" for "/src/main/java/com/foo/Bar.java" and root "/src/main/java".
+   * For a file outside all the content roots, returns its absolute directory, so that it only
+   * shares a package with the files in the same directory.
+   */
+  private static ImmutableList<String> packagePaths(
+      Path absoluteFile, ImmutableList<Path> absoluteContentRoots) {
+    Path directory = absoluteFile.getParent();
+    ImmutableList.Builder<String> packagePaths = ImmutableList.builder();
+    boolean isUnderRoot = false;
+    for (Path root : absoluteContentRoots) {
+      if (directory.startsWith(root)) {
+        packagePaths.add(SLASH_JOINER.join(root.relativize(directory)));
+        isUnderRoot = true;
+      }
+    }
+    if (!isUnderRoot) {
+      packagePaths.add(directory.toString());
+    }
+    return packagePaths.build();
+  }
+
+  /**
+   * Returns true if 'absoluteFile' imports on demand any of the packages in 'packagePaths', as
+   * returned by {@link #packagePaths}.
+   */
+  private static boolean importsOnDemand(Path absoluteFile, Set<String> packagePaths)
+      throws IOException {
+    char[] source = SourceFileReader.decode(SourceFileReader.read(absoluteFile));
+    for (String onDemandImport : LexicalDependencyExtractor.onDemandImports(source)) {
+      if (packagePaths.contains(onDemandImport.replace('.', '/'))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds the files in 'files' that weren't deleted to 'toParse'. */
+  private static void addPreviousFiles(
+      Collection<Path> files,
+      Map<Path, String> previousFiles,
+      Set<Path> deleted,
+      Path workingDirectory,
+      Map<Path, Path> toParse) {
+    for (Path absoluteFile : files) {
+      if (!deleted.contains(absoluteFile) && !toParse.containsKey(absoluteFile)) {
+        toParse.put(absoluteFile, workingDirectory.resolve(previousFiles.get(absoluteFile)));
+      }
+    }
+  }
+
+  /** The files that {@link #parse} parses. */
+  ImmutableList<Path> filesToParse() {
+    return filesToParse;
+  }
+
+  /**
+   * All the source files after the change, e.g., for {@link ContentRootIndex#ofSourceFiles}. Those
+   * from the earlier output are assumed to still exist, unless they are among the changed files.
+   */
+  ImmutableList<Path> sourceFiles() {
+    return sourceFiles;
+  }
+
+  /**
+   * Parses {@link #filesToParse}, and returns the earlier output updated with their output. Adds
+   * the class names that couldn't be resolved in those files to 'outUnresolvedClassNames'.
+   */
+  ParserOutput parse(JavaSourceFileParser.Options options, Set<String> outUnresolvedClassNames)
+      throws IOException {
+    ParserOutputMerger merger = new ParserOutputMerger();
+    merger.add(dropFiles(previous, filesToDrop));
+    // The merger puts one-rule-per-package classes on cycles, since it sees all of them.
+    outUnresolvedClassNames.addAll(
+        JavaSourceFileParser.parse(
+            filesToParse, contentRoots, ImmutableSet.of(), options, merger));
+    return merger.merge(oneRulePerPackageRoots);
+  }
+
+  /** Returns 'parserOutput' without the classes defined in 'files', and without 'files'. */
+  private static ParserOutput dropFiles(ParserOutput parserOutput, Set<String> files) {
+    Set<String> classesToDrop = new HashSet<>();
+    parserOutput
+        .getClassToFileMap()
+        .forEach(
+            (className, classFiles) -> {
+              if (classFiles.getElementsList().stream().anyMatch(files::contains)) {
+                classesToDrop.add(className);
+              }
+            });
+    ParserOutput.Builder result = parserOutput.toBuilder();
+    classesToDrop.forEach(
+        className -> {
+          result.removeClassToClass(className);
+          result.removeClassToFile(className);
+        });
+    files.forEach(result::removeFileToRuleKind);
+    return result.build();
+  }
+
+  /**
+   * Returns the files that changed in the git work tree of 'workingDirectory' since 'revision',
+   * including files that git doesn't track yet, unless they are ignored. Renamed files are returned
+   * as the deleted old file and the added new one.
+   */
+  static ImmutableList<Path> changedSince(Path workingDirectory, String revision)
+      throws IOException {
+    Set<String> files = new LinkedHashSet<>();
+    files.addAll(
+        git(workingDirectory, "diff", "--name-only", "--no-renames", "--relative", revision, "--"));
+    files.addAll(git(workingDirectory, "ls-files", "--others", "--exclude-standard"));
+    return files.stream().map(workingDirectory::resolve).collect(toImmutableList());
+  }
+
+  /** Runs git in 'workingDirectory', and returns the lines it writes to stdout. */
+  private static ImmutableList<String> git(Path workingDirectory, String... args)
+      throws IOException {
+    ImmutableList<String> command =
+        ImmutableList.<String>builder().add("git").add(args).build();
+    Process process =
+        new ProcessBuilder(command)
+            .directory(workingDirectory.toAbsolutePath().toFile())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    byte[] output;
+    try (InputStream in = process.getInputStream()) {
+      output = ByteStreams.toByteArray(in);
+    }
+    try {
+      int exitCode = process.waitFor();
+      if (exitCode != 0) {
+        throw new IOException(
+            String.format("'%s' exited with %d", String.join(" ", command), exitCode));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    return ImmutableList.copyOf(
+        Splitter.on('\n').omitEmptyStrings().split(new String(output, UTF_8)));
+  }
+
+  private static Path normalize(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The types of the java.lang package, which Java files can refer to without importing them.
+ *
+ * <p>The names are generated at build time by {@link JavaLangTypesGenerator}, from the JDK the
+ * build runs on, and are loaded once.
+ */
+final class JavaLangTypes {
+
+  private static final String RESOURCE_NAME = "java_lang_types.txt";
+
+  /** Names relative to java.lang, with nested types separated by '.', e.g., "Thread.State". */
+  private static final ImmutableSet<String> NAMES = load();
+
+  private JavaLangTypes() {}
+
+  /**
+   * Returns true iff 'name' is the name of a type in java.lang, relative to java.lang, e.g.,
+   * "String" or "Thread.State".
+   */
+  static boolean contains(String name) {
+    return NAMES.contains(name);
+  }
+
+  private static ImmutableSet<String> load() {
+    try {
+      return ImmutableSet.copyOf(
+          Resources.readLines(Resources.getResource(JavaLangTypes.class, RESOURCE_NAME), UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Prints the names of the types in the java.lang package of the running JDK that code outside the
+ * package can refer to, one per line. Nested types are printed with '.' separators, e.g.,
+ * "Thread.State".
+ *
+ * <p>Run at build time to generate the index read by {@link JavaLangTypes}.
+ */
+public class JavaLangTypesGenerator {
+
+  private static final String JAVA_LANG = "java/lang/";
+
+  public static void main(String[] args) throws IOException {
+    ImmutableSortedSet.Builder<String> names = ImmutableSortedSet.naturalOrder();
+    for (String binaryName : listJavaLangClasses()) {
+      Class<?> cls;
+      try {
+        cls = Class.forName("java.lang." + binaryName, false /* initialize */, null);
+      } catch (ClassNotFoundException | LinkageError e) {
+        continue;
+      }
+      if (isAccessible(cls)) {
+        names.add(binaryName.replace('$', '.'));
+      }
+    }
+    PrintStream out = new PrintStream(System.out, false, UTF_8.name());
+    names.build().forEach(out::println);
+    out.flush();
+  }
+
+  /**
+   * Returns the binary names, relative to java.lang, of the classes in the java.lang package of the
+   * running JDK, e.g., "Thread$State".
+   */
+  private static ImmutableList<String> listJavaLangClasses() throws IOException {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    String bootClassPath = System.getProperty("sun.boot.class.path");
+    if (bootClassPath == null) {
+      // JDK 9 and later keep their classes in modules.
+      Path javaLang =
+          FileSystems.getFileSystem(URI.create("jrt:/")).getPath("modules/java.base/java/lang");
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(javaLang, "*.class")) {
+        for (Path entry : entries) {
+          result.add(stripClassSuffix(entry.getFileName().toString()));
+        }
+      }
+      return result.build();
+    }
+    for (String element : bootClassPath.split(File.pathSeparator)) {
+      Path path = Paths.get(element);
+      if (Files.isDirectory(path)) {
+        Path javaLang = path.resolve(JAVA_LANG);
+        if (!Files.isDirectory(javaLang)) {
+          continue;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(javaLang, "*.class")) {
+          for (Path entry : entries) {
+            result.add(stripClassSuffix(entry.getFileName().toString()));
+          }
+        }
+      } else if (Files.isRegularFile(path)) {
+        try (JarFile jar = new JarFile(path.toFile())) {
+          for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+            String name = entries.nextElement().getName();
+            if (name.startsWith(JAVA_LANG)
+                && name.endsWith(".class")
+                && name.indexOf('/', JAVA_LANG.length()) == -1) {
+              result.add(stripClassSuffix(name.substring(JAVA_LANG.length())));
+            }
+          }
+        }
+      }
+    }
+    return result.build();
+  }
+
+  private static String stripClassSuffix(String fileName) {
+    return fileName.substring(0, fileName.length() - ".class".length());
+  }
+
+  /**
+   * Returns true iff code outside java.lang can refer to 'cls' by name, possibly from a subclass of
+   * its enclosing class.
+   */
+  private static boolean isAccessible(Class<?> cls) {
+    if (cls.isAnonymousClass() || cls.isLocalClass() || cls.isSynthetic()) {
+      return false;
+    }
+    for (Class<?> c = cls; c != null; c = c.getDeclaringClass()) {
+      int modifiers = c.getModifiers();
+      if (!Modifier.isPublic(modifiers) && !Modifier.isProtected(modifiers)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
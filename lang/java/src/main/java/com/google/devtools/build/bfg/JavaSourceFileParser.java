@@ -14,20 +14,21 @@
 
 package com.google.devtools.build.bfg;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.collect.Iterables.any;
 import static com.google.common.collect.Iterables.getLast;
-import static com.google.common.collect.Iterables.getOnlyElement;
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.nio.file.Files.readAllBytes;
 
+import com.google.auto.value.AutoValue;
 import com.google.common.base.Strings;
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Ordering;
 import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.ImmutableGraph;
@@ -36,26 +37,43 @@ import com.google.devtools.build.bfg.ReferencedClassesParser.Metadata;
 import com.google.devtools.build.bfg.ReferencedClassesParser.QualifiedName;
 import com.google.devtools.build.bfg.ReferencedClassesParser.SimpleName;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import org.eclipse.jdt.core.dom.CompilationUnit;
-import org.eclipse.jdt.core.dom.ITypeBinding;
-import org.eclipse.jdt.core.dom.IVariableBinding;
-import org.eclipse.jdt.core.dom.MethodDeclaration;
-import org.eclipse.jdt.core.dom.Modifier;
-import org.eclipse.jdt.core.dom.PrimitiveType;
-import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
-import org.eclipse.jdt.core.dom.Type;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
 
 /** Given a set of source files, parses the source files and constructs a class dependency graph */
 public class JavaSourceFileParser {
 
-  private final ImmutableList<Path> absoluteSourceFilePaths;
+  /**
+   * How many batches per thread {@link #parseFiles} parses ahead of the batch it's waiting for.
+   * Keeps all threads busy while one is parsing a large file.
+   */
+  private static final int MAX_PENDING_BATCHES_PER_THREAD = 4;
 
-  private final ImmutableList<Path> contentRoots;
+  /** Stands for a file that failed to parse. Like a file without classes, it isn't in the graph. */
+  private static final SourceFileSummary FAILED_FILE_SUMMARY =
+      SourceFileSummary.create("", "", ImmutableList.of(), ImmutableList.of(), "java_library");
 
   private final Set<String> unresolvedClassNames;
 
@@ -83,49 +101,120 @@ public class JavaSourceFileParser {
   private final ImmutableMap<String, String> filesToRuleKind;
 
   /**
-   * Content roots where BFG should generate one-rule-per-package, instead of one-rule-per-file. For
-   * example, if one wants all rules in src/main/ to be rule||package, but src/test/ to be
-   * rule||file, this field should contain exactly "src/main/".
+   * @param oneRulePerPackageRoots Content roots where BFG should generate one-rule-per-package,
+   *     instead of one-rule-per-file. For example, if one wants all rules in src/main/ to be
+   *     rule||package, but src/test/ to be rule||file, this should contain exactly "src/main/".
    */
-  private final ImmutableSet<Path> oneRulePerPackageRoots;
+  JavaSourceFileParser(
+      Iterable<Path> sourceFilePaths,
+      ImmutableList<Path> contentRoots,
+      ImmutableSet<Path> oneRulePerPackageRoots)
+      throws IOException {
+    this(sourceFilePaths, contentRoots, oneRulePerPackageRoots, Options.DEFAULT);
+  }
 
   /**
    * @param oneRulePerPackageRoots Content roots where BFG should generate one-rule-per-package,
-   *     instead of one-rule-per-file. See {@link #oneRulePerPackageRoots}.
+   *     instead of one-rule-per-file, as in {@link #JavaSourceFileParser(Iterable, ImmutableList,
+   *     ImmutableSet)}.
+   * @param sourceFilePaths the files to parse. Parsing starts while they are being iterated, so
+   *     they can be discovered while earlier files are parsed.
+   * @param options control how files are parsed. They don't affect the results.
    */
   JavaSourceFileParser(
-      ImmutableList<Path> sourceFilePaths,
+      Iterable<Path> sourceFilePaths,
       ImmutableList<Path> contentRoots,
-      ImmutableSet<Path> oneRulePerPackageRoots)
+      ImmutableSet<Path> oneRulePerPackageRoots,
+      Options options)
       throws IOException {
-    this.absoluteSourceFilePaths =
-        sourceFilePaths
-            .stream()
-            .map(p -> p.toAbsolutePath().normalize())
-            .collect(toImmutableList());
-    this.contentRoots = contentRoots;
-    this.oneRulePerPackageRoots =
+    MutableGraph<String> classToClass = GraphBuilder.directed().allowsSelfLoops(false).build();
+    // Each file has its own copies of the names it mentions, which the graph would otherwise keep.
+    ClassNames classNames = new ClassNames();
+    ImmutableMap.Builder<String, String> classToFile = ImmutableMap.builder();
+    ImmutableMap.Builder<String, String> filesToRuleKind = ImmutableMap.builder();
+    this.unresolvedClassNames =
+        parse(
+            sourceFilePaths,
+            contentRoots,
+            oneRulePerPackageRoots,
+            options,
+            new ClassGraphSink() {
+              @Override
+              public void addFile(
+                  String srcFilePath,
+                  String className,
+                  ImmutableSet<String> dependencies,
+                  String ruleKind) {
+                String src = classNames.intern(className);
+                classToFile.put(src, srcFilePath);
+                for (String dependency : dependencies) {
+                  classToClass.putEdge(src, classNames.intern(dependency));
+                }
+                filesToRuleKind.put(srcFilePath, ruleKind);
+              }
+
+              @Override
+              public void addEdges(ImmutableSetMultimap<String, String> edges) {
+                edges.forEach(
+                    (u, v) -> classToClass.putEdge(classNames.intern(u), classNames.intern(v)));
+              }
+            });
+    this.classToClass = ImmutableGraph.copyOf(classToClass);
+    this.classToFile = classToFile.build();
+    this.filesToRuleKind = filesToRuleKind.build();
+  }
+
+  /**
+   * Parses 'sourceFilePaths' like {@link #JavaSourceFileParser}, but instead of building the class
+   * graph in memory, hands it to 'sink' one file at a time, as soon as the file is merged. Returns
+   * the class names that couldn't be resolved.
+   */
+  static ImmutableSet<String> parse(
+      Iterable<Path> sourceFilePaths,
+      ImmutableList<Path> contentRoots,
+      ImmutableSet<Path> oneRulePerPackageRoots,
+      Options options,
+      ClassGraphSink sink)
+      throws IOException {
+    ImmutableSet<Path> absoluteOneRulePerPackageRoots =
         oneRulePerPackageRoots
             .stream()
             .map(p -> p.toAbsolutePath().normalize())
             .collect(toImmutableSet());
-
     ImmutableSet.Builder<String> unresolvedClassNames = ImmutableSet.builder();
-    MutableGraph<String> classToClass = GraphBuilder.directed().allowsSelfLoops(false).build();
-    ImmutableMap.Builder<String, String> classToFile = ImmutableMap.builder();
-    ImmutableMap.Builder<String, String> filesToRuleKind = ImmutableMap.builder();
+    // Classes defined in 'oneRulePerPackageRoots', by directory.
+    LinkedHashMultimap<Path, String> dirToClass = LinkedHashMultimap.create();
     parseFiles(
-        absoluteSourceFilePaths,
+        sourceFilePaths,
         contentRoots,
-        oneRulePerPackageRoots,
-        unresolvedClassNames,
-        classToClass,
-        classToFile,
-        filesToRuleKind);
-    this.classToClass = ImmutableGraph.copyOf(classToClass);
-    this.classToFile = classToFile.build();
-    this.filesToRuleKind = filesToRuleKind.build();
-    this.unresolvedClassNames = unresolvedClassNames.build();
+        options,
+        (srcFilePath, summary) -> {
+          if (summary.fullyQualifiedClassName().isEmpty()) {
+            // The file doesn't contain any classes, skip it.
+            return;
+          }
+          Path dir = srcFilePath.getParent();
+          if (any(absoluteOneRulePerPackageRoots, p -> dir.startsWith(p))) {
+            dirToClass.put(dir, summary.fullyQualifiedClassName());
+          }
+          String qualifiedSrc = stripInnerClassFromName(summary.fullyQualifiedClassName());
+          sink.addFile(
+              srcFilePath.toString(),
+              qualifiedSrc,
+              summary
+                  .qualifiedTopLevelNames()
+                  .stream()
+                  .filter(name -> !qualifiedSrc.equals(name))
+                  .collect(toImmutableSet()),
+              summary.ruleKind());
+          unresolvedClassNames.addAll(summary.unresolvedClassNames());
+        });
+
+    // Put classes defined in 'oneRulePerPackageRoots' on cycles.
+    ImmutableSetMultimap.Builder<String, String> cycleEdges = ImmutableSetMultimap.builder();
+    dirToClass.asMap().forEach((path, classes) -> putOnCycle(classes, cycleEdges));
+    sink.addEdges(cycleEdges.build());
+    return unresolvedClassNames.build();
   }
 
   /** Set of classes that we could not determine a fully qualified name for */
@@ -162,125 +251,317 @@ public class JavaSourceFileParser {
     return filesToRuleKind;
   }
 
-  /** Given a list of source files, creates a graph of their class level dependencies */
+  /**
+   * Parses 'sourceFilePaths', and hands each file's summary to 'consumer'.
+   *
+   * <p>Files are parsed on {@link Options#numThreads} threads, in batches of {@link
+   * Options#batchSize} files, but are handed to 'consumer' one by one, in the order they appear in
+   * 'sourceFilePaths'. This makes the output independent of the number of threads and of the order
+   * in which parsing finishes. A file is handed over as soon as it and all the files before it are
+   * parsed, and at most {@link #MAX_PENDING_BATCHES_PER_THREAD} batches per thread are parsed ahead
+   * of the consumer, so summaries don't pile up in memory.
+   */
   private static void parseFiles(
-      ImmutableList<Path> absoluteSourceFilePaths,
+      Iterable<Path> sourceFilePaths,
       ImmutableList<Path> contentRoots,
-      ImmutableSet<Path> oneRulePerPackageRoots,
-      ImmutableSet.Builder<String> unresolvedClassNames,
-      MutableGraph<String> classToClass,
-      ImmutableMap.Builder<String, String> classToFile,
-      ImmutableMap.Builder<String, String> fileToRuleKind)
+      Options options,
+      SummaryConsumer consumer)
       throws IOException {
-    HashMultimap<Path, String> dirToClass = HashMultimap.create();
-    for (Path srcFilePath : absoluteSourceFilePaths) {
-      ReferencedClassesParser parser =
-          new ReferencedClassesParser(
-              srcFilePath.getFileName().toString(),
-              new String(readAllBytes(srcFilePath), UTF_8),
-              contentRoots);
-      checkState(parser.isSuccessful);
-      if (Strings.isNullOrEmpty(parser.fullyQualifiedClassName)) {
-        // The file doesn't contain any classes, skip it. This happens for package-info.java files.
-        continue;
-      }
-      String qualifiedSrc = stripInnerClassFromName(parser.fullyQualifiedClassName);
-      dirToClass.put(srcFilePath.getParent(), parser.fullyQualifiedClassName);
-
-      boolean hasEdges = false;
-      classToFile.put(qualifiedSrc, srcFilePath.toString());
-      for (QualifiedName qualifiedDst : parser.qualifiedTopLevelNames) {
-        if (!qualifiedSrc.equals(qualifiedDst.value())) {
-          classToClass.putEdge(qualifiedSrc, qualifiedDst.value());
-          hasEdges = true;
+    ContentRootIndex contentRootIndex =
+        options.contentRootIndex().orElseGet(() -> ContentRootIndex.onFileSystem(contentRoots));
+    ExecutorService executor = Executors.newFixedThreadPool(options.numThreads());
+    try {
+      int maxPendingBatches = MAX_PENDING_BATCHES_PER_THREAD * options.numThreads();
+      Deque<ImmutableList<Path>> pendingPaths = new ArrayDeque<>();
+      Deque<Future<List<SourceFileSummary>>> pendingSummaries = new ArrayDeque<>();
+      int batchSize = Math.max(options.batchSize(), 1);
+      Iterator<Path> files = sourceFilePaths.iterator();
+      while (files.hasNext()) {
+        ImmutableList.Builder<Path> batchBuilder = ImmutableList.builder();
+        for (int i = 0; i < batchSize && files.hasNext(); i++) {
+          batchBuilder.add(files.next().toAbsolutePath().normalize());
+        }
+        ImmutableList<Path> batch = batchBuilder.build();
+        pendingPaths.add(batch);
+        pendingSummaries.add(executor.submit(() -> parseBatch(batch, contentRootIndex, options)));
+        while (!pendingSummaries.isEmpty()
+            && (pendingSummaries.size() >= maxPendingBatches
+                || pendingSummaries.peek().isDone())) {
+          consumeBatch(pendingPaths.remove(), pendingSummaries.remove(), consumer);
         }
       }
-
-      for (SimpleName name : parser.unresolvedClassNames) {
-        unresolvedClassNames.add(name.value());
+      while (!pendingSummaries.isEmpty()) {
+        consumeBatch(pendingPaths.remove(), pendingSummaries.remove(), consumer);
       }
-
-      fileToRuleKind.put(
-          srcFilePath.toString(),
-          decideRuleKind(
-              parser, hasEdges ? classToClass.adjacentNodes(qualifiedSrc) : ImmutableSet.of()));
+    } finally {
+      executor.shutdownNow();
     }
+  }
 
-    // Put classes defined in 'oneRulePerPackageRoots' on cycles.
-    dirToClass
-        .asMap()
-        .forEach(
-            (path, classes) -> {
-              if (any(oneRulePerPackageRoots, p -> path.startsWith(p))) {
-                putOnCycle(classes, classToClass);
-              }
-            });
+  /** Waits for the summaries of 'batch', and hands them to 'consumer'. */
+  private static void consumeBatch(
+      List<Path> batch, Future<List<SourceFileSummary>> summaries, SummaryConsumer consumer)
+      throws IOException {
+    int i = 0;
+    for (SourceFileSummary summary : getSummaries(summaries)) {
+      consumer.accept(batch.get(i++), summary);
+    }
   }
 
-  private static String decideRuleKind(ReferencedClassesParser parser, Set<String> dependencies) {
-    CompilationUnit cu = parser.compilationUnit;
-    if (cu.types().isEmpty()) {
-      return "java_library";
+  /**
+   * Parses the files in 'batch', and returns their summaries in the same order. Files saved in the
+   * {@link Options#checkpoint} aren't parsed again, and the files that are parsed are saved to it.
+   * Files that fail to parse, which are recorded in {@link Options#failures}, get an empty summary
+   * that leaves them out of the graph.
+   */
+  private static List<SourceFileSummary> parseBatch(
+      List<Path> batch, ContentRootIndex contentRoots, Options options) throws IOException {
+    ParseCheckpoint checkpoint = options.checkpoint().orElse(null);
+    SourceFileSummary[] summaries = new SourceFileSummary[batch.size()];
+    BasicFileAttributes[] attributes = new BasicFileAttributes[batch.size()];
+    // Files we have to parse, and their index in 'batch'.
+    List<Path> filesToParse = new ArrayList<>();
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < batch.size(); i++) {
+      if (checkpoint != null) {
+        attributes[i] = Files.readAttributes(batch.get(i), BasicFileAttributes.class);
+        summaries[i] = checkpoint.get(batch.get(i), attributes[i]);
+      }
+      if (summaries[i] == null) {
+        filesToParse.add(batch.get(i));
+        indices.add(i);
+      }
     }
-    AbstractTypeDeclaration topLevelClass = (AbstractTypeDeclaration) cu.types().get(0);
-    if ((topLevelClass.getModifiers() & Modifier.ABSTRACT) != 0) {
-      // Class is abstract, can't be a test.
-      return "java_library";
+    if (filesToParse.isEmpty()) {
+      return Arrays.asList(summaries);
     }
-
-    // JUnit 4 tests
-    if (parser.className.endsWith("Test") && dependencies.contains("org.junit.Test")) {
-      return "java_test";
+    List<SourceFileSummary> parsed = parseSources(filesToParse, contentRoots, options);
+    for (int j = 0; j < parsed.size(); j++) {
+      int i = indices.get(j);
+      summaries[i] = parsed.get(j);
+      if (summaries[i] == null) {
+        summaries[i] = FAILED_FILE_SUMMARY;
+      } else if (checkpoint != null) {
+        checkpoint.put(batch.get(i), attributes[i], summaries[i]);
+      }
     }
+    return Arrays.asList(summaries);
+  }
 
-    if (any(
-        topLevelClass.bodyDeclarations(),
-        d -> d instanceof MethodDeclaration && isMainMethod((MethodDeclaration) d))) {
-      return "java_binary";
+  /**
+   * Parses the files in 'batch' with a single JDT parser, and returns their summaries in the same
+   * order, or null for the files that failed to parse. Files that haven't changed since they were
+   * cached aren't parsed again.
+   */
+  private static List<SourceFileSummary> parseSources(
+      List<Path> batch, ContentRootIndex contentRoots, Options options) throws IOException {
+    if (options.batchSize() == 0 || options.fast() || options.typeIndex().isPresent()) {
+      List<SourceFileSummary> summaries = new ArrayList<>(batch.size());
+      for (Path file : batch) {
+        summaries.add(parseFile(file, contentRoots, options));
+      }
+      return summaries;
+    }
+    ParseCache cache = options.parseCache().orElse(null);
+    ParseTimings timings = options.timings().orElse(null);
+    SourceFileSummary[] summaries = new SourceFileSummary[batch.size()];
+    String[] cacheKeys = new String[batch.size()];
+    long[] readNanos = new long[batch.size()];
+    // Files we have to parse, and their index in 'batch'.
+    Map<Path, Integer> filesToParse = new LinkedHashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      // JDT reads the files it parses itself, so only reading them for the cache is timed.
+      long start = System.nanoTime();
+      if (cache != null) {
+        cacheKeys[i] = cache.key(SourceFileReader.read(batch.get(i)));
+        summaries[i] = cache.get(cacheKeys[i]);
+      }
+      readNanos[i] = System.nanoTime() - start;
+      if (summaries[i] == null) {
+        filesToParse.put(batch.get(i), i);
+      } else if (timings != null) {
+        timings.record(batch.get(i), readNanos[i], 0, 0, 0);
+      }
+    }
+    if (filesToParse.isEmpty()) {
+      return Arrays.asList(summaries);
     }
 
-    return "java_library";
+    boolean[] failed = new boolean[batch.size()];
+    Map<String, Integer> indexOfPath = new HashMap<>();
+    filesToParse.forEach((path, i) -> indexOfPath.put(path.toString(), i));
+    ReferencedClassesParser.parseAndResolveSources(
+        filesToParse.keySet(),
+        new FileASTRequestor() {
+          /** When JDT started resolving the next file, as far as we can tell. */
+          long resolveStart = System.nanoTime();
+
+          @Override
+          public void acceptAST(String sourceFilePath, CompilationUnit compilationUnit) {
+            long visitStart = System.nanoTime();
+            int i = indexOfPath.get(sourceFilePath);
+            ReferencedClassesParser parser =
+                new ReferencedClassesParser(
+                    batch.get(i).getFileName().toString(),
+                    compilationUnit,
+                    contentRoots,
+                    options.packageIndex().orElse(null));
+            if (!checkSuccessful(batch.get(i), parser, options)) {
+              failed[i] = true;
+              resolveStart = System.nanoTime();
+              return;
+            }
+            summaries[i] = summarize(parser);
+            long visitEnd = System.nanoTime();
+            if (timings != null) {
+              timings.record(
+                  batch.get(i), readNanos[i], 0, visitStart - resolveStart, visitEnd - visitStart);
+            }
+            resolveStart = visitEnd;
+          }
+        });
+    for (int i : filesToParse.values()) {
+      if (failed[i]) {
+        continue;
+      }
+      if (summaries[i] == null) {
+        ParseFailures failures = options.failures().orElse(null);
+        checkState(failures != null, "No AST was created for %s", batch.get(i));
+        failures.record(batch.get(i), ImmutableList.of("No AST was created"));
+        continue;
+      }
+      if (cache != null) {
+        cache.put(cacheKeys[i], summaries[i]);
+      }
+    }
+    return Arrays.asList(summaries);
   }
 
   /**
-   * Returns true iff 'methodDeclaration' represents a void static method named 'main' that takes a
-   * single String[] parameter.
+   * Parses 'srcFilePath', or reads its summary from the parse cache if it hasn't changed. Returns
+   * null if the file failed to parse.
    */
-  private static boolean isMainMethod(MethodDeclaration methodDeclaration) {
-    // Is it static?
-    if ((methodDeclaration.getModifiers() & Modifier.STATIC) == 0) {
-      return false;
+  @Nullable
+  private static SourceFileSummary parseFile(
+      Path srcFilePath, ContentRootIndex contentRoots, Options options) throws IOException {
+    ParseTimings timings = options.timings().orElse(null);
+    long start = System.nanoTime();
+    ByteBuffer content = SourceFileReader.read(srcFilePath);
+    if (options.fast()) {
+      // Scanning is about as cheap as hashing the file for a cache lookup.
+      char[] source = SourceFileReader.decode(content);
+      long scanStart = System.nanoTime();
+      SourceFileSummary summary = LexicalDependencyExtractor.extract(source, contentRoots);
+      if (timings != null) {
+        timings.record(
+            srcFilePath, scanStart - start, 0, 0, System.nanoTime() - scanStart);
+      }
+      return summary;
     }
-    // Does it return void?
-    Type returnType = methodDeclaration.getReturnType2();
-    if (!returnType.isPrimitiveType()) {
-      return false;
+    ParseCache cache = options.parseCache().orElse(null);
+    String cacheKey = null;
+    if (cache != null) {
+      cacheKey = cache.key(content.duplicate());
+      SourceFileSummary cached = cache.get(cacheKey);
+      if (cached != null) {
+        if (timings != null) {
+          timings.record(srcFilePath, System.nanoTime() - start, 0, 0, 0);
+        }
+        return cached;
+      }
     }
-    if (((PrimitiveType) returnType).getPrimitiveTypeCode() != PrimitiveType.VOID) {
-      return false;
+
+    char[] source = SourceFileReader.decode(content);
+    long readNanos = System.nanoTime() - start;
+    String fileName = srcFilePath.getFileName().toString();
+    ReferencedClassesParser parser =
+        options.typeIndex().isPresent()
+            ? new ReferencedClassesParser(
+                fileName, source, contentRoots, options.typeIndex().get())
+            : new ReferencedClassesParser(
+                fileName,
+                source,
+                contentRoots,
+                options.singlePass(),
+                options.packageIndex().orElse(null));
+    if (!checkSuccessful(srcFilePath, parser, options)) {
+      return null;
+    }
+    long summarizeStart = System.nanoTime();
+    SourceFileSummary summary = summarize(parser);
+    if (timings != null) {
+      timings.record(
+          srcFilePath,
+          readNanos,
+          parser.syntaxNanos,
+          parser.resolveNanos,
+          parser.visitNanos + System.nanoTime() - summarizeStart);
     }
-    // Is it called 'main'?
-    if (!"main".equals(methodDeclaration.getName().getIdentifier())) {
-      return false;
+    if (cache != null) {
+      cache.put(cacheKey, summary);
     }
-    // Does it have a single parameter?
-    if (methodDeclaration.parameters().size() != 1) {
-      return false;
+    return summary;
+  }
+
+  /**
+   * Returns true if 'parser' parsed its file. Otherwise, records the failure in {@link
+   * Options#failures} and returns false, or throws if failures aren't recorded.
+   */
+  private static boolean checkSuccessful(
+      Path srcFilePath, ReferencedClassesParser parser, Options options) {
+    if (parser.isSuccessful) {
+      return true;
     }
+    ParseFailures failures = options.failures().orElse(null);
+    checkState(
+        failures != null, "Can't parse %s: %s", srcFilePath, parser.compilationMessages);
+    failures.record(srcFilePath, parser.compilationMessages);
+    return false;
+  }
 
-    // Is the parameter's type String[]?
-    SingleVariableDeclaration pt =
-        getOnlyElement((List<SingleVariableDeclaration>) methodDeclaration.parameters());
-    IVariableBinding vb = pt.resolveBinding();
-    if (vb == null) {
-      return false;
+  /** Waits for 'future', rethrowing whatever the parsing task threw. */
+  private static List<SourceFileSummary> getSummaries(Future<List<SourceFileSummary>> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while parsing source files");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
     }
-    ITypeBinding tb = vb.getType();
-    return tb != null && "java.lang.String[]".equals(tb.getQualifiedName());
   }
 
-  /** Create a cycle in 'graph' comprised of classes from 'classes'. */
-  private static void putOnCycle(Collection<String> classes, MutableGraph<String> graph) {
+  /**
+   * Extracts from 'parser' everything needed to add its file to the class graph. The summary holds
+   * only strings, so that nothing of the file's AST outlives parsing.
+   */
+  private static SourceFileSummary summarize(ReferencedClassesParser parser) {
+    if (Strings.isNullOrEmpty(parser.fullyQualifiedClassName)) {
+      // The file doesn't contain any classes. This happens for package-info.java files.
+      return SourceFileSummary.create(
+          parser.packageName, "", ImmutableList.of(), ImmutableList.of(), "java_library");
+    }
+    ImmutableList<String> qualifiedTopLevelNames =
+        parser
+            .qualifiedTopLevelNames
+            .stream()
+            .map(QualifiedName::value)
+            .collect(toImmutableList());
+    return SourceFileSummary.create(
+        parser.packageName,
+        parser.fullyQualifiedClassName,
+        qualifiedTopLevelNames,
+        parser.unresolvedClassNames.stream().map(SimpleName::value).collect(toImmutableList()),
+        parser.ruleKind,
+        parser.onDemandImports);
+  }
+
+  /** Create a cycle comprised of classes from 'classes', by adding its edges to 'edges'. */
+  static void putOnCycle(
+      Collection<String> classes, ImmutableSetMultimap.Builder<String, String> edges) {
     if (classes.size() == 1) {
       return;
     }
@@ -288,9 +569,9 @@ public class JavaSourceFileParser {
     ImmutableList<String> sortedClasses = Ordering.natural().immutableSortedCopy(classes);
 
     for (int i = 1; i < sortedClasses.size(); i++) {
-      graph.putEdge(sortedClasses.get(i - 1), sortedClasses.get(i));
+      edges.put(sortedClasses.get(i - 1), sortedClasses.get(i));
     }
-    graph.putEdge(getLast(sortedClasses), sortedClasses.get(0));
+    edges.put(getLast(sortedClasses), sortedClasses.get(0));
   }
 
   /**
@@ -301,8 +582,162 @@ public class JavaSourceFileParser {
   private static String stripInnerClassFromName(String className) {
     QualifiedName topLevelQualifiedName =
         QualifiedName.create(className, Metadata.EMPTY).getTopLevelQualifiedName();
-    return topLevelQualifiedName.value().isEmpty()
-        ? className.split("\\.")[0]
-        : topLevelQualifiedName.value();
+    if (!topLevelQualifiedName.value().isEmpty()) {
+      return topLevelQualifiedName.value();
+    }
+    int dot = className.indexOf('.');
+    return dot == -1 ? className : className.substring(0, dot);
+  }
+
+  /** Receives the class graph built by {@link #parse}, one file at a time. */
+  interface ClassGraphSink {
+
+    /**
+     * Called for each file that defines a class, in the order the files were given in.
+     *
+     * @param className the fully qualified name of the file's top-level class
+     * @param dependencies the top-level classes 'className' mentions, other than itself
+     * @param ruleKind the Bazel rule kind that should build the file, e.g., "java_library"
+     */
+    void addFile(
+        String srcFilePath, String className, ImmutableSet<String> dependencies, String ruleKind)
+        throws IOException;
+
+    /**
+     * Called once, after all files were added, with the edges that put the classes of each
+     * one-rule-per-package directory on a cycle.
+     */
+    void addEdges(ImmutableSetMultimap<String, String> edges) throws IOException;
+  }
+
+  /** Receives the summaries of parsed files, in the order the files were given in. */
+  private interface SummaryConsumer {
+    void accept(Path srcFilePath, SourceFileSummary summary) throws IOException;
+  }
+
+  /** Options that control how {@link JavaSourceFileParser} parses files. */
+  @AutoValue
+  abstract static class Options {
+
+    static final Options DEFAULT = builder().build();
+
+    /**
+     * Number of files to parse concurrently. The output does not depend on this value: files are
+     * merged into the graph in the order they were given in.
+     */
+    abstract int numThreads();
+
+    /**
+     * Whether to parse each file once, reading syntax errors from the binding-resolved AST. See
+     * {@link ReferencedClassesParser}.
+     */
+    abstract boolean singlePass();
+
+    /**
+     * Whether to extract dependencies by scanning each file's tokens, instead of parsing it with
+     * JDT. Much faster, but less accurate. See {@link LexicalDependencyExtractor}. The parse cache
+     * and {@link #batchSize} aren't used.
+     */
+    abstract boolean fast();
+
+    /** Where to look up, and store, the summaries of previously parsed files. */
+    abstract Optional<ParseCache> parseCache();
+
+    /**
+     * Number of files to hand to JDT at once, or 0 to parse files one by one. Files of a batch
+     * share the parser's name environment, which saves setting it up for every file. Syntax errors
+     * are then read from the binding-resolved ASTs, as in {@link #singlePass} mode, and source
+     * files must be on the default file system.
+     */
+    abstract int batchSize();
+
+    /**
+     * Tells which classes have source files under the content roots. If absent, the file system is
+     * checked on every lookup.
+     */
+    abstract Optional<ContentRootIndex> contentRootIndex();
+
+    /**
+     * If present, files are parsed once, without resolving bindings, and names are looked up in
+     * this index instead of on the running VM's bootclasspath. See {@link ReferencedClassesParser}.
+     * {@link #singlePass} and {@link #batchSize} aren't used.
+     */
+    abstract Optional<TypeIndex> typeIndex();
+
+    /**
+     * If present, names of packages that a file imports on demand, and that neither JDT nor the
+     * content roots resolve, are looked up in this index, e.g., of the project's jars. Only used
+     * when parsing with bindings; {@link #typeIndex} serves the same purpose otherwise.
+     */
+    abstract Optional<TypeIndex> packageIndex();
+
+    /** Where to record how long each phase of parsing each file takes, if present. */
+    abstract Optional<ParseTimings> timings();
+
+    /**
+     * If present, files that fail to parse, e.g., because of syntax errors, are recorded here and
+     * left out of the graph. Otherwise, the first such file fails the run.
+     */
+    abstract Optional<ParseFailures> failures();
+
+    /**
+     * If present, the summaries of parsed files are saved here as they are parsed, and files
+     * whose summaries were saved by an earlier run aren't parsed again.
+     */
+    abstract Optional<ParseCheckpoint> checkpoint();
+
+    static Builder builder() {
+      return new AutoValue_JavaSourceFileParser_Options.Builder()
+          .setNumThreads(1)
+          .setSinglePass(false)
+          .setFast(false)
+          .setBatchSize(0);
+    }
+
+    /** Builder for {@link Options}. */
+    @AutoValue.Builder
+    abstract static class Builder {
+      abstract Builder setNumThreads(int numThreads);
+
+      abstract Builder setSinglePass(boolean singlePass);
+
+      abstract Builder setFast(boolean fast);
+
+      abstract Builder setParseCache(ParseCache parseCache);
+
+      abstract Builder setBatchSize(int batchSize);
+
+      abstract Builder setContentRootIndex(ContentRootIndex contentRootIndex);
+
+      abstract Builder setTypeIndex(TypeIndex typeIndex);
+
+      abstract Builder setPackageIndex(TypeIndex packageIndex);
+
+      abstract Builder setTimings(ParseTimings timings);
+
+      abstract Builder setFailures(ParseFailures failures);
+
+      abstract Builder setCheckpoint(ParseCheckpoint checkpoint);
+
+      abstract Options autoBuild();
+
+      Options build() {
+        Options options = autoBuild();
+        checkArgument(
+            options.numThreads() > 0, "numThreads must be positive, got %s", options.numThreads());
+        checkArgument(
+            options.batchSize() >= 0,
+            "batchSize must not be negative, got %s",
+            options.batchSize());
+        checkArgument(
+            !(options.fast() && options.typeIndex().isPresent()),
+            "fast mode doesn't use a type index");
+        checkArgument(
+            !(options.packageIndex().isPresent()
+                && (options.fast() || options.typeIndex().isPresent())),
+            "a package index is only used when parsing with bindings");
+        return options;
+      }
+    }
   }
 }
@@ -17,15 +17,29 @@ package com.google.devtools.build.bfg;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.collect.Streams.stream;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.graph.ImmutableGraph;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -33,6 +47,7 @@ import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
 import protos.com.google.devtools.build.bfg.Bfg;
 
 /**
@@ -58,53 +73,567 @@ public class JavaSourceFileParserCli {
   )
   private String oneRulePerPackageRoots = "src/main/java";
 
-  @Argument(usage = "Java files from which to construct a dependency graph", required = true)
+  @Option(
+    name = "--threads",
+    usage =
+        "Number of source files to parse concurrently. The output does not depend on this value."
+  )
+  private int numThreads = 1;
+
+  @Option(
+    name = "--single_pass",
+    usage =
+        "Parse each source file once, and read syntax errors from the binding-resolved AST, "
+            + "instead of running a separate syntax-only parse first."
+  )
+  private boolean singlePass = false;
+
+  @Option(
+    name = "--fast",
+    usage =
+        "Extract dependencies from package, imports and qualified names by scanning each file's "
+            + "tokens, instead of parsing it with JDT and resolving bindings. Much faster, but "
+            + "misses some dependencies and may report spurious ones. Meant for quick triage runs."
+  )
+  private boolean fast = false;
+
+  @Option(
+    name = "--type_index",
+    usage =
+        "Type index written by TypeIndexGenerator. If set, files are parsed without resolving "
+            + "bindings, which is faster, and names are looked up in the index instead of on "
+            + "the bootclasspath of the running JDK. Names declared in a file are then "
+            + "recognized by name, which may differ from the default mode in corner cases."
+  )
+  private String typeIndexPath = "";
+
+  @Option(
+    name = "--package_index",
+    usage =
+        "Type index written by TypeIndexGenerator, e.g., of the project's jars. Simple names that "
+            + "a file imports on demand, e.g., 'Foo' for \"import com.jar.*\", and that aren't "
+            + "resolved otherwise are looked up in it. Not used with --fast or --type_index, "
+            + "whose index already serves this purpose."
+  )
+  private String packageIndexPath = "";
+
+  @Option(
+    name = "--parse_cache_dir",
+    usage =
+        "Directory of a persistent cache of parsed files. Files whose content hasn't changed "
+            + "since a previous run are read from the cache instead of being parsed again. "
+            + "If empty, no cache is used."
+  )
+  private String parseCacheDir = "";
+
+  @Option(
+    name = "--parse_cache_max_mb",
+    usage = "Maximum size of the parse cache. Least recently used entries are evicted first."
+  )
+  private long parseCacheMaxMb = 1024;
+
+  @Option(
+    name = "--batch_size",
+    usage =
+        "Number of source files to parse together, sharing a single parser. "
+            + "If 0, each file is parsed on its own. The output does not depend on this value."
+  )
+  private int batchSize = 0;
+
+  @Option(
+    name = "--content_root_index",
+    usage =
+        "How to find out which classes have source files in a package. WALK lists the content "
+            + "roots once, following symbolic links to directories unless they lead back to a "
+            + "directory above them, SOURCE_FILES assumes the given files are all the source "
+            + "files under the content roots, and FILE_SYSTEM checks the file system for every "
+            + "class name, following all symbolic links."
+  )
+  private ContentRootIndexing contentRootIndexing = ContentRootIndexing.WALK;
+
+  @Option(
+    name = "--source_dirs",
+    usage =
+        "Comma-separated list of directories to search for Java files, in addition to the files "
+            + "given as arguments. Directories are listed in parallel, while the files found so "
+            + "far are parsed."
+  )
+  private String sourceDirs = "";
+
+  @Option(
+    name = "--include",
+    usage =
+        "Comma-separated list of glob patterns of the files to parse under --source_dirs, "
+            + "relative to the directory they are found under."
+  )
+  private String includes = "**.java";
+
+  @Option(
+    name = "--exclude",
+    usage =
+        "Comma-separated list of glob patterns of the files not to parse under --source_dirs, "
+            + "relative to the directory they are found under. Matching directories are skipped."
+  )
+  private String excludes = "";
+
+  @Option(
+    name = "--source_files_from_stdin",
+    usage =
+        "Read the names of more Java files from stdin, one per line. Files are parsed while the "
+            + "list is being read."
+  )
+  private boolean sourceFilesFromStdin = false;
+
+  @Option(
+    name = "--output_format",
+    usage =
+        "PARSER_OUTPUT writes a single ParserOutput message once all files are parsed. DELIMITED "
+            + "writes a stream of length-delimited ParserOutput messages, one per file as soon as "
+            + "it is parsed, which Bfg can read with --input_format=DELIMITED."
+  )
+  private OutputFormat outputFormat = OutputFormat.PARSER_OUTPUT;
+
+  @Option(
+    name = "--shard_count",
+    usage =
+        "Number of shards to split the source files into, e.g., to parse them on several "
+            + "machines. Only the files of shard --shard_index are parsed, and "
+            + "one-rule-per-package classes aren't put on cycles until the outputs of all shards "
+            + "are merged with ParserOutputMergerCli."
+  )
+  private int shardCount = 1;
+
+  @Option(
+    name = "--shard_index",
+    usage = "Shard of the source files to parse, from 0 to --shard_count - 1."
+  )
+  private int shardIndex = 0;
+
+  @Option(
+    name = "--previous_output",
+    usage =
+        "ParserOutput written by an earlier run with --output_format=PARSER_OUTPUT. If set, only "
+            + "the files given by --changed_files and --changed_since, the files given as "
+            + "arguments, and the files whose output they may affect are parsed, and the earlier "
+            + "output is updated with their output."
+  )
+  private String previousOutput = "";
+
+  @Option(
+    name = "--changed_files",
+    usage =
+        "File listing the Java files added, modified or deleted since --previous_output was "
+            + "written, one per line. Files that don't exist are taken as deleted."
+  )
+  private String changedFiles = "";
+
+  @Option(
+    name = "--changed_since",
+    usage =
+        "Git revision that --previous_output was written at. The files changed since then in the "
+            + "git work tree of the working directory, including untracked ones, are taken as "
+            + "changed."
+  )
+  private String changedSince = "";
+
+  @Option(
+    name = "--report_timings",
+    usage =
+        "Log percentiles of how long reading, parsing, resolving and visiting each file took, and "
+            + "the --slowest_files files that took longest."
+  )
+  private boolean reportTimings = false;
+
+  @Option(name = "--slowest_files", usage = "Number of slowest files that --report_timings lists.")
+  private int slowestFiles = 20;
+
+  @Option(
+    name = "--timings_json",
+    usage =
+        "File to write the timings of --report_timings to, as JSON with the full histogram of "
+            + "each phase. Implies recording the timings."
+  )
+  private String timingsJson = "";
+
+  @Option(
+    name = "--keep_going",
+    usage =
+        "Report the files that fail to parse, e.g., because of syntax errors, and leave them out "
+            + "of the output, instead of stopping at the first one. The exit code is 1 if any "
+            + "file failed."
+  )
+  private boolean keepGoing = false;
+
+  @Option(
+    name = "--checkpoint",
+    usage =
+        "File to save the results of parsed files to as parsing goes. If it exists, the files it "
+            + "has results for, and that haven't changed since, aren't parsed again, e.g., to "
+            + "resume a run that failed or was killed. Ignored if it was written by a run with "
+            + "other content roots, indexes or --fast. Deleted once all files are parsed."
+  )
+  private String checkpointPath = "";
+
+  @Option(
+    name = "--checkpoint_every",
+    usage = "Number of parsed files between writes of --checkpoint to disk."
+  )
+  private int checkpointEvery = 100;
+
+  @Argument(
+    usage =
+        "Java files from which to construct a dependency graph. '@file' reads more arguments "
+            + "from 'file', one per line."
+  )
   private List<String> sourceFiles = new ArrayList<>();
 
+  /** Relative paths in arguments and on stdin are resolved against this directory. */
+  private final Path workingDirectory;
+
+  private final InputStream stdin;
+
+  private final OutputStream stdout;
+
+  private final PrintStream stderr;
+
+  private final Logger logger;
+
+  /** Where content root indices are walked, and possibly kept from earlier invocations. */
+  private final ContentRootIndexCache contentRootIndexCache;
+
+  private JavaSourceFileParserCli() {
+    this(
+        Paths.get(""),
+        System.in,
+        System.out,
+        System.err,
+        Logger.getLogger(JavaSourceFileParserCli.class.getName()),
+        new ContentRootIndexCache());
+  }
+
+  /**
+   * Creates an invocation that talks to the given streams instead of the process's, e.g., for
+   * {@link JavaSourceFileParserServer}.
+   */
+  JavaSourceFileParserCli(
+      Path workingDirectory,
+      InputStream stdin,
+      OutputStream stdout,
+      PrintStream stderr,
+      Logger logger,
+      ContentRootIndexCache contentRootIndexCache) {
+    this.workingDirectory = workingDirectory;
+    this.stdin = stdin;
+    this.stdout = stdout;
+    this.stderr = stderr;
+    this.logger = logger;
+    this.contentRootIndexCache = contentRootIndexCache;
+  }
+
   public static void main(String[] args) throws Exception {
-    new JavaSourceFileParserCli().run(args);
+    int exitCode = new JavaSourceFileParserCli().run(args);
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
   }
 
-  private void run(String[] args) throws Exception {
+  /** Runs the parser with the command line arguments 'args', and returns the exit code. */
+  int run(String[] args) throws Exception {
     // TODO(bazel-team) how will I receive the source files from the user.
+    CmdLineParser cmdLineParser =
+        new CmdLineParser(this, ParserProperties.defaults().withAtSyntax(true));
     try {
-      CmdLineParser cmdLineParser = new CmdLineParser(this);
       cmdLineParser.parseArgument(args);
     } catch (CmdLineException e) {
-      if (sourceFiles.isEmpty()) {
-        System.err.println("Must provide file names to parse.");
-      } else {
-        System.err.println(e.getMessage());
-      }
-      e.getParser().printUsage(System.err);
-      System.exit(1);
+      stderr.println(e.getMessage());
+      e.getParser().printUsage(stderr);
+      return 1;
+    }
+    boolean incremental = !previousOutput.isEmpty();
+    if (!incremental && (!changedFiles.isEmpty() || !changedSince.isEmpty())) {
+      stderr.println("--changed_files and --changed_since require --previous_output.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (incremental && changedFiles.isEmpty() && changedSince.isEmpty()) {
+      stderr.println("--previous_output requires --changed_files or --changed_since.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (incremental && shardCount > 1) {
+      stderr.println("--previous_output can't be used with --shard_count.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (!incremental && sourceFiles.isEmpty() && sourceDirs.isEmpty() && !sourceFilesFromStdin) {
+      stderr.println("Must provide file names to parse.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      stderr.println("--shard_index must be at least 0 and less than --shard_count.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (!packageIndexPath.isEmpty() && (fast || !typeIndexPath.isEmpty())) {
+      stderr.println("--package_index can't be used with --fast or --type_index.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (slowestFiles < 0) {
+      stderr.println("--slowest_files must not be negative.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
+    }
+    if (checkpointEvery < 1) {
+      stderr.println("--checkpoint_every must be positive.");
+      cmdLineParser.printUsage(stderr);
+      return 1;
     }
 
     ImmutableList<Path> contentRoots =
         stream(Splitter.on(',').split(contentRootPaths))
-            .map(root -> Paths.get(root))
+            .map(root -> resolve(root))
             .collect(toImmutableList());
 
-    ImmutableList<Path> sourceFilePaths =
-        sourceFiles.stream().map(p -> Paths.get(p)).collect(toImmutableList());
-
+    // A shard doesn't see all the classes of a package, so ParserOutputMergerCli puts them on
+    // cycles instead.
     ImmutableSet<Path> oneRulePerPackagePaths =
-        stream(Splitter.on(',').split(oneRulePerPackageRoots))
-            .map(root -> Paths.get(root))
-            .collect(toImmutableSet());
+        shardCount > 1
+            ? ImmutableSet.of()
+            : stream(Splitter.on(',').split(oneRulePerPackageRoots))
+                .map(root -> resolve(root))
+                .collect(toImmutableSet());
 
-    JavaSourceFileParser parser =
-        new JavaSourceFileParser(sourceFilePaths, contentRoots, oneRulePerPackagePaths);
+    JavaSourceFileParser.Options.Builder options =
+        JavaSourceFileParser.Options.builder()
+            .setNumThreads(numThreads)
+            .setSinglePass(singlePass)
+            .setFast(fast)
+            .setBatchSize(batchSize);
+
+    Iterable<Path> sourceFilePaths =
+        sourceFiles.stream().map(p -> resolve(p)).collect(toImmutableList());
+    if (sourceFilesFromStdin) {
+      sourceFilePaths = Iterables.concat(sourceFilePaths, readFileNames(stdin));
+    }
+    SourceFileWalker walker =
+        new SourceFileWalker(
+            splitToPaths(sourceDirs), splitToList(includes), splitToList(excludes), numThreads);
+    sourceFilePaths = Iterables.concat(sourceFilePaths, walker);
+
+    IncrementalParser incrementalParser = null;
+    if (incremental) {
+      Bfg.ParserOutput previous;
+      try (InputStream in =
+          new BufferedInputStream(Files.newInputStream(resolve(previousOutput)))) {
+        previous = Bfg.ParserOutput.parseFrom(in);
+      }
+      // Files given otherwise are parsed again, as if they had changed.
+      ImmutableList.Builder<Path> changed = ImmutableList.builder();
+      try {
+        changed.addAll(sourceFilePaths);
+      } catch (UncheckedIOException e) {
+        // Thrown while reading file names.
+        throw e.getCause();
+      } finally {
+        walker.close();
+      }
+      if (!changedFiles.isEmpty()) {
+        for (String line : Files.readAllLines(resolve(changedFiles), UTF_8)) {
+          if (!line.isEmpty()) {
+            changed.add(resolve(line));
+          }
+        }
+      }
+      if (!changedSince.isEmpty()) {
+        changed.addAll(IncrementalParser.changedSince(workingDirectory, changedSince));
+      }
+      incrementalParser =
+          new IncrementalParser(
+              previous, changed.build(), contentRoots, oneRulePerPackagePaths, workingDirectory);
+      logger.info(
+          String.format(
+              "Parsing %d files of %d",
+              incrementalParser.filesToParse().size(), incrementalParser.sourceFiles().size()));
+      sourceFilePaths = incrementalParser.sourceFiles();
+    }
+
+    switch (contentRootIndexing) {
+      case WALK:
+        options.setContentRootIndex(contentRootIndexCache.walk(contentRoots, numThreads));
+        break;
+      case SOURCE_FILES:
+        // Needs all the file names before parsing can start.
+        ImmutableList<Path> sourceFileList = ImmutableList.copyOf(sourceFilePaths);
+        options.setContentRootIndex(ContentRootIndex.ofSourceFiles(contentRoots, sourceFileList));
+        sourceFilePaths = sourceFileList;
+        break;
+      case FILE_SYSTEM:
+        break;
+    }
+    // Sharded after indexing, since the index must have the source files of all the shards.
+    if (shardCount > 1) {
+      SourceFileShard shard = new SourceFileShard(workingDirectory, shardIndex, shardCount);
+      sourceFilePaths = Iterables.filter(sourceFilePaths, shard::contains);
+    }
+    TypeIndex typeIndex = null;
+    if (!typeIndexPath.isEmpty()) {
+      typeIndex = TypeIndex.load(resolve(typeIndexPath));
+      options.setTypeIndex(typeIndex);
+    }
+    TypeIndex packageIndex = null;
+    if (!packageIndexPath.isEmpty()) {
+      packageIndex = TypeIndex.load(resolve(packageIndexPath));
+      options.setPackageIndex(packageIndex);
+    }
+    ParseCache parseCache = null;
+    if (!parseCacheDir.isEmpty()) {
+      parseCache =
+          new ParseCache(
+              resolve(parseCacheDir),
+              parseCacheMaxMb * 1024 * 1024,
+              contentRoots,
+              typeIndex,
+              packageIndex);
+      options.setParseCache(parseCache);
+    }
+    ParseTimings timings = null;
+    if (reportTimings || !timingsJson.isEmpty()) {
+      timings = new ParseTimings(slowestFiles);
+      options.setTimings(timings);
+    }
+    ParseFailures failures = null;
+    if (keepGoing) {
+      failures = new ParseFailures();
+      options.setFailures(failures);
+    }
+    ParseCheckpoint checkpoint = null;
+    if (!checkpointPath.isEmpty()) {
+      checkpoint =
+          ParseCheckpoint.open(
+              resolve(checkpointPath),
+              checkpointEvery,
+              ParseCheckpoint.configuration(contentRoots, typeIndex, packageIndex, fast));
+      options.setCheckpoint(checkpoint);
+    }
+
+    JavaSourceFileParser parser = null;
+    Set<String> unresolvedClassNames;
+    // The class graph is written to stdout.
+    OutputStream out = new BufferedOutputStream(stdout);
+    try {
+      if (incrementalParser != null) {
+        unresolvedClassNames = new LinkedHashSet<>();
+        Bfg.ParserOutput output =
+            incrementalParser.parse(options.build(), unresolvedClassNames);
+        if (outputFormat == OutputFormat.DELIMITED) {
+          output.writeDelimitedTo(out);
+        } else {
+          output.writeTo(out);
+        }
+      } else if (outputFormat == OutputFormat.DELIMITED) {
+        unresolvedClassNames =
+            JavaSourceFileParser.parse(
+                sourceFilePaths,
+                contentRoots,
+                oneRulePerPackagePaths,
+                options.build(),
+                new DelimitedParserOutputWriter(out));
+      } else {
+        parser =
+            new JavaSourceFileParser(
+                sourceFilePaths, contentRoots, oneRulePerPackagePaths, options.build());
+        unresolvedClassNames = parser.getUnresolvedClassNames();
+      }
+    } catch (UncheckedIOException e) {
+      // Thrown while reading file names.
+      throw e.getCause();
+    } finally {
+      walker.close();
+      if (checkpoint != null) {
+        // Keeps what was parsed if parsing failed.
+        checkpoint.close();
+      }
+    }
+
+    if (checkpoint != null) {
+      logger.info(checkpoint.stats());
+      if (failures == null || failures.isEmpty()) {
+        checkpoint.delete();
+      }
+    }
+
+    if (timings != null) {
+      if (reportTimings) {
+        logger.info(timings.report());
+      }
+      if (!timingsJson.isEmpty()) {
+        try (Writer writer = Files.newBufferedWriter(resolve(timingsJson), UTF_8)) {
+          timings.writeJson(writer);
+        }
+      }
+    }
 
-    Set<String> unresolvedClassNames = parser.getUnresolvedClassNames();
     if (!unresolvedClassNames.isEmpty()) {
-      Logger logger = Logger.getLogger(JavaSourceFileParserCli.class.getName());
       logger.warning(
           String.format("Class Names not found %s", Joiner.on("\n\t").join(unresolvedClassNames)));
     }
 
-    // Write results to stdout.
-    serializeResults(parser).writeTo(System.out);
+    if (parser != null) {
+      serializeResults(parser).writeTo(out);
+    }
+    out.flush();
+
+    // Evicted once the output is written, so that a problem with the cache doesn't cost the run.
+    if (parseCache != null) {
+      try {
+        parseCache.evict();
+      } catch (IOException e) {
+        logger.warning(String.format("Couldn't evict parse cache entries: %s", e));
+      }
+      logger.info(parseCache.stats());
+    }
+
+    if (failures != null && !failures.isEmpty()) {
+      logger.severe(failures.report());
+      return 1;
+    }
+    return 0;
+  }
+
+  private Path resolve(String path) {
+    return workingDirectory.resolve(path);
+  }
+
+  private static ImmutableList<String> splitToList(String commaSeparated) {
+    return ImmutableList.copyOf(Splitter.on(',').omitEmptyStrings().split(commaSeparated));
+  }
+
+  private ImmutableList<Path> splitToPaths(String commaSeparated) {
+    return splitToList(commaSeparated).stream().map(p -> resolve(p)).collect(toImmutableList());
+  }
+
+  /**
+   * Returns the non-empty lines of 'in' as paths. 'in' is read lazily, so parsing can start before
+   * the list of file names is complete.
+   */
+  private Iterable<Path> readFileNames(InputStream in) {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+    return () -> reader.lines().filter(line -> !line.isEmpty()).map(p -> resolve(p)).iterator();
+  }
+
+  /** Values of --output_format. */
+  private enum OutputFormat {
+    PARSER_OUTPUT,
+    DELIMITED,
+  }
+
+  /** Values of --content_root_index. */
+  private enum ContentRootIndexing {
+    WALK,
+    SOURCE_FILES,
+    FILE_SYSTEM,
   }
 
   private Bfg.ParserOutput serializeResults(JavaSourceFileParser parser) {
@@ -114,7 +643,7 @@ public class JavaSourceFileParserCli {
     ImmutableGraph<String> classToClass = parser.getClassToClass();
     for (String u : classToClass.nodes()) {
       result.putClassToClass(
-          u, Bfg.Strings.newBuilder().addAllElements(classToClass.adjacentNodes(u)).build());
+          u, Bfg.Strings.newBuilder().addAllElements(classToClass.successors(u)).build());
     }
 
     // classToFile
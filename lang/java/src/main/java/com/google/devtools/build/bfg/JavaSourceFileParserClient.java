@@ -0,0 +1,117 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import protos.com.google.devtools.build.bfg.JavaParser.ParserInvocation;
+import protos.com.google.devtools.build.bfg.JavaParser.ParserInvocationOutput;
+
+/**
+ * Runs {@link JavaSourceFileParserCli} in a {@link JavaSourceFileParserServer}, e.g.,
+ *
+ * <pre>
+ * JavaSourceFileParserServer --port_file=/tmp/bfg.port &
+ * JavaSourceFileParserClient --server_port_file=/tmp/bfg.port --roots=src/main/java \
+ *     $(find src/main/java -name \*.java) > bfg.bin
+ * </pre>
+ *
+ * <p>All arguments but --server_port_file are passed on to the server, along with the token read
+ * from the port file, and the client writes what the run writes, and exits with its exit code.
+ * The output is the same as running {@link JavaSourceFileParserCli} with the same arguments, in
+ * the same directory.
+ *
+ * <p>The client does as little as it can, so that it starts quickly: it doesn't parse the
+ * arguments, and only expands '@file' arguments, since the server may not run in the same
+ * directory.
+ */
+public class JavaSourceFileParserClient {
+
+  private static final String PORT_FILE_FLAG = "--server_port_file=";
+
+  public static void main(String[] args) throws IOException {
+    int port = -1;
+    ParserInvocation.Builder invocation =
+        ParserInvocation.newBuilder()
+            .setWorkingDirectory(Paths.get("").toAbsolutePath().toString());
+    for (String arg : args) {
+      if (arg.startsWith(PORT_FILE_FLAG)) {
+        // The port, then the token, one per line.
+        List<String> lines =
+            Files.readAllLines(Paths.get(arg.substring(PORT_FILE_FLAG.length())), UTF_8);
+        port = Integer.parseInt(lines.get(0).trim());
+        invocation.setToken(lines.size() > 1 ? lines.get(1).trim() : "");
+      } else if (arg.startsWith("@")) {
+        // Same as args4j's '@file' syntax: one argument per line.
+        invocation.addAllArgs(
+            Files.readAllLines(Paths.get(arg.substring(1)), Charset.defaultCharset()));
+      } else {
+        invocation.addArgs(arg);
+      }
+    }
+    if (port < 0) {
+      System.err.println(
+          "Usage: JavaSourceFileParserClient --server_port_file=<file> "
+              + "<JavaSourceFileParserCli arguments>");
+      System.exit(1);
+    }
+    if (invocation.getArgsList().contains("--source_files_from_stdin")) {
+      invocation.setStdin(ByteString.copyFrom(ByteStreams.toByteArray(System.in)));
+    }
+
+    System.exit(run(port, invocation.build()));
+  }
+
+  /** Sends 'invocation' to the server, copies what it writes, and returns its exit code. */
+  private static int run(int port, ParserInvocation invocation) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      invocation.writeDelimitedTo(out);
+      out.flush();
+
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      ParserInvocationOutput output;
+      while ((output = ParserInvocationOutput.parseDelimitedFrom(in)) != null) {
+        if (output.hasStdout()) {
+          output.getStdout().writeTo(System.out);
+        }
+        if (output.hasStderr()) {
+          System.out.flush();
+          output.getStderr().writeTo(System.err);
+        }
+        if (output.hasExitCode()) {
+          System.out.flush();
+          return output.getExitCode();
+        }
+      }
+    }
+    System.err.println("The server closed the connection before the run finished");
+    return 1;
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import protos.com.google.devtools.build.bfg.JavaParser.ParserInvocation;
+import protos.com.google.devtools.build.bfg.JavaParser.ParserInvocationOutput;
+
+/**
+ * A resident {@link JavaSourceFileParserCli}. It runs the invocations that {@link
+ * JavaSourceFileParserClient} sends it in a long-lived JVM, so they don't pay for JVM startup, JDT
+ * class loading and JIT warm-up every time. Content root indices are kept between invocations, and
+ * reused for as long as no files are added to or removed from the content roots.
+ *
+ * <p>The server only listens on the loopback interface, which keeps it off the network, but not
+ * away from other users of the same machine. Since an invocation reads and writes files as the
+ * user running the server, the server makes up a random token when it starts, and writes it along
+ * with its port to the port file, which only its owner can read. Invocations that don't carry the
+ * token are rejected.
+ *
+ * <p>Each connection carries a single length-delimited {@link ParserInvocation}, which the server
+ * answers with a stream of length-delimited {@link ParserInvocationOutput}s, as the run writes to
+ * stdout and stderr. Invocations run concurrently, each on its own thread pool.
+ */
+public class JavaSourceFileParserServer {
+
+  private static final Logger logger = Logger.getLogger(JavaSourceFileParserServer.class.getName());
+
+  private static final int TOKEN_BYTES = 32;
+
+  @Option(
+    name = "--port",
+    usage = "Port to listen on, on the loopback interface. If 0, any free port is used."
+  )
+  private int port = 0;
+
+  @Option(
+    name = "--port_file",
+    usage =
+        "File to write the port the server listens on and its token to, once it is ready. Only "
+            + "the owner can read it. Pass it to JavaSourceFileParserClient with "
+            + "--server_port_file. Required."
+  )
+  private String portFile = "";
+
+  private final ContentRootIndexCache contentRootIndexCache = new ContentRootIndexCache();
+
+  /** What clients must send to prove that they can read the port file. */
+  private final String token = newToken();
+
+  public static void main(String[] args) throws Exception {
+    new JavaSourceFileParserServer().run(args);
+  }
+
+  private void run(String[] args) throws Exception {
+    CmdLineParser cmdLineParser = new CmdLineParser(this);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      e.getParser().printUsage(System.err);
+      System.exit(1);
+    }
+    if (portFile.isEmpty()) {
+      System.err.println("--port_file is required, since clients read the server's token from it.");
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    ExecutorService executor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("parser-invocation-%d").build());
+    try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+      writePortFile(Paths.get(portFile), serverSocket.getLocalPort(), token);
+      logger.info(String.format("Listening on port %d", serverSocket.getLocalPort()));
+      while (true) {
+        Socket socket = serverSocket.accept();
+        executor.execute(() -> serve(socket));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    return BaseEncoding.base16().lowerCase().encode(bytes);
+  }
+
+  /**
+   * Writes 'port' and 'token' to 'portFile', one per line. The file is written atomically, so
+   * clients never read a partially written one, and only its owner can read it.
+   */
+  private static void writePortFile(Path portFile, int port, String token) throws IOException {
+    Path absolutePortFile = portFile.toAbsolutePath();
+    Path directory = absolutePortFile.getParent();
+    String prefix = absolutePortFile.getFileName().toString();
+    // Temporary files are created owner-only anyway, but the permissions are what keeps the token
+    // secret, so they are spelled out.
+    Path tempFile =
+        directory.getFileSystem().supportedFileAttributeViews().contains("posix")
+            ? Files.createTempFile(
+                directory,
+                prefix,
+                ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+            : Files.createTempFile(directory, prefix, ".tmp");
+    Files.write(tempFile, (port + "\n" + token + "\n").getBytes(UTF_8));
+    Files.move(tempFile, absolutePortFile, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
+  /** Runs the invocation that 'socket' carries, and sends back what it writes. */
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      ParserInvocation invocation = ParserInvocation.parseDelimitedFrom(s.getInputStream());
+      if (invocation == null) {
+        return;
+      }
+      OutputStream out = new BufferedOutputStream(s.getOutputStream());
+      if (!MessageDigest.isEqual(invocation.getToken().getBytes(UTF_8), token.getBytes(UTF_8))) {
+        logger.warning("Rejected an invocation without the server's token");
+        ParserInvocationOutput.newBuilder()
+            .setStderr(ByteString.copyFromUtf8("The server's token is missing or wrong\n"))
+            .setExitCode(1)
+            .build()
+            .writeDelimitedTo(out);
+        out.flush();
+        return;
+      }
+      int exitCode = run(invocation, out);
+      synchronized (out) {
+        ParserInvocationOutput.newBuilder().setExitCode(exitCode).build().writeDelimitedTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Lost connection to client", e);
+    }
+  }
+
+  /** Runs 'invocation', sending what it writes to 'out', and returns its exit code. */
+  private int run(ParserInvocation invocation, OutputStream out) throws IOException {
+    OutputStream stdout = new OutputForwarder(out, false /* isStderr */);
+    OutputForwarder stderrForwarder = new OutputForwarder(out, true /* isStderr */);
+    PrintStream stderr = new PrintStream(stderrForwarder, true /* autoFlush */, UTF_8.name());
+
+    // Log messages go to the client, not to the server's stderr.
+    Logger invocationLogger = Logger.getAnonymousLogger();
+    invocationLogger.setUseParentHandlers(false);
+    StreamHandler logHandler = new StreamHandler(stderr, new SimpleFormatter());
+    invocationLogger.addHandler(logHandler);
+
+    int exitCode;
+    try {
+      exitCode =
+          new JavaSourceFileParserCli(
+                  Paths.get(invocation.getWorkingDirectory()),
+                  invocation.getStdin().newInput(),
+                  stdout,
+                  stderr,
+                  invocationLogger,
+                  contentRootIndexCache)
+              .run(invocation.getArgsList().toArray(new String[0]));
+    } catch (Exception e) {
+      e.printStackTrace(stderr);
+      exitCode = 1;
+    }
+    logHandler.flush();
+    stdout.flush();
+    stderr.flush();
+    return exitCode;
+  }
+
+  /**
+   * Sends what is written to it as the 'stdout' or 'stderr' field of {@link
+   * ParserInvocationOutput}s, each time it is flushed or its buffer fills up. Both streams of an
+   * invocation write to the same 'out', so writes to 'out' are synchronized on it.
+   */
+  private static class OutputForwarder extends OutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final boolean isStderr;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    OutputForwarder(OutputStream out, boolean isStderr) {
+      this.out = out;
+      this.isStderr = isStderr;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flush();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          flush();
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      ByteString bytes = ByteString.copyFrom(buffer, 0, count);
+      count = 0;
+      ParserInvocationOutput.Builder output = ParserInvocationOutput.newBuilder();
+      if (isStderr) {
+        output.setStderr(bytes);
+      } else {
+        output.setStdout(bytes);
+      }
+      synchronized (out) {
+        output.build().writeDelimitedTo(out);
+        out.flush();
+      }
+    }
+  }
+}
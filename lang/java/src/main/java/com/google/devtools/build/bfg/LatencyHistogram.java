@@ -0,0 +1,146 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts durations in log-linear buckets, like an HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKETS} buckets of equal width, so any recorded value is known to within 1/128 of
+ * itself, whether it's a microsecond or an hour, with a fixed amount of memory.
+ *
+ * <p>This class is thread-safe. Recording is lock-free.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+
+  /** Number of buckets per power of two. Values smaller than this have a bucket each. */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Enough buckets for any non-negative long. */
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private static final LongBinaryOperator MAX = Math::max;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong total = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records 'value', e.g., a duration in nanoseconds. Negative values are recorded as 0. */
+  void record(long value) {
+    value = Math.max(value, 0);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    max.accumulateAndGet(value, MAX);
+  }
+
+  /** Returns the number of recorded values. */
+  long count() {
+    return count.get();
+  }
+
+  /** Returns the sum of the recorded values. */
+  long total() {
+    return total.get();
+  }
+
+  /** Returns the largest recorded value, or 0 if none was recorded. */
+  long max() {
+    return max.get();
+  }
+
+  /** Returns the mean of the recorded values, or 0 if none was recorded. */
+  double mean() {
+    long n = count();
+    return n == 0 ? 0 : (double) total() / n;
+  }
+
+  /**
+   * Returns the largest value that is in the same bucket as the value at 'percentile', i.e., the
+   * smallest value that at least 'percentile' percent of the recorded values are no larger than,
+   * give or take the width of its bucket. Never more than {@link #max}. 0 if no value was recorded.
+   */
+  long valueAtPercentile(double percentile) {
+    checkArgument(
+        percentile >= 0 && percentile <= 100, "percentile must be in [0, 100], got %s", percentile);
+    long n = count();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueInBucket(i), max());
+      }
+    }
+    return max();
+  }
+
+  /**
+   * Calls 'consumer' with the range and count of every non-empty bucket, from the smallest values
+   * to the largest.
+   */
+  void forEachBucket(BucketConsumer consumer) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long bucketCount = counts.get(i);
+      if (bucketCount > 0) {
+        consumer.accept(lowestValueInBucket(i), highestValueInBucket(i), bucketCount);
+      }
+    }
+  }
+
+  /** Receives the buckets of a {@link LatencyHistogram}. */
+  interface BucketConsumer {
+    void accept(long lowestValue, long highestValue, long count);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowestValueInBucket(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+
+  private static long highestValueInBucket(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return lowestValueInBucket(bucket) + (1L << shift) - 1;
+  }
+}
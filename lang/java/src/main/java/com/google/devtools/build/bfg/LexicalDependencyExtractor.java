@@ -0,0 +1,407 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Strings.emptyToNull;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.bfg.ReferencedClassesParser.Metadata;
+import com.google.devtools.build.bfg.ReferencedClassesParser.QualifiedName;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extracts what {@link JavaSourceFileParser} needs to know about a Java file by scanning its
+ * tokens, without building an AST or resolving bindings. It's much faster than {@link
+ * ReferencedClassesParser}, but less accurate. Dependencies come from three sources:
+ *
+ * <ul>
+ *   <li>imports, except on-demand ones;
+ *   <li>dotted names that start with a package, e.g., "com.google.Foo.bar()";
+ *   <li>capitalized simple names that have a source file in the file's package.
+ * </ul>
+ *
+ * <p>Without bindings, a dotted name that starts with a variable and continues with a capitalized
+ * name, e.g., "foo.CONSTANT", is mistaken for a class in package "foo". Classes that are only
+ * referred to through inherited members are missed. Syntax errors aren't detected, and simple
+ * names that can't be resolved aren't reported, since most of them would be variables and
+ * constants.
+ */
+final class LexicalDependencyExtractor {
+
+  private static final Joiner DOT_JOINER = Joiner.on('.');
+
+  private static final ImmutableSet<String> KEYWORDS =
+      ImmutableSet.of(
+          "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class",
+          "const", "continue", "default", "do", "double", "else", "enum", "extends", "final",
+          "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+          "interface", "long", "native", "new", "package", "private", "protected", "public",
+          "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this",
+          "throw", "throws", "transient", "try", "void", "volatile", "while", "true", "false",
+          "null");
+
+  /** Stands for a string or character literal, which we don't look into. */
+  private static final String LITERAL = "\"";
+
+  /** Stands for a numeric literal. */
+  private static final String NUMBER = "0";
+
+  /** Single-character tokens, indexed by the character, so they aren't allocated per token. */
+  private static final String[] PUNCTUATION = new String[128];
+
+  static {
+    for (char c = 0; c < PUNCTUATION.length; c++) {
+      PUNCTUATION[c] = String.valueOf(c).intern();
+    }
+  }
+
+  private final List<String> tokens;
+
+  private LexicalDependencyExtractor(char[] source) {
+    this.tokens = tokenize(source);
+  }
+
+  /**
+   * Returns the summary of the Java file whose content is 'source'.
+   *
+   * @param contentRoots tells which classes have source files in the same package as this file.
+   */
+  static SourceFileSummary extract(char[] source, ContentRootIndex contentRoots) {
+    return new LexicalDependencyExtractor(source).summarize(contentRoots);
+  }
+
+  /**
+   * Returns the packages that the Java file whose content is 'source' imports on demand, e.g.,
+   * "com.other" for "import com.other.*;". Static on-demand imports aren't included.
+   */
+  static ImmutableList<String> onDemandImports(char[] source) {
+    return new LexicalDependencyExtractor(source).onDemandImports();
+  }
+
+  private ImmutableList<String> onDemandImports() {
+    ImmutableList.Builder<String> onDemandImports = ImmutableList.builder();
+    // Imports come before the first type declaration, and so before the first '{'.
+    for (int i = 0; i < tokens.size() && !tokens.get(i).equals("{"); i++) {
+      if (!tokens.get(i).equals("import")
+          || (i + 1 < tokens.size() && tokens.get(i + 1).equals("static"))) {
+        continue;
+      }
+      List<String> parts = new ArrayList<>();
+      i = readDottedName(i + 1, parts);
+      if (!parts.isEmpty()
+          && i + 1 < tokens.size()
+          && tokens.get(i).equals(".")
+          && tokens.get(i + 1).equals("*")) {
+        onDemandImports.add(DOT_JOINER.join(parts));
+      }
+    }
+    return onDemandImports.build();
+  }
+
+  private SourceFileSummary summarize(ContentRootIndex contentRoots) {
+    String packageName = "";
+    String className = null;
+    boolean isAbstract = false;
+    boolean hasMainMethod = false;
+
+    // Simple names declared as types in this file, and simple names brought in by imports.
+    Set<String> declaredNames = new HashSet<>();
+    Set<String> importedNames = new HashSet<>();
+    // Qualified top-level names, and capitalized simple names still to be resolved, in order of
+    // appearance. Simple names are told apart by not containing a '.'.
+    List<String> references = new ArrayList<>();
+
+    int depth = 0;
+    // Whether we've seen the top-level class's name, but not yet the '{' that opens its body.
+    boolean beforeClassBody = false;
+    boolean inClassBody = false;
+    // Whether the current declaration has an 'abstract' or 'static' modifier.
+    boolean sawAbstract = false;
+    boolean sawStatic = false;
+
+    for (int i = 0; i < tokens.size(); ) {
+      String token = tokens.get(i);
+      String previous = i > 0 ? tokens.get(i - 1) : "";
+      switch (token) {
+        case "{":
+          if (depth == 0 && beforeClassBody) {
+            beforeClassBody = false;
+            inClassBody = true;
+          }
+          depth++;
+          sawStatic = false;
+          i++;
+          continue;
+        case "}":
+          depth = Math.max(depth - 1, 0);
+          if (depth == 0) {
+            inClassBody = false;
+            sawAbstract = false;
+          }
+          sawStatic = false;
+          i++;
+          continue;
+        case ";":
+          if (depth == 0) {
+            sawAbstract = false;
+          }
+          sawStatic = false;
+          i++;
+          continue;
+        case "abstract":
+          sawAbstract |= depth == 0;
+          i++;
+          continue;
+        case "static":
+          sawStatic |= depth == 1;
+          i++;
+          continue;
+        case "package":
+          if (depth == 0 && className == null) {
+            List<String> parts = new ArrayList<>();
+            i = readDottedName(i + 1, parts);
+            packageName = DOT_JOINER.join(parts);
+            continue;
+          }
+          i++;
+          continue;
+        case "import":
+          if (depth == 0) {
+            i = readImport(i + 1, importedNames, references);
+            continue;
+          }
+          i++;
+          continue;
+        case "class":
+        case "interface":
+        case "enum":
+          if (!previous.equals(".") && depth == 0 && className == null && i + 1 < tokens.size()) {
+            className = tokens.get(i + 1);
+            isAbstract = sawAbstract;
+            beforeClassBody = true;
+          }
+          i++;
+          continue;
+        case "main":
+          if (inClassBody && depth == 1 && sawStatic && previous.equals("void")) {
+            hasMainMethod |= isStringArrayParameterList(i + 1);
+          }
+          i++;
+          continue;
+        default:
+          if (!isIdentifier(token) || previous.equals(".")) {
+            i++;
+            continue;
+          }
+          if (previous.equals("class") || previous.equals("interface") || previous.equals("enum")) {
+            declaredNames.add(token);
+            i++;
+            continue;
+          }
+          List<String> parts = new ArrayList<>();
+          i = readDottedName(i, parts);
+          addReference(parts, references);
+      }
+    }
+
+    if (className == null) {
+      // The file doesn't contain any classes. This happens for package-info.java files.
+      return SourceFileSummary.create(
+          packageName, "", ImmutableList.of(), ImmutableList.of(), "java_library");
+    }
+    String fullyQualifiedClassName =
+        DOT_JOINER.skipNulls().join(emptyToNull(packageName), className);
+
+    Set<String> qualifiedTopLevelNames = new LinkedHashSet<>();
+    for (String reference : references) {
+      if (reference.indexOf('.') >= 0) {
+        qualifiedTopLevelNames.add(reference);
+      } else if (!declaredNames.contains(reference)
+          && !importedNames.contains(reference)
+          && !JavaLangTypes.contains(reference)
+          && contentRoots.containsClass(packageName, reference)) {
+        qualifiedTopLevelNames.add(
+            packageName.isEmpty() ? reference : packageName + "." + reference);
+      }
+    }
+
+    // Same rules as JavaSourceFileParser.decideRuleKind. Abstract classes can't be tests.
+    String ruleKind = "java_library";
+    if (!isAbstract
+        && className.endsWith("Test")
+        && qualifiedTopLevelNames.contains("org.junit.Test")) {
+      ruleKind = "java_test";
+    } else if (!isAbstract && hasMainMethod) {
+      ruleKind = "java_binary";
+    }
+    return SourceFileSummary.create(
+        packageName,
+        fullyQualifiedClassName,
+        ImmutableList.copyOf(qualifiedTopLevelNames),
+        ImmutableList.of(),
+        ruleKind);
+  }
+
+  /**
+   * Reads an import declaration that starts at token 'i', after the 'import' keyword, and returns
+   * the index of the token that follows it.
+   */
+  private int readImport(int i, Set<String> importedNames, List<String> references) {
+    if (i < tokens.size() && tokens.get(i).equals("static")) {
+      i++;
+    }
+    List<String> parts = new ArrayList<>();
+    i = readDottedName(i, parts);
+    if (i + 1 < tokens.size() && tokens.get(i).equals(".") && tokens.get(i + 1).equals("*")) {
+      // On-demand imports don't tell which classes are used.
+      return i + 2;
+    }
+    if (parts.isEmpty()) {
+      return i;
+    }
+    String name = DOT_JOINER.join(parts);
+    if (ReferencedClassesParser.isJavaLangClass(name)) {
+      return i;
+    }
+    importedNames.add(parts.get(parts.size() - 1));
+    String topLevelName =
+        QualifiedName.create(name, Metadata.EMPTY).getTopLevelQualifiedName().value();
+    if (!topLevelName.isEmpty()) {
+      references.add(topLevelName);
+    }
+    return i;
+  }
+
+  /**
+   * Adds the class that the dotted name 'parts' refers to, if any, to 'references': either the
+   * qualified top-level class, for names that start with a package, or a simple name.
+   */
+  private static void addReference(List<String> parts, List<String> references) {
+    if (parts.size() > 1) {
+      String topLevelName =
+          QualifiedName.create(DOT_JOINER.join(parts), Metadata.EMPTY)
+              .getTopLevelQualifiedName()
+              .value();
+      if (!topLevelName.isEmpty()) {
+        if (!ReferencedClassesParser.isJavaLangClass(topLevelName)) {
+          references.add(topLevelName);
+        }
+        return;
+      }
+    }
+    // e.g., "Foo", or "Foo.bar()".
+    String first = parts.get(0);
+    if (QualifiedName.CLASS_NAME_PATTERN.matcher(first).matches()) {
+      references.add(first);
+    }
+  }
+
+  /**
+   * Reads a name of the form 'a.b.c' that starts at token 'i' into 'parts', and returns the index
+   * of the token that follows it.
+   */
+  private int readDottedName(int i, List<String> parts) {
+    if (i >= tokens.size() || !isIdentifier(tokens.get(i))) {
+      return i;
+    }
+    parts.add(tokens.get(i++));
+    while (i + 1 < tokens.size()
+        && tokens.get(i).equals(".")
+        && isIdentifier(tokens.get(i + 1))) {
+      parts.add(tokens.get(i + 1));
+      i += 2;
+    }
+    return i;
+  }
+
+  /**
+   * Returns true iff the tokens starting at 'i' are a parameter list with a single String[]
+   * parameter, e.g., "(String[] args)", "(final String... args)" or "(java.lang.String args[])".
+   */
+  private boolean isStringArrayParameterList(int i) {
+    List<String> parameter = new ArrayList<>();
+    if (i >= tokens.size() || !tokens.get(i).equals("(")) {
+      return false;
+    }
+    for (i++; i < tokens.size() && !tokens.get(i).equals(")"); i++) {
+      if (!tokens.get(i).equals("final")) {
+        parameter.add(tokens.get(i));
+      }
+    }
+    String joined = String.join(" ", parameter);
+    if (joined.startsWith("java . lang . ")) {
+      joined = joined.substring("java . lang . ".length());
+    }
+    return joined.matches("String (\\[ \\] \\w+|\\. \\. \\. \\w+|\\w+ \\[ \\])");
+  }
+
+  private static boolean isIdentifier(String token) {
+    return Character.isJavaIdentifierStart(token.charAt(0)) && !KEYWORDS.contains(token);
+  }
+
+  /**
+   * Splits 'source' into identifiers, keywords and single-character punctuation. Comments and
+   * whitespace are dropped, and literals are replaced by {@link #LITERAL} and {@link #NUMBER}.
+   */
+  private static List<String> tokenize(char[] source) {
+    List<String> tokens = new ArrayList<>(source.length / 4);
+    int length = source.length;
+    int i = 0;
+    while (i < length) {
+      char c = source[i];
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '/' && i + 1 < length && source[i + 1] == '/') {
+        while (i < length && source[i] != '\n') {
+          i++;
+        }
+      } else if (c == '/' && i + 1 < length && source[i + 1] == '*') {
+        i += 2;
+        while (i < length && !(source[i] == '*' && i + 1 < length && source[i + 1] == '/')) {
+          i++;
+        }
+        i += 2;
+      } else if (c == '"' || c == '\'') {
+        i++;
+        while (i < length && source[i] != c && source[i] != '\n') {
+          i += source[i] == '\\' ? 2 : 1;
+        }
+        i++;
+        tokens.add(LITERAL);
+      } else if (c >= '0' && c <= '9') {
+        while (i < length && (Character.isJavaIdentifierPart(source[i]) || source[i] == '.')) {
+          i++;
+        }
+        tokens.add(NUMBER);
+      } else if (Character.isJavaIdentifierStart(c)) {
+        int start = i;
+        while (i < length && Character.isJavaIdentifierPart(source[i])) {
+          i++;
+        }
+        tokens.add(new String(source, start, i - start));
+      } else {
+        tokens.add(c < PUNCTUATION.length ? PUNCTUATION[c] : String.valueOf(c));
+        i++;
+      }
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,318 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Comparator.comparing;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import protos.com.google.devtools.build.bfg.JavaParser.ParseCacheEntry;
+
+/**
+ * An on-disk cache of {@link SourceFileSummary}s, so that files which haven't changed since a
+ * previous run don't have to be parsed again.
+ *
+ * <p>Entries are keyed by the content of the source file and by the parser configuration (content
+ * roots, Java language level, and type index if files are parsed without bindings). Since
+ * resolving simple names depends on which classes exist in the file's package and in the packages
+ * it imports on demand, an entry also records a fingerprint of those packages' file listings, and
+ * is ignored if any of the listings has changed since.
+ *
+ * <p>Each entry is stored in a file of its own, named after its key. {@link #evict} deletes the
+ * least recently used entries until the cache fits in its maximum size. Other files in the
+ * directory, such as entries still being written by another process, are left alone.
+ *
+ * <p>This class is thread-safe.
+ */
+class ParseCache {
+
+  /** Change whenever the meaning of cached summaries changes, to invalidate existing entries. */
+  private static final int FORMAT_VERSION = 3;
+
+  /** Matches the names of entry files, which are {@link #key}s: hex-encoded SHA-256 hashes. */
+  private static final CharMatcher KEY_CHARS = CharMatcher.anyOf("0123456789abcdef");
+
+  private static final int KEY_LENGTH = Hashing.sha256().bits() / 4;
+
+  private final Path directory;
+
+  private final long maxSizeBytes;
+
+  private final ImmutableList<Path> contentRoots;
+
+  /** Hash of everything besides the file content that the parser output depends on. */
+  private final HashCode configuration;
+
+  /** Package name --> fingerprint of its file listing. Listings are assumed not to change. */
+  private final Map<String, ByteString> packageFingerprints = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param directory where cache entries are stored. Created if it doesn't exist.
+   * @param maxSizeBytes the size that {@link #evict} shrinks the cache to.
+   * @param contentRoots the content roots that files are parsed with.
+   */
+  ParseCache(Path directory, long maxSizeBytes, ImmutableList<Path> contentRoots)
+      throws IOException {
+    this(directory, maxSizeBytes, contentRoots, null /* typeIndex */, null /* packageIndex */);
+  }
+
+  /**
+   * Same as {@link #ParseCache(Path, long, ImmutableList)}, for files parsed without bindings
+   * against 'typeIndex', if not null, and whose on-demand imports are looked up in 'packageIndex',
+   * if not null.
+   */
+  ParseCache(
+      Path directory,
+      long maxSizeBytes,
+      ImmutableList<Path> contentRoots,
+      @Nullable TypeIndex typeIndex,
+      @Nullable TypeIndex packageIndex)
+      throws IOException {
+    checkArgument(maxSizeBytes >= 0, "maxSizeBytes must not be negative, got %s", maxSizeBytes);
+    this.directory = Files.createDirectories(directory);
+    this.maxSizeBytes = maxSizeBytes;
+    this.contentRoots = contentRoots;
+    this.configuration = configuration(contentRoots, typeIndex, packageIndex);
+  }
+
+  /**
+   * Returns a hash of everything besides the file content that summaries depend on, for files
+   * parsed with the arguments of {@link #ParseCache(Path, long, ImmutableList, TypeIndex,
+   * TypeIndex)}.
+   */
+  static HashCode configuration(
+      ImmutableList<Path> contentRoots,
+      @Nullable TypeIndex typeIndex,
+      @Nullable TypeIndex packageIndex) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putInt(FORMAT_VERSION)
+            .putString(ReferencedClassesParser.SOURCE_LEVEL, UTF_8);
+    for (Path root : contentRoots) {
+      hasher.putString(root.toAbsolutePath().normalize().toString(), UTF_8).putByte((byte) 0);
+    }
+    if (typeIndex != null) {
+      hasher.putBytes(typeIndex.fingerprint().asBytes());
+    }
+    if (packageIndex != null) {
+      // Tells a package index apart from a type index with the same names.
+      hasher.putString("packageIndex", UTF_8).putBytes(packageIndex.fingerprint().asBytes());
+    }
+    return hasher.hash();
+  }
+
+  /** Returns the key under which the summary of a file with 'content' is stored. */
+  String key(byte[] content) {
+    return key(ByteBuffer.wrap(content));
+  }
+
+  /** Same as {@link #key(byte[])}, for the remaining bytes of 'content', which it consumes. */
+  String key(ByteBuffer content) {
+    return Hashing.sha256()
+        .newHasher()
+        .putBytes(configuration.asBytes())
+        .putBytes(content)
+        .hash()
+        .toString();
+  }
+
+  /** Returns the summary stored under 'key', or null if there's no valid entry for it. */
+  @Nullable
+  SourceFileSummary get(String key) throws IOException {
+    Path entryPath = directory.resolve(key);
+    ParseCacheEntry entry;
+    try {
+      entry = ParseCacheEntry.parseFrom(Files.readAllBytes(entryPath));
+    } catch (NoSuchFileException | InvalidProtocolBufferException e) {
+      misses.incrementAndGet();
+      return null;
+    }
+    SourceFileSummary summary = SourceFileSummary.fromProto(entry.getSummary());
+    if (!entry.getPackageFingerprint().equals(fingerprint(summary))) {
+      misses.incrementAndGet();
+      return null;
+    }
+    // Mark the entry as recently used, so it's evicted last.
+    try {
+      Files.setLastModifiedTime(entryPath, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (NoSuchFileException e) {
+      // The entry was evicted concurrently. We've already read it, so this is fine.
+    }
+    hits.incrementAndGet();
+    return summary;
+  }
+
+  /** Stores 'summary' under 'key'. */
+  void put(String key, SourceFileSummary summary) throws IOException {
+    ParseCacheEntry entry =
+        ParseCacheEntry.newBuilder()
+            .setSummary(summary.toProto())
+            .setPackageFingerprint(fingerprint(summary))
+            .build();
+    // Write to a temporary file first, so readers never see a partially written entry.
+    Path tempFile = Files.createTempFile(directory, key, ".tmp");
+    try {
+      Files.write(tempFile, entry.toByteArray());
+      Files.move(tempFile, directory.resolve(key), REPLACE_EXISTING, ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until they take no more than the cache's maximum size.
+   * Only regular files named like keys count as entries.
+   */
+  void evict() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    long totalSize = 0;
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (!isKey(file.getFileName().toString())) {
+          continue;
+        }
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (!attributes.isRegularFile()) {
+          continue;
+        }
+        entries.add(new Entry(file, attributes));
+        totalSize += attributes.size();
+      }
+    }
+    if (totalSize <= maxSizeBytes) {
+      return;
+    }
+    entries.sort(comparing((Entry e) -> e.attributes.lastModifiedTime()));
+    for (Entry entry : entries) {
+      if (totalSize <= maxSizeBytes) {
+        break;
+      }
+      if (Files.deleteIfExists(entry.file)) {
+        evictions.incrementAndGet();
+      }
+      totalSize -= entry.attributes.size();
+    }
+  }
+
+  /** Returns a human-readable line describing how effective the cache was. */
+  String stats() {
+    return String.format(
+        "Parse cache: %d hits, %d misses, %d entries evicted",
+        hits.get(), misses.get(), evictions.get());
+  }
+
+  long hitCount() {
+    return hits.get();
+  }
+
+  long missCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns a fingerprint of the file listings that 'summary' depends on: those of its own package,
+   * and of the packages it imports on demand.
+   */
+  private ByteString fingerprint(SourceFileSummary summary) {
+    ByteString packageFingerprint = packageFingerprint(summary.packageName());
+    if (summary.onDemandImports().isEmpty()) {
+      return packageFingerprint;
+    }
+    Hasher hasher = Hashing.sha256().newHasher().putBytes(packageFingerprint.toByteArray());
+    for (String onDemandImport : summary.onDemandImports()) {
+      hasher.putBytes(packageFingerprint(onDemandImport).toByteArray());
+    }
+    return ByteString.copyFrom(hasher.hash().asBytes());
+  }
+
+  private static boolean isKey(String fileName) {
+    return fileName.length() == KEY_LENGTH && KEY_CHARS.matchesAllOf(fileName);
+  }
+
+  private ByteString packageFingerprint(String packageName) {
+    return packageFingerprints.computeIfAbsent(packageName, this::computePackageFingerprint);
+  }
+
+  /** Hashes the names of all Java files in 'packageName', across all content roots. */
+  private ByteString computePackageFingerprint(String packageName) {
+    String relativePath = packageName.replace(".", File.separator);
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (Path root : contentRoots) {
+      Path packageDir = root.resolve(relativePath);
+      if (!Files.isDirectory(packageDir)) {
+        hasher.putByte((byte) 1);
+        continue;
+      }
+      try (Stream<Path> files = Files.list(packageDir)) {
+        files
+            .map(f -> f.getFileName().toString())
+            .filter(name -> name.endsWith(".java"))
+            .sorted()
+            .forEach(name -> hasher.putString(name, UTF_8).putByte((byte) 0));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      hasher.putByte((byte) 2);
+    }
+    return ByteString.copyFrom(hasher.hash().asBytes());
+  }
+
+  private static class Entry {
+    private final Path file;
+    private final BasicFileAttributes attributes;
+
+    private Entry(Path file, BasicFileAttributes attributes) {
+      this.file = file;
+      this.attributes = attributes;
+    }
+  }
+}
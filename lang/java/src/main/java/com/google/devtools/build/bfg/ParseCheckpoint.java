@@ -0,0 +1,210 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import protos.com.google.devtools.build.bfg.JavaParser.CheckpointEntry;
+import protos.com.google.devtools.build.bfg.JavaParser.CheckpointHeader;
+
+/**
+ * Saves the summaries of parsed files to disk as a run goes, so that a run that fails or is killed
+ * can be resumed without parsing those files again.
+ *
+ * <p>The checkpoint is a length-delimited {@link CheckpointHeader}, followed by a stream of
+ * length-delimited {@link CheckpointEntry} messages, appended to as files are parsed, and flushed
+ * every few files. Opening an existing checkpoint reads its entries, and drops an entry cut short
+ * by a crash. All entries are dropped if the checkpoint was written with a different {@link
+ * #configuration}, e.g., if the run is resumed with other content roots. A saved summary is used
+ * as long as its file has the same size and last modified time as when it was parsed, so files
+ * that are fixed after a failed run are parsed again.
+ *
+ * <p>Unlike {@link ParseCache}, a checkpoint belongs to a single run: it doesn't notice classes
+ * being added to or removed from a package, and should be deleted once the run has succeeded.
+ *
+ * <p>This class is thread-safe.
+ */
+class ParseCheckpoint implements Closeable {
+
+  private final Path file;
+
+  private final int flushEvery;
+
+  /** Entries read when the checkpoint was opened, by absolute path. */
+  private final Map<String, CheckpointEntry> savedEntries;
+
+  private final OutputStream out;
+
+  /** Entries written since the last flush. Guarded by 'this'. */
+  private int unflushedEntries;
+
+  private final AtomicLong resumed = new AtomicLong();
+
+  private final AtomicLong saved = new AtomicLong();
+
+  private ParseCheckpoint(
+      Path file, int flushEvery, Map<String, CheckpointEntry> savedEntries, OutputStream out) {
+    this.file = file;
+    this.flushEvery = flushEvery;
+    this.savedEntries = savedEntries;
+    this.out = out;
+  }
+
+  /**
+   * Returns a hash of everything besides the file content that summaries depend on, for files
+   * parsed with 'contentRoots', without bindings against 'typeIndex', if not null, with on-demand
+   * imports looked up in 'packageIndex', if not null, and in fast mode if 'fast'.
+   */
+  static HashCode configuration(
+      ImmutableList<Path> contentRoots,
+      @Nullable TypeIndex typeIndex,
+      @Nullable TypeIndex packageIndex,
+      boolean fast) {
+    return Hashing.sha256()
+        .newHasher()
+        .putBytes(ParseCache.configuration(contentRoots, typeIndex, packageIndex).asBytes())
+        .putBoolean(fast)
+        .hash();
+  }
+
+  /**
+   * Opens the checkpoint in 'file', creating it if it doesn't exist.
+   *
+   * @param flushEvery the number of summaries saved between writes to disk. A crash loses at most
+   *     that many.
+   * @param configuration the {@link #configuration} of the run. Summaries saved by a run with
+   *     another one are dropped.
+   */
+  static ParseCheckpoint open(Path file, int flushEvery, HashCode configuration)
+      throws IOException {
+    checkArgument(flushEvery > 0, "flushEvery must be positive, got %s", flushEvery);
+    CheckpointHeader header =
+        CheckpointHeader.newBuilder()
+            .setConfiguration(ByteString.copyFrom(configuration.asBytes()))
+            .build();
+    Map<String, CheckpointEntry> entries = new ConcurrentHashMap<>();
+    if (Files.exists(file)) {
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+        if (header.equals(CheckpointHeader.parseDelimitedFrom(in))) {
+          CheckpointEntry entry;
+          while ((entry = CheckpointEntry.parseDelimitedFrom(in)) != null) {
+            entries.put(entry.getPath(), entry);
+          }
+        }
+      } catch (InvalidProtocolBufferException e) {
+        // The last entry was cut short while it was written. The ones before it are fine.
+      }
+    }
+    // Rewrite the entries read, so that new ones aren't appended after a partial one.
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream tempOut = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+      header.writeDelimitedTo(tempOut);
+      for (CheckpointEntry entry : entries.values()) {
+        entry.writeDelimitedTo(tempOut);
+      }
+    }
+    Files.move(tempFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    return new ParseCheckpoint(
+        file, flushEvery, entries, new BufferedOutputStream(Files.newOutputStream(file, APPEND)));
+  }
+
+  /**
+   * Returns the saved summary of 'srcFilePath', an absolute path, or null if it wasn't saved or
+   * the file has changed since.
+   *
+   * @param attributes the current attributes of 'srcFilePath'
+   */
+  @Nullable
+  SourceFileSummary get(Path srcFilePath, BasicFileAttributes attributes) {
+    CheckpointEntry entry = savedEntries.get(srcFilePath.toString());
+    if (entry == null) {
+      return null;
+    }
+    if (attributes.size() != entry.getSize()
+        || attributes.lastModifiedTime().toMillis() != entry.getLastModifiedMillis()) {
+      return null;
+    }
+    resumed.incrementAndGet();
+    return SourceFileSummary.fromProto(entry.getSummary());
+  }
+
+  /**
+   * Saves 'summary' as that of 'srcFilePath', an absolute path.
+   *
+   * @param attributes the attributes of 'srcFilePath' read before it was parsed, so that a file
+   *     that changes while it is parsed is parsed again on resume.
+   */
+  void put(Path srcFilePath, BasicFileAttributes attributes, SourceFileSummary summary)
+      throws IOException {
+    CheckpointEntry entry =
+        CheckpointEntry.newBuilder()
+            .setPath(srcFilePath.toString())
+            .setSize(attributes.size())
+            .setLastModifiedMillis(attributes.lastModifiedTime().toMillis())
+            .setSummary(summary.toProto())
+            .build();
+    synchronized (this) {
+      entry.writeDelimitedTo(out);
+      if (++unflushedEntries >= flushEvery) {
+        out.flush();
+        unflushedEntries = 0;
+      }
+    }
+    saved.incrementAndGet();
+  }
+
+  /** Flushes the summaries saved so far, and closes the checkpoint. */
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /** Closes the checkpoint, and deletes its file. */
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(file);
+  }
+
+  /** Returns a human-readable line describing how much work the checkpoint saved. */
+  String stats() {
+    return String.format(
+        "Checkpoint: %d files resumed, %d files saved", resumed.get(), saved.get());
+  }
+
+  long resumedCount() {
+    return resumed.get();
+  }
+}
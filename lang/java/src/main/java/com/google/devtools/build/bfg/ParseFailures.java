@@ -0,0 +1,61 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The source files that couldn't be parsed, e.g., because of syntax errors, with the compiler's
+ * messages for each. When {@link JavaSourceFileParser.Options#failures} is set, failed files are
+ * recorded here and left out of the class graph, instead of failing the whole run.
+ *
+ * <p>This class is thread-safe.
+ */
+class ParseFailures {
+
+  private final Map<Path, ImmutableList<String>> failures = new ConcurrentSkipListMap<>();
+
+  void record(Path srcFilePath, List<String> messages) {
+    failures.put(srcFilePath, ImmutableList.copyOf(messages));
+  }
+
+  boolean isEmpty() {
+    return failures.isEmpty();
+  }
+
+  /** Returns the failed files, sorted, with their messages. */
+  ImmutableSortedMap<Path, ImmutableList<String>> files() {
+    return ImmutableSortedMap.copyOf(failures);
+  }
+
+  /** Returns a human-readable report listing the failed files and their messages. */
+  String report() {
+    StringBuilder report =
+        new StringBuilder(String.format("%d files failed to parse:", failures.size()));
+    failures.forEach(
+        (file, messages) -> {
+          report.append("\n  ").append(file);
+          for (String message : messages) {
+            report.append("\n    ").append(message);
+          }
+        });
+    return report.toString();
+  }
+}
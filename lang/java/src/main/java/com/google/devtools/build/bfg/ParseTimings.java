@@ -0,0 +1,287 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Comparator.comparingLong;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Collects how long each phase of parsing took for every file, so that a slow run can be told
+ * apart into a few pathological files, e.g., generated ones, or uniform cost.
+ *
+ * <p>Keeps a {@link LatencyHistogram} per phase, and the slowest files, so its size doesn't grow
+ * with the number of files.
+ *
+ * <p>This class is thread-safe.
+ */
+class ParseTimings {
+
+  /** The phases of parsing a file. */
+  enum Phase {
+    /** Reading and decoding the file, and looking it up in the parse cache. */
+    READ,
+    /** Parsing the file without bindings, to check its syntax. */
+    SYNTAX,
+    /**
+     * Parsing the file with bindings resolved. For files parsed in batches, this is the time JDT
+     * took to hand over the file's AST after the previous one's.
+     */
+    RESOLVE,
+    /** Collecting the names in the AST, resolving them, and deciding the rule kind. */
+    VISIT,
+  }
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final int maxSlowestFiles;
+
+  private final Map<Phase, LatencyHistogram> phaseHistograms = new EnumMap<>(Phase.class);
+
+  private final LatencyHistogram totalHistogram = new LatencyHistogram();
+
+  /** The slowest files seen so far, fastest first. Guarded by itself. */
+  private final PriorityQueue<FileTiming> slowestFiles =
+      new PriorityQueue<>(comparingLong(FileTiming::totalNanos));
+
+  /** @param maxSlowestFiles how many of the slowest files to report. */
+  ParseTimings(int maxSlowestFiles) {
+    checkArgument(
+        maxSlowestFiles >= 0, "maxSlowestFiles must not be negative, got %s", maxSlowestFiles);
+    this.maxSlowestFiles = maxSlowestFiles;
+    for (Phase phase : Phase.values()) {
+      phaseHistograms.put(phase, new LatencyHistogram());
+    }
+  }
+
+  /** Records how long each phase of parsing 'file' took, in nanoseconds. */
+  void record(Path file, long readNanos, long syntaxNanos, long resolveNanos, long visitNanos) {
+    FileTiming timing =
+        new AutoValue_ParseTimings_FileTiming(
+            file.toString(), readNanos, syntaxNanos, resolveNanos, visitNanos);
+    for (Phase phase : Phase.values()) {
+      phaseHistograms.get(phase).record(timing.nanos(phase));
+    }
+    totalHistogram.record(timing.totalNanos());
+    if (maxSlowestFiles == 0) {
+      return;
+    }
+    synchronized (slowestFiles) {
+      if (slowestFiles.size() < maxSlowestFiles) {
+        slowestFiles.add(timing);
+      } else if (slowestFiles.peek().totalNanos() < timing.totalNanos()) {
+        slowestFiles.poll();
+        slowestFiles.add(timing);
+      }
+    }
+  }
+
+  /** Returns the number of files recorded. */
+  long fileCount() {
+    return totalHistogram.count();
+  }
+
+  /** Returns the histogram of the time spent in 'phase', per file. */
+  LatencyHistogram histogram(Phase phase) {
+    return phaseHistograms.get(phase);
+  }
+
+  /** Returns the histogram of the time spent on each file. */
+  LatencyHistogram totalHistogram() {
+    return totalHistogram;
+  }
+
+  /** Returns the slowest files, slowest first. */
+  ImmutableList<FileTiming> slowestFiles() {
+    synchronized (slowestFiles) {
+      return Ordering.from(comparingLong(FileTiming::totalNanos))
+          .reverse()
+          .immutableSortedCopy(slowestFiles);
+    }
+  }
+
+  /** Returns a table of percentiles per phase, followed by a table of the slowest files. */
+  String report() {
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("Parse timings of %d files, in ms:%n", fileCount()));
+    out.append(String.format("%-8s %10s %8s", "phase", "total", "mean"));
+    for (double percentile : PERCENTILES) {
+      out.append(String.format(" %8s", "p" + formatPercentile(percentile)));
+    }
+    out.append(String.format(" %8s%n", "max"));
+    for (Phase phase : Phase.values()) {
+      appendHistogramRow(out, phaseName(phase), histogram(phase));
+    }
+    appendHistogramRow(out, "total", totalHistogram);
+
+    ImmutableList<FileTiming> slowest = slowestFiles();
+    if (!slowest.isEmpty()) {
+      out.append(String.format("Slowest %d files, in ms:%n", slowest.size()));
+      out.append(String.format("%10s", "total"));
+      for (Phase phase : Phase.values()) {
+        out.append(String.format(" %8s", phaseName(phase)));
+      }
+      out.append(String.format("  file%n"));
+      for (FileTiming timing : slowest) {
+        out.append(String.format("%10.1f", millis(timing.totalNanos())));
+        for (Phase phase : Phase.values()) {
+          out.append(String.format(" %8.1f", millis(timing.nanos(phase))));
+        }
+        out.append(String.format("  %s%n", timing.file()));
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Writes the same as {@link #report}, plus the non-empty buckets of each histogram, as a JSON
+   * object.
+   */
+  void writeJson(Writer out) throws IOException {
+    out.write("{\n  \"files\": " + fileCount() + ",\n  \"phases\": {");
+    String separator = "\n";
+    for (Phase phase : Phase.values()) {
+      out.write(separator + "    \"" + phaseName(phase) + "\": ");
+      writeHistogramJson(out, histogram(phase));
+      separator = ",\n";
+    }
+    out.write(separator + "    \"total\": ");
+    writeHistogramJson(out, totalHistogram);
+    out.write("\n  },\n  \"slowest_files\": [");
+    separator = "\n";
+    for (FileTiming timing : slowestFiles()) {
+      out.write(separator + "    {\"file\": " + jsonString(timing.file()));
+      out.write(", \"total_ms\": " + jsonMillis(timing.totalNanos()));
+      for (Phase phase : Phase.values()) {
+        out.write(", \"" + phaseName(phase) + "_ms\": " + jsonMillis(timing.nanos(phase)));
+      }
+      out.write("}");
+      separator = ",\n";
+    }
+    out.write("\n  ]\n}\n");
+    out.flush();
+  }
+
+  private static void appendHistogramRow(
+      StringBuilder out, String name, LatencyHistogram histogram) {
+    double meanMillis = histogram.mean() / NANOS_PER_MILLI;
+    out.append(String.format("%-8s %10.1f %8.1f", name, millis(histogram.total()), meanMillis));
+    for (double percentile : PERCENTILES) {
+      out.append(String.format(" %8.1f", millis(histogram.valueAtPercentile(percentile))));
+    }
+    out.append(String.format(" %8.1f%n", millis(histogram.max())));
+  }
+
+  private static void writeHistogramJson(Writer out, LatencyHistogram histogram)
+      throws IOException {
+    out.write("{\"total_ms\": " + jsonMillis(histogram.total()));
+    out.write(", \"mean_ms\": " + histogram.mean() / NANOS_PER_MILLI);
+    for (double percentile : PERCENTILES) {
+      out.write(
+          ", \"p"
+              + formatPercentile(percentile).replace('.', '_')
+              + "_ms\": "
+              + jsonMillis(histogram.valueAtPercentile(percentile)));
+    }
+    out.write(", \"max_ms\": " + jsonMillis(histogram.max()));
+    // [lowest ms, highest ms, count] of each bucket.
+    StringBuilder buckets = new StringBuilder();
+    histogram.forEachBucket(
+        (lowest, highest, count) ->
+            buckets
+                .append(buckets.length() == 0 ? "" : ", ")
+                .append(
+                    String.format(
+                        "[%s, %s, %d]", jsonMillis(lowest), jsonMillis(highest), count)));
+    out.write(", \"buckets\": [" + buckets + "]}");
+  }
+
+  private static String phaseName(Phase phase) {
+    return Ascii.toLowerCase(phase.name());
+  }
+
+  private static String formatPercentile(double percentile) {
+    return percentile == Math.rint(percentile)
+        ? String.valueOf((long) percentile)
+        : String.valueOf(percentile);
+  }
+
+  private static double millis(long nanos) {
+    return nanos / NANOS_PER_MILLI;
+  }
+
+  private static String jsonMillis(long nanos) {
+    return String.valueOf(millis(nanos));
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder result = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        result.append('\\').append(c);
+      } else if (c < 0x20) {
+        result.append(String.format("\\u%04x", (int) c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"').toString();
+  }
+
+  /** How long each phase of parsing a file took. */
+  @AutoValue
+  abstract static class FileTiming {
+    abstract String file();
+
+    abstract long readNanos();
+
+    abstract long syntaxNanos();
+
+    abstract long resolveNanos();
+
+    abstract long visitNanos();
+
+    long nanos(Phase phase) {
+      switch (phase) {
+        case READ:
+          return readNanos();
+        case SYNTAX:
+          return syntaxNanos();
+        case RESOLVE:
+          return resolveNanos();
+        case VISIT:
+          return visitNanos();
+      }
+      throw new AssertionError(phase);
+    }
+
+    long totalNanos() {
+      return readNanos() + syntaxNanos() + resolveNanos() + visitNanos();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.TreeMultimap;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/**
+ * Merges the {@link ParserOutput}s of parsers that each parsed a shard of the source files (see
+ * {@link SourceFileShard}) into the output of a single parser that parsed all of them.
+ *
+ * <p>Sharded parsers don't put one-rule-per-package classes on cycles, since they only see some of
+ * the classes of each package. The merger does, once it has all of them.
+ *
+ * <p>The merged output is sorted, so it doesn't depend on the order the shards are added in.
+ *
+ * <p>A merger is also a {@link JavaSourceFileParser.ClassGraphSink}, so a parser's graph can be
+ * merged as it is built, without serializing it first.
+ */
+class ParserOutputMerger implements JavaSourceFileParser.ClassGraphSink {
+
+  private final Map<String, Set<String>> classToClass = new TreeMap<>();
+  private final SetMultimap<String, String> classToFile = TreeMultimap.create();
+  private final Map<String, String> fileToRuleKind = new TreeMap<>();
+
+  /**
+   * Adds the graph in 'parserOutput'. Edges and files of a class are the union of those in all
+   * outputs.
+   *
+   * @throws IllegalArgumentException if 'parserOutput' gives a file another rule kind than an
+   *     output added earlier.
+   */
+  void add(ParserOutput parserOutput) {
+    parserOutput
+        .getClassToClassMap()
+        .forEach(
+            (u, successors) ->
+                classToClass
+                    .computeIfAbsent(u, k -> new TreeSet<>())
+                    .addAll(successors.getElementsList()));
+    parserOutput
+        .getClassToFileMap()
+        .forEach((className, files) -> classToFile.putAll(className, files.getElementsList()));
+    parserOutput.getFileToRuleKindMap().forEach(this::putRuleKind);
+  }
+
+  @Override
+  public void addFile(
+      String srcFilePath, String className, ImmutableSet<String> dependencies, String ruleKind) {
+    classToClass.computeIfAbsent(className, k -> new TreeSet<>()).addAll(dependencies);
+    classToFile.put(className, srcFilePath);
+    putRuleKind(srcFilePath, ruleKind);
+  }
+
+  @Override
+  public void addEdges(ImmutableSetMultimap<String, String> edges) {
+    edges.forEach((u, v) -> classToClass.computeIfAbsent(u, k -> new TreeSet<>()).add(v));
+  }
+
+  private void putRuleKind(String file, String ruleKind) {
+    String previous = fileToRuleKind.putIfAbsent(file, ruleKind);
+    if (previous != null && !previous.equals(ruleKind)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "File %s has rule kind %s in one output, and %s in another",
+              file, previous, ruleKind));
+    }
+  }
+
+  /**
+   * Returns the merged graph, with the classes of each directory under 'oneRulePerPackageRoots'
+   * put on a cycle.
+   */
+  ParserOutput merge(ImmutableSet<Path> oneRulePerPackageRoots) {
+    ImmutableSet<Path> absoluteOneRulePerPackageRoots =
+        oneRulePerPackageRoots
+            .stream()
+            .map(p -> p.toAbsolutePath().normalize())
+            .collect(toImmutableSet());
+    // Classes defined in 'oneRulePerPackageRoots', by directory.
+    SetMultimap<Path, String> dirToClass = TreeMultimap.create();
+    for (Map.Entry<String, String> entry : classToFile.entries()) {
+      for (Path root : absoluteOneRulePerPackageRoots) {
+        Path dir = root.getFileSystem().getPath(entry.getValue()).getParent();
+        if (dir != null && dir.startsWith(root)) {
+          dirToClass.put(dir, entry.getKey());
+          break;
+        }
+      }
+    }
+    ImmutableSetMultimap.Builder<String, String> cycleEdges = ImmutableSetMultimap.builder();
+    dirToClass
+        .asMap()
+        .forEach((dir, classes) -> JavaSourceFileParser.putOnCycle(classes, cycleEdges));
+
+    Map<String, Set<String>> mergedClassToClass = new TreeMap<>();
+    classToClass.forEach((u, successors) -> mergedClassToClass.put(u, new TreeSet<>(successors)));
+    cycleEdges
+        .build()
+        .forEach((u, v) -> mergedClassToClass.computeIfAbsent(u, k -> new TreeSet<>()).add(v));
+
+    ParserOutput.Builder result = ParserOutput.newBuilder();
+    mergedClassToClass.forEach(
+        (u, successors) ->
+            result.putClassToClass(u, Strings.newBuilder().addAllElements(successors).build()));
+    classToFile
+        .asMap()
+        .forEach(
+            (className, files) ->
+                result.putClassToFile(
+                    className, Strings.newBuilder().addAllElements(files).build()));
+    result.putAllFileToRuleKind(fileToRuleKind);
+    return result.build();
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.collect.Streams.stream;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+
+/**
+ * Merges the outputs of JavaSourceFileParserCli runs with --shard_index and --shard_count into a
+ * single ParserOutput, written to stdout. See {@link ParserOutputMerger}.
+ */
+public class ParserOutputMergerCli {
+
+  @Option(
+    name = "--one_rule_per_package_roots",
+    usage =
+        "Comma-separated list of the content roots where all classes of a directory are put in "
+            + "a single Bazel rule. Must be the same as the parsers'."
+  )
+  private String oneRulePerPackageRoots = "src/main/java";
+
+  @Option(
+    name = "--input_format",
+    usage =
+        "Format the parsers wrote their output in. PARSER_OUTPUT reads a single ParserOutput "
+            + "message from each file, DELIMITED reads a stream of length-delimited ParserOutput "
+            + "messages."
+  )
+  private InputFormat inputFormat = InputFormat.PARSER_OUTPUT;
+
+  @Argument(
+    usage =
+        "Files written by the parsers, one per shard. '@file' reads more arguments from 'file', "
+            + "one per line."
+  )
+  private List<String> parserOutputFiles = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    new ParserOutputMergerCli().run(args);
+  }
+
+  private void run(String[] args) throws Exception {
+    CmdLineParser cmdLineParser =
+        new CmdLineParser(this, ParserProperties.defaults().withAtSyntax(true));
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      e.getParser().printUsage(System.err);
+      System.exit(1);
+    }
+    if (parserOutputFiles.isEmpty()) {
+      System.err.println("Must provide files to merge.");
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    ParserOutputMerger merger = new ParserOutputMerger();
+    for (String file : parserOutputFiles) {
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(file)))) {
+        if (inputFormat == InputFormat.DELIMITED) {
+          ParserOutput message;
+          while ((message = ParserOutput.parseDelimitedFrom(in)) != null) {
+            merger.add(message);
+          }
+        } else {
+          merger.add(ParserOutput.parseFrom(in));
+        }
+      }
+    }
+
+    ImmutableSet<Path> oneRulePerPackagePaths =
+        stream(Splitter.on(',').omitEmptyStrings().split(oneRulePerPackageRoots))
+            .map(root -> Paths.get(root))
+            .collect(toImmutableSet());
+    OutputStream out = new BufferedOutputStream(System.out);
+    merger.merge(oneRulePerPackagePaths).writeTo(out);
+    out.flush();
+  }
+
+  /** Values of --input_format. */
+  private enum InputFormat {
+    PARSER_OUTPUT,
+    DELIMITED,
+  }
+}
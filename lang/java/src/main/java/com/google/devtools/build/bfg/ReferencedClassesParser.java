@@ -14,33 +14,31 @@
 
 package com.google.devtools.build.bfg;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Predicates.containsPattern;
 import static com.google.common.base.Strings.emptyToNull;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
-import static com.google.common.collect.Iterables.concat;
-import static com.google.common.collect.Iterables.getLast;
+import static com.google.common.collect.Iterables.any;
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Comparator.comparingInt;
 
 import com.google.auto.value.AutoValue;
-import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
-import com.google.common.base.Predicate;
-import com.google.common.base.Splitter;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Streams;
-import java.io.File;
-import java.nio.file.Files;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,30 +50,43 @@ import java.util.function.Function;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.ASTVisitor;
 import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
 import org.eclipse.jdt.core.dom.Annotation;
+import org.eclipse.jdt.core.dom.AnnotationTypeDeclaration;
 import org.eclipse.jdt.core.dom.AnonymousClassDeclaration;
+import org.eclipse.jdt.core.dom.ArrayType;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.EnumConstantDeclaration;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
 import org.eclipse.jdt.core.dom.Expression;
 import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
 import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
 import org.eclipse.jdt.core.dom.MarkerAnnotation;
 import org.eclipse.jdt.core.dom.Message;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier;
 import org.eclipse.jdt.core.dom.Name;
 import org.eclipse.jdt.core.dom.NormalAnnotation;
 import org.eclipse.jdt.core.dom.PackageDeclaration;
 import org.eclipse.jdt.core.dom.ParameterizedType;
+import org.eclipse.jdt.core.dom.PrimitiveType;
 import org.eclipse.jdt.core.dom.QualifiedType;
 import org.eclipse.jdt.core.dom.SimpleType;
 import org.eclipse.jdt.core.dom.SingleMemberAnnotation;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
 import org.eclipse.jdt.core.dom.Type;
 import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.TypeParameter;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
 
 /**
  * Processes a Java file AST and returns a set of class names that the file references and imports.
@@ -83,14 +94,24 @@ import org.eclipse.jdt.core.dom.TypeDeclaration;
 public class ReferencedClassesParser {
 
   private static final Joiner DOT_JOINER = Joiner.on(".");
-  private static final Splitter DOT_SPLITTER = Splitter.on(".");
-  private static final Predicate<CharSequence> isClassName = containsPattern("^[A-Z][a-zA-Z0-9]*$");
-  private static final Predicate<CharSequence> isJavaLangClassPredicate =
-      containsPattern("^java\\.lang\\.[A-Z][a-zA-Z0-9]*");
+  private static final String JAVA_LANG_PREFIX = "java.lang.";
+  private static final String JUNIT_TEST = "org.junit.Test";
   private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+  /** The Java language level source files are parsed at. */
+  static final String SOURCE_LEVEL = JavaCore.VERSION_1_8;
+
   public final boolean isSuccessful;
   public final Map<String, Metadata> symbols;
   public final ImmutableSet<ImportDeclaration> importDeclarations;
+
+  /**
+   * Packages the Java file imports on demand, e.g., "com.other" for "import com.other.*", in order
+   * of appearance. Simple names are resolved against the classes in them, so which classes they
+   * contain affects {@link #qualifiedTopLevelNames}. Static on-demand imports aren't included.
+   */
+  public final ImmutableList<String> onDemandImports;
+
   public final String packageName;
   public final List<String> compilationMessages;
   public final String className;
@@ -115,31 +136,200 @@ public class ReferencedClassesParser {
    */
   public final ImmutableSet<QualifiedName> qualifiedTopLevelNames;
 
-  public final CompilationUnit compilationUnit;
+  /**
+   * The Bazel rule kind that should build this Java file, e.g., "java_test" for a JUnit 4 test, or
+   * "java_binary" if its top-level class has a main method.
+   *
+   * <p>It is decided while the AST is at hand, so that the parser doesn't keep the AST: only the
+   * names and flags above are retained once the constructor returns.
+   */
+  public final String ruleKind;
+
+  /** Time spent parsing the file without bindings, in nanoseconds, to check its syntax. */
+  public final long syntaxNanos;
+
+  /**
+   * Time spent parsing the file with bindings resolved, in nanoseconds, or 0 if this parser was
+   * given the resolved AST.
+   */
+  public final long resolveNanos;
+
+  /** Time spent collecting and resolving the names in the AST, in nanoseconds. */
+  public final long visitNanos;
 
   public ReferencedClassesParser(String filename, String source, Collection<Path> contentRoots) {
-    this.compilationMessages = getCompilationMessages(filename, source);
+    this(filename, source, ContentRootIndex.onFileSystem(contentRoots), false /* singlePass */);
+  }
+
+  /**
+   * @param singlePass if true, syntax errors are collected from the binding-resolved AST that we
+   *     extract class names from, instead of from a separate syntax-only parse of the file. Each
+   *     file is then parsed once instead of twice.
+   * @param contentRoots tells which classes have source files in the same package as this file.
+   */
+  public ReferencedClassesParser(
+      String filename, String source, ContentRootIndex contentRoots, boolean singlePass) {
+    this(filename, source.toCharArray(), contentRoots, singlePass);
+  }
+
+  /**
+   * Same as {@link #ReferencedClassesParser(String, String, ContentRootIndex, boolean)}, but parses
+   * 'source' in place: both parses of the file read the same array, and it isn't referenced once
+   * the constructor returns. 'source' must not be modified in the meantime.
+   */
+  public ReferencedClassesParser(
+      String filename, char[] source, ContentRootIndex contentRoots, boolean singlePass) {
+    this(filename, source, contentRoots, singlePass, null /* packageIndex */);
+  }
+
+  /**
+   * Same as {@link #ReferencedClassesParser(String, char[], ContentRootIndex, boolean)}, but also
+   * looks the names that JDT can't resolve up in 'packageIndex', if not null, when the file imports
+   * their package on demand. E.g., an index of the project's jars resolves 'Foo' for "import
+   * com.jar.*" when com.jar.Foo is in a jar.
+   */
+  public ReferencedClassesParser(
+      String filename,
+      char[] source,
+      ContentRootIndex contentRoots,
+      boolean singlePass,
+      @Nullable TypeIndex packageIndex) {
+    this(
+        filename,
+        source,
+        null /* resolvedUnit */,
+        contentRoots,
+        null /* typeIndex */,
+        packageIndex,
+        singlePass);
+  }
+
+  /**
+   * Extracts class names from 'compilationUnit', which must have been parsed with bindings
+   * resolved, e.g., by {@link #parseAndResolveSources}. Syntax errors are read from
+   * 'compilationUnit' itself.
+   */
+  public ReferencedClassesParser(
+      String filename, CompilationUnit compilationUnit, ContentRootIndex contentRoots) {
+    this(filename, compilationUnit, contentRoots, null /* packageIndex */);
+  }
+
+  /**
+   * Same as {@link #ReferencedClassesParser(String, CompilationUnit, ContentRootIndex)}, but also
+   * looks names of packages imported on demand up in 'packageIndex', if not null.
+   */
+  public ReferencedClassesParser(
+      String filename,
+      CompilationUnit compilationUnit,
+      ContentRootIndex contentRoots,
+      @Nullable TypeIndex packageIndex) {
+    this(
+        filename,
+        null /* source */,
+        checkNotNull(compilationUnit),
+        contentRoots,
+        null /* typeIndex */,
+        packageIndex,
+        true /* singlePass */);
+  }
+
+  /**
+   * Parses 'source' once, without resolving bindings, which is much cheaper than setting up JDT's
+   * name environment from the running VM's bootclasspath.
+   *
+   * <p>Bindings are otherwise used to skip the types, variables and methods that the file declares
+   * itself; these are recognized by name instead. Types that JDT would look up on the
+   * bootclasspath are looked up in 'typeIndex': java.lang types, and the types of packages that
+   * the file imports on demand, e.g., 'List' for "import java.util.*".
+   */
+  public ReferencedClassesParser(
+      String filename, char[] source, ContentRootIndex contentRoots, TypeIndex typeIndex) {
+    this(
+        filename,
+        source,
+        null /* resolvedUnit */,
+        contentRoots,
+        checkNotNull(typeIndex),
+        typeIndex /* packageIndex */,
+        false /* singlePass */);
+  }
+
+  /**
+   * @param resolvedUnit the binding-resolved AST of the file, or null to parse 'source'.
+   * @param typeIndex if not null, 'source' is parsed once, without bindings. See {@link
+   *     #ReferencedClassesParser(String, char[], ContentRootIndex, TypeIndex)}.
+   * @param packageIndex types that can be imported on demand besides those with a source file
+   *     under the content roots, or null.
+   * @param singlePass if 'resolvedUnit' is null and 'typeIndex' is null, whether to parse 'source'
+   *     once with bindings resolved, or twice: once to check its syntax, and once more to resolve
+   *     it.
+   */
+  private ReferencedClassesParser(
+      String filename,
+      @Nullable char[] source,
+      @Nullable CompilationUnit resolvedUnit,
+      ContentRootIndex contentRoots,
+      @Nullable TypeIndex typeIndex,
+      @Nullable TypeIndex packageIndex,
+      boolean singlePass) {
+    long start = System.nanoTime();
+    long resolveNanos = 0;
+    if (resolvedUnit == null && typeIndex == null && singlePass) {
+      resolvedUnit = parseAndResolveSource(source);
+      resolveNanos = System.nanoTime() - start;
+    }
+    long syntaxNanos = 0;
+    CompilationUnit syntaxUnit = null;
+    if (resolvedUnit == null) {
+      syntaxUnit = parseSource(source);
+      syntaxNanos = System.nanoTime() - start;
+    }
+    this.compilationMessages =
+        resolvedUnit != null
+            ? getSyntaxMessages(filename, resolvedUnit)
+            : getCompilationMessages(filename, syntaxUnit);
+    this.syntaxNanos = syntaxNanos;
     if (!compilationMessages.isEmpty()) {
       this.symbols = Collections.emptyMap();
       this.importDeclarations = ImmutableSet.of();
+      this.onDemandImports = ImmutableList.of();
       this.packageName = "";
       this.className = "";
       this.fullyQualifiedClassName = "";
       this.superclass = "";
       this.unresolvedClassNames = ImmutableSet.of();
       this.qualifiedTopLevelNames = ImmutableSet.of();
-      this.compilationUnit = null;
+      this.ruleKind = "";
+      this.resolveNanos = resolveNanos;
+      this.visitNanos = 0;
       isSuccessful = false;
       return;
     }
-    this.compilationUnit = parseAndResolveSource(source);
+    CompilationUnit compilationUnit;
+    if (typeIndex != null) {
+      compilationUnit = syntaxUnit;
+    } else if (resolvedUnit != null) {
+      compilationUnit = resolvedUnit;
+    } else {
+      // Let the syntax-only AST be collected while the file is parsed again, instead of keeping
+      // two ASTs of the file.
+      syntaxUnit = null;
+      long resolveStart = System.nanoTime();
+      compilationUnit = parseAndResolveSource(source);
+      resolveNanos = System.nanoTime() - resolveStart;
+    }
+    this.resolveNanos = resolveNanos;
+    long visitStart = System.nanoTime();
 
-    Visitor visitor = new Visitor(compilationUnit);
+    Visitor visitor = new Visitor(compilationUnit, typeIndex != null /* bindingFree */);
     compilationUnit.accept(visitor);
 
-    this.symbols = Maps.filterKeys(visitor.symbols, s -> !isJavaLangClass(s));
+    this.symbols =
+        ImmutableMap.copyOf(
+            Maps.filterKeys(visitor.symbols, s -> !isJavaLangClass(s, typeIndex)));
     this.importDeclarations =
         distinctByPredicate(visitor.importDeclarations, imprt -> stripMetadata(imprt));
+    this.onDemandImports = visitor.onDemandImports.stream().distinct().collect(toImmutableList());
     this.packageName = getPackageOfJavaFile(compilationUnit);
 
     AbstractTypeDeclaration abstractTypeDeclaration =
@@ -165,9 +355,11 @@ public class ReferencedClassesParser {
     ArrayList<QualifiedName> qualifiedTopLevelNames = new ArrayList<>();
     populateFullyQualifiedTopLevelClasses(
         importDeclarations,
+        onDemandImports,
         packageName,
         symbols,
         contentRoots,
+        packageIndex,
         unresolvedClassNames,
         qualifiedTopLevelNames);
 
@@ -185,7 +377,132 @@ public class ReferencedClassesParser {
                 comparingInt((QualifiedName n) -> n.metadata().line())
                     .thenComparingInt(n -> n.metadata().column()))
             .collect(toImmutableSet());
+    this.ruleKind =
+        decideRuleKind(
+            abstractTypeDeclaration, fullyQualifiedClassName, this.qualifiedTopLevelNames);
     isSuccessful = true;
+    this.visitNanos = System.nanoTime() - visitStart;
+  }
+
+  /**
+   * Returns the Bazel rule kind that should build the file whose first top-level type is
+   * 'topLevelClass', e.g., "java_test" for a JUnit 4 test.
+   */
+  private static String decideRuleKind(
+      @Nullable AbstractTypeDeclaration topLevelClass,
+      String fullyQualifiedClassName,
+      Collection<QualifiedName> qualifiedTopLevelNames) {
+    if (topLevelClass == null) {
+      return "java_library";
+    }
+    if ((topLevelClass.getModifiers() & Modifier.ABSTRACT) != 0) {
+      // Class is abstract, can't be a test.
+      return "java_library";
+    }
+
+    // JUnit 4 tests
+    if (topLevelClass.getName().getIdentifier().endsWith("Test")
+        && !fullyQualifiedClassName.equals(JUNIT_TEST)
+        && any(qualifiedTopLevelNames, name -> name.value().equals(JUNIT_TEST))) {
+      return "java_test";
+    }
+
+    if (any(
+        topLevelClass.bodyDeclarations(),
+        d -> d instanceof MethodDeclaration && isMainMethod((MethodDeclaration) d))) {
+      return "java_binary";
+    }
+
+    return "java_library";
+  }
+
+  /**
+   * Returns true iff 'methodDeclaration' represents a void static method named 'main' that takes a
+   * single String[] parameter.
+   */
+  private static boolean isMainMethod(MethodDeclaration methodDeclaration) {
+    // Is it static?
+    if ((methodDeclaration.getModifiers() & Modifier.STATIC) == 0) {
+      return false;
+    }
+    // Does it return void?
+    Type returnType = methodDeclaration.getReturnType2();
+    if (!returnType.isPrimitiveType()) {
+      return false;
+    }
+    if (((PrimitiveType) returnType).getPrimitiveTypeCode() != PrimitiveType.VOID) {
+      return false;
+    }
+    // Is it called 'main'?
+    if (!"main".equals(methodDeclaration.getName().getIdentifier())) {
+      return false;
+    }
+    // Does it have a single parameter?
+    if (methodDeclaration.parameters().size() != 1) {
+      return false;
+    }
+
+    // Is the parameter's type String[]?
+    SingleVariableDeclaration pt =
+        getOnlyElement((List<SingleVariableDeclaration>) methodDeclaration.parameters());
+    if (!methodDeclaration.getAST().hasResolvedBindings()) {
+      return isStringArray(pt);
+    }
+    IVariableBinding vb = pt.resolveBinding();
+    if (vb == null) {
+      return false;
+    }
+    ITypeBinding tb = vb.getType();
+    return tb != null && "java.lang.String[]".equals(tb.getQualifiedName());
+  }
+
+  /**
+   * Returns true iff 'parameter' is declared as a String[], in a file parsed without bindings,
+   * e.g., "String[] args", "String args[]" or "java.lang.String... args". 'String' is assumed to be
+   * java.lang.String unless the file declares or imports another type of that name.
+   */
+  private static boolean isStringArray(SingleVariableDeclaration parameter) {
+    Type type = parameter.getType();
+    int dimensions = parameter.getExtraDimensions() + (parameter.isVarargs() ? 1 : 0);
+    if (type.isArrayType()) {
+      dimensions += ((ArrayType) type).getDimensions();
+      type = ((ArrayType) type).getElementType();
+    }
+    if (dimensions != 1 || !type.isSimpleType()) {
+      return false;
+    }
+    String name = ((SimpleType) type).getName().getFullyQualifiedName();
+    if (name.equals("java.lang.String")) {
+      return true;
+    }
+    if (!name.equals("String")) {
+      return false;
+    }
+    CompilationUnit cu = (CompilationUnit) parameter.getRoot();
+    for (Object o : cu.imports()) {
+      org.eclipse.jdt.core.dom.ImportDeclaration imprt =
+          (org.eclipse.jdt.core.dom.ImportDeclaration) o;
+      String importName = imprt.getName().getFullyQualifiedName();
+      if (!imprt.isOnDemand() && !imprt.isStatic() && importName.endsWith(".String")) {
+        return importName.equals("java.lang.String");
+      }
+    }
+    boolean[] declaresString = new boolean[1];
+    cu.accept(
+        new ASTVisitor() {
+          @Override
+          public boolean visit(TypeDeclaration node) {
+            declaresString[0] |= node.getName().getIdentifier().equals("String");
+            return true;
+          }
+
+          @Override
+          public boolean visit(TypeParameter node) {
+            declaresString[0] |= node.getName().getIdentifier().equals("String");
+            return true;
+          }
+        });
+    return !declaresString[0];
   }
 
   /**
@@ -220,26 +537,31 @@ public class ReferencedClassesParser {
    * </ul>
    *
    * @param importDeclarations import declarations found in the compilation unit.
+   * @param onDemandImports packages that the compilation unit imports on demand, whose types are
+   *     looked up in 'contentRoots' and 'packageIndex'.
    * @param packageName name of the package the Java file resides in.
    * @param symbols all symbols that were found by the ASTVisitor.
    * @param outUnresolvedClassNames OUT a set that gets filled with unresolved simple class names.
    * @param outQualifiedNames OUT a list that gets filled with the fully qualified top-level class
    *     names in the Java file.
-   * @param contentRoots paths where Java files reside in the depot, e.g., src/main/ and src/test/.
+   * @param contentRoots index of the Java files in the depot, under, e.g., src/main/ and src/test/.
+   * @param packageIndex types that can be imported on demand besides those with a source file
+   *     under 'contentRoots', e.g., those of the JDK and of the project's jars, or null.
    */
   private static void populateFullyQualifiedTopLevelClasses(
       Collection<ImportDeclaration> importDeclarations,
+      Collection<String> onDemandImports,
       String packageName,
       Map<String, Metadata> symbols,
-      Collection<Path> contentRoots,
+      ContentRootIndex contentRoots,
+      @Nullable TypeIndex packageIndex,
       ArrayList<SimpleName> outUnresolvedClassNames,
       ArrayList<QualifiedName> outQualifiedNames) {
     Set<String> simpleNameOfImports = new HashSet<>();
     for (ImportDeclaration id : importDeclarations) {
       outQualifiedNames.add(id.name().getTopLevelQualifiedName());
-      simpleNameOfImports.add(getLast(id.name().parts()));
+      simpleNameOfImports.add(id.name().lastPart());
     }
-    List<Path> potentialPackagePaths = listOfPathsForPackage(packageName, contentRoots);
     for (Map.Entry<String, Metadata> type : symbols.entrySet()) {
       String classname = type.getKey();
       Metadata metadata = type.getValue();
@@ -266,7 +588,7 @@ public class ReferencedClassesParser {
         continue;
       }
       // Classname is simple - see if it's in the package as ourselves.
-      if (doesClassExistInFileSystem(classname, potentialPackagePaths)) {
+      if (contentRoots.containsClass(packageName, classname)) {
         outQualifiedNames.add(
             checkNotNull(
                 QualifiedName.create(
@@ -274,48 +596,61 @@ public class ReferencedClassesParser {
                         ? classname
                         : String.format("%s.%s", packageName, classname),
                     metadata)));
+        continue;
+      }
+      // Classname may come from a package imported on demand. Source files take precedence, since
+      // that's where a class would have to be if the file were compiled with the project.
+      String onDemandImport =
+          Iterables.find(
+              onDemandImports,
+              p -> contentRoots.containsClass(p, classname),
+              null /* default */);
+      if (onDemandImport == null && packageIndex != null) {
+        onDemandImport =
+            Iterables.find(
+                onDemandImports,
+                p -> packageIndex.contains(p + "." + classname),
+                null /* default */);
+      }
+      if (onDemandImport != null) {
+        outQualifiedNames.add(QualifiedName.create(onDemandImport + "." + classname, metadata));
       } else {
         outUnresolvedClassNames.add(SimpleName.create(classname, metadata));
       }
     }
   }
 
-  /** Return a list of absolute paths that a package spans */
-  private static List<Path> listOfPathsForPackage(String packageName, Collection<Path> roots) {
-    String relativePathStr = packageName.replace(".", File.separator);
-    return roots.stream().map(root -> root.resolve(relativePathStr)).collect(toImmutableList());
-  }
-
-  /**
-   * @param className The classname to infer from.
-   * @param packagePathList list of absolute paths where files in package can be located
-   * @return boolean indicating if the class can be found in the file system
-   */
-  private static boolean doesClassExistInFileSystem(String className, List<Path> packagePathList) {
-    for (Path packagePath : packagePathList) {
-      Path possibleSourceFile = packagePath.resolve(String.format("%s.java", className));
-      if (Files.exists(possibleSourceFile)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   /** A Visitor that collects classnames from the AST. */
   private static class Visitor extends ASTVisitor {
     private final Map<String, Metadata> symbols;
     private final List<ImportDeclaration> importDeclarations;
 
+    /** Packages imported on demand, e.g., "java.util" for "import java.util.*". */
+    private final List<String> onDemandImports;
+
     private final CompilationUnit compilationUnit;
 
+    /**
+     * Names declared in 'compilationUnit', if it was parsed without bindings. Stands in for
+     * checking whether a binding's declaration is in 'compilationUnit'.
+     */
+    @Nullable private final DeclaredNames declaredNames;
+
     /** A mapping of (class->methods it declared). */
     private final SetMultimap<AbstractTypeDeclaration, String> methodsOfClass;
 
-    private Visitor(CompilationUnit compilationUnit) {
+    private Visitor(CompilationUnit compilationUnit, boolean bindingFree) {
       this.compilationUnit = compilationUnit;
       this.symbols = new HashMap<>();
       this.importDeclarations = new ArrayList<>();
+      this.onDemandImports = new ArrayList<>();
       this.methodsOfClass = HashMultimap.create();
+      if (bindingFree) {
+        this.declaredNames = new DeclaredNames();
+        compilationUnit.accept(declaredNames);
+      } else {
+        this.declaredNames = null;
+      }
     }
 
     private void addType(IBinding binding, String type, int startPosition) {
@@ -327,6 +662,9 @@ public class ReferencedClassesParser {
       if (compilationUnit.findDeclaringNode(binding) != null) {
         return;
       }
+      if (declaredNames != null && declaredNames.types.contains(firstPart(type))) {
+        return;
+      }
 
       symbols.put(
           type,
@@ -344,9 +682,13 @@ public class ReferencedClassesParser {
       if (binding != null && binding.getKind() == IBinding.VARIABLE) {
         return;
       }
+      String name = ((Name) expression).getFullyQualifiedName();
+      if (declaredNames != null && declaredNames.variables.contains(firstPart(name))) {
+        return;
+      }
       addType(
           expression.resolveTypeBinding(),
-          extractClassNameFromQualifiedName(((Name) expression).getFullyQualifiedName()),
+          extractClassNameFromQualifiedName(name),
           expression.getStartPosition());
     }
 
@@ -366,7 +708,9 @@ public class ReferencedClassesParser {
 
       org.eclipse.jdt.core.dom.SimpleName simpleName = node.getName();
 
-      if (compilationUnit.findDeclaringNode(simpleName.resolveBinding()) != null) {
+      if (compilationUnit.findDeclaringNode(simpleName.resolveBinding()) != null
+          || (declaredNames != null
+              && declaredNames.methods.contains(simpleName.getIdentifier()))) {
         // simpleName is defined somewhere in this compilation unit - so no need to import it.
         return true;
       }
@@ -440,6 +784,9 @@ public class ReferencedClassesParser {
     @Override
     public boolean visit(org.eclipse.jdt.core.dom.ImportDeclaration node) {
       if (node.isOnDemand()) {
+        if (!node.isStatic()) {
+          onDemandImports.add(node.getName().getFullyQualifiedName());
+        }
         return true;
       }
       String qnameStr = node.getName().getFullyQualifiedName();
@@ -475,6 +822,74 @@ public class ReferencedClassesParser {
     }
   }
 
+  /** Collects the names of the types, variables and methods that an AST declares. */
+  private static class DeclaredNames extends ASTVisitor {
+    /** Classes, interfaces, enums, annotation types and type parameters. */
+    final Set<String> types = new HashSet<>();
+
+    /** Fields, enum constants, parameters and local variables. */
+    final Set<String> variables = new HashSet<>();
+
+    /** Methods, but not constructors. */
+    final Set<String> methods = new HashSet<>();
+
+    @Override
+    public boolean visit(TypeDeclaration node) {
+      types.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(EnumDeclaration node) {
+      types.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(AnnotationTypeDeclaration node) {
+      types.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(TypeParameter node) {
+      types.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(VariableDeclarationFragment node) {
+      variables.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(SingleVariableDeclaration node) {
+      variables.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(EnumConstantDeclaration node) {
+      variables.add(node.getName().getIdentifier());
+      return true;
+    }
+
+    @Override
+    public boolean visit(MethodDeclaration node) {
+      if (!node.isConstructor()) {
+        methods.add(node.getName().getIdentifier());
+      }
+      return true;
+    }
+  }
+
+  /** Returns the part of 'name' before its first '.', e.g., "Map" for "Map.Entry". */
+  private static String firstPart(String name) {
+    int dot = name.indexOf('.');
+    return dot == -1 ? name : name.substring(0, dot);
+  }
+
   /**
    * @return a String representation of 'type'. Handles qualified, simple and parameterized types.
    */
@@ -510,15 +925,13 @@ public class ReferencedClassesParser {
       return null;
     }
 
-    List<String> nameParts = DOT_SPLITTER.splitToList(name);
-    String firstNamePart = nameParts.get(0);
+    String firstNamePart = firstPart(name);
     for (ImportDeclaration importDeclaration : importDeclarations) {
       if (importDeclaration.isStatic()) {
         continue;
       }
-      if (getLast(importDeclaration.name().parts()).equals(firstNamePart)) {
-        return DOT_JOINER.join(
-            concat(importDeclaration.name().parts(), nameParts.subList(1, nameParts.size())));
+      if (importDeclaration.name().lastPart().equals(firstNamePart)) {
+        return importDeclaration.name().value() + name.substring(firstNamePart.length());
       }
     }
     return packageName.isEmpty() ? name : packageName + "." + name;
@@ -557,9 +970,9 @@ public class ReferencedClassesParser {
    * Consequently, do not assume the returned object's getProblems() is an empty list. On the other
    * hand, {@link @parseSource} returns a CompilationUnit fit for syntax checking purposes.
    */
-  private static CompilationUnit parseAndResolveSource(String source) {
+  private static CompilationUnit parseAndResolveSource(char[] source) {
     ASTParser parser = createCompilationUnitParser();
-    parser.setSource(source.toCharArray());
+    parser.setSource(source);
     parser.setResolveBindings(true);
     parser.setBindingsRecovery(true);
     parser.setEnvironment(
@@ -572,10 +985,49 @@ public class ReferencedClassesParser {
     return (CompilationUnit) parser.createAST(null);
   }
 
+  /**
+   * Parses the source files 'sourceFiles' with a single parser, attempting to resolve references in
+   * their ASTs, and hands each AST to 'requestor' as soon as it is ready.
+   *
+   * <p>Unlike calling {@link #parseAndResolveSource} for each file, JDT sets up its name
+   * environment, which includes reading the running VM's bootclasspath, once for the whole batch.
+   * References between files of the same batch resolve to their declarations, but as with {@link
+   * #parseAndResolveSource}, the ASTs will usually have semantic errors.
+   *
+   * @param sourceFiles UTF-8 encoded files on the default file system, since JDT reads them itself.
+   */
+  static void parseAndResolveSources(Collection<Path> sourceFiles, FileASTRequestor requestor) {
+    String[] paths = new String[sourceFiles.size()];
+    int i = 0;
+    for (Path sourceFile : sourceFiles) {
+      checkArgument(
+          sourceFile.getFileSystem() == FileSystems.getDefault(),
+          "JDT can't read %s, which isn't on the default file system",
+          sourceFile);
+      paths[i++] = sourceFile.toString();
+    }
+    String[] encodings = new String[paths.length];
+    Arrays.fill(encodings, UTF_8.name());
+
+    ASTParser parser = createCompilationUnitParser();
+    parser.setResolveBindings(true);
+    parser.setBindingsRecovery(true);
+    parser.setEnvironment(
+        EMPTY_STRING_ARRAY,
+        EMPTY_STRING_ARRAY,
+        EMPTY_STRING_ARRAY,
+        true /* includeRunningVMBootclasspath */);
+    parser.createASTs(paths, encodings, EMPTY_STRING_ARRAY, requestor, null);
+  }
+
   /** Parses a source file and returns its AST. */
   public static CompilationUnit parseSource(String source) {
+    return parseSource(source.toCharArray());
+  }
+
+  private static CompilationUnit parseSource(char[] source) {
     ASTParser parser = createCompilationUnitParser();
-    parser.setSource(source.toCharArray());
+    parser.setSource(source);
     return (CompilationUnit) parser.createAST(null);
   }
 
@@ -591,16 +1043,12 @@ public class ReferencedClassesParser {
   private static ASTParser createCompilationUnitParser() {
     ASTParser parser = ASTParser.newParser(AST.JLS8);
     Map options = JavaCore.getOptions();
-    JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, options);
+    JavaCore.setComplianceOptions(SOURCE_LEVEL, options);
     parser.setCompilerOptions(options);
     parser.setKind(ASTParser.K_COMPILATION_UNIT);
     return parser;
   }
 
-  private static boolean isLowerCase(String s) {
-    return s.equals(s.toLowerCase());
-  }
-
   /**
    * Takes a tree representing a qualified type, e.g., Foo<Bla>.Bar<Asd>, and returns a string of
    * the same type, without any generics. That is, returns "Foo.Bar".
@@ -637,22 +1085,12 @@ public class ReferencedClassesParser {
    */
   @VisibleForTesting
   static String extractClassNameFromQualifiedName(String s) {
-    List<String> parts = Lists.newArrayList(Splitter.on(".").split(s));
-    for (int i = 0; i < parts.size(); i++) {
-      String part = parts.get(i);
-      if (isClassName.apply(part)) {
-        return DOT_JOINER.join(parts.subList(0, i + 1));
-      }
-      if (isLowerCase(part)) {
-        continue;
-      }
-      return "";
-    }
-    return "";
+    int end = ClassNames.topLevelClassEnd(s);
+    return end == -1 ? "" : s.substring(0, end);
   }
 
-  private static List<String> getCompilationMessages(String filename, String source) {
-    CompilationUnit cu = parseSource(source);
+  /** Returns the problems found while parsing 'cu' without bindings, by {@link #parseSource}. */
+  private static List<String> getCompilationMessages(String filename, CompilationUnit cu) {
     List<String> result = new ArrayList<>();
     for (Message message : cu.getMessages()) {
       result.add(
@@ -663,17 +1101,43 @@ public class ReferencedClassesParser {
     return result;
   }
 
-  private static boolean isJavaLangClass(String s) {
-    // return true if the class is in java.lang.* but not if it is in a subpackage of java.lang
-    if (isJavaLangClassPredicate.apply(s)) {
-      return true;
+  /**
+   * Returns the syntax errors in 'cu', in the same format as {@link #getCompilationMessages}.
+   *
+   * <p>'cu' is typically binding-resolved, so it also reports semantic problems, such as types that
+   * can't be resolved because we only look at a single file. Those are expected and ignored.
+   */
+  private static List<String> getSyntaxMessages(String filename, CompilationUnit cu) {
+    List<String> result = new ArrayList<>();
+    for (IProblem problem : cu.getProblems()) {
+      if ((problem.getID() & IProblem.Syntax) == 0) {
+        continue;
+      }
+      result.add(
+          String.format(
+              "%s:%d: %s",
+              filename, cu.getLineNumber(problem.getSourceStart()), problem.getMessage()));
     }
-    try {
-      Class.forName("java.lang." + s.replace('.', '$'), false, null);
+    return result;
+  }
+
+  static boolean isJavaLangClass(String s) {
+    return isJavaLangClass(s, null /* typeIndex */);
+  }
+
+  /**
+   * Same as {@link #isJavaLangClass(String)}, but looks simple names up in 'typeIndex', if not
+   * null, instead of in the java.lang types of the JDK BFG was built with.
+   */
+  private static boolean isJavaLangClass(String s, @Nullable TypeIndex typeIndex) {
+    // return true if the class is in java.lang.* but not if it is in a subpackage of java.lang
+    if (s.startsWith(JAVA_LANG_PREFIX)
+        && s.length() > JAVA_LANG_PREFIX.length()
+        && s.charAt(JAVA_LANG_PREFIX.length()) >= 'A'
+        && s.charAt(JAVA_LANG_PREFIX.length()) <= 'Z') {
       return true;
-    } catch (ClassNotFoundException e) {
-      return false;
     }
+    return typeIndex == null ? JavaLangTypes.contains(s) : typeIndex.contains("java.lang." + s);
   }
 
   /**
@@ -692,33 +1156,23 @@ public class ReferencedClassesParser {
 
     public abstract Metadata metadata();
 
-    @Memoized
-    public ImmutableList<String> parts() {
-      return ImmutableList.copyOf(DOT_SPLITTER.split(value()));
-    }
-
-    private static int findTopLevelName(List<String> parts) {
-      for (int i = 0; i < parts.size(); i++) {
-        String part = parts.get(i);
-        if (CLASS_NAME_PATTERN.matcher(part).matches()) {
-          // if i == 0, 's' starts with a capitalized-camel name,
-          // e.g., "MobileLocalDetailsJslayoutProto".
-          return i > 0 ? i : -1;
-        }
-        if (isLowerCase(part)) {
-          continue;
-        }
-        return -1;
-      }
-      return -1;
+    /** Returns the part after the last '.', e.g., "List" for "java.util.List". */
+    public String lastPart() {
+      return value().substring(ClassNames.lastPartStart(value()));
     }
 
     /**
      * "java.util.Map" => "java.util.Map" "java.util.Map.Entry" => "java.util.Map"
      * "org.mockito.Mockito.mock" => "org.mockito.Mockito"
+     *
+     * <p>The empty name if 'value' doesn't start with a top-level class in a package.
      */
     public QualifiedName getTopLevelQualifiedName() {
-      return create(DOT_JOINER.join(parts().subList(0, findTopLevelName(parts()) + 1)), metadata());
+      int end = ClassNames.qualifiedTopLevelClassEnd(value());
+      if (end == value().length()) {
+        return this;
+      }
+      return create(end == -1 ? "" : value().substring(0, end), metadata());
     }
   }
 
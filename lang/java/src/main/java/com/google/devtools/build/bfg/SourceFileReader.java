@@ -0,0 +1,108 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.CodingErrorAction.REPLACE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads UTF-8 source files into char arrays that can be handed to the parser as is.
+ *
+ * <p>Files are read into a buffer that each thread reuses from one file to the next, and decoded
+ * from there straight into the array that is returned. That array is the only allocation made per
+ * file, unless the file contains non-ASCII characters, in which case it is trimmed to size.
+ */
+final class SourceFileReader {
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  /** Buffers grown beyond this size, for unusually large files, aren't kept for reuse. */
+  private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  private static final ThreadLocal<ByteBuffer> buffers =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+
+  private static final ThreadLocal<CharsetDecoder> decoders =
+      ThreadLocal.withInitial(
+          () -> UTF_8.newDecoder().onMalformedInput(REPLACE).onUnmappableCharacter(REPLACE));
+
+  private SourceFileReader() {}
+
+  /**
+   * Returns the content of 'file'. The returned buffer belongs to the calling thread, and is only
+   * valid until the thread's next call to this method.
+   */
+  static ByteBuffer read(Path file) throws IOException {
+    ByteBuffer buffer = buffers.get();
+    try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+      // One byte more than the file's size, so that reaching its end doesn't grow the buffer.
+      long expectedSize = channel.size() + 1;
+      if (expectedSize > buffer.capacity()) {
+        buffer = ByteBuffer.allocate(capacityFor(expectedSize));
+      }
+      buffer.clear();
+      while (channel.read(buffer) != -1) {
+        if (!buffer.hasRemaining()) {
+          // The file grew since we asked for its size.
+          buffer.flip();
+          buffer = ByteBuffer.allocate(capacityFor(buffer.capacity() + 1L)).put(buffer);
+        }
+      }
+    }
+    if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+      buffers.set(buffer);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Decodes the UTF-8 encoded 'bytes', consuming them. Malformed input is replaced the same way
+   * {@code new String(bytes, UTF_8)} does.
+   */
+  static char[] decode(ByteBuffer bytes) {
+    // UTF-8 never decodes into more chars than it has bytes, even if malformed input is replaced.
+    char[] chars = new char[bytes.remaining()];
+    CharBuffer out = CharBuffer.wrap(chars);
+    CharsetDecoder decoder = decoders.get().reset();
+    CoderResult result = decoder.decode(bytes, out, true /* endOfInput */);
+    if (result.isUnderflow()) {
+      result = decoder.flush(out);
+    }
+    checkState(result.isUnderflow(), "Unexpected result decoding UTF-8: %s", result);
+    return out.position() == chars.length ? chars : Arrays.copyOf(chars, out.position());
+  }
+
+  /** Returns a buffer capacity of at least 'size' bytes, leaving room to grow. */
+  private static int capacityFor(long size) throws IOException {
+    if (size > MAX_ARRAY_SIZE) {
+      throw new IOException("File is too large to parse");
+    }
+    return (int) Math.min(Math.max(size, Long.highestOneBit(size) << 1), MAX_ARRAY_SIZE);
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.file.Path;
+
+/**
+ * One of 'count' disjoint shards of the source files, so that several parsers can each parse a
+ * shard, and their outputs can be merged with {@link ParserOutputMerger}.
+ *
+ * <p>A file's shard is picked by hashing its path relative to a base directory, e.g., the
+ * workspace. It doesn't depend on the other files, or on where the workspace is checked out, so
+ * parsers on different machines agree on the shards without talking to each other.
+ */
+class SourceFileShard {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  private static final Joiner SLASH_JOINER = Joiner.on('/');
+
+  private final Path baseDirectory;
+  private final int index;
+  private final int count;
+
+  SourceFileShard(Path baseDirectory, int index, int count) {
+    checkArgument(count > 0, "Shard count must be positive, got %s", count);
+    checkArgument(
+        index >= 0 && index < count, "Shard index must be in [0, %s), got %s", count, index);
+    this.baseDirectory = baseDirectory.toAbsolutePath().normalize();
+    this.index = index;
+    this.count = count;
+  }
+
+  /** Returns true iff 'sourceFile' belongs to this shard. */
+  boolean contains(Path sourceFile) {
+    if (count == 1) {
+      return true;
+    }
+    String relativePath =
+        SLASH_JOINER.join(baseDirectory.relativize(sourceFile.toAbsolutePath().normalize()));
+    return Math.floorMod(HASH_FUNCTION.hashString(relativePath, UTF_8).asInt(), count) == index;
+  }
+}
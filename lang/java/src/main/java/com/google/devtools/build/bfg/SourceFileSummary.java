@@ -0,0 +1,109 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import protos.com.google.devtools.build.bfg.JavaParser.FileSummary;
+
+/**
+ * Everything {@link JavaSourceFileParser} needs to know about a single source file, once it has
+ * been parsed. Unlike {@link ReferencedClassesParser}, this doesn't hold on to the file's AST.
+ */
+@AutoValue
+public abstract class SourceFileSummary {
+
+  /** The package the file declares, e.g., "com.google.foo", or "" for the default package. */
+  public abstract String packageName();
+
+  /**
+   * The fully-qualified name of the top-level class in the file, or "" if the file doesn't define
+   * any classes.
+   */
+  public abstract String fullyQualifiedClassName();
+
+  /**
+   * Fully qualified top level class names the file refers to, in order of appearance. See {@link
+   * ReferencedClassesParser#qualifiedTopLevelNames}.
+   */
+  public abstract ImmutableList<String> qualifiedTopLevelNames();
+
+  /**
+   * Simple names we couldn't resolve into fully qualified names, in order of appearance. See {@link
+   * ReferencedClassesParser#unresolvedClassNames}.
+   */
+  public abstract ImmutableList<String> unresolvedClassNames();
+
+  /** The Bazel rule kind that should build the file, e.g., "java_library". */
+  public abstract String ruleKind();
+
+  /**
+   * Packages the file imports on demand, whose classes simple names were resolved against. See
+   * {@link ReferencedClassesParser#onDemandImports}.
+   */
+  public abstract ImmutableList<String> onDemandImports();
+
+  public static SourceFileSummary create(
+      String packageName,
+      String fullyQualifiedClassName,
+      ImmutableList<String> qualifiedTopLevelNames,
+      ImmutableList<String> unresolvedClassNames,
+      String ruleKind) {
+    return create(
+        packageName,
+        fullyQualifiedClassName,
+        qualifiedTopLevelNames,
+        unresolvedClassNames,
+        ruleKind,
+        ImmutableList.of() /* onDemandImports */);
+  }
+
+  public static SourceFileSummary create(
+      String packageName,
+      String fullyQualifiedClassName,
+      ImmutableList<String> qualifiedTopLevelNames,
+      ImmutableList<String> unresolvedClassNames,
+      String ruleKind,
+      ImmutableList<String> onDemandImports) {
+    return new AutoValue_SourceFileSummary(
+        packageName,
+        fullyQualifiedClassName,
+        qualifiedTopLevelNames,
+        unresolvedClassNames,
+        ruleKind,
+        onDemandImports);
+  }
+
+  static SourceFileSummary fromProto(FileSummary proto) {
+    return create(
+        proto.getPackageName(),
+        proto.getFullyQualifiedClassName(),
+        ImmutableList.copyOf(proto.getQualifiedTopLevelNamesList()),
+        ImmutableList.copyOf(proto.getUnresolvedClassNamesList()),
+        proto.getRuleKind(),
+        ImmutableList.copyOf(proto.getOnDemandImportsList()));
+  }
+
+  FileSummary toProto() {
+    return FileSummary.newBuilder()
+        .setPackageName(packageName())
+        .setFullyQualifiedClassName(fullyQualifiedClassName())
+        .addAllQualifiedTopLevelNames(qualifiedTopLevelNames())
+        .addAllUnresolvedClassNames(unresolvedClassNames())
+        .setRuleKind(ruleKind())
+        .addAllOnDemandImports(onDemandImports())
+        .build();
+  }
+}
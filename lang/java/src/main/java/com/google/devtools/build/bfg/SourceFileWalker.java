@@ -0,0 +1,203 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the source files under a set of directories.
+ *
+ * <p>Directories are listed on a pool of threads, as soon as their parent directory has been
+ * listed, while {@link #iterator} hands out the files found so far. This lets callers start parsing
+ * files before the walk is over. Files are nevertheless returned in a deterministic order: each
+ * directory's files are returned in name order, followed by the files of its subdirectories, again
+ * in name order.
+ *
+ * <p>The returned paths start with the directory they were found under. Symbolic links to
+ * directories aren't followed.
+ */
+class SourceFileWalker implements Iterable<Path>, AutoCloseable {
+
+  private final ImmutableList<PathMatcher> includes;
+
+  private final ImmutableList<PathMatcher> excludes;
+
+  private final ExecutorService executor;
+
+  private final ImmutableList<Future<Listing>> roots;
+
+  /**
+   * Starts walking 'directories'.
+   *
+   * @param includes glob patterns, e.g., "**.java". A file is returned if its path, relative to the
+   *     directory it was found under, matches any of them.
+   * @param excludes glob patterns of files that aren't returned even though they match 'includes'.
+   *     Directories that match are skipped altogether.
+   * @param numThreads number of directories to list concurrently.
+   */
+  SourceFileWalker(
+      Collection<Path> directories,
+      Collection<String> includes,
+      Collection<String> excludes,
+      int numThreads) {
+    checkArgument(numThreads > 0, "numThreads must be positive, got %s", numThreads);
+    this.includes = toPathMatchers(directories, includes);
+    this.excludes = toPathMatchers(directories, excludes);
+    // Daemon threads, so that an abandoned walk doesn't keep the JVM alive.
+    this.executor =
+        Executors.newFixedThreadPool(
+            numThreads, new ThreadFactoryBuilder().setDaemon(true).build());
+    this.roots = directories.stream().map(dir -> list(dir, dir)).collect(toImmutableList());
+  }
+
+  /**
+   * Returns the files under the directories, in a deterministic order. Blocks until the next
+   * directory that has to be returned from is listed. Throws UncheckedIOException if listing a
+   * directory fails.
+   *
+   * <p>May only be called once.
+   */
+  @Override
+  public Iterator<Path> iterator() {
+    Deque<Future<Listing>> pending = new ArrayDeque<>(roots);
+    return new AbstractIterator<Path>() {
+      private Iterator<Path> files = ImmutableList.<Path>of().iterator();
+
+      @Override
+      protected Path computeNext() {
+        while (!files.hasNext()) {
+          if (pending.isEmpty()) {
+            return endOfData();
+          }
+          Listing listing = getListing(pending.removeFirst());
+          files = listing.files.iterator();
+          // Depth-first: the subdirectories come before the directory's later siblings.
+          for (Future<Listing> subdirectory : listing.subdirectories.reverse()) {
+            pending.addFirst(subdirectory);
+          }
+        }
+        return files.next();
+      }
+    };
+  }
+
+  /** Stops listing directories. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** Lists 'directory' in the background, and in turn its subdirectories. */
+  private Future<Listing> list(Path root, Path directory) {
+    return executor.submit(
+        () -> {
+          List<Path> files = new ArrayList<>();
+          List<Path> subdirectories = new ArrayList<>();
+          try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+              Path relativePath = root.relativize(entry);
+              if (matchesAny(excludes, relativePath)) {
+                continue;
+              }
+              if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+                subdirectories.add(entry);
+              } else if (matchesAny(includes, relativePath)) {
+                files.add(entry);
+              }
+            }
+          }
+          return new Listing(
+              Ordering.natural().immutableSortedCopy(files),
+              Ordering.natural()
+                  .immutableSortedCopy(subdirectories)
+                  .stream()
+                  .map(subdirectory -> list(root, subdirectory))
+                  .collect(toImmutableList()));
+        });
+  }
+
+  private static Listing getListing(Future<Listing> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(
+          new InterruptedIOException("Interrupted while listing source directories"));
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      if (e.getCause() instanceof IOException) {
+        throw new UncheckedIOException((IOException) e.getCause());
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static boolean matchesAny(List<PathMatcher> matchers, Path path) {
+    for (PathMatcher matcher : matchers) {
+      if (matcher.matches(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static ImmutableList<PathMatcher> toPathMatchers(
+      Collection<Path> directories, Collection<String> globs) {
+    if (directories.isEmpty()) {
+      return ImmutableList.of();
+    }
+    // All paths we match belong to the file system of the directories.
+    return globs
+        .stream()
+        .map(glob -> directories.iterator().next().getFileSystem().getPathMatcher("glob:" + glob))
+        .collect(toImmutableList());
+  }
+
+  /** The result of listing a directory. */
+  private static class Listing {
+    final ImmutableList<Path> files;
+    final ImmutableList<Future<Listing>> subdirectories;
+
+    Listing(ImmutableList<Path> files, ImmutableList<Future<Listing>> subdirectories) {
+      this.files = files;
+      this.subdirectories = subdirectories;
+    }
+  }
+}
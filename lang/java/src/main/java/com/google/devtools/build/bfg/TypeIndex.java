@@ -0,0 +1,173 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedBytes;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+
+/**
+ * A sorted set of fully qualified type names, e.g., of the JDK and of the jars a project depends
+ * on, with nested types separated by '.', e.g., "java.util.Map.Entry".
+ *
+ * <p>{@link ReferencedClassesParser} looks names up here when it parses files without resolving
+ * bindings, instead of having JDT look them up on the running VM's bootclasspath.
+ *
+ * <p>The index is written once by {@link TypeIndexGenerator}, and memory-mapped by {@link #load},
+ * so loading it doesn't read or copy any names. The file holds, all big-endian:
+ *
+ * <ul>
+ *   <li>the magic number and format version,
+ *   <li>the number of names, n,
+ *   <li>n + 1 offsets, where name i's UTF-8 bytes start at offset i and end at offset i + 1,
+ *   <li>the names' bytes, in unsigned lexicographic order.
+ * </ul>
+ *
+ * <p>This class is thread-safe.
+ */
+final class TypeIndex {
+
+  private static final int MAGIC = 0x42464754; // "BFGT"
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int HEADER_BYTES = 3 * Integer.BYTES;
+
+  private static final Comparator<byte[]> BYTE_ORDER = UnsignedBytes.lexicographicalComparator();
+
+  /** The whole file. Only read with absolute gets, so it can be shared between threads. */
+  private final ByteBuffer buffer;
+
+  private final int size;
+
+  /** Position in 'buffer' where the names' bytes start. */
+  private final int namesStart;
+
+  private TypeIndex(ByteBuffer buffer, Path path) throws IOException {
+    if (buffer.limit() < HEADER_BYTES
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(Integer.BYTES) != FORMAT_VERSION) {
+      throw new IOException(
+          String.format("%s isn't a type index of version %d", path, FORMAT_VERSION));
+    }
+    this.buffer = buffer;
+    this.size = buffer.getInt(2 * Integer.BYTES);
+    this.namesStart = HEADER_BYTES + (size + 1) * Integer.BYTES;
+    if (size < 0
+        || HEADER_BYTES + (size + 1L) * Integer.BYTES > buffer.limit()
+        || namesStart + offset(size) != buffer.limit()) {
+      throw new IOException(String.format("Type index %s is truncated", path));
+    }
+  }
+
+  /** Memory-maps the type index in 'path'. */
+  static TypeIndex load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer buffer;
+      try {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } catch (UnsupportedOperationException e) {
+        // E.g., in-memory file systems.
+        buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+      }
+      return new TypeIndex(buffer, path);
+    }
+  }
+
+  /** Writes an index of 'names' to 'out'. Duplicate names are written once. */
+  static void write(Iterable<String> names, OutputStream out) throws IOException {
+    ImmutableSortedSet.Builder<byte[]> sorted = ImmutableSortedSet.orderedBy(BYTE_ORDER);
+    for (String name : names) {
+      sorted.add(name.getBytes(UTF_8));
+    }
+    ImmutableSortedSet<byte[]> encodedNames = sorted.build();
+
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeInt(encodedNames.size());
+    int offset = 0;
+    data.writeInt(offset);
+    for (byte[] name : encodedNames) {
+      offset += name.length;
+      data.writeInt(offset);
+    }
+    for (byte[] name : encodedNames) {
+      data.write(name);
+    }
+    data.flush();
+  }
+
+  /** Returns the number of names in the index. */
+  int size() {
+    return size;
+  }
+
+  /** Returns true iff 'qualifiedName', e.g., "java.util.Map.Entry", is in the index. */
+  boolean contains(String qualifiedName) {
+    byte[] key = qualifiedName.getBytes(UTF_8);
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareName(middle, key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns a hash of the index's content, which changes whenever any name does. */
+  HashCode fingerprint() {
+    ByteBuffer content = buffer.duplicate();
+    content.clear();
+    return Hashing.sha256().hashBytes(content);
+  }
+
+  /** Compares name 'i' with 'key', as unsigned bytes. */
+  private int compareName(int i, byte[] key) {
+    int start = namesStart + offset(i);
+    int length = offset(i + 1) - offset(i);
+    int common = Math.min(length, key.length);
+    for (int j = 0; j < common; j++) {
+      int comparison = UnsignedBytes.compare(buffer.get(start + j), key[j]);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return Integer.compare(length, key.length);
+  }
+
+  private int offset(int i) {
+    return buffer.getInt(HEADER_BYTES + i * Integer.BYTES);
+  }
+}
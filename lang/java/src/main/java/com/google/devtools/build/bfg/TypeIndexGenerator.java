@@ -0,0 +1,129 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Writes a {@link TypeIndex} of the types of the running JDK and of the given jars and class
+ * directories, e.g.,
+ *
+ * <pre>
+ * bazel run //lang/java/src/main/java/com/google/devtools/build/bfg:TypeIndexGenerator -- \
+ *     $PWD/types.idx $(find ~/.m2 -name \*.jar)
+ * </pre>
+ *
+ * <p>Classes are listed by file name, without loading them, so anonymous and local classes are
+ * left out, but package-private ones are not.
+ */
+public class TypeIndexGenerator {
+
+  private static final String CLASS_SUFFIX = ".class";
+
+  private static final Joiner SLASH_JOINER = Joiner.on('/');
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: TypeIndexGenerator <output file> [jars or class directories]");
+      System.exit(1);
+    }
+    ImmutableSet.Builder<String> names = ImmutableSet.builder();
+    addJdkClasses(names);
+    for (int i = 1; i < args.length; i++) {
+      addClasses(Paths.get(args[i]), names);
+    }
+    ImmutableSet<String> allNames = names.build();
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[0])))) {
+      TypeIndex.write(allNames, out);
+    }
+    System.err.printf("Wrote %d type names to %s%n", allNames.size(), args[0]);
+  }
+
+  /** Adds the classes of the running JDK to 'names'. */
+  private static void addJdkClasses(ImmutableSet.Builder<String> names) throws IOException {
+    String bootClassPath = System.getProperty("sun.boot.class.path");
+    if (bootClassPath != null) {
+      for (String element : bootClassPath.split(File.pathSeparator)) {
+        addClasses(Paths.get(element), names);
+      }
+      return;
+    }
+    // JDK 9 and later keep their classes in modules.
+    Path modules = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("modules");
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(modules)) {
+      for (Path module : entries) {
+        addClassDirectory(module, names);
+      }
+    }
+  }
+
+  /** Adds the classes in the jar or directory 'path' to 'names'. Does nothing if it's missing. */
+  private static void addClasses(Path path, ImmutableSet.Builder<String> names)
+      throws IOException {
+    if (Files.isDirectory(path)) {
+      addClassDirectory(path, names);
+    } else if (Files.isRegularFile(path)) {
+      try (JarFile jar = new JarFile(path.toFile())) {
+        for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+          addClass(entries.nextElement().getName(), names);
+        }
+      }
+    }
+  }
+
+  private static void addClassDirectory(Path directory, ImmutableSet.Builder<String> names)
+      throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.forEach(file -> addClass(SLASH_JOINER.join(directory.relativize(file)), names));
+    }
+  }
+
+  /**
+   * Adds the name of the class in file 'relativePath' to 'names', e.g., "java.util.Map.Entry" for
+   * "java/util/Map$Entry.class", unless it isn't a class that can be referred to by name.
+   */
+  private static void addClass(String relativePath, ImmutableSet.Builder<String> names) {
+    if (!relativePath.endsWith(CLASS_SUFFIX) || relativePath.startsWith("META-INF/")) {
+      return;
+    }
+    String binaryName =
+        relativePath.substring(0, relativePath.length() - CLASS_SUFFIX.length()).replace('/', '.');
+    if (binaryName.endsWith("module-info") || binaryName.endsWith("package-info")) {
+      return;
+    }
+    // Anonymous and local classes have names like "Foo$1" and "Foo$1Local".
+    for (String part : binaryName.split("\\$", -1)) {
+      if (part.isEmpty() || Character.isDigit(part.charAt(0))) {
+        return;
+      }
+    }
+    names.add(binaryName.replace('$', '.'));
+  }
+}
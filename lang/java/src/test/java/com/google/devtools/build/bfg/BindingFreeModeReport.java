@@ -0,0 +1,171 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.graph.EndpointPair;
+import com.google.common.graph.ImmutableGraph;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reports how the class graph that {@link JavaSourceFileParser} builds without bindings, against a
+ * {@link TypeIndex}, differs from the one it builds with bindings, and how long each takes, e.g.,
+ *
+ * <pre>
+ * bazel run //lang/java/src/main/java/com/google/devtools/build/bfg:TypeIndexGenerator -- \
+ *     /tmp/types.idx
+ * bazel run //lang/java/src/test/java/com/google/devtools/build/bfg:BindingFreeModeReport -- \
+ *     /tmp/types.idx $PWD/src/main/java,$PWD/src/test/java $(find $PWD/src -name \*.java)
+ * </pre>
+ *
+ * <p>Every edge and rule kind found by only one of the modes is listed, followed by totals, and by
+ * the number of names each mode couldn't resolve. Speed is reported as in {@link
+ * LexicalDependencyExtractorBenchmark}.
+ */
+public class BindingFreeModeReport {
+
+  private static final int WARMUP_ITERATIONS = 2;
+
+  private static final int MEASURED_ITERATIONS = 3;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println(
+          "Usage: BindingFreeModeReport <type index> <content roots, comma-separated> "
+              + "<java files>");
+      System.exit(1);
+    }
+    TypeIndex typeIndex = TypeIndex.load(Paths.get(args[0]));
+    ImmutableList<Path> contentRoots =
+        Splitter.on(',')
+            .omitEmptyStrings()
+            .splitToList(args[1])
+            .stream()
+            .map(p -> Paths.get(p))
+            .collect(toImmutableList());
+    ImmutableList<Path> files =
+        Arrays.stream(args, 2, args.length).map(f -> Paths.get(f)).collect(toImmutableList());
+    JavaSourceFileParser.Options withBindings =
+        JavaSourceFileParser.Options.builder()
+            .setContentRootIndex(ContentRootIndex.ofSourceFiles(contentRoots, files))
+            .build();
+    JavaSourceFileParser.Options bindingFree =
+        JavaSourceFileParser.Options.builder()
+            .setContentRootIndex(ContentRootIndex.ofSourceFiles(contentRoots, files))
+            .setTypeIndex(typeIndex)
+            .build();
+
+    System.out.printf("Parsing %d files, %d types in the index%n", files.size(), typeIndex.size());
+    JavaSourceFileParser expected = parse(files, contentRoots, withBindings);
+    JavaSourceFileParser actual = parse(files, contentRoots, bindingFree);
+    reportDifferences(expected, actual);
+    reportSpeed("bindings", measure(files, contentRoots, withBindings));
+    reportSpeed("binding-free", measure(files, contentRoots, bindingFree));
+  }
+
+  private static JavaSourceFileParser parse(
+      ImmutableList<Path> files,
+      ImmutableList<Path> contentRoots,
+      JavaSourceFileParser.Options options)
+      throws IOException {
+    return new JavaSourceFileParser(
+        files, contentRoots, ImmutableSet.of() /* oneRulePerPackageRoots */, options);
+  }
+
+  private static void reportDifferences(
+      JavaSourceFileParser expected, JavaSourceFileParser actual) {
+    ImmutableGraph<String> expectedGraph = expected.getClassToClass();
+    ImmutableGraph<String> actualGraph = actual.getClassToClass();
+    Set<EndpointPair<String>> onlyWithBindings =
+        Sets.difference(expectedGraph.edges(), actualGraph.edges());
+    Set<EndpointPair<String>> onlyBindingFree =
+        Sets.difference(actualGraph.edges(), expectedGraph.edges());
+    printEdges("Edges only with bindings", onlyWithBindings);
+    printEdges("Edges only without bindings", onlyBindingFree);
+
+    System.out.println("Rule kinds that differ:");
+    int sameRuleKind = 0;
+    for (Map.Entry<String, String> entry : expected.getFilesToRuleKind().entrySet()) {
+      String actualRuleKind = actual.getFilesToRuleKind().get(entry.getKey());
+      if (entry.getValue().equals(actualRuleKind)) {
+        sameRuleKind++;
+      } else {
+        System.out.printf(
+            "  %s: %s with bindings, %s without%n",
+            entry.getKey(), entry.getValue(), actualRuleKind);
+      }
+    }
+
+    int edges = expectedGraph.edges().size();
+    System.out.printf(
+        "Edges: %d with bindings, %d without, %d only with bindings, %d only without%n",
+        edges, actualGraph.edges().size(), onlyWithBindings.size(), onlyBindingFree.size());
+    System.out.printf(
+        "  precision %.1f%%, recall %.1f%%%n",
+        percent(actualGraph.edges().size() - onlyBindingFree.size(), actualGraph.edges().size()),
+        percent(edges - onlyWithBindings.size(), edges));
+    System.out.printf(
+        "Files with the same rule kind: %.1f%%%n",
+        percent(sameRuleKind, expected.getFilesToRuleKind().size()));
+    System.out.printf(
+        "Unresolved names: %d with bindings, %d without%n",
+        expected.getUnresolvedClassNames().size(), actual.getUnresolvedClassNames().size());
+  }
+
+  private static void printEdges(String title, Set<EndpointPair<String>> edges) {
+    System.out.println(title + ":");
+    ImmutableSortedSet.copyOf(
+            edges.stream().map(e -> e.source() + " -> " + e.target()).iterator())
+        .forEach(edge -> System.out.println("  " + edge));
+  }
+
+  private static double percent(int part, int whole) {
+    return whole == 0 ? 100 : 100.0 * part / whole;
+  }
+
+  /** Returns the median time, in nanoseconds, that parsing takes per source file. */
+  private static double measure(
+      ImmutableList<Path> files,
+      ImmutableList<Path> contentRoots,
+      JavaSourceFileParser.Options options)
+      throws IOException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      parse(files, contentRoots, options);
+    }
+    double[] nanosPerFile = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long start = System.nanoTime();
+      parse(files, contentRoots, options);
+      nanosPerFile[i] = (double) (System.nanoTime() - start) / files.size();
+    }
+    Arrays.sort(nanosPerFile);
+    return nanosPerFile[MEASURED_ITERATIONS / 2];
+  }
+
+  private static void reportSpeed(String mode, double nanosPerFile) {
+    System.out.printf("%-20s %10.1f us/file%n", mode, nanosPerFile / 1000);
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Predicates.containsPattern;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.graph.EndpointPair;
+import com.google.devtools.build.bfg.ReferencedClassesParser.Metadata;
+import com.google.devtools.build.bfg.ReferencedClassesParser.QualifiedName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how many bytes, and how much time, the class name operations of the parser and of
+ * ClassGraphPreprocessor take per name, before and after they were rewritten to scan characters
+ * in {@link ClassNames}, e.g.,
+ *
+ * <pre>
+ * bazel run //lang/java/src/test/java/com/google/devtools/build/bfg:ClassNamesBenchmark \
+ *     -- $PWD/src/main/java,$PWD/src/test/java $(find $PWD/src -name \*.java)
+ * </pre>
+ *
+ * <p>The names are the edges of the class graph of the given files, with every class name also
+ * repeated with an inner class, and with a member, appended. The "before" implementations are kept
+ * here as they were.
+ */
+public class ClassNamesBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 5;
+
+  private static final int MEASURED_ITERATIONS = 11;
+
+  /** Times each iteration goes over all the names, so that it takes long enough to time. */
+  private static final int REPETITIONS = 20;
+
+  private static final Joiner DOT_JOINER = Joiner.on(".");
+
+  private static final Predicate<CharSequence> IS_CLASS_NAME =
+      containsPattern("^[A-Z][a-zA-Z0-9]*$");
+
+  private static final Pattern CLASS_NAME_PATTERN = Pattern.compile("^[A-Z][a-zA-Z0-9_$]*$");
+
+  /** Keeps the JIT from optimizing the operations away. */
+  private static int sink;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: ClassNamesBenchmark <content roots, comma-separated> <java files>");
+      System.exit(1);
+    }
+    ImmutableList<Path> contentRoots =
+        Splitter.on(',')
+            .omitEmptyStrings()
+            .splitToList(args[0])
+            .stream()
+            .map(p -> Paths.get(p))
+            .collect(toImmutableList());
+    ImmutableList<Path> files =
+        Arrays.stream(args, 1, args.length).map(f -> Paths.get(f)).collect(toImmutableList());
+    JavaSourceFileParser parser =
+        new JavaSourceFileParser(
+            files,
+            contentRoots,
+            ImmutableSet.of() /* oneRulePerPackageRoots */,
+            JavaSourceFileParser.Options.builder().build());
+    List<String> names = new ArrayList<>();
+    for (EndpointPair<String> edge : parser.getClassToClass().edges()) {
+      for (String name : ImmutableList.of(edge.source(), edge.target())) {
+        names.add(name);
+        names.add(name + "$Inner");
+        names.add(name + ".member");
+      }
+    }
+    System.out.printf("%d files, %d names%n", files.size(), names.size());
+
+    report(
+        names,
+        "outer class name",
+        ClassNamesBenchmark::legacyGetOuterClassName,
+        ClassNames::getOuterClassName);
+    report(
+        names,
+        "class name in qualified name",
+        ClassNamesBenchmark::legacyExtractClassNameFromQualifiedName,
+        ReferencedClassesParser::extractClassNameFromQualifiedName);
+    report(
+        names,
+        "top-level qualified name",
+        name -> legacyGetTopLevelQualifiedName(name),
+        name -> QualifiedName.create(name, Metadata.EMPTY).getTopLevelQualifiedName().value());
+  }
+
+  private static void report(
+      List<String> names,
+      String operation,
+      Function<String, String> before,
+      Function<String, String> after) {
+    for (String name : names) {
+      if (!before.apply(name).equals(after.apply(name))) {
+        throw new AssertionError(String.format("%s differs for %s", operation, name));
+      }
+    }
+    System.out.println(operation);
+    for (int phase = 0; phase < 2; phase++) {
+      Function<String, String> function = phase == 0 ? before : after;
+      double[] result = measure(names, function);
+      System.out.printf(
+          "  %-8s %8.1f bytes/name %8.1f ns/name%n",
+          phase == 0 ? "before" : "after", result[0], result[1]);
+    }
+  }
+
+  /** Returns the median bytes allocated and nanoseconds spent per name. */
+  private static double[] measure(List<String> names, Function<String, String> function) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      run(names, function);
+    }
+    double[] bytesPerName = new double[MEASURED_ITERATIONS];
+    double[] nanosPerName = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      run(names, function);
+      nanosPerName[i] = (double) (System.nanoTime() - start) / names.size() / REPETITIONS;
+      bytesPerName[i] = (double) (allocatedBytes() - bytes) / names.size() / REPETITIONS;
+    }
+    Arrays.sort(bytesPerName);
+    Arrays.sort(nanosPerName);
+    return new double[] {
+      bytesPerName[MEASURED_ITERATIONS / 2], nanosPerName[MEASURED_ITERATIONS / 2]
+    };
+  }
+
+  private static void run(List<String> names, Function<String, String> function) {
+    for (int i = 0; i < REPETITIONS; i++) {
+      for (String name : names) {
+        sink += function.apply(name).length();
+      }
+    }
+  }
+
+  /** Returns the bytes allocated by this thread so far, as reported by HotSpot. */
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static String legacyGetOuterClassName(String className) {
+    return className.split("\\$")[0];
+  }
+
+  private static String legacyExtractClassNameFromQualifiedName(String s) {
+    List<String> parts = Lists.newArrayList(Splitter.on(".").split(s));
+    for (int i = 0; i < parts.size(); i++) {
+      String part = parts.get(i);
+      if (IS_CLASS_NAME.apply(part)) {
+        return DOT_JOINER.join(parts.subList(0, i + 1));
+      }
+      if (isLowerCase(part)) {
+        continue;
+      }
+      return "";
+    }
+    return "";
+  }
+
+  private static String legacyGetTopLevelQualifiedName(String name) {
+    ImmutableList<String> parts = ImmutableList.copyOf(Splitter.on(".").split(name));
+    int topLevelName = -1;
+    for (int i = 0; i < parts.size(); i++) {
+      String part = parts.get(i);
+      if (CLASS_NAME_PATTERN.matcher(part).matches()) {
+        topLevelName = i > 0 ? i : -1;
+        break;
+      }
+      if (!isLowerCase(part)) {
+        break;
+      }
+    }
+    return DOT_JOINER.join(parts.subList(0, topLevelName + 1));
+  }
+
+  private static boolean isLowerCase(String s) {
+    return s.equals(s.toLowerCase());
+  }
+}
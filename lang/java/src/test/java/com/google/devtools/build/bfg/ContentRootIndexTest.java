@@ -0,0 +1,179 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentRootIndex}. */
+@RunWith(JUnit4.class)
+public class ContentRootIndexTest {
+
+  private Path srcMain;
+
+  private Path srcTest;
+
+  private ImmutableList<Path> sourceFiles;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fileSystem =
+        Jimfs.newFileSystem(Configuration.forCurrentPlatform().toBuilder().build());
+    srcMain = fileSystem.getPath("/src/main/java/");
+    srcTest = fileSystem.getPath("/src/test/java/");
+    sourceFiles =
+        ImmutableList.of(
+            createFile(srcMain.resolve("com/hello/Dummy.java")),
+            createFile(srcMain.resolve("com/hello/world/ClassA.java")),
+            createFile(srcMain.resolve("Default.java")),
+            createFile(srcTest.resolve("com/hello/DummyTest.java")));
+    createFile(srcMain.resolve("com/hello/README"));
+  }
+
+  @Test
+  public void walk() throws IOException {
+    assertContainsExactlyTheSourceFiles(
+        ContentRootIndex.walk(ImmutableList.of(srcMain, srcTest), 4 /* numThreads */));
+  }
+
+  @Test
+  public void walk_missingContentRootsAreIgnored() throws IOException {
+    assertContainsExactlyTheSourceFiles(
+        ContentRootIndex.walk(
+            ImmutableList.of(srcMain, srcTest, srcMain.resolve("../missing")), 1 /* numThreads */));
+  }
+
+  @Test
+  public void walk_followsSymbolicLinksToDirectories() throws IOException {
+    Path shared = srcMain.resolve("../../shared/");
+    createFile(shared.resolve("Linked.java"));
+    Files.createSymbolicLink(srcMain.resolve("com/linked"), shared);
+    // Leads back to a directory being walked, so it isn't followed.
+    Files.createSymbolicLink(srcMain.resolve("com/hello/loop"), srcMain.resolve("com"));
+
+    ContentRootIndex index =
+        ContentRootIndex.walk(ImmutableList.of(srcMain, srcTest), 4 /* numThreads */);
+
+    assertContainsExactlyTheSourceFiles(index);
+    assertThat(index.containsClass("com.linked", "Linked")).isTrue();
+    assertThat(index.containsClass("com.hello.loop.hello", "Dummy")).isFalse();
+  }
+
+  @Test
+  public void walk_outOfDateOnceFilesAreAddedOrRemoved() throws IOException {
+    ImmutableList<Path> contentRoots = ImmutableList.of(srcMain, srcTest, srcMain.resolve("../x"));
+    setDirectoryTimesToEpoch();
+    ContentRootIndex index = ContentRootIndex.walk(contentRoots, 1 /* numThreads */);
+    assertThat(index.isUpToDate()).isTrue();
+
+    Files.delete(srcMain.resolve("com/hello/world/ClassA.java"));
+    assertThat(index.isUpToDate()).isFalse();
+
+    setDirectoryTimesToEpoch();
+    index = ContentRootIndex.walk(contentRoots, 1 /* numThreads */);
+    createFile(srcMain.resolve("com/hello/world/ClassB.java"));
+    assertThat(index.isUpToDate()).isFalse();
+
+    setDirectoryTimesToEpoch();
+    index = ContentRootIndex.walk(contentRoots, 1 /* numThreads */);
+    Files.createDirectories(srcMain.resolve("../x"));
+    assertThat(index.isUpToDate()).isFalse();
+  }
+
+  @Test
+  public void contentRootIndexCache_reusesIndexWhileUpToDate() throws IOException {
+    ContentRootIndexCache cache = new ContentRootIndexCache();
+    ImmutableList<Path> contentRoots = ImmutableList.of(srcMain, srcTest);
+    setDirectoryTimesToEpoch();
+
+    ContentRootIndex index = cache.walk(contentRoots, 1 /* numThreads */);
+    assertThat(cache.walk(contentRoots, 1 /* numThreads */)).isSameAs(index);
+
+    createFile(srcMain.resolve("com/hello/New.java"));
+    ContentRootIndex newIndex = cache.walk(contentRoots, 1 /* numThreads */);
+    assertThat(newIndex).isNotSameAs(index);
+    assertThat(newIndex.containsClass("com.hello", "New")).isTrue();
+  }
+
+  @Test
+  public void ofSourceFiles() {
+    assertContainsExactlyTheSourceFiles(
+        ContentRootIndex.ofSourceFiles(ImmutableList.of(srcMain, srcTest), sourceFiles));
+  }
+
+  @Test
+  public void ofSourceFiles_filesOutsideContentRootsAreIgnored() {
+    ContentRootIndex index =
+        ContentRootIndex.ofSourceFiles(ImmutableList.of(srcTest), sourceFiles);
+
+    assertThat(index.containsClass("com.hello", "DummyTest")).isTrue();
+    assertThat(index.containsClass("com.hello", "Dummy")).isFalse();
+  }
+
+  @Test
+  public void ofSourceFiles_isNeverUpToDate() throws IOException {
+    assertThat(
+            ContentRootIndex.ofSourceFiles(ImmutableList.of(srcMain), sourceFiles).isUpToDate())
+        .isFalse();
+  }
+
+  @Test
+  public void onFileSystem() {
+    assertContainsExactlyTheSourceFiles(
+        ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)));
+  }
+
+  private static void assertContainsExactlyTheSourceFiles(ContentRootIndex index) {
+    assertThat(index.containsClass("com.hello", "Dummy")).isTrue();
+    assertThat(index.containsClass("com.hello", "DummyTest")).isTrue();
+    assertThat(index.containsClass("com.hello.world", "ClassA")).isTrue();
+    assertThat(index.containsClass("", "Default")).isTrue();
+
+    assertThat(index.containsClass("com.hello", "ClassA")).isFalse();
+    assertThat(index.containsClass("com.hello", "README")).isFalse();
+    assertThat(index.containsClass("com", "hello")).isFalse();
+    assertThat(index.containsClass("", "Dummy")).isFalse();
+  }
+
+  private static Path createFile(Path path) throws IOException {
+    Files.createDirectories(path.getParent());
+    return Files.createFile(path);
+  }
+
+  /**
+   * Makes sure that the changes a test makes after walking change the last modified time of their
+   * directory, even if they happen within the same millisecond as the walk.
+   */
+  private void setDirectoryTimesToEpoch() throws IOException {
+    try (Stream<Path> files = Files.walk(srcMain.getRoot())) {
+      for (Path directory : (Iterable<Path>) files.filter(Files::isDirectory)::iterator) {
+        Files.setLastModifiedTime(directory, FileTime.fromMillis(0));
+      }
+    }
+  }
+}
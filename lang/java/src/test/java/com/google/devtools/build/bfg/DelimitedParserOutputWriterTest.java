@@ -0,0 +1,80 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.bfg.ParserOutputs.readDelimited;
+import static com.google.devtools.build.bfg.ParserOutputs.strings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+
+/** Tests for {@link DelimitedParserOutputWriter}. */
+@RunWith(JUnit4.class)
+public class DelimitedParserOutputWriterTest {
+
+  private TestWorkspace workspace;
+
+  @Before
+  public void setUp() throws IOException {
+    workspace = TestWorkspace.create();
+  }
+
+  @Test
+  public void writesOneMessagePerFileThenCycles() throws IOException {
+    Path a = workspace.writeFile("x/A.java", "package x; class A { y.C c; }");
+    Path b = workspace.writeFile("x/B.java", "package x; class B {}");
+    Path info = workspace.writeFile("x/package-info.java", "package x;");
+    Path c = workspace.writeFile("y/C.java", "package y; class C { x.B b; }");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImmutableSet<String> unresolvedClassNames =
+        JavaSourceFileParser.parse(
+            ImmutableList.of(a, b, info, c),
+            ImmutableList.of(workspace.root()),
+            ImmutableSet.of(workspace.resolve("x")) /* oneRulePerPackageRoots */,
+            JavaSourceFileParser.Options.DEFAULT,
+            new DelimitedParserOutputWriter(out));
+
+    assertThat(unresolvedClassNames).isEmpty();
+    assertThat(readDelimited(new ByteArrayInputStream(out.toByteArray())))
+        .containsExactly(
+            fileOutput("x.A", "/src/x/A.java", "y.C"),
+            fileOutput("x.B", "/src/x/B.java"),
+            fileOutput("y.C", "/src/y/C.java", "x.B"),
+            ParserOutput.newBuilder()
+                .putClassToClass("x.A", strings("x.B"))
+                .putClassToClass("x.B", strings("x.A"))
+                .build())
+        .inOrder();
+  }
+
+  private static ParserOutput fileOutput(String className, String file, String... dependencies) {
+    return ParserOutput.newBuilder()
+        .putClassToClass(className, strings(dependencies))
+        .putClassToFile(className, strings(file))
+        .putFileToRuleKind(file, "java_library")
+        .build();
+  }
+}
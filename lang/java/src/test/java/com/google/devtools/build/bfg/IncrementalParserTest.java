@@ -0,0 +1,187 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.bfg.ParserOutputs.strings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+
+/**
+ * Tests for {@link IncrementalParser}. Each test checks that updating the output of a full parse
+ * gives the same output as a full parse after the change.
+ */
+@RunWith(JUnit4.class)
+public class IncrementalParserTest {
+
+  private TestWorkspace workspace;
+
+  private ImmutableList<Path> contentRoots;
+
+  private ImmutableSet<Path> oneRulePerPackageRoots;
+
+  private Path a;
+  private Path b;
+  private Path c;
+  private Path d;
+  private Path e;
+
+  @Before
+  public void setUp() throws IOException {
+    workspace = TestWorkspace.create();
+    contentRoots =
+        ImmutableList.of(
+            workspace.resolve("main"), workspace.resolve("lib"), workspace.resolve("test"));
+    oneRulePerPackageRoots = ImmutableSet.of(workspace.resolve("lib"));
+    a = workspace.writeFile("main/x/A.java", "package x; class A { B b; Missing m; }");
+    b = workspace.writeFile("main/x/B.java", "package x; class B {}");
+    c = workspace.writeFile("main/y/C.java", "package y; class C { x.A a; }");
+    d = workspace.writeFile("lib/z/D.java", "package z; class D { y.C c; }");
+    e = workspace.writeFile("lib/z/E.java", "package z; class E {}");
+  }
+
+  @Test
+  public void modifiedFile_onlyItIsParsed() throws IOException {
+    ParserOutput previous = fullParse(a, b, c, d, e);
+    workspace.writeFile("main/y/C.java", "package y; class C { x.B b; }");
+
+    IncrementalParser parser = incrementalParser(previous, c);
+
+    assertThat(parser.filesToParse()).containsExactly(c);
+    ParserOutput updated = parse(parser);
+    assertThat(updated).isEqualTo(fullParse(a, b, c, d, e));
+    assertThat(updated.getClassToClassMap()).containsEntry("y.C", strings("x.B"));
+  }
+
+  @Test
+  public void addedFile_sameDirectoryIsParsed() throws IOException {
+    ParserOutput previous = fullParse(a, b, c, d, e);
+    Path missing = workspace.writeFile("main/x/Missing.java", "package x; class Missing {}");
+
+    IncrementalParser parser = incrementalParser(previous, missing);
+
+    assertThat(parser.filesToParse()).containsExactly(missing, a, b);
+    ParserOutput updated = parse(parser);
+    assertThat(updated).isEqualTo(fullParse(a, b, c, d, e, missing));
+    assertThat(updated.getClassToClassMap()).containsEntry("x.A", strings("x.B", "x.Missing"));
+  }
+
+  /** Tests that a package's files under other content roots are parsed too. */
+  @Test
+  public void addedFile_samePackageUnderOtherRootsIsParsed() throws IOException {
+    Path bTest =
+        workspace.writeFile("test/x/BTest.java", "package x; class BTest { B b; Missing m; }");
+    ParserOutput previous = fullParse(a, b, c, d, e, bTest);
+    Path missing = workspace.writeFile("main/x/Missing.java", "package x; class Missing {}");
+
+    IncrementalParser parser = incrementalParser(previous, missing);
+
+    assertThat(parser.filesToParse()).containsExactly(missing, a, b, bTest);
+    ParserOutput updated = parse(parser);
+    assertThat(updated).isEqualTo(fullParse(a, b, c, d, e, bTest, missing));
+    assertThat(updated.getClassToClassMap())
+        .containsEntry("x.BTest", strings("x.B", "x.Missing"));
+  }
+
+  /** Tests that files importing the package of an added file on demand are parsed too. */
+  @Test
+  public void addedFile_filesImportingItsPackageOnDemandAreParsed() throws IOException {
+    Path o = workspace.writeFile("main/y/O.java", "package y; import x.*; class O { Missing m; }");
+    ParserOutput previous = fullParse(a, b, c, d, e, o);
+    Path missing = workspace.writeFile("main/x/Missing.java", "package x; class Missing {}");
+
+    IncrementalParser parser = incrementalParser(previous, missing);
+
+    assertThat(parser.filesToParse()).containsExactly(missing, a, b, o);
+    ParserOutput updated = parse(parser);
+    assertThat(updated).isEqualTo(fullParse(a, b, c, d, e, o, missing));
+    assertThat(updated.getClassToClassMap()).containsEntry("y.O", strings("x.Missing"));
+  }
+
+  @Test
+  public void deletedFile_isDropped() throws IOException {
+    ParserOutput previous = fullParse(a, b, c, d, e);
+    Files.delete(b);
+
+    IncrementalParser parser = incrementalParser(previous, b);
+
+    assertThat(parser.filesToParse()).containsExactly(a);
+    assertThat(parser.sourceFiles()).containsExactly(a, c, d, e);
+    ParserOutput updated = parse(parser);
+    assertThat(updated).isEqualTo(fullParse(a, c, d, e));
+    assertThat(updated.getClassToFileMap()).doesNotContainKey("x.B");
+    assertThat(updated.getFileToRuleKindMap()).doesNotContainKey(b.toString());
+  }
+
+  @Test
+  public void oneRulePerPackageDirectory_isParsedAsAWhole() throws IOException {
+    ParserOutput previous = fullParse(a, b, c, d, e);
+    workspace.writeFile("lib/z/D.java", "package z; class D {}");
+    Path f = workspace.writeFile("lib/z/F.java", "package z; class F {}");
+
+    IncrementalParser parser = incrementalParser(previous, d, f);
+
+    assertThat(parser.filesToParse()).containsExactly(d, f, e);
+    assertThat(parse(parser)).isEqualTo(fullParse(a, b, c, d, e, f));
+  }
+
+  @Test
+  public void otherFilesAreIgnored() throws IOException {
+    ParserOutput previous = fullParse(a, b, c, d, e);
+    Path readme = workspace.writeFile("main/x/README", "Hello");
+
+    IncrementalParser parser = incrementalParser(previous, readme);
+
+    assertThat(parser.filesToParse()).isEmpty();
+    assertThat(parse(parser)).isEqualTo(previous);
+  }
+
+  private IncrementalParser incrementalParser(ParserOutput previous, Path... changedFiles)
+      throws IOException {
+    return new IncrementalParser(
+        previous,
+        ImmutableList.copyOf(changedFiles),
+        contentRoots,
+        oneRulePerPackageRoots,
+        workspace.root());
+  }
+
+  private ParserOutput parse(IncrementalParser parser) throws IOException {
+    Set<String> unresolvedClassNames = new HashSet<>();
+    return parser.parse(JavaSourceFileParser.Options.DEFAULT, unresolvedClassNames);
+  }
+
+  private ParserOutput fullParse(Path... files) throws IOException {
+    ParserOutputMerger merger = new ParserOutputMerger();
+    JavaSourceFileParser.parse(
+        ImmutableList.copyOf(files),
+        contentRoots,
+        ImmutableSet.of(),
+        JavaSourceFileParser.Options.DEFAULT,
+        merger);
+    return merger.merge(oneRulePerPackageRoots);
+  }
+}
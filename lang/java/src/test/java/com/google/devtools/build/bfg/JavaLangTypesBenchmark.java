@@ -0,0 +1,112 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the per-file cost of telling which of a file's symbols are java.lang types, using {@link
+ * JavaLangTypes} versus probing the class loader with Class.forName, on a corpus of Java files,
+ * e.g.,
+ *
+ * <pre>
+ * bazel run //lang/java/src/test/java/com/google/devtools/build/bfg:JavaLangTypesBenchmark \
+ *     -- $(find $PWD/src -name \*.java)
+ * </pre>
+ *
+ * <p>A file's symbols are approximated by the capitalized, possibly dotted, identifiers in it.
+ * Results are reported as the median time per file.
+ */
+public class JavaLangTypesBenchmark {
+
+  private static final Pattern SYMBOL = Pattern.compile("\\b[A-Z]\\w*(?:\\.[A-Z]\\w*)*");
+
+  private static final int WARMUP_ITERATIONS = 3;
+
+  private static final int MEASURED_ITERATIONS = 5;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: JavaLangTypesBenchmark <java files>");
+      System.exit(1);
+    }
+    ImmutableList.Builder<ImmutableSet<String>> symbolsPerFile = ImmutableList.builder();
+    for (String file : args) {
+      Matcher matcher = SYMBOL.matcher(new String(Files.readAllBytes(Paths.get(file)), UTF_8));
+      ImmutableSet.Builder<String> symbols = ImmutableSet.builder();
+      while (matcher.find()) {
+        symbols.add(matcher.group());
+      }
+      symbolsPerFile.add(symbols.build());
+    }
+
+    System.out.printf("Checking the symbols of %d files%n", args.length);
+    report("Class.forName", measure(symbolsPerFile.build(), JavaLangTypesBenchmark::probe));
+    report("index", measure(symbolsPerFile.build(), JavaLangTypes::contains));
+  }
+
+  /** The check {@link ReferencedClassesParser} used to do. */
+  private static boolean probe(String symbol) {
+    try {
+      Class.forName("java.lang." + symbol.replace('.', '$'), false, null);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /** Returns the median time, in nanoseconds, that 'isJavaLangType' takes per file. */
+  private static double measure(
+      ImmutableList<ImmutableSet<String>> symbolsPerFile, Predicate<String> isJavaLangType) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      checkAll(symbolsPerFile, isJavaLangType);
+    }
+    double[] nanosPerFile = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long start = System.nanoTime();
+      checkAll(symbolsPerFile, isJavaLangType);
+      nanosPerFile[i] = (double) (System.nanoTime() - start) / symbolsPerFile.size();
+    }
+    Arrays.sort(nanosPerFile);
+    return nanosPerFile[MEASURED_ITERATIONS / 2];
+  }
+
+  private static int checkAll(
+      ImmutableList<ImmutableSet<String>> symbolsPerFile, Predicate<String> isJavaLangType) {
+    int count = 0;
+    for (ImmutableSet<String> symbols : symbolsPerFile) {
+      for (String symbol : symbols) {
+        if (isJavaLangType.test(symbol)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static void report(String mode, double nanosPerFile) {
+    System.out.printf("%-20s %10.1f us/file%n", mode, nanosPerFile / 1000);
+  }
+}
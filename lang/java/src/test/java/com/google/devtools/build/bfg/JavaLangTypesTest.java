@@ -0,0 +1,50 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JavaLangTypes}. */
+@RunWith(JUnit4.class)
+public class JavaLangTypesTest {
+
+  @Test
+  public void containsTopLevelTypes() {
+    assertThat(JavaLangTypes.contains("String")).isTrue();
+    assertThat(JavaLangTypes.contains("Override")).isTrue();
+    assertThat(JavaLangTypes.contains("Runnable")).isTrue();
+    assertThat(JavaLangTypes.contains("IllegalStateException")).isTrue();
+  }
+
+  @Test
+  public void containsNestedTypes() {
+    assertThat(JavaLangTypes.contains("Thread.State")).isTrue();
+    assertThat(JavaLangTypes.contains("Character.UnicodeBlock")).isTrue();
+  }
+
+  @Test
+  public void doesNotContainOtherTypes() {
+    assertThat(JavaLangTypes.contains("List")).isFalse();
+    assertThat(JavaLangTypes.contains("Thread$State")).isFalse();
+    assertThat(JavaLangTypes.contains("Thread.Unknown")).isFalse();
+    // Subpackages of java.lang.
+    assertThat(JavaLangTypes.contains("reflect.Method")).isFalse();
+    assertThat(JavaLangTypes.contains("Method")).isFalse();
+  }
+}
@@ -16,6 +16,7 @@ package com.google.devtools.build.bfg;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -24,14 +25,18 @@ import com.google.common.graph.Graph;
 import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.ImmutableGraph;
 import com.google.common.graph.MutableGraph;
+import com.google.common.hash.HashCode;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -39,6 +44,8 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public class JavaSourceFileParserTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private Path workspace;
 
   @Before
@@ -331,6 +338,404 @@ public class JavaSourceFileParserTest {
             "java_library");
   }
 
+  /** Tests that main methods are recognized without bindings, in all the ways they're declared. */
+  @Test
+  public void ruleKindDetection_bindingFree() throws Exception {
+    String[][] mains = {
+      {"Brackets", "", "String[] args"},
+      {"CStyle", "", "String args[]"},
+      {"Varargs", "", "String... args"},
+      {"Qualified", "", "java.lang.String[] args"},
+      {"ImportsOtherString", "import org.String;", "String[] args"},
+      {"DeclaresString", "", "String[] args) {} class String {} void f("},
+      {"TwoDimensions", "", "String[][] args"},
+    };
+    createSourceFiles("x/");
+    ImmutableList.Builder<Path> files = ImmutableList.builder();
+    for (String[] main : mains) {
+      files.add(
+          writeFile(
+              workspace.resolve("x/" + main[0] + ".java"),
+              "package x;",
+              main[1],
+              "class " + main[0] + " {",
+              "  public static void main(" + main[2] + ") { }",
+              "}"));
+    }
+    Path typeIndexPath = workspace.resolve("types.idx");
+    try (OutputStream out = Files.newOutputStream(typeIndexPath)) {
+      TypeIndex.write(ImmutableList.of("java.lang.String"), out);
+    }
+    JavaSourceFileParser parser =
+        new JavaSourceFileParser(
+            files.build(),
+            ImmutableList.of(workspace),
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder()
+                .setTypeIndex(TypeIndex.load(typeIndexPath))
+                .build());
+
+    assertThat(parser.getFilesToRuleKind())
+        .containsExactly(
+            "/src/x/Brackets.java", "java_binary",
+            "/src/x/CStyle.java", "java_binary",
+            "/src/x/Varargs.java", "java_binary",
+            "/src/x/Qualified.java", "java_binary",
+            "/src/x/ImportsOtherString.java", "java_library",
+            "/src/x/DeclaresString.java", "java_library",
+            "/src/x/TwoDimensions.java", "java_library");
+  }
+
+  /**
+   * Tests that parsing files concurrently produces exactly the same output as parsing them one by
+   * one, including the iteration order of nodes and maps.
+   */
+  @Test
+  public void parallelParsingMatchesSequentialParsing() throws Exception {
+    Path x = workspace.resolve("x/");
+    Files.createDirectories(x);
+    ImmutableList.Builder<Path> files = ImmutableList.builder();
+    for (int i = 0; i < 20; i++) {
+      files.add(
+          writeFile(
+              x.resolve(String.format("A%d.java", i)),
+              "package x;",
+              "import org.external.Ext" + i + ";",
+              String.format("class A%d {", i),
+              String.format("  A%d next;", (i + 1) % 20),
+              "  Ext" + i + " ext;",
+              "}"));
+    }
+    ImmutableList<Path> contentRoots = ImmutableList.of(workspace);
+    JavaSourceFileParser sequential =
+        new JavaSourceFileParser(
+            files.build(),
+            contentRoots,
+            ImmutableSet.of(x),
+            JavaSourceFileParser.Options.builder().setNumThreads(1).build());
+    JavaSourceFileParser parallel =
+        new JavaSourceFileParser(
+            files.build(),
+            contentRoots,
+            ImmutableSet.of(x),
+            JavaSourceFileParser.Options.builder().setNumThreads(4).build());
+
+    assertThat(parallel.getClassToClass().nodes())
+        .containsExactlyElementsIn(sequential.getClassToClass().nodes())
+        .inOrder();
+    for (String node : sequential.getClassToClass().nodes()) {
+      assertThat(parallel.getClassToClass().successors(node))
+          .containsExactlyElementsIn(sequential.getClassToClass().successors(node))
+          .inOrder();
+    }
+    assertThat(parallel.getClassToFile()).containsExactlyEntriesIn(sequential.getClassToFile());
+    assertThat(parallel.getClassToFile().keySet())
+        .containsExactlyElementsIn(sequential.getClassToFile().keySet())
+        .inOrder();
+    assertThat(parallel.getFilesToRuleKind())
+        .containsExactlyEntriesIn(sequential.getFilesToRuleKind())
+        .inOrder();
+    assertThat(parallel.getUnresolvedClassNames())
+        .containsExactlyElementsIn(sequential.getUnresolvedClassNames())
+        .inOrder();
+  }
+
+  /** Tests that parsing files in batches produces the same output as parsing them one by one. */
+  @Test
+  public void batchParsingMatchesParsingFilesOneByOne() throws Exception {
+    // JDT reads batched files itself, so they have to be on the default file system.
+    Path root = temporaryFolder.getRoot().toPath();
+    Path x = Files.createDirectories(root.resolve("x"));
+    ImmutableList.Builder<Path> files = ImmutableList.builder();
+    for (int i = 0; i < 7; i++) {
+      files.add(
+          writeFile(
+              x.resolve(String.format("A%d.java", i)),
+              "package x;",
+              "import org.external.Ext" + i + ";",
+              String.format("class A%d {", i),
+              String.format("  A%d next;", (i + 1) % 7),
+              "  Ext" + i + " ext;",
+              "  Unknown" + i + " unknown;",
+              "}"));
+    }
+    files.add(
+        writeFile(
+            x.resolve("Main.java"),
+            "package x;",
+            "class Main {",
+            "  public static void main(String[] args) {",
+            "    new A0();",
+            "  }",
+            "}"));
+    files.add(
+        writeFile(
+            x.resolve("MainTest.java"),
+            "package x;",
+            "import org.junit.Test;",
+            "public class MainTest {",
+            "  @Test public void test() {}",
+            "}"));
+    ImmutableList<Path> contentRoots = ImmutableList.of(root);
+    JavaSourceFileParser oneByOne =
+        new JavaSourceFileParser(files.build(), contentRoots, ImmutableSet.of());
+    JavaSourceFileParser batched =
+        new JavaSourceFileParser(
+            files.build(),
+            contentRoots,
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder().setNumThreads(2).setBatchSize(4).build());
+
+    assertThatGraphsEqual(batched.getClassToClass(), oneByOne.getClassToClass());
+    assertThat(batched.getClassToFile())
+        .containsExactlyEntriesIn(oneByOne.getClassToFile())
+        .inOrder();
+    assertThat(batched.getFilesToRuleKind())
+        .containsExactlyEntriesIn(oneByOne.getFilesToRuleKind())
+        .inOrder();
+    assertThat(batched.getFilesToRuleKind().values()).containsAllOf("java_binary", "java_test");
+    assertThat(batched.getUnresolvedClassNames())
+        .containsExactlyElementsIn(oneByOne.getUnresolvedClassNames())
+        .inOrder();
+  }
+
+  /** Tests that a second run over unchanged files reads them from the parse cache. */
+  @Test
+  public void parseCacheIsUsedForUnchangedFiles() throws Exception {
+    createSourceFiles("com/hello/", "com/hello/Dummy.java", "com/hello/ClassA.java");
+    Path file1 =
+        writeFile(
+            workspace.resolve("com/hello/Dummy.java"),
+            "package com.hello;",
+            "import org.external.ClassC;",
+            "class Dummy {",
+            "  void method(ClassA a, Unknown u) {",
+            "    new ClassC();",
+            "  }",
+            "}");
+    Path file2 =
+        writeFile(
+            workspace.resolve("com/hello/ClassA.java"), "package com.hello;", "class ClassA {}");
+    ImmutableList<Path> roots = ImmutableList.of(workspace);
+    ParseCache cache =
+        new ParseCache(workspace.getFileSystem().getPath("/cache"), Long.MAX_VALUE, roots);
+    JavaSourceFileParser.Options options =
+        JavaSourceFileParser.Options.builder().setParseCache(cache).build();
+
+    JavaSourceFileParser first =
+        new JavaSourceFileParser(ImmutableList.of(file1, file2), roots, ImmutableSet.of(), options);
+    assertThat(cache.hitCount()).isEqualTo(0);
+    JavaSourceFileParser second =
+        new JavaSourceFileParser(ImmutableList.of(file1, file2), roots, ImmutableSet.of(), options);
+    assertThat(cache.hitCount()).isEqualTo(2);
+
+    assertThatGraphsEqual(second.getClassToClass(), first.getClassToClass());
+    assertThat(second.getClassToFile()).containsExactlyEntriesIn(first.getClassToFile());
+    assertThat(second.getFilesToRuleKind()).containsExactlyEntriesIn(first.getFilesToRuleKind());
+    assertThat(second.getUnresolvedClassNames()).containsExactly("Unknown");
+  }
+
+  /**
+   * Tests that adding a class to a package that a cached file imports on demand invalidates the
+   * file's entry, since a simple name in it may now resolve to the new class.
+   */
+  @Test
+  public void parseCacheIsInvalidatedByPackagesImportedOnDemand() throws Exception {
+    createSourceFiles("y/", "y/O.java");
+    Files.createDirectories(workspace.resolve("x"));
+    Path file =
+        writeFile(
+            workspace.resolve("y/O.java"),
+            "package y;",
+            "import x.*;",
+            "class O {",
+            "  Missing m;",
+            "}");
+    ImmutableList<Path> roots = ImmutableList.of(workspace);
+    Path cacheDir = workspace.getFileSystem().getPath("/cache");
+    JavaSourceFileParser first =
+        new JavaSourceFileParser(
+            ImmutableList.of(file),
+            roots,
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder()
+                .setParseCache(new ParseCache(cacheDir, Long.MAX_VALUE, roots))
+                .build());
+    assertThat(first.getUnresolvedClassNames()).containsExactly("Missing");
+
+    writeFile(workspace.resolve("x/Missing.java"), "package x;", "public class Missing {}");
+    ParseCache cache = new ParseCache(cacheDir, Long.MAX_VALUE, roots);
+    JavaSourceFileParser second =
+        new JavaSourceFileParser(
+            ImmutableList.of(file),
+            roots,
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder().setParseCache(cache).build());
+
+    assertThat(cache.hitCount()).isEqualTo(0);
+    assertThat(second.getUnresolvedClassNames()).isEmpty();
+    assertThat(second.getClassToClass().successors("y.O")).containsExactly("x.Missing");
+  }
+
+  /** Tests that the time spent on each phase of parsing is recorded once per file. */
+  @Test
+  public void timingsAreRecordedPerFile() throws Exception {
+    createSourceFiles("com/hello/", "com/hello/Dummy.java", "com/hello/ClassA.java");
+    Path file1 =
+        writeFile(
+            workspace.resolve("com/hello/Dummy.java"),
+            "package com.hello;",
+            "class Dummy {",
+            "  ClassA a;",
+            "}");
+    Path file2 =
+        writeFile(
+            workspace.resolve("com/hello/ClassA.java"), "package com.hello;", "class ClassA {}");
+    ParseTimings timings = new ParseTimings(1 /* maxSlowestFiles */);
+
+    new JavaSourceFileParser(
+        ImmutableList.of(file1, file2),
+        ImmutableList.of(workspace),
+        ImmutableSet.of(),
+        JavaSourceFileParser.Options.builder().setTimings(timings).build());
+
+    assertThat(timings.fileCount()).isEqualTo(2);
+    assertThat(timings.histogram(ParseTimings.Phase.RESOLVE).count()).isEqualTo(2);
+    assertThat(timings.histogram(ParseTimings.Phase.RESOLVE).max()).isGreaterThan(0L);
+    assertThat(timings.slowestFiles()).hasSize(1);
+    assertThat(ImmutableList.of(file1.toString(), file2.toString()))
+        .contains(timings.slowestFiles().get(0).file());
+  }
+
+  @Test
+  public void fileWithSyntaxError_failsTheRun() throws Exception {
+    createSourceFiles("com/hello/", "com/hello/Broken.java");
+    Path broken =
+        writeFile(workspace.resolve("com/hello/Broken.java"), "package com.hello;", "class {");
+
+    try {
+      createParser(broken);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageThat().contains(broken.toString());
+    }
+  }
+
+  /** Tests that with failures recorded, a broken file is left out and the others are parsed. */
+  @Test
+  public void failedFilesAreRecordedAndSkipped() throws Exception {
+    createSourceFiles("com/hello/", "com/hello/Dummy.java", "com/hello/Broken.java");
+    Path dummy =
+        writeFile(
+            workspace.resolve("com/hello/Dummy.java"),
+            "package com.hello;",
+            "class Dummy {",
+            "  Broken b;",
+            "}");
+    Path broken =
+        writeFile(workspace.resolve("com/hello/Broken.java"), "package com.hello;", "class {");
+    ParseFailures failures = new ParseFailures();
+
+    JavaSourceFileParser parser =
+        new JavaSourceFileParser(
+            ImmutableList.of(broken, dummy),
+            ImmutableList.of(workspace),
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder().setFailures(failures).build());
+
+    assertThat(failures.files().keySet()).containsExactly(broken);
+    assertThat(failures.files().get(broken)).isNotEmpty();
+    assertThat(parser.getClassToFile()).containsExactly("com.hello.Dummy", dummy.toString());
+    assertThat(parser.getClassToClass().successors("com.hello.Dummy"))
+        .containsExactly("com.hello.Broken");
+  }
+
+  @Test
+  public void failedFilesAreRecordedAndSkipped_batched() throws Exception {
+    // JDT reads batched files itself, so they have to be on the default file system.
+    Path x = Files.createDirectories(temporaryFolder.getRoot().toPath().resolve("x"));
+    Path a = writeFile(x.resolve("A.java"), "package x;", "class A { B b; }");
+    Path broken = writeFile(x.resolve("Broken.java"), "package x;", "class Broken { void f( }");
+    Path b = writeFile(x.resolve("B.java"), "package x;", "class B {}");
+    ParseFailures failures = new ParseFailures();
+
+    JavaSourceFileParser parser =
+        new JavaSourceFileParser(
+            ImmutableList.of(a, broken, b),
+            ImmutableList.of(temporaryFolder.getRoot().toPath()),
+            ImmutableSet.of(),
+            JavaSourceFileParser.Options.builder().setFailures(failures).setBatchSize(3).build());
+
+    assertThat(failures.files().keySet()).containsExactly(broken);
+    assertThat(parser.getClassToFile().keySet()).containsExactly("x.A", "x.B").inOrder();
+  }
+
+  /**
+   * Tests that a run resumed from a checkpoint only parses the files that failed or weren't
+   * parsed, and gives the same graph as a run from scratch.
+   */
+  @Test
+  public void checkpointedRunResumesWithFailedAndRemainingFiles() throws Exception {
+    createSourceFiles(
+        "com/hello/", "com/hello/Dummy.java", "com/hello/ClassA.java", "com/hello/Broken.java");
+    Path dummy =
+        writeFile(
+            workspace.resolve("com/hello/Dummy.java"),
+            "package com.hello;",
+            "class Dummy {",
+            "  ClassA a;",
+            "}");
+    Path classA =
+        writeFile(
+            workspace.resolve("com/hello/ClassA.java"), "package com.hello;", "class ClassA {}");
+    Path broken =
+        writeFile(workspace.resolve("com/hello/Broken.java"), "package com.hello;", "class {");
+    ImmutableList<Path> files = ImmutableList.of(dummy, classA, broken);
+    ImmutableList<Path> roots = ImmutableList.of(workspace);
+    Path checkpointFile = workspace.getFileSystem().getPath("/checkpoint");
+    HashCode configuration =
+        ParseCheckpoint.configuration(
+            roots, null /* typeIndex */, null /* packageIndex */, false /* fast */);
+
+    ParseFailures failures = new ParseFailures();
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, configuration)) {
+      new JavaSourceFileParser(
+          files,
+          roots,
+          ImmutableSet.of(),
+          JavaSourceFileParser.Options.builder()
+              .setFailures(failures)
+              .setCheckpoint(checkpoint)
+              .build());
+    }
+    assertThat(failures.files().keySet()).containsExactly(broken);
+
+    writeFile(broken, "package com.hello;", "class Broken { Dummy d; }");
+    ParseTimings timings = new ParseTimings(0 /* maxSlowestFiles */);
+    JavaSourceFileParser resumed;
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, configuration)) {
+      resumed =
+          new JavaSourceFileParser(
+              files,
+              roots,
+              ImmutableSet.of(),
+              JavaSourceFileParser.Options.builder()
+                  .setCheckpoint(checkpoint)
+                  .setTimings(timings)
+                  .build());
+      assertThat(checkpoint.resumedCount()).isEqualTo(2);
+    }
+    assertThat(timings.fileCount()).isEqualTo(1);
+
+    JavaSourceFileParser fromScratch = createParser(dummy, classA, broken);
+    assertThatGraphsEqual(resumed.getClassToClass(), fromScratch.getClassToClass());
+    assertThat(resumed.getClassToFile()).containsExactlyEntriesIn(fromScratch.getClassToFile());
+    assertThat(resumed.getFilesToRuleKind())
+        .containsExactlyEntriesIn(fromScratch.getFilesToRuleKind());
+  }
+
   private void createSourceFiles(String dir, String... filePaths) throws IOException {
     Files.createDirectories(workspace.resolve(dir));
     for (String filePathString : filePaths) {
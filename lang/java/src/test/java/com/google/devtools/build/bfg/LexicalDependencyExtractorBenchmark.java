@@ -0,0 +1,152 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.graph.EndpointPair;
+import com.google.common.graph.ImmutableGraph;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Compares the accuracy and speed of {@link JavaSourceFileParser}'s fast mode, which uses {@link
+ * LexicalDependencyExtractor}, with those of its default mode, which uses {@link
+ * ReferencedClassesParser}, on a corpus of Java files, e.g.,
+ *
+ * <pre>
+ * bazel run \
+ *     //lang/java/src/test/java/com/google/devtools/build/bfg:LexicalDependencyExtractorBenchmark \
+ *     -- $PWD/src/main/java,$PWD/src/test/java $(find $PWD/src -name \*.java)
+ * </pre>
+ *
+ * <p>The default mode's output is taken as the truth. Accuracy is reported as the precision and
+ * recall of the fast mode's class graph edges, and as the fraction of classes whose dependencies
+ * and rule kind are exactly the same. Speed is reported as in {@link
+ * ReferencedClassesParserBenchmark}.
+ */
+public class LexicalDependencyExtractorBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 2;
+
+  private static final int MEASURED_ITERATIONS = 3;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: LexicalDependencyExtractorBenchmark <content roots, comma-separated> "
+              + "<java files>");
+      System.exit(1);
+    }
+    ImmutableList<Path> contentRoots =
+        Splitter.on(',')
+            .omitEmptyStrings()
+            .splitToList(args[0])
+            .stream()
+            .map(p -> Paths.get(p))
+            .collect(toImmutableList());
+    ImmutableList<Path> files =
+        Arrays.stream(args, 1, args.length).map(f -> Paths.get(f)).collect(toImmutableList());
+    JavaSourceFileParser.Options.Builder options =
+        JavaSourceFileParser.Options.builder()
+            .setContentRootIndex(ContentRootIndex.ofSourceFiles(contentRoots, files));
+
+    System.out.printf("Parsing %d files%n", files.size());
+    JavaSourceFileParser full = parse(files, contentRoots, options.setFast(false).build());
+    JavaSourceFileParser fast = parse(files, contentRoots, options.setFast(true).build());
+    reportAccuracy(full, fast);
+    reportSpeed("default", measure(files, contentRoots, options.setFast(false).build()));
+    reportSpeed("fast", measure(files, contentRoots, options.setFast(true).build()));
+  }
+
+  private static JavaSourceFileParser parse(
+      ImmutableList<Path> files,
+      ImmutableList<Path> contentRoots,
+      JavaSourceFileParser.Options options)
+      throws IOException {
+    return new JavaSourceFileParser(
+        files, contentRoots, ImmutableSet.of() /* oneRulePerPackageRoots */, options);
+  }
+
+  private static void reportAccuracy(JavaSourceFileParser full, JavaSourceFileParser fast) {
+    ImmutableGraph<String> expected = full.getClassToClass();
+    ImmutableGraph<String> actual = fast.getClassToClass();
+    Set<EndpointPair<String>> correct = Sets.intersection(actual.edges(), expected.edges());
+    System.out.printf(
+        "Edges: %d default, %d fast, %d in both%n",
+        expected.edges().size(), actual.edges().size(), correct.size());
+    System.out.printf(
+        "  precision %.1f%%, recall %.1f%%%n",
+        percent(correct.size(), actual.edges().size()),
+        percent(correct.size(), expected.edges().size()));
+
+    int sameDependencies = 0;
+    for (String className : full.getClassToFile().keySet()) {
+      if (successors(expected, className).equals(successors(actual, className))) {
+        sameDependencies++;
+      }
+    }
+    int sameRuleKind = 0;
+    for (String file : full.getFilesToRuleKind().keySet()) {
+      if (full.getFilesToRuleKind().get(file).equals(fast.getFilesToRuleKind().get(file))) {
+        sameRuleKind++;
+      }
+    }
+    int classes = full.getClassToFile().size();
+    System.out.printf(
+        "Classes: %d, with the same dependencies %.1f%%, with the same rule kind %.1f%%%n",
+        classes,
+        percent(sameDependencies, classes),
+        percent(sameRuleKind, full.getFilesToRuleKind().size()));
+  }
+
+  private static Set<String> successors(ImmutableGraph<String> graph, String node) {
+    return graph.nodes().contains(node) ? graph.successors(node) : ImmutableSet.of();
+  }
+
+  private static double percent(int part, int whole) {
+    return whole == 0 ? 100 : 100.0 * part / whole;
+  }
+
+  /** Returns the median time, in nanoseconds, that parsing takes per source file. */
+  private static double measure(
+      ImmutableList<Path> files,
+      ImmutableList<Path> contentRoots,
+      JavaSourceFileParser.Options options)
+      throws IOException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      parse(files, contentRoots, options);
+    }
+    double[] nanosPerFile = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long start = System.nanoTime();
+      parse(files, contentRoots, options);
+      nanosPerFile[i] = (double) (System.nanoTime() - start) / files.size();
+    }
+    Arrays.sort(nanosPerFile);
+    return nanosPerFile[MEASURED_ITERATIONS / 2];
+  }
+
+  private static void reportSpeed(String mode, double nanosPerFile) {
+    System.out.printf("%-20s %10.1f us/file%n", mode, nanosPerFile / 1000);
+  }
+}
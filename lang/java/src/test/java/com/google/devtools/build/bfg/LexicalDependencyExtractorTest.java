@@ -0,0 +1,193 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LexicalDependencyExtractor}. */
+@RunWith(JUnit4.class)
+public class LexicalDependencyExtractorTest {
+
+  private static final Path ROOT = Paths.get("/src");
+
+  /** com.hello.ClassA and com.hello.Dummy have source files. */
+  private static final ContentRootIndex CONTENT_ROOTS =
+      ContentRootIndex.ofSourceFiles(
+          ImmutableList.of(ROOT),
+          ImmutableList.of(
+              ROOT.resolve("com/hello/ClassA.java"), ROOT.resolve("com/hello/Dummy.java")));
+
+  @Test
+  public void importsQualifiedNamesAndSamePackageClasses() {
+    SourceFileSummary summary =
+        extract(
+            "package com.hello;",
+            "import org.external.ClassC;",
+            "import com.google.common.annotations.VisibleForTesting;",
+            "import static org.mockito.Mockito.mock;",
+            "class Dummy {",
+            "  @VisibleForTesting",
+            "  void method(ClassA a) {",
+            "    new ClassC();",
+            "    Unknown u = mock(Unknown.class);",
+            "  }",
+            "  com.google.Hi method() { return com.google.Factory.Inner.create(); }",
+            "}");
+
+    assertThat(summary.packageName()).isEqualTo("com.hello");
+    assertThat(summary.fullyQualifiedClassName()).isEqualTo("com.hello.Dummy");
+    assertThat(summary.qualifiedTopLevelNames())
+        .containsExactly(
+            "org.external.ClassC",
+            "com.google.common.annotations.VisibleForTesting",
+            "org.mockito.Mockito",
+            "com.hello.ClassA",
+            "com.google.Hi",
+            "com.google.Factory")
+        .inOrder();
+    assertThat(summary.unresolvedClassNames()).isEmpty();
+    assertThat(summary.ruleKind()).isEqualTo("java_library");
+  }
+
+  @Test
+  public void ignoresCommentsLiteralsAndJavaLang() {
+    SourceFileSummary summary =
+        extract(
+            "package com.hello;",
+            "import java.lang.Override;",
+            "import java.util.*;",
+            "/** Uses {@link ClassA} and com.google.InJavadoc. */",
+            "class Dummy {",
+            "  // com.google.InComment",
+            "  String s = \"com.google.InString \\\" ClassA\";",
+            "  char c = '\\'';",
+            "  Object o = java.lang.Thread.State.NEW;",
+            "}");
+
+    assertThat(summary.qualifiedTopLevelNames()).isEmpty();
+  }
+
+  @Test
+  public void nestedClassesAreNotDependencies() {
+    SourceFileSummary summary =
+        extract(
+            "package com.hello;",
+            "class Dummy {",
+            "  static class ClassA {}",
+            "  ClassA a;",
+            "  Class<?> c = Dummy.class;",
+            "}");
+
+    assertThat(summary.fullyQualifiedClassName()).isEqualTo("com.hello.Dummy");
+    assertThat(summary.qualifiedTopLevelNames()).isEmpty();
+  }
+
+  @Test
+  public void annotationsBeforeClassDeclaration() {
+    SourceFileSummary summary =
+        extract(
+            "package com.hello;",
+            "@org.junit.runner.RunWith(org.junit.runners.JUnit4.class)",
+            "public class DummyTest {",
+            "  @org.junit.Test public void test() {}",
+            "}");
+
+    assertThat(summary.fullyQualifiedClassName()).isEqualTo("com.hello.DummyTest");
+    assertThat(summary.qualifiedTopLevelNames())
+        .containsExactly("org.junit.runner.RunWith", "org.junit.runners.JUnit4", "org.junit.Test")
+        .inOrder();
+    assertThat(summary.ruleKind()).isEqualTo("java_test");
+  }
+
+  @Test
+  public void ruleKinds() {
+    assertThat(
+            extract(
+                    "package x;",
+                    "class Binary {",
+                    "  public static void main(final String... args) {}",
+                    "}")
+                .ruleKind())
+        .isEqualTo("java_binary");
+    assertThat(
+            extract(
+                    "package x;",
+                    "class NotBinary {",
+                    "  class Inner { public static void main(String[] args) {} }",
+                    "  public void main(String[] args) {}",
+                    "  public static void main(int i) {}",
+                    "}")
+                .ruleKind())
+        .isEqualTo("java_library");
+    assertThat(
+            extract(
+                    "package x;",
+                    "import org.junit.Test;",
+                    "public abstract class AbstractTest {",
+                    "  @Test public void test() {}",
+                    "}")
+                .ruleKind())
+        .isEqualTo("java_library");
+  }
+
+  @Test
+  public void annotationTypeDeclaration() {
+    SourceFileSummary summary = extract("package x;", "public @interface Foo {}");
+
+    assertThat(summary.fullyQualifiedClassName()).isEqualTo("x.Foo");
+  }
+
+  @Test
+  public void fileWithoutClasses() {
+    SourceFileSummary summary =
+        extract("@javax.annotation.ParametersAreNonnullByDefault", "package x;");
+
+    assertThat(summary.packageName()).isEqualTo("x");
+    assertThat(summary.fullyQualifiedClassName()).isEmpty();
+    assertThat(summary.qualifiedTopLevelNames()).isEmpty();
+  }
+
+  @Test
+  public void onDemandImports() {
+    String source =
+        Joiner.on('\n')
+            .join(
+                "package com.hello;",
+                "import com.other.*;",
+                "import com.other.Single;",
+                "import static org.junit.Assert.*;",
+                "import /* comment */ org . more . *;",
+                "class Dummy {",
+                "  String s = \"import not.an.import.*;\";",
+                "}");
+
+    assertThat(LexicalDependencyExtractor.onDemandImports(source.toCharArray()))
+        .containsExactly("com.other", "org.more")
+        .inOrder();
+  }
+
+  private static SourceFileSummary extract(String... lines) {
+    return LexicalDependencyExtractor.extract(
+        Joiner.on('\n').join(lines).toCharArray(), CONTENT_ROOTS);
+  }
+}
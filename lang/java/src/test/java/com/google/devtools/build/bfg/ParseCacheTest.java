@@ -0,0 +1,170 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParseCache}. */
+@RunWith(JUnit4.class)
+public class ParseCacheTest {
+
+  private static final SourceFileSummary SUMMARY =
+      SourceFileSummary.create(
+          "com.hello",
+          "com.hello.Dummy",
+          ImmutableList.of("com.hello.ClassA", "org.external.ClassC"),
+          ImmutableList.of("Unknown"),
+          "java_library");
+
+  private Path root;
+
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fileSystem =
+        Jimfs.newFileSystem(Configuration.forCurrentPlatform().toBuilder().build());
+    root = fileSystem.getPath("/src/");
+    Files.createDirectories(root.resolve("com/hello"));
+    Files.createFile(root.resolve("com/hello/Dummy.java"));
+    cacheDir = fileSystem.getPath("/cache/");
+  }
+
+  @Test
+  public void storedSummariesAreReturned() throws IOException {
+    ParseCache cache = newCache(Long.MAX_VALUE);
+    String key = cache.key(bytes("class Dummy {}"));
+
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, SUMMARY);
+
+    assertThat(cache.get(key)).isEqualTo(SUMMARY);
+    assertThat(newCache(Long.MAX_VALUE).get(key)).isEqualTo(SUMMARY);
+    assertThat(cache.hitCount()).isEqualTo(1);
+    assertThat(cache.missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void keyDependsOnContentAndContentRoots() throws IOException {
+    ParseCache cache = newCache(Long.MAX_VALUE);
+    ParseCache otherRoots =
+        new ParseCache(cacheDir, Long.MAX_VALUE, ImmutableList.of(root, root.resolve("other")));
+
+    assertThat(cache.key(bytes("class A {}"))).isEqualTo(cache.key(bytes("class A {}")));
+    assertThat(cache.key(bytes("class A {}"))).isNotEqualTo(cache.key(bytes("class B {}")));
+    assertThat(cache.key(bytes("class A {}"))).isNotEqualTo(otherRoots.key(bytes("class A {}")));
+  }
+
+  /**
+   * Tests that adding a file to a package invalidates the package's entries, since simple names
+   * in them may now resolve to the new class.
+   */
+  @Test
+  public void changingThePackageInvalidatesEntries() throws IOException {
+    String key = newCache(Long.MAX_VALUE).key(bytes("class Dummy {}"));
+    newCache(Long.MAX_VALUE).put(key, SUMMARY);
+
+    Files.createFile(root.resolve("com/hello/Unknown.java"));
+
+    assertThat(newCache(Long.MAX_VALUE).get(key)).isNull();
+  }
+
+  /**
+   * Tests that adding a file to a package that an entry's file imports on demand invalidates the
+   * entry, since simple names in it may now resolve to the new class.
+   */
+  @Test
+  public void changingAPackageImportedOnDemandInvalidatesEntries() throws IOException {
+    SourceFileSummary summary =
+        SourceFileSummary.create(
+            "com.hello",
+            "com.hello.Dummy",
+            ImmutableList.of(),
+            ImmutableList.of("Unknown"),
+            "java_library",
+            ImmutableList.of("com.other"));
+    String key = newCache(Long.MAX_VALUE).key(bytes("class Dummy {}"));
+    newCache(Long.MAX_VALUE).put(key, summary);
+    assertThat(newCache(Long.MAX_VALUE).get(key)).isEqualTo(summary);
+
+    Files.createDirectories(root.resolve("com/other"));
+    Files.createFile(root.resolve("com/other/Unknown.java"));
+
+    assertThat(newCache(Long.MAX_VALUE).get(key)).isNull();
+  }
+
+  @Test
+  public void evictRemovesLeastRecentlyUsedEntries() throws IOException {
+    ParseCache cache = newCache(Long.MAX_VALUE);
+    String oldKey = cache.key(bytes("old"));
+    String newKey = cache.key(bytes("new"));
+    cache.put(oldKey, SUMMARY);
+    cache.put(newKey, SUMMARY);
+    Files.setLastModifiedTime(cacheDir.resolve(oldKey), FileTime.fromMillis(1000));
+    Files.setLastModifiedTime(cacheDir.resolve(newKey), FileTime.fromMillis(2000));
+    long entrySize = Files.size(cacheDir.resolve(newKey));
+
+    ParseCache smallCache = newCache(entrySize);
+    smallCache.evict();
+
+    assertThat(smallCache.get(oldKey)).isNull();
+    assertThat(smallCache.get(newKey)).isEqualTo(SUMMARY);
+    assertThat(smallCache.stats()).isEqualTo("Parse cache: 1 hits, 1 misses, 1 entries evicted");
+  }
+
+  /**
+   * Tests that only entries are evicted: not other files in the directory, entries that another
+   * process is still writing, or subdirectories.
+   */
+  @Test
+  public void evictOnlyDeletesEntries() throws IOException {
+    ParseCache cache = newCache(0);
+    String key = cache.key(bytes("class Dummy {}"));
+    cache.put(key, SUMMARY);
+    Path otherFile = Files.write(cacheDir.resolve("notes.txt"), bytes("keep me"));
+    Path tempFile = Files.write(cacheDir.resolve(key + "123.tmp"), bytes("partial"));
+    Path subdirectory = Files.createDirectories(cacheDir.resolve("sub"));
+    Files.write(subdirectory.resolve("x.txt"), bytes("keep me too"));
+
+    cache.evict();
+
+    assertThat(Files.exists(cacheDir.resolve(key))).isFalse();
+    assertThat(Files.exists(otherFile)).isTrue();
+    assertThat(Files.exists(tempFile)).isTrue();
+    assertThat(Files.exists(subdirectory.resolve("x.txt"))).isTrue();
+  }
+
+  private ParseCache newCache(long maxSizeBytes) throws IOException {
+    return new ParseCache(cacheDir, maxSizeBytes, ImmutableList.of(root));
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(UTF_8);
+  }
+}
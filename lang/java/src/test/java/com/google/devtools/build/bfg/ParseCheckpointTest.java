@@ -0,0 +1,176 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParseCheckpoint}. */
+@RunWith(JUnit4.class)
+public class ParseCheckpointTest {
+
+  private static final SourceFileSummary SUMMARY =
+      SourceFileSummary.create(
+          "com.hello",
+          "com.hello.Dummy",
+          ImmutableList.of("com.hello.ClassA"),
+          ImmutableList.of("Unknown"),
+          "java_library");
+
+  private static final HashCode CONFIGURATION =
+      ParseCheckpoint.configuration(
+          ImmutableList.of(), null /* typeIndex */, null /* packageIndex */, false /* fast */);
+
+  private Path dummy;
+
+  private Path classA;
+
+  private Path checkpointFile;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    Path dir = Files.createDirectories(fileSystem.getPath("/src/com/hello"));
+    dummy = Files.write(dir.resolve("Dummy.java"), "class Dummy {}".getBytes(UTF_8));
+    classA = Files.write(dir.resolve("ClassA.java"), "class ClassA {}".getBytes(UTF_8));
+    checkpointFile = fileSystem.getPath("/checkpoint");
+  }
+
+  @Test
+  public void savedSummariesAreReturnedAfterReopening() throws IOException {
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isNull();
+      checkpoint.put(dummy, attributes(dummy), SUMMARY);
+    }
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isEqualTo(SUMMARY);
+      assertThat(checkpoint.get(classA, attributes(classA))).isNull();
+      assertThat(checkpoint.resumedCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void changedFilesAreNotResumed() throws IOException {
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      checkpoint.put(dummy, attributes(dummy), SUMMARY);
+      checkpoint.put(classA, attributes(classA), SUMMARY);
+    }
+    Files.write(dummy, "class Dummy { ClassA a; }".getBytes(UTF_8));
+    Files.setLastModifiedTime(classA, FileTime.fromMillis(0));
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isNull();
+      assertThat(checkpoint.get(classA, attributes(classA))).isNull();
+    }
+  }
+
+  /** Tests that summaries saved by a run with another configuration, e.g., --fast, are dropped. */
+  @Test
+  public void otherConfigurationIsNotResumed() throws IOException {
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      checkpoint.put(dummy, attributes(dummy), SUMMARY);
+    }
+    HashCode fastConfiguration =
+        ParseCheckpoint.configuration(
+            ImmutableList.of(), null /* typeIndex */, null /* packageIndex */, true /* fast */);
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, fastConfiguration)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isNull();
+      checkpoint.put(classA, attributes(classA), SUMMARY);
+    }
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isNull();
+      assertThat(checkpoint.get(classA, attributes(classA))).isNull();
+    }
+  }
+
+  /** Tests that an entry cut short by a crash is dropped, and the ones before it are kept. */
+  @Test
+  public void partialEntryIsDropped() throws IOException {
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      checkpoint.put(dummy, attributes(dummy), SUMMARY);
+      checkpoint.put(classA, attributes(classA), SUMMARY);
+    }
+    byte[] content = Files.readAllBytes(checkpointFile);
+    Files.write(checkpointFile, Arrays.copyOf(content, content.length - 5));
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isEqualTo(SUMMARY);
+      assertThat(checkpoint.get(classA, attributes(classA))).isNull();
+      checkpoint.put(classA, attributes(classA), SUMMARY);
+    }
+
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION)) {
+      assertThat(checkpoint.get(dummy, attributes(dummy))).isEqualTo(SUMMARY);
+      assertThat(checkpoint.get(classA, attributes(classA))).isEqualTo(SUMMARY);
+    }
+  }
+
+  /** Tests that summaries are written to disk every 'flushEvery' files, before closing. */
+  @Test
+  public void summariesAreFlushedPeriodically() throws IOException {
+    try (ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 2 /* flushEvery */, CONFIGURATION)) {
+      long headerSize = Files.size(checkpointFile);
+      checkpoint.put(dummy, attributes(dummy), SUMMARY);
+      assertThat(Files.size(checkpointFile)).isEqualTo(headerSize);
+      checkpoint.put(classA, attributes(classA), SUMMARY);
+      assertThat(Files.size(checkpointFile)).isGreaterThan(headerSize);
+    }
+  }
+
+  @Test
+  public void deleteRemovesTheFile() throws IOException {
+    ParseCheckpoint checkpoint =
+        ParseCheckpoint.open(checkpointFile, 1 /* flushEvery */, CONFIGURATION);
+    checkpoint.put(dummy, attributes(dummy), SUMMARY);
+
+    checkpoint.delete();
+
+    assertThat(Files.exists(checkpointFile)).isFalse();
+  }
+
+  private static BasicFileAttributes attributes(Path file) throws IOException {
+    return Files.readAttributes(file, BasicFileAttributes.class);
+  }
+}
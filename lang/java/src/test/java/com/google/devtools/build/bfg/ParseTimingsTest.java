@@ -0,0 +1,135 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.devtools.build.bfg.ParseTimings.FileTiming;
+import com.google.devtools.build.bfg.ParseTimings.Phase;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.FileSystem;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParseTimings} and {@link LatencyHistogram}. */
+@RunWith(JUnit4.class)
+public class ParseTimingsTest {
+
+  private final FileSystem fileSystem =
+      Jimfs.newFileSystem(Configuration.forCurrentPlatform().toBuilder().build());
+
+  @Test
+  public void histogram_smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.count()).isEqualTo(100);
+    assertThat(histogram.total()).isEqualTo(5050);
+    assertThat(histogram.max()).isEqualTo(100);
+    assertThat(histogram.valueAtPercentile(50)).isEqualTo(50);
+    assertThat(histogram.valueAtPercentile(99)).isEqualTo(99);
+    assertThat(histogram.valueAtPercentile(100)).isEqualTo(100);
+  }
+
+  @Test
+  public void histogram_largeValuesAreWithinBucketWidth() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1_000_000);
+    }
+
+    for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+      long exact = (long) Math.ceil(percentile * 10) * 1_000_000;
+      long reported = histogram.valueAtPercentile(percentile);
+      assertThat(reported).isAtLeast(exact);
+      assertThat(reported).isAtMost(exact + exact / 128);
+    }
+    assertThat(histogram.valueAtPercentile(100)).isEqualTo(1_000_000_000L);
+  }
+
+  @Test
+  public void histogram_bucketsCoverEveryValue() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] values = {0, 127, 128, 255, 256, 257, 1L << 40, Long.MAX_VALUE};
+    for (long value : values) {
+      histogram.record(value);
+    }
+    List<long[]> buckets = new ArrayList<>();
+    histogram.forEachBucket((lowest, highest, count) -> buckets.add(new long[] {lowest, highest}));
+
+    // 256 and 257 share a bucket, the first one two values wide.
+    assertThat(buckets).hasSize(values.length - 1);
+    int bucket = 0;
+    for (long value : values) {
+      while (buckets.get(bucket)[1] < value) {
+        bucket++;
+      }
+      assertThat(buckets.get(bucket)[0]).isAtMost(value);
+    }
+  }
+
+  @Test
+  public void histogram_empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertThat(histogram.valueAtPercentile(99)).isEqualTo(0);
+    assertThat(histogram.mean()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void slowestFilesAreKeptSlowestFirst() {
+    ParseTimings timings = new ParseTimings(2 /* maxSlowestFiles */);
+    timings.record(fileSystem.getPath("/A.java"), 1, 2, 3, 4);
+    timings.record(fileSystem.getPath("/B.java"), 100, 0, 0, 0);
+    timings.record(fileSystem.getPath("/C.java"), 0, 0, 50, 0);
+    timings.record(fileSystem.getPath("/D.java"), 0, 0, 0, 1);
+
+    ImmutableList<FileTiming> slowest = timings.slowestFiles();
+    assertThat(slowest).hasSize(2);
+    assertThat(slowest.get(0).file()).isEqualTo("/B.java");
+    assertThat(slowest.get(1).file()).isEqualTo("/C.java");
+    assertThat(slowest.get(1).nanos(Phase.RESOLVE)).isEqualTo(50);
+    assertThat(timings.fileCount()).isEqualTo(4);
+    assertThat(timings.histogram(Phase.VISIT).total()).isEqualTo(5);
+  }
+
+  @Test
+  public void reportAndJsonListPhasesAndSlowestFiles() throws IOException {
+    ParseTimings timings = new ParseTimings(1 /* maxSlowestFiles */);
+    timings.record(fileSystem.getPath("/com/\"Odd\".java"), 2_000_000, 0, 30_000_000, 1_000_000);
+
+    String report = timings.report();
+    assertThat(report).contains("Parse timings of 1 files");
+    assertThat(report).contains("resolve");
+    assertThat(report).contains("33.0");
+    assertThat(report).contains("/com/\"Odd\".java");
+
+    StringWriter json = new StringWriter();
+    timings.writeJson(json);
+    assertThat(json.toString()).contains("\"files\": 1");
+    assertThat(json.toString()).contains("\"p99_9_ms\": ");
+    assertThat(json.toString()).contains("\"file\": \"/com/\\\"Odd\\\".java\"");
+    assertThat(json.toString()).contains("\"total_ms\": 33.0");
+  }
+}
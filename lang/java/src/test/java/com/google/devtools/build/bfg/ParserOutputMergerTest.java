@@ -0,0 +1,155 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.bfg.ParserOutputs.readDelimited;
+import static com.google.devtools.build.bfg.ParserOutputs.strings;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+
+/** Tests for {@link ParserOutputMerger} and {@link SourceFileShard}. */
+@RunWith(JUnit4.class)
+public class ParserOutputMergerTest {
+
+  private TestWorkspace workspace;
+
+  private ImmutableList<Path> sourceFiles;
+
+  @Before
+  public void setUp() throws IOException {
+    workspace = TestWorkspace.create();
+    sourceFiles =
+        ImmutableList.of(
+            workspace.writeFile("main/x/A.java", "package x; class A { y.C c; }"),
+            workspace.writeFile("main/x/B.java", "package x; class B {}"),
+            workspace.writeFile("main/x/D.java", "package x; class D { A a; }"),
+            workspace.writeFile("main/x/E.java", "package x; class E {}"),
+            workspace.writeFile("main/y/C.java", "package y; class C { x.B b; }"),
+            workspace.writeFile("main/y/F.java", "package y; class F {}"),
+            workspace.writeFile("test/x/ATest.java", "package x; class ATest { A a; }"));
+  }
+
+  /**
+   * Tests that merging the outputs of shards gives the same class graph as parsing all files at
+   * once, including the cycles between one-rule-per-package classes of different shards.
+   */
+  @Test
+  public void mergedShardsEqualSingleParse() throws IOException {
+    ImmutableSet<Path> oneRulePerPackageRoots = ImmutableSet.of(workspace.resolve("main"));
+    ParserOutputMerger singleParse = new ParserOutputMerger();
+    parse(sourceFiles, oneRulePerPackageRoots, singleParse);
+
+    int shardCount = 3;
+    ParserOutputMerger shards = new ParserOutputMerger();
+    for (int i = 0; i < shardCount; i++) {
+      SourceFileShard shard = new SourceFileShard(workspace.root(), i, shardCount);
+      ImmutableList<Path> shardFiles =
+          sourceFiles.stream().filter(shard::contains).collect(ImmutableList.toImmutableList());
+      parse(shardFiles, ImmutableSet.of(), shards);
+    }
+
+    ParserOutput expected = singleParse.merge(ImmutableSet.of());
+    assertThat(shards.merge(oneRulePerPackageRoots)).isEqualTo(expected);
+    assertThat(expected.getClassToClassMap()).containsEntry("x.E", strings("x.A"));
+    assertThat(expected.getClassToClassMap()).containsEntry("y.F", strings("y.C"));
+  }
+
+  @Test
+  public void merge_unionsEdgesAndIsSorted() {
+    ParserOutputMerger merger = new ParserOutputMerger();
+    merger.add(
+        ParserOutput.newBuilder()
+            .putClassToClass("b.B", strings("c.C"))
+            .putClassToFile("b.B", strings("/src/b/B.java"))
+            .putFileToRuleKind("/src/b/B.java", "java_library")
+            .build());
+    merger.add(
+        ParserOutput.newBuilder()
+            .putClassToClass("b.B", strings("a.A", "c.C"))
+            .putClassToClass("a.A", strings())
+            .putClassToFile("a.A", strings("/src/a/A.java"))
+            .putFileToRuleKind("/src/a/A.java", "java_test")
+            .build());
+
+    ParserOutput merged = merger.merge(ImmutableSet.of());
+    assertThat(merged.getClassToClassMap().keySet()).containsExactly("a.A", "b.B").inOrder();
+    assertThat(merged.getClassToClassMap()).containsEntry("b.B", strings("a.A", "c.C"));
+    assertThat(merged.getClassToFileMap()).containsEntry("a.A", strings("/src/a/A.java"));
+    assertThat(merged.getFileToRuleKindMap())
+        .containsExactly("/src/a/A.java", "java_test", "/src/b/B.java", "java_library");
+  }
+
+  @Test
+  public void merge_conflictingRuleKinds() {
+    ParserOutputMerger merger = new ParserOutputMerger();
+    merger.add(ParserOutput.newBuilder().putFileToRuleKind("/src/A.java", "java_library").build());
+    try {
+      merger.add(ParserOutput.newBuilder().putFileToRuleKind("/src/A.java", "java_test").build());
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("/src/A.java");
+    }
+  }
+
+  /** Tests that every file is in exactly one shard, whichever directory the workspace is in. */
+  @Test
+  public void shards_partitionFilesIndependentlyOfWorkspaceLocation() {
+    int shardCount = 4;
+    for (String relativePath : ImmutableList.of("x/A.java", "x/B.java", "y/C.java", "D.java")) {
+      int shardIndex = -1;
+      for (int i = 0; i < shardCount; i++) {
+        SourceFileShard shard = new SourceFileShard(workspace.root(), i, shardCount);
+        if (shard.contains(workspace.resolve(relativePath))) {
+          assertThat(shardIndex).isEqualTo(-1);
+          shardIndex = i;
+        }
+      }
+      assertThat(shardIndex).isAtLeast(0);
+
+      Path otherWorkspace = workspace.root().getFileSystem().getPath("/home/someone/src");
+      assertThat(
+              new SourceFileShard(otherWorkspace, shardIndex, shardCount)
+                  .contains(otherWorkspace.resolve(relativePath)))
+          .isTrue();
+    }
+  }
+
+  private void parse(
+      ImmutableList<Path> files, ImmutableSet<Path> oneRulePerPackageRoots, ParserOutputMerger out)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JavaSourceFileParser.parse(
+        files,
+        ImmutableList.of(workspace.resolve("main"), workspace.resolve("test")),
+        oneRulePerPackageRoots,
+        JavaSourceFileParser.Options.DEFAULT,
+        new DelimitedParserOutputWriter(bytes));
+    for (ParserOutput parserOutput : readDelimited(new ByteArrayInputStream(bytes.toByteArray()))) {
+      out.add(parserOutput);
+    }
+  }
+}
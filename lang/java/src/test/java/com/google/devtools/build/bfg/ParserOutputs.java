@@ -0,0 +1,41 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InputStream;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/** Helpers for tests that build or read {@link ParserOutput}s. */
+final class ParserOutputs {
+
+  private ParserOutputs() {}
+
+  static Strings strings(String... elements) {
+    return Strings.newBuilder().addAllElements(ImmutableList.copyOf(elements)).build();
+  }
+
+  /** Reads length-delimited {@link ParserOutput}s from 'in' until it ends. */
+  static ImmutableList<ParserOutput> readDelimited(InputStream in) throws IOException {
+    ImmutableList.Builder<ParserOutput> result = ImmutableList.builder();
+    ParserOutput parserOutput;
+    while ((parserOutput = ParserOutput.parseDelimitedFrom(in)) != null) {
+      result.add(parserOutput);
+    }
+    return result.build();
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Measures the per-file cost of {@link ReferencedClassesParser} on a corpus of Java files, e.g.,
+ *
+ * <pre>
+ * bazel run \
+ *     //lang/java/src/test/java/com/google/devtools/build/bfg:ReferencedClassesParserBenchmark \
+ *     -- $(find $PWD/src -name \*.java)
+ * </pre>
+ *
+ * <p>Each mode is run a few times to warm up the JIT, then timed over several iterations of the
+ * whole corpus. Results are reported as the median time per file.
+ */
+public class ReferencedClassesParserBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 3;
+
+  private static final int MEASURED_ITERATIONS = 5;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: ReferencedClassesParserBenchmark <java files>");
+      System.exit(1);
+    }
+    ImmutableList<Path> files =
+        Arrays.stream(args).map(f -> Paths.get(f)).collect(toImmutableList());
+    ImmutableList.Builder<String> sources = ImmutableList.builder();
+    for (Path file : files) {
+      sources.add(new String(Files.readAllBytes(file), UTF_8));
+    }
+    ContentRootIndex contentRoots = ContentRootIndex.onFileSystem(ImmutableList.of());
+
+    System.out.printf("Parsing %d files%n", files.size());
+    report(
+        "two-pass",
+        measure(
+            sources.build(),
+            s -> new ReferencedClassesParser("f.java", s, contentRoots, false /* singlePass */)));
+    report(
+        "single-pass",
+        measure(
+            sources.build(),
+            s -> new ReferencedClassesParser("f.java", s, contentRoots, true /* singlePass */)));
+  }
+
+  /** Returns the median time, in nanoseconds, that 'parser' takes per source file. */
+  private static double measure(ImmutableList<String> sources, Parser parser) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      parseAll(sources, parser);
+    }
+    double[] nanosPerFile = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long start = System.nanoTime();
+      parseAll(sources, parser);
+      nanosPerFile[i] = (double) (System.nanoTime() - start) / sources.size();
+    }
+    Arrays.sort(nanosPerFile);
+    return nanosPerFile[MEASURED_ITERATIONS / 2];
+  }
+
+  private static void parseAll(ImmutableList<String> sources, Parser parser) {
+    for (String source : sources) {
+      if (!parser.parse(source).isSuccessful) {
+        throw new IllegalStateException("Failed to parse:\n" + source);
+      }
+    }
+  }
+
+  private static void report(String mode, double nanosPerFile) {
+    System.out.printf("%-20s %10.1f us/file%n", mode, nanosPerFile / 1000);
+  }
+
+  private interface Parser {
+    ReferencedClassesParser parse(String source);
+  }
+}
@@ -17,6 +17,7 @@ package com.google.devtools.build.bfg;
 import static com.google.common.collect.Iterables.find;
 import static com.google.common.collect.Iterables.transform;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toMap;
 import static org.junit.Assert.assertTrue;
 
@@ -28,16 +29,24 @@ import com.google.devtools.build.bfg.ReferencedClassesParser.ImportDeclaration;
 import com.google.devtools.build.bfg.ReferencedClassesParser.Metadata;
 import com.google.devtools.build.bfg.ReferencedClassesParser.QualifiedName;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
 import org.eclipse.jdt.core.dom.ParameterizedType;
 import org.eclipse.jdt.core.dom.QualifiedType;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -46,6 +55,8 @@ public class ReferencedClassesParserTest {
 
   private static Joiner joiner = Joiner.on("\n");
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private Path srcMain;
   private Path srcTest;
 
@@ -82,6 +93,56 @@ public class ReferencedClassesParserTest {
     assertThat(parser.compilationMessages).isNotEmpty();
   }
 
+  @Test
+  public void testErrorMessages_singlePass() {
+    String source =
+        joiner.join(
+            "class Dummy {",
+            "  void method() {",
+            "    new ClassB(ClassA.class);",
+            "    new ClassA()",
+            "  }",
+            "}");
+    ReferencedClassesParser parser =
+        new ReferencedClassesParser(
+            "filename.java",
+            source,
+            ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)),
+            true /* singlePass */);
+    assertThat(parser.isSuccessful).isFalse();
+    assertThat(parser.compilationMessages)
+        .containsExactlyElementsIn(
+            new ReferencedClassesParser(
+                    "filename.java", source, ImmutableList.of(srcMain, srcTest))
+                .compilationMessages);
+  }
+
+  /**
+   * Tests that the single-pass mode ignores the semantic errors of a binding-resolved AST, such as
+   * unresolvable types, which every single file we parse has.
+   */
+  @Test
+  public void singlePassIgnoresSemanticErrors() {
+    String source =
+        joiner.join(
+            "import com.Foo;",
+            "abstract class Dummy {",
+            "  void method(Foo foo, Bar bar) {",
+            "    new ClassA().undefinedMethod();",
+            "  }",
+            "  abstract void withBody() {}",
+            "}");
+    ReferencedClassesParser parser =
+        new ReferencedClassesParser(
+            "filename.java",
+            source,
+            ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)),
+            true /* singlePass */);
+    assertThat(parser.compilationMessages).isEmpty();
+    assertThat(parser.isSuccessful).isTrue();
+    assertThat(parser.symbols.keySet()).containsAllOf("Foo", "Bar", "ClassA");
+  }
+
   @Test
   public void testExtractClassNameFromQualifiedName() {
     assertThat(
@@ -612,6 +673,211 @@ public class ReferencedClassesParserTest {
     assertThat(parser.unresolvedClassNames).isEmpty();
   }
 
+  /**
+   * Tests that without bindings, the types, variables and methods that a file declares are told
+   * apart by name, giving the same names as with bindings.
+   */
+  @Test
+  public void bindingFree_skipsNamesDeclaredInFile() throws IOException {
+    String source =
+        joiner.join(
+            "package com.hello;",
+            "import com.external.Logger;",
+            "class Outer<T extends Comparable<T>> {",
+            "  static final Logger LOG = Logger.create();",
+            "  Inner inner;",
+            "  enum Color { RED, GREEN }",
+            "  T value;",
+            "  void helper() {}",
+            "  class Inner {",
+            "    void f(Color Param) {",
+            "      helper();",
+            "      LOG.info();",
+            "      Param.name();",
+            "      Color.RED.name();",
+            "      Outer.Inner x = null;",
+            "      Foo.bar();",
+            "      undefinedMethod();",
+            "      new Baz();",
+            "    }",
+            "  }",
+            "}");
+    ReferencedClassesParser withBindings = parse(source);
+    ReferencedClassesParser bindingFree =
+        parseBindingFree(source, typeIndex("java.lang.Comparable"));
+
+    assertThat(qualifiedNames(bindingFree)).containsExactly("com.external.Logger");
+    assertThat(transform(bindingFree.unresolvedClassNames, n -> n.value()))
+        .containsExactly("Foo", "undefinedMethod", "Baz");
+    assertThat(qualifiedNames(bindingFree))
+        .containsExactlyElementsIn(qualifiedNames(withBindings));
+    assertThat(transform(bindingFree.unresolvedClassNames, n -> n.value()))
+        .containsExactlyElementsIn(transform(withBindings.unresolvedClassNames, n -> n.value()));
+  }
+
+  /** Tests that without bindings, types of packages imported on demand are looked up. */
+  @Test
+  public void bindingFree_resolvesOnDemandImportsAgainstTypeIndex() throws IOException {
+    String source =
+        joiner.join(
+            "package com.hello;",
+            "import java.util.*;",
+            "import com.other.*;",
+            "import static org.Constants.*;",
+            "class A {",
+            "  List<Module> list;",
+            "  Widget widget;",
+            "  Override o;",
+            "}");
+    ReferencedClassesParser parser =
+        parseBindingFree(source, typeIndex("java.util.List", "java.lang.Module", "org.Widget"));
+
+    assertThat(qualifiedNames(parser)).containsExactly("java.util.List");
+    // 'Override' isn't in the index, but 'Module' is.
+    assertThat(transform(parser.unresolvedClassNames, n -> n.value()))
+        .containsExactly("Widget", "Override");
+  }
+
+  /**
+   * Tests that types of packages imported on demand are looked up under the content roots, and
+   * then in the package index, after the file's own package.
+   */
+  @Test
+  public void resolvesOnDemandImportsAgainstContentRootsAndPackageIndex() throws IOException {
+    String source =
+        joiner.join(
+            "package com.hello;",
+            "import com.other.*;",
+            "import com.jar.*;",
+            "class A {",
+            "  Widget widget;",
+            "  Gadget gadget;",
+            "  Local local;",
+            "  Missing missing;",
+            "}");
+    Files.createDirectories(srcMain.resolve("com/other"));
+    Files.write(srcMain.resolve("com/other/Widget.java"), new byte[] {});
+    Files.write(srcMain.resolve("com/other/Local.java"), new byte[] {});
+    Files.createDirectories(srcTest.resolve("com/hello"));
+    Files.write(srcTest.resolve("com/hello/Local.java"), new byte[] {});
+
+    ReferencedClassesParser parser =
+        new ReferencedClassesParser(
+            "filename.java",
+            source.toCharArray(),
+            ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)),
+            false /* singlePass */,
+            typeIndex("com.jar.Gadget", "com.jar.Widget"));
+
+    // Source files win over the package index, and the file's own package over both.
+    assertThat(qualifiedNames(parser))
+        .containsExactly("com.other.Widget", "com.jar.Gadget", "com.hello.Local");
+    assertThat(transform(parser.unresolvedClassNames, n -> n.value())).containsExactly("Missing");
+  }
+
+  /** Tests that without a package index, on-demand imports are still resolved to source files. */
+  @Test
+  public void resolvesOnDemandImportsAgainstContentRoots() throws IOException {
+    String source =
+        joiner.join(
+            "package com.hello;", "import com.other.*;", "class A {", "  Widget widget;", "}");
+    Files.createDirectories(srcMain.resolve("com/other"));
+    Files.write(srcMain.resolve("com/other/Widget.java"), new byte[] {});
+
+    assertThat(qualifiedNames(parse(source))).containsExactly("com.other.Widget");
+    assertThat(qualifiedNames(parseBindingFree(source, typeIndex())))
+        .containsExactly("com.other.Widget");
+  }
+
+  @Test
+  public void bindingFree_reportsSyntaxErrors() throws IOException {
+    ReferencedClassesParser parser =
+        new ReferencedClassesParser(
+            "filename.java",
+            "class Dummy { void f() { new A() } }".toCharArray(),
+            ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)),
+            typeIndex());
+    assertThat(parser.isSuccessful).isFalse();
+    assertThat(parser.compilationMessages).isNotEmpty();
+  }
+
+  private ReferencedClassesParser parseBindingFree(String source, TypeIndex typeIndex) {
+    ReferencedClassesParser parser =
+        new ReferencedClassesParser(
+            "filename.java",
+            source.toCharArray(),
+            ContentRootIndex.onFileSystem(ImmutableList.of(srcMain, srcTest)),
+            typeIndex);
+    assertTrue(
+        "Compilation errors: " + parser.compilationMessages, parser.compilationMessages.isEmpty());
+    return parser;
+  }
+
+  @Test
+  public void ruleKind() {
+    assertThat(parse("class Foo {}").ruleKind).isEqualTo("java_library");
+    assertThat(parse("class Foo { public static void main(String[] args) {} }").ruleKind)
+        .isEqualTo("java_binary");
+    assertThat(parse("class Foo { public void main(String[] args) {} }").ruleKind)
+        .isEqualTo("java_library");
+    assertThat(parse("class FooTest { @org.junit.Test public void test() {} }").ruleKind)
+        .isEqualTo("java_test");
+    assertThat(
+            parse("abstract class FooTest { @org.junit.Test public void test() {} }").ruleKind)
+        .isEqualTo("java_library");
+  }
+
+  /**
+   * Tests that a parser keeps nothing of the AST it extracts names from, so that the AST can be
+   * collected as soon as the parser is constructed.
+   */
+  @Test
+  public void parserDoesNotRetainTheAst() throws Exception {
+    // JDT reads batched files itself, so they have to be on the default file system.
+    Path file = temporaryFolder.newFile("Main.java").toPath();
+    Files.write(
+        file,
+        joiner
+            .join("class Main {", "  public static void main(String[] args) {}", "}")
+            .getBytes(UTF_8));
+    List<WeakReference<CompilationUnit>> units = new ArrayList<>();
+    List<ReferencedClassesParser> parsers = new ArrayList<>();
+    ReferencedClassesParser.parseAndResolveSources(
+        ImmutableList.of(file),
+        new FileASTRequestor() {
+          @Override
+          public void acceptAST(String sourceFilePath, CompilationUnit compilationUnit) {
+            units.add(new WeakReference<>(compilationUnit));
+            parsers.add(
+                new ReferencedClassesParser(
+                    "Main.java",
+                    compilationUnit,
+                    ContentRootIndex.onFileSystem(ImmutableList.of())));
+          }
+        });
+
+    for (int i = 0; i < 100 && units.get(0).get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+
+    assertThat(units.get(0).get()).isNull();
+    // Only checked now, so that the parser is reachable while the AST is collected.
+    assertThat(parsers.get(0).ruleKind).isEqualTo("java_binary");
+  }
+
+  private TypeIndex typeIndex(String... names) throws IOException {
+    Path path = srcMain.getFileSystem().getPath("/types.idx");
+    try (OutputStream out = Files.newOutputStream(path)) {
+      TypeIndex.write(ImmutableList.copyOf(names), out);
+    }
+    return TypeIndex.load(path);
+  }
+
+  private static Iterable<String> qualifiedNames(ReferencedClassesParser parser) {
+    return transform(parser.qualifiedTopLevelNames, n -> n.value());
+  }
+
   private void assertImportPosition(
       ReferencedClassesParser parser, String importName, int line, int column) {
     Metadata pos =
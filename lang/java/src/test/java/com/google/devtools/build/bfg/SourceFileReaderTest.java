@@ -0,0 +1,94 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SourceFileReader}. */
+@RunWith(JUnit4.class)
+public class SourceFileReaderTest {
+
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    file =
+        Jimfs.newFileSystem(Configuration.forCurrentPlatform().toBuilder().build())
+            .getPath("/src/Foo.java");
+    Files.createDirectories(file.getParent());
+  }
+
+  @Test
+  public void readsAscii() throws IOException {
+    assertThat(readAndDecode("class Foo {}")).isEqualTo("class Foo {}".toCharArray());
+  }
+
+  @Test
+  public void readsMultiByteCharacters() throws IOException {
+    String source = "class Foo { String s = \"é中😀\"; }";
+    assertThat(readAndDecode(source)).isEqualTo(source.toCharArray());
+  }
+
+  @Test
+  public void replacesMalformedInputLikeString() throws IOException {
+    byte[] content = {'c', (byte) 0xc3, 'l', (byte) 0xff, (byte) 0xe4, (byte) 0xb8};
+    Files.write(file, content);
+
+    assertThat(SourceFileReader.decode(SourceFileReader.read(file)))
+        .isEqualTo(new String(content, UTF_8).toCharArray());
+  }
+
+  @Test
+  public void readsEmptyFiles() throws IOException {
+    assertThat(readAndDecode("")).isEmpty();
+  }
+
+  @Test
+  public void buffersAreReusedAcrossFilesOfDifferentSizes() throws IOException {
+    String large = "class Foo {" + Strings.repeat("\n  int x;", 100_000) + "\n}";
+
+    assertThat(readAndDecode("class A { int x; }")).isEqualTo("class A { int x; }".toCharArray());
+    assertThat(readAndDecode(large)).isEqualTo(large.toCharArray());
+    assertThat(readAndDecode("class A {}")).isEqualTo("class A {}".toCharArray());
+  }
+
+  @Test
+  public void readReturnsExactlyTheFileContent() throws IOException {
+    Files.write(file, "class Foo {}".getBytes(UTF_8));
+
+    ByteBuffer content = SourceFileReader.read(file);
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    assertThat(bytes).isEqualTo("class Foo {}".getBytes(UTF_8));
+  }
+
+  private char[] readAndDecode(String content) throws IOException {
+    Files.write(file, content.getBytes(UTF_8));
+    return SourceFileReader.decode(SourceFileReader.read(file));
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SourceFileWalker}. */
+@RunWith(JUnit4.class)
+public class SourceFileWalkerTest {
+
+  private Path srcMain;
+
+  private Path srcTest;
+
+  @Before
+  public void setUp() throws IOException {
+    FileSystem fileSystem =
+        Jimfs.newFileSystem(Configuration.forCurrentPlatform().toBuilder().build());
+    srcMain = fileSystem.getPath("/src/main/java/");
+    srcTest = fileSystem.getPath("/src/test/java/");
+    createFile(srcMain.resolve("com/hello/b/Z.java"));
+    createFile(srcMain.resolve("com/hello/Dummy.java"));
+    createFile(srcMain.resolve("com/hello/a/Y.java"));
+    createFile(srcMain.resolve("com/hello/BUILD"));
+    createFile(srcMain.resolve("com/hello/testdata/Data.java"));
+    createFile(srcMain.resolve("Default.java"));
+    createFile(srcTest.resolve("com/hello/DummyTest.java"));
+  }
+
+  @Test
+  public void returnsFilesDepthFirstInNameOrder() {
+    assertThat(walk(ImmutableList.of(srcMain, srcTest), ImmutableList.of("**.java")))
+        .containsExactly(
+            srcMain.resolve("Default.java"),
+            srcMain.resolve("com/hello/Dummy.java"),
+            srcMain.resolve("com/hello/a/Y.java"),
+            srcMain.resolve("com/hello/b/Z.java"),
+            srcMain.resolve("com/hello/testdata/Data.java"),
+            srcTest.resolve("com/hello/DummyTest.java"))
+        .inOrder();
+  }
+
+  @Test
+  public void includesAreRelativeToTheDirectory() {
+    assertThat(walk(ImmutableList.of(srcMain), ImmutableList.of("*.java", "com/hello/BUILD")))
+        .containsExactly(srcMain.resolve("Default.java"), srcMain.resolve("com/hello/BUILD"))
+        .inOrder();
+  }
+
+  @Test
+  public void excludedDirectoriesAreSkipped() {
+    assertThat(
+            walk(
+                ImmutableList.of(srcMain),
+                ImmutableList.of("**.java"),
+                ImmutableList.of("**/testdata", "**/Y.java")))
+        .containsExactly(
+            srcMain.resolve("Default.java"),
+            srcMain.resolve("com/hello/Dummy.java"),
+            srcMain.resolve("com/hello/b/Z.java"))
+        .inOrder();
+  }
+
+  @Test
+  public void missingDirectoryThrows() {
+    try {
+      walk(ImmutableList.of(srcMain.resolve("missing")), ImmutableList.of("**.java"));
+      throw new AssertionError("Expected an exception");
+    } catch (UncheckedIOException e) {
+      assertThat(e.getCause()).isInstanceOf(NoSuchFileException.class);
+    }
+  }
+
+  private static ImmutableList<Path> walk(
+      ImmutableList<Path> directories, ImmutableList<String> includes) {
+    return walk(directories, includes, ImmutableList.of());
+  }
+
+  private static ImmutableList<Path> walk(
+      ImmutableList<Path> directories,
+      ImmutableList<String> includes,
+      ImmutableList<String> excludes) {
+    try (SourceFileWalker walker =
+        new SourceFileWalker(directories, includes, excludes, 4 /* numThreads */)) {
+      return ImmutableList.copyOf(walker);
+    }
+  }
+
+  private static void createFile(Path path) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.createFile(path);
+  }
+}
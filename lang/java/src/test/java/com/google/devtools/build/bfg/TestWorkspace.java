@@ -0,0 +1,57 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** A directory of Java source files on an in-memory file system, for tests that parse them. */
+final class TestWorkspace {
+
+  private final Path root;
+
+  private TestWorkspace(Path root) {
+    this.root = root;
+  }
+
+  /** Returns an empty workspace in "/src" on a new file system. */
+  static TestWorkspace create() throws IOException {
+    return new TestWorkspace(
+        Files.createDirectories(Jimfs.newFileSystem(Configuration.unix()).getPath("/src")));
+  }
+
+  Path root() {
+    return root;
+  }
+
+  Path resolve(String relativePath) {
+    return root.resolve(relativePath);
+  }
+
+  /**
+   * Writes 'content' to the file at 'relativePath', creating its directories if needed, and
+   * returns the file's path.
+   */
+  Path writeFile(String relativePath, String content) throws IOException {
+    Path file = root.resolve(relativePath);
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TypeIndex}. */
+@RunWith(JUnit4.class)
+public class TypeIndexTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void containsTheWrittenNames() throws IOException {
+    // Memory-mapped, since the file is on the default file system.
+    TypeIndex index =
+        write(
+            temporaryFolder.getRoot().toPath().resolve("types.idx"),
+            "java.util.Map.Entry",
+            "java.util.Map",
+            "com.été.Summer",
+            "java.util.List",
+            "java.util.Map");
+
+    assertThat(index.size()).isEqualTo(4);
+    assertThat(index.contains("java.util.Map")).isTrue();
+    assertThat(index.contains("java.util.Map.Entry")).isTrue();
+    assertThat(index.contains("java.util.List")).isTrue();
+    assertThat(index.contains("com.été.Summer")).isTrue();
+    assertThat(index.contains("java.util.Ma")).isFalse();
+    assertThat(index.contains("java.util.Map.")).isFalse();
+    assertThat(index.contains("java.util")).isFalse();
+    assertThat(index.contains("a")).isFalse();
+    assertThat(index.contains("z")).isFalse();
+    assertThat(index.contains("")).isFalse();
+  }
+
+  @Test
+  public void emptyIndex() throws IOException {
+    TypeIndex index = write(temporaryFolder.getRoot().toPath().resolve("types.idx"));
+
+    assertThat(index.size()).isEqualTo(0);
+    assertThat(index.contains("java.util.Map")).isFalse();
+  }
+
+  /** Tests that indices on file systems that can't memory-map files are read instead. */
+  @Test
+  public void loadsFromInMemoryFileSystem() throws IOException {
+    Path path = Jimfs.newFileSystem(Configuration.unix()).getPath("/types.idx");
+    TypeIndex index = write(path, "java.util.Map");
+
+    assertThat(index.contains("java.util.Map")).isTrue();
+  }
+
+  @Test
+  public void fingerprintDependsOnNames() throws IOException {
+    Path root = temporaryFolder.getRoot().toPath();
+
+    assertThat(write(root.resolve("a.idx"), "x.A").fingerprint())
+        .isEqualTo(write(root.resolve("b.idx"), "x.A").fingerprint());
+    assertThat(write(root.resolve("c.idx"), "x.A").fingerprint())
+        .isNotEqualTo(write(root.resolve("d.idx"), "x.B").fingerprint());
+  }
+
+  @Test
+  public void load_rejectsOtherFiles() throws IOException {
+    Path path =
+        Files.write(temporaryFolder.getRoot().toPath().resolve("types.idx"), "x.A".getBytes(UTF_8));
+    try {
+      TypeIndex.load(path);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("isn't a type index");
+    }
+  }
+
+  private static TypeIndex write(Path path, String... names) throws IOException {
+    try (OutputStream out = Files.newOutputStream(path)) {
+      TypeIndex.write(ImmutableList.copyOf(names), out);
+    }
+    return TypeIndex.load(path);
+  }
+}
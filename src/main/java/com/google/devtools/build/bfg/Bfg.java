@@ -25,10 +25,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
-import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -37,10 +35,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
-import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
 
 /** Entry point to the BUILD file generator. */
 public class Bfg {
@@ -90,6 +86,23 @@ public class Bfg {
   )
   private String externalResolvers = "";
 
+  @Option(
+    name = "--input_format",
+    usage =
+        "PARSER_OUTPUT reads a single ParserOutput message from stdin. DELIMITED reads a stream of "
+            + "length-delimited ParserOutput messages, and builds the class graph while they "
+            + "arrive."
+  )
+  private InputFormat inputFormat = InputFormat.PARSER_OUTPUT;
+
+  @Option(
+    name = "--threads",
+    usage =
+        "Number of threads to process the class graph on. The BUILD rules do not depend on this "
+            + "value."
+  )
+  private int numThreads = 1;
+
   public static void main(String[] args) throws Exception {
     new Bfg().run(args);
   }
@@ -98,21 +111,26 @@ public class Bfg {
     CmdLineParser cmdLineParser = new CmdLineParser(this);
     cmdLineParser.parseArgument(args);
 
-    ParserOutput parserOutput = ParserOutput.parseFrom(System.in);
-    if (parserOutput.getClassToClassMap().isEmpty()) {
+    ParserOutputReader parserOutput =
+        inputFormat == InputFormat.DELIMITED
+            ? ParserOutputReader.readDelimited(System.in)
+            : ParserOutputReader.readMessage(System.in);
+    if (parserOutput.classGraph().nodes().isEmpty()) {
       explainUsageErrorAndExit(cmdLineParser, "Expected nonempty class graph as input");
     }
     if (whiteListRegex.isEmpty()) {
       explainUsageErrorAndExit(cmdLineParser, "The --whitelist flag is required.");
     }
-    Pattern whiteList = compilePattern(cmdLineParser, whiteListRegex);
-    Pattern blackList = compilePattern(cmdLineParser, blackListRegex);
+    if (numThreads < 1) {
+      explainUsageErrorAndExit(cmdLineParser, "--threads must be positive.");
+    }
+    // Both stages share the white list, so that each class name is only matched against it once.
+    ClassNameMatcher whiteList = compileMatcher(cmdLineParser, whiteListRegex);
+    ClassNameMatcher blackList = compileMatcher(cmdLineParser, blackListRegex);
 
-    ImmutableGraph<String> classGraph =
-        preProcessClassGraph(
-            protoMultimapToGraph(parserOutput.getClassToClassMap()), whiteList, blackList);
-    ImmutableMap<String, Path> classToFiles =
-        protoMultimapToPathsMap(parserOutput.getClassToFileMap());
+    IndexedGraph<String> classGraph =
+        preProcessClassGraph(parserOutput.classGraph(), whiteList, blackList, numThreads);
+    ImmutableMap<String, Path> classToFiles = parserOutput.classToFile();
 
     Path workspace = Paths.get(workspacePath);
 
@@ -125,7 +143,9 @@ public class Bfg {
 
     ImmutableList.Builder<ClassToRuleResolver> resolvers =
         ImmutableList.<ClassToRuleResolver>builder()
-            .add(new ProjectClassToRuleResolver(classGraph, whiteList, classToFiles, workspace))
+            .add(
+                new ProjectClassToRuleResolver(
+                    classGraph, whiteList, classToFiles, workspace, numThreads))
             .add(new UserDefinedResolver(userDefinedMapping));
     for (String r : Splitter.on(',').omitEmptyStrings().split(externalResolvers)) {
       resolvers.add(new ExternalResolver(r));
@@ -137,44 +157,21 @@ public class Bfg {
     executeBuildozerCommands(buildRuleGraph, workspace, isDryRun, buildozerPath);
   }
 
-  private ImmutableMap<String, Path> protoMultimapToPathsMap(
-      Map<String, protos.com.google.devtools.build.bfg.Bfg.Strings> classToFileMap) {
-    ImmutableMap.Builder<String, Path> result = ImmutableMap.builder();
-    classToFileMap.forEach(
-        (classname, filenames) -> {
-          checkState(
-              filenames.getElementsList().size() == 1,
-              "BFG currently only supports a single file per class, got %s --> %s",
-              classname,
-              filenames);
-          for (String s : filenames.getElementsList()) {
-            result.put(classname, Paths.get(s));
-          }
-        });
-    return result.build();
-  }
-
-  private ImmutableGraph<String> protoMultimapToGraph(
-      Map<String, protos.com.google.devtools.build.bfg.Bfg.Strings> m) {
-    MutableGraph<String> result = GraphBuilder.directed().build();
-    m.forEach(
-        (u, deps) -> {
-          for (String s : deps.getElementsList()) {
-            result.putEdge(u, s);
-          }
-        });
-    return ImmutableGraph.copyOf(result);
-  }
-
-  private static Pattern compilePattern(CmdLineParser cmdLineParser, String patternString) {
+  private static ClassNameMatcher compileMatcher(CmdLineParser cmdLineParser, String regex) {
     try {
-      return Pattern.compile(patternString);
-    } catch (IllegalArgumentException e) {
+      return ClassNameMatcher.compile(regex);
+    } catch (PatternSyntaxException e) {
       explainUsageErrorAndExit(cmdLineParser, String.format("Invalid regex: %s", e.getMessage()));
       return null;
     }
   }
 
+  /** Values of --input_format. */
+  private enum InputFormat {
+    PARSER_OUTPUT,
+    DELIMITED,
+  }
+
   private static void explainUsageErrorAndExit(CmdLineParser cmdLineParser, String message) {
     System.err.println(message);
     cmdLineParser.printUsage(System.err);
@@ -15,7 +15,7 @@
 package com.google.devtools.build.bfg;
 
 import static com.google.common.base.Preconditions.checkState;
-import static com.google.devtools.build.bfg.ClassNameUtilities.isInnerClass;
+import static com.google.devtools.build.bfg.ClassNames.isInnerClass;
 
 class ClassGraphPreconditions {
 
@@ -14,12 +14,12 @@
 
 package com.google.devtools.build.bfg;
 
-import static com.google.devtools.build.bfg.ClassNameUtilities.getOuterClassName;
+import static com.google.common.base.Preconditions.checkArgument;
 
-import com.google.common.graph.GraphBuilder;
-import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
-import com.google.re2j.Pattern;
+import com.google.common.graph.Graph;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Given a directed graph of class names, processes the graph such that:
@@ -32,6 +32,16 @@ import com.google.re2j.Pattern;
  */
 public class ClassGraphPreprocessor {
 
+  /** Values of the classification of each class name. */
+  private static final byte BLACK_LISTED = 0;
+
+  private static final byte NOT_WHITE_LISTED = 1;
+
+  private static final byte WHITE_LISTED = 2;
+
+  /** The number of class names that a classifying task matches. */
+  private static final int CLASSIFY_GRAIN = 1024;
+
   /**
    * Produces a class graph that only contains top level class names that either pass the white list
    * pattern or have an edge to node that passes the white list. Any class names that pass the black
@@ -39,44 +49,124 @@ public class ClassGraphPreprocessor {
    *
    * <p>In addition, all inner class names are collapsed into their top level parent class name.
    */
-  static ImmutableGraph<String> preProcessClassGraph(
-      ImmutableGraph<String> classGraph, Pattern whiteList, Pattern blackList) {
-    return collapseInnerClasses(trimClassGraph(classGraph, whiteList, blackList));
+  static IndexedGraph<String> preProcessClassGraph(
+      Graph<String> classGraph, ClassNameMatcher whiteList, ClassNameMatcher blackList) {
+    return preProcessClassGraph(classGraph, whiteList, blackList, 1 /* numThreads */);
   }
 
-  /** Removes all outgoing edges from classes that are not white listed. */
-  private static ImmutableGraph<String> trimClassGraph(
-      ImmutableGraph<String> classGraph, Pattern whiteList, Pattern blackList) {
-    MutableGraph<String> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
-    for (String src : classGraph.nodes()) {
-      if (!whiteList.matcher(src).find() || blackList.matcher(src).find()) {
+  /**
+   * Same as {@link #preProcessClassGraph(Graph, ClassNameMatcher, ClassNameMatcher)}, but matches
+   * the class names on 'numThreads' threads. The result doesn't depend on 'numThreads'.
+   *
+   * <p>Each class name is matched against the patterns, and its outer class computed, once, rather
+   * than once per edge. The resulting graph is then built in a single pass over the edges, which
+   * trims and collapses at once. Its nodes are in the order they'd be in if the graph were trimmed
+   * first, and then collapsed.
+   */
+  static IndexedGraph<String> preProcessClassGraph(
+      Graph<String> classGraph,
+      ClassNameMatcher whiteList,
+      ClassNameMatcher blackList,
+      int numThreads) {
+    checkArgument(numThreads > 0, "numThreads must be positive, got %s", numThreads);
+    IndexedGraph<String> graph = IndexedGraph.copyOf(classGraph);
+    int nodeCount = graph.nodeCount();
+    byte[] classifications = new byte[nodeCount];
+    String[] outerClassNames = new String[nodeCount];
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      pool.invoke(
+          new ClassifyNames(
+              graph, whiteList, blackList, 0, nodeCount, classifications, outerClassNames));
+    } finally {
+      pool.shutdownNow();
+    }
+
+    IndexedGraph.Builder<String> result = IndexedGraph.builder();
+    // The id in 'result' of each class's outer class, or -1 until it's added.
+    int[] outerIds = new int[nodeCount];
+    Arrays.fill(outerIds, -1);
+    for (int src = 0; src < nodeCount; src++) {
+      // Only white listed classes keep their outgoing edges.
+      if (classifications[src] != WHITE_LISTED) {
         continue;
       }
-      graph.addNode(src);
-      for (String dst : classGraph.successors(src)) {
-        if (blackList.matcher(dst).find()) {
+      int outerSrc = outerId(src, outerClassNames, outerIds, result);
+      for (int edge = graph.successorsStart(src); edge < graph.successorsEnd(src); edge++) {
+        int dst = graph.target(edge);
+        if (classifications[dst] == BLACK_LISTED) {
           continue;
         }
-        graph.putEdge(src, dst);
+        // Edges between a class and its own inner classes are dropped as self loops.
+        result.putEdgeById(outerSrc, outerId(dst, outerClassNames, outerIds, result));
       }
     }
-    return ImmutableGraph.copyOf(graph);
+    return result.build();
   }
 
-  /** Collapses inner classes into their top level parent class */
-  private static ImmutableGraph<String> collapseInnerClasses(ImmutableGraph<String> classGraph) {
-    MutableGraph<String> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
-    for (String src : classGraph.nodes()) {
-      String outerSrc = getOuterClassName(src);
-      graph.addNode(outerSrc);
-      for (String dst : classGraph.successors(src)) {
-        String outerDst = getOuterClassName(dst);
-        if (outerSrc.equals(outerDst)) {
+  /** Returns the id of the outer class of 'node' in 'result', adding it the first time. */
+  private static int outerId(
+      int node, String[] outerClassNames, int[] outerIds, IndexedGraph.Builder<String> result) {
+    if (outerIds[node] < 0) {
+      outerIds[node] = result.addNode(outerClassNames[node]);
+    }
+    return outerIds[node];
+  }
+
+  /**
+   * Matches a range of class names against the white and black lists, and computes the outer
+   * class of those that aren't black listed.
+   */
+  private static class ClassifyNames extends RecursiveAction {
+    private static final long serialVersionUID = 0L;
+
+    private final IndexedGraph<String> graph;
+    private final ClassNameMatcher whiteList;
+    private final ClassNameMatcher blackList;
+    private final int from;
+    private final int to;
+    private final byte[] outClassifications;
+    private final String[] outOuterClassNames;
+
+    ClassifyNames(
+        IndexedGraph<String> graph,
+        ClassNameMatcher whiteList,
+        ClassNameMatcher blackList,
+        int from,
+        int to,
+        byte[] outClassifications,
+        String[] outOuterClassNames) {
+      this.graph = graph;
+      this.whiteList = whiteList;
+      this.blackList = blackList;
+      this.from = from;
+      this.to = to;
+      this.outClassifications = outClassifications;
+      this.outOuterClassNames = outOuterClassNames;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > CLASSIFY_GRAIN) {
+        int middle = (from + to) >>> 1;
+        invokeAll(split(from, middle), split(middle, to));
+        return;
+      }
+      for (int node = from; node < to; node++) {
+        String name = graph.node(node);
+        if (blackList.matches(name)) {
+          outClassifications[node] = BLACK_LISTED;
           continue;
         }
-        graph.putEdge(outerSrc, outerDst);
+        outClassifications[node] =
+            whiteList.matches(name) ? WHITE_LISTED : NOT_WHITE_LISTED;
+        outOuterClassNames[node] = ClassNames.getOuterClassName(name);
       }
     }
-    return ImmutableGraph.copyOf(graph);
+
+    private ClassifyNames split(int from, int to) {
+      return new ClassifyNames(
+          graph, whiteList, blackList, from, to, outClassifications, outOuterClassNames);
+    }
   }
 }
@@ -0,0 +1,277 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.re2j.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Tells whether a class name matches a white or black list, i.e., whether the list's regular
+ * expression can be found in the name.
+ *
+ * <p>White lists are almost always alternations of package names, e.g., "com\.foo\.|^org\.bar\.".
+ * {@link #compile} turns those into a trie of package name segments, which is matched by comparing
+ * strings. Any other expression is matched by re2j, and since the same names are asked about by
+ * several stages, e.g., {@link ClassGraphPreprocessor} and {@link ProjectClassToRuleResolver}, its
+ * answers are remembered. Either way, the answers are those of Pattern.matcher(name).find().
+ *
+ * <p>Implementations are thread-safe.
+ */
+public abstract class ClassNameMatcher {
+
+  /** Returns true iff the expression can be found in 'className'. */
+  public abstract boolean matches(String className);
+
+  /** Returns a matcher for the regular expression 'regex'. */
+  public static ClassNameMatcher compile(String regex) {
+    List<Literal> literals = new LiteralParser(regex).parse();
+    if (literals == null) {
+      return new RegexMatcher(Pattern.compile(regex));
+    }
+    return new SegmentTrieMatcher(literals);
+  }
+
+  /**
+   * A string that the expression finds literally, e.g., "com.foo." for "com\.foo\.", and whether
+   * it must be at the start of the name.
+   */
+  private static class Literal {
+    final String text;
+    final boolean isAnchored;
+
+    Literal(String text, boolean isAnchored) {
+      this.text = text;
+      this.isAnchored = isAnchored;
+    }
+  }
+
+  /**
+   * Parses expressions that are an alternation of literals, each of which may start with '^' and
+   * end with ".*", optionally in a group, e.g., "^(?:com\.foo|org\.bar).*". Literals consist of
+   * letters, digits, '_' and escaped punctuation.
+   */
+  private static class LiteralParser {
+    private final String regex;
+    private int pos;
+
+    LiteralParser(String regex) {
+      this.regex = regex;
+    }
+
+    /** Returns the literals of the expression, or null if it isn't an alternation of literals. */
+    @Nullable
+    List<Literal> parse() {
+      boolean isGroupAnchored = consume("^");
+      boolean isGroup = consume("(?:") || consume("(");
+      if (isGroupAnchored && !isGroup) {
+        // "^foo|bar" only anchors "foo".
+        isGroupAnchored = false;
+        pos = 0;
+      }
+      List<Literal> literals = new ArrayList<>();
+      do {
+        boolean isAnchored = isGroupAnchored || consume("^");
+        StringBuilder text = new StringBuilder();
+        while (pos < regex.length()) {
+          char c = regex.charAt(pos);
+          if (Character.isLetterOrDigit(c) || c == '_') {
+            text.append(c);
+            pos++;
+          } else if (c == '\\'
+              && pos + 1 < regex.length()
+              && isPunctuation(regex.charAt(pos + 1))) {
+            text.append(regex.charAt(pos + 1));
+            pos += 2;
+          } else {
+            break;
+          }
+        }
+        // A trailing ".*" doesn't change whether the expression can be found.
+        consume(".*");
+        literals.add(new Literal(text.toString(), isAnchored));
+      } while (consume("|"));
+      if (isGroup && !consume(")")) {
+        return null;
+      }
+      consume(".*");
+      return pos == regex.length() ? literals : null;
+    }
+
+    private boolean consume(String token) {
+      if (regex.startsWith(token, pos)) {
+        pos += token.length();
+        return true;
+      }
+      return false;
+    }
+
+    /** Returns true if 'c' stands for itself when escaped, as opposed to, e.g., "\d". */
+    private static boolean isPunctuation(char c) {
+      return c < 128 && !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+    }
+  }
+
+  /** Matches by re2j, and remembers the answer for each name. */
+  @VisibleForTesting
+  static class RegexMatcher extends ClassNameMatcher {
+    private final Pattern pattern;
+    private final ConcurrentHashMap<String, Boolean> answers = new ConcurrentHashMap<>();
+
+    RegexMatcher(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean matches(String className) {
+      Boolean answer = answers.get(className);
+      if (answer == null) {
+        answer = pattern.matcher(className).find();
+        answers.put(className, answer);
+      }
+      return answer;
+    }
+  }
+
+  /**
+   * Matches literals by the segments of the class name between dots. A literal is split the same
+   * way, e.g., "com.foo.Ba" into "com", "foo" and "Ba". It's found at the start of a name if the
+   * name's segments start with "com" and "foo", and the next one starts with "Ba". Unanchored, the
+   * first of the literal's segments only has to end a segment of the name, and a literal without
+   * dots only has to be in the name.
+   */
+  @VisibleForTesting
+  static class SegmentTrieMatcher extends ClassNameMatcher {
+
+    /** The literals that must be at the start of the name. */
+    private final TrieNode anchored = new TrieNode();
+
+    /** Unanchored literals without dots. */
+    private final List<String> substrings = new ArrayList<>();
+
+    /** The first segments of unanchored literals with dots, and the trie of the rest of each. */
+    private final List<String> firstSegments = new ArrayList<>();
+
+    private final List<TrieNode> afterFirstSegments = new ArrayList<>();
+
+    SegmentTrieMatcher(List<Literal> literals) {
+      for (Literal literal : literals) {
+        String text = literal.text;
+        int dot = text.indexOf('.');
+        if (literal.isAnchored) {
+          anchored.add(text, 0);
+        } else if (dot < 0) {
+          substrings.add(text);
+        } else {
+          TrieNode node = new TrieNode();
+          node.add(text, dot + 1);
+          firstSegments.add(text.substring(0, dot));
+          afterFirstSegments.add(node);
+        }
+      }
+    }
+
+    @Override
+    public boolean matches(String className) {
+      if (anchored.matches(className, 0)) {
+        return true;
+      }
+      for (String substring : substrings) {
+        if (className.contains(substring)) {
+          return true;
+        }
+      }
+      if (firstSegments.isEmpty()) {
+        return false;
+      }
+      for (int dot = className.indexOf('.'); dot >= 0; dot = className.indexOf('.', dot + 1)) {
+        for (int i = 0; i < firstSegments.size(); i++) {
+          String segment = firstSegments.get(i);
+          if (className.startsWith(segment, dot - segment.length())
+              && afterFirstSegments.get(i).matches(className, dot + 1)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The segments that follow in the literals that share some first segments. Nodes only have a few
+   * children, so they're kept in lists rather than maps, which saves taking substrings of names.
+   */
+  private static class TrieNode {
+    /** Last segments of literals, which a segment of the name only has to start with. */
+    private final List<String> lastSegments = new ArrayList<>();
+
+    private final List<String> childSegments = new ArrayList<>();
+
+    private final List<TrieNode> children = new ArrayList<>();
+
+    /** Adds the part of 'literal' from 'start' on, which is the start of a segment. */
+    void add(String literal, int start) {
+      TrieNode node = this;
+      for (int dot = literal.indexOf('.', start); dot >= 0; dot = literal.indexOf('.', start)) {
+        node = node.child(literal.substring(start, dot));
+        start = dot + 1;
+      }
+      node.lastSegments.add(literal.substring(start));
+    }
+
+    private TrieNode child(String segment) {
+      int i = childSegments.indexOf(segment);
+      if (i >= 0) {
+        return children.get(i);
+      }
+      TrieNode child = new TrieNode();
+      childSegments.add(segment);
+      children.add(child);
+      return child;
+    }
+
+    /** Returns true if a literal under this node is at 'start' in 'className'. */
+    boolean matches(String className, int start) {
+      TrieNode node = this;
+      while (true) {
+        for (String lastSegment : node.lastSegments) {
+          if (className.startsWith(lastSegment, start)) {
+            return true;
+          }
+        }
+        int end = className.indexOf('.', start);
+        if (end < 0) {
+          return false;
+        }
+        TrieNode next = null;
+        for (int i = 0; i < node.childSegments.size(); i++) {
+          String segment = node.childSegments.get(i);
+          if (segment.length() == end - start && className.startsWith(segment, start)) {
+            next = node.children.get(i);
+            break;
+          }
+        }
+        if (next == null) {
+          return false;
+        }
+        node = next;
+        start = end + 1;
+      }
+    }
+  }
+}
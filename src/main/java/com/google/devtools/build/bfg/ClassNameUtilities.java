@@ -19,7 +19,7 @@ public class ClassNameUtilities {
 
   /** Returns true if class is an inner class */
   static boolean isInnerClass(String className) {
-    return className.contains("$");
+    return ClassNames.isInnerClass(className);
   }
 
   /**
@@ -27,6 +27,6 @@ public class ClassNameUtilities {
    * classes, strips the inner class token from fully qualified class name
    */
   static String getOuterClassName(String className) {
-    return className.split("\\$")[0];
+    return ClassNames.getOuterClassName(className);
   }
 }
@@ -0,0 +1,172 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A symbol table of class names, shared by the parser and the graph processing.
+ *
+ * <p>{@link #intern} keeps a single instance of each name, so that a name mentioned by thousands of
+ * files, e.g., "java.util.List", is stored once in a class graph instead of once per edge. {@link
+ * #outerClassName} computes the outer class of each name once, instead of once per edge.
+ *
+ * <p>The static methods classify names by scanning their characters. They don't use regular
+ * expressions and don't allocate, so they can be called for every name of every file.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ClassNames {
+
+  private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+
+  /** Maps interned names to their interned outer class names. */
+  private final ConcurrentHashMap<String, String> outerClassNames = new ConcurrentHashMap<>();
+
+  /** Returns the instance of 'name' in this table, adding 'name' if it isn't there yet. */
+  public String intern(String name) {
+    String existing = names.get(name);
+    if (existing != null) {
+      return existing;
+    }
+    existing = names.putIfAbsent(name, name);
+    return existing == null ? name : existing;
+  }
+
+  /**
+   * Same as {@link #getOuterClassName}, but returns an interned name, and only scans 'className'
+   * the first time it's asked for.
+   */
+  public String outerClassName(String className) {
+    String outer = outerClassNames.get(className);
+    if (outer == null) {
+      outer = intern(getOuterClassName(className));
+      outerClassNames.putIfAbsent(intern(className), outer);
+    }
+    return outer;
+  }
+
+  /** Returns the number of names in this table. */
+  public int size() {
+    return names.size();
+  }
+
+  /** Returns true if 'className' is an inner class, e.g., "com.Foo$Bar". */
+  public static boolean isInnerClass(CharSequence className) {
+    return outerClassEnd(className) < className.length();
+  }
+
+  /**
+   * Returns the name of the outer class of 'className', e.g., "com.Foo" for "com.Foo$Bar$Baz".
+   * Returns 'className' itself, without allocating, if it isn't an inner class.
+   */
+  public static String getOuterClassName(String className) {
+    return className.substring(0, outerClassEnd(className));
+  }
+
+  /** Returns the length of the outer class of 'className', i.e., the index of its first '$'. */
+  public static int outerClassEnd(CharSequence className) {
+    for (int i = 0; i < className.length(); i++) {
+      if (className.charAt(i) == '$') {
+        return i;
+      }
+    }
+    return className.length();
+  }
+
+  /**
+   * Returns the length of the top-level class name that a dotted name starts with, or -1 if it
+   * doesn't start with one. The top-level class is the first part that looks like a class name,
+   * [A-Z][a-zA-Z0-9]*, if all the parts before it are lower case. E.g., 16 for
+   * "com.google.Outer.Inner", 5 for "Outer.Inner", and -1 for "com.google.inner".
+   */
+  public static int topLevelClassEnd(CharSequence name) {
+    return scanTopLevelClassEnd(name, false /* requirePackage */, false /* allowUnderscore */);
+  }
+
+  /**
+   * Same as {@link #topLevelClassEnd}, but the top-level class must be in a package, and may also
+   * contain '_' and '$'. E.g., 16 for "com.google.Outer.Inner", and -1 for "Outer.Inner".
+   */
+  public static int qualifiedTopLevelClassEnd(CharSequence name) {
+    return scanTopLevelClassEnd(name, true /* requirePackage */, true /* allowUnderscore */);
+  }
+
+  /** Returns the index of the last part of a dotted name, e.g., 10 for "java.util.List". */
+  public static int lastPartStart(CharSequence name) {
+    for (int i = name.length() - 1; i >= 0; i--) {
+      if (name.charAt(i) == '.') {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  private static int scanTopLevelClassEnd(
+      CharSequence name, boolean requirePackage, boolean allowUnderscore) {
+    int start = 0;
+    while (true) {
+      int end = start;
+      while (end < name.length() && name.charAt(end) != '.') {
+        end++;
+      }
+      if (isClassNamePart(name, start, end, allowUnderscore)) {
+        return requirePackage && start == 0 ? -1 : end;
+      }
+      if (!isLowerCasePart(name, start, end) || end == name.length()) {
+        return -1;
+      }
+      start = end + 1;
+    }
+  }
+
+  /** [A-Z][a-zA-Z0-9]*, or [A-Z][a-zA-Z0-9_$]* if 'allowUnderscore'. */
+  private static boolean isClassNamePart(
+      CharSequence name, int start, int end, boolean allowUnderscore) {
+    if (start == end || !isAsciiUpperCase(name.charAt(start))) {
+      return false;
+    }
+    for (int i = start + 1; i < end; i++) {
+      char c = name.charAt(i);
+      boolean valid =
+          isAsciiUpperCase(c)
+              || (c >= 'a' && c <= 'z')
+              || (c >= '0' && c <= '9')
+              || (allowUnderscore && (c == '_' || c == '$'));
+      if (!valid) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if lower-casing the part leaves it unchanged. Unlike {@link String#toLowerCase},
+   * this maps each char on its own, which only differs for a few characters outside of Latin-1.
+   */
+  private static boolean isLowerCasePart(CharSequence name, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = name.charAt(i);
+      if (Character.toLowerCase(c) != c) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAsciiUpperCase(char c) {
+    return c >= 'A' && c <= 'Z';
+  }
+}
@@ -17,9 +17,6 @@ package com.google.devtools.build.bfg;
 import static com.google.devtools.build.bfg.ClassNameUtilities.isInnerClass;
 
 import com.google.common.graph.Graph;
-import com.google.common.graph.GraphBuilder;
-import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
 import com.google.devtools.build.bfg.GraphProcessor.GraphProcessorException;
 import java.nio.file.Path;
 import java.util.Map;
@@ -68,26 +65,35 @@ public class ClassToSourceGraphConsolidator {
    * </ul>
    *
    * This function outputs a directed graph where the nodes are source files and the edges are
-   * dependencies between said source files.
+   * dependencies between said source files. Classes that aren't in the mapping are left out, along
+   * with their edges, i.e., the result is that of the subgraph induced by the mapped classes.
    */
-  // TODO(bazel-team): Migrate this function into Guava graph library
-  public static ImmutableGraph<Path> map(
-      Graph<String> classGraph, Map<String, Path> classToSourceFileMap) {
-    MutableGraph<Path> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
-    for (String sourceNode : classGraph.nodes()) {
-      if (isInnerClass(sourceNode)) {
+  static IndexedGraph<Path> map(Graph<String> classGraph, Map<String, Path> classToSourceFileMap) {
+    IndexedGraph<String> classes = IndexedGraph.copyOf(classGraph);
+    IndexedGraph.Builder<Path> graph = IndexedGraph.builder();
+    // The id of each class's source file in 'graph', or -1 if it isn't mapped.
+    int[] sourceFiles = new int[classes.nodeCount()];
+    for (int node = 0; node < classes.nodeCount(); node++) {
+      String className = classes.node(node);
+      if (isInnerClass(className)) {
         throw new GraphProcessorException(
-            String.format("Found inner class %s when mapping classes to source files", sourceNode));
+            String.format("Found inner class %s when mapping classes to source files", className));
       }
-      Path sourcePath = classToSourceFileMap.get(sourceNode);
-      graph.addNode(sourcePath);
-      for (String successorNode : classGraph.successors(sourceNode)) {
-        Path successorPath = classToSourceFileMap.get(successorNode);
-        if (!sourcePath.equals(successorPath)) {
-          graph.putEdge(sourcePath, successorPath);
+      Path sourcePath = classToSourceFileMap.get(className);
+      sourceFiles[node] = sourcePath == null ? -1 : graph.addNode(sourcePath);
+    }
+    for (int node = 0; node < classes.nodeCount(); node++) {
+      if (sourceFiles[node] < 0) {
+        continue;
+      }
+      for (int edge = classes.successorsStart(node); edge < classes.successorsEnd(node); edge++) {
+        int successorFile = sourceFiles[classes.target(edge)];
+        // Edges between classes of the same file are dropped as self loops.
+        if (successorFile >= 0) {
+          graph.putEdgeById(sourceFiles[node], successorFile);
         }
       }
     }
-    return ImmutableGraph.copyOf(graph);
+    return graph.build();
   }
 }
@@ -17,9 +17,8 @@ package com.google.devtools.build.bfg;
 import static com.google.devtools.build.bfg.ClassGraphPreconditions.checkNoInnerClassesPresent;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.Graph;
 import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -31,11 +30,11 @@ class GraphProcessor {
 
   private final Logger logger = Logger.getLogger(ProjectBuildRule.class.getName());
 
-  private final ImmutableGraph<String> classGraph;
+  private final IndexedGraph<String> classGraph;
 
-  GraphProcessor(ImmutableGraph<String> classGraph) {
+  GraphProcessor(Graph<String> classGraph) {
     checkNoInnerClassesPresent(classGraph.nodes());
-    this.classGraph = classGraph;
+    this.classGraph = IndexedGraph.copyOf(classGraph);
   }
 
   /**
@@ -51,22 +50,28 @@ class GraphProcessor {
    */
   ImmutableGraph<BuildRule> createBuildRuleDAG(Iterable<ClassToRuleResolver> resolvers) {
     ImmutableMap<String, BuildRule> ruleMap = createClassToRuleMap(resolvers);
-    MutableGraph<BuildRule> buildRuleDAG = GraphBuilder.directed().allowsSelfLoops(false).build();
-    for (String className : classGraph.nodes()) {
-      BuildRule srcRule = ruleMap.get(className);
-      if (srcRule == null) {
+    IndexedGraph.Builder<BuildRule> buildRuleDAG = IndexedGraph.builder();
+    // The id of each class's rule in 'buildRuleDAG', or -1 if it has none.
+    int[] rules = new int[classGraph.nodeCount()];
+    for (int node = 0; node < classGraph.nodeCount(); node++) {
+      BuildRule rule = ruleMap.get(classGraph.node(node));
+      rules[node] = rule == null ? -1 : buildRuleDAG.addNode(rule);
+    }
+    for (int node = 0; node < classGraph.nodeCount(); node++) {
+      if (rules[node] < 0) {
         continue;
       }
-      buildRuleDAG.addNode(srcRule);
-      for (String successor : classGraph.successors(className)) {
-        BuildRule dstRule = ruleMap.get(successor);
-        if (dstRule == null || srcRule.equals(dstRule)) {
-          continue;
+      for (int edge = classGraph.successorsStart(node);
+          edge < classGraph.successorsEnd(node);
+          edge++) {
+        int dstRule = rules[classGraph.target(edge)];
+        // Edges between classes of the same rule are dropped as self loops.
+        if (dstRule >= 0) {
+          buildRuleDAG.putEdgeById(rules[node], dstRule);
         }
-        buildRuleDAG.putEdge(srcRule, dstRule);
       }
     }
-    return ImmutableGraph.copyOf(buildRuleDAG);
+    return ImmutableGraph.copyOf(buildRuleDAG.build());
   }
 
   private ImmutableMap<String, BuildRule> createClassToRuleMap(
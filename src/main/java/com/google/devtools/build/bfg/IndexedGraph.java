@@ -0,0 +1,376 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.graph.AbstractGraph;
+import com.google.common.graph.ElementOrder;
+import com.google.common.graph.Graph;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable directed graph without self loops, whose nodes are numbered from 0 to {@link
+ * #nodeCount} - 1 in the order they were added.
+ *
+ * <p>Edges are stored in compressed sparse row form: the successors of node 'i' are {@code
+ * target(successorsStart(i))} to {@code target(successorsEnd(i) - 1)}, in increasing order. An
+ * edge takes 4 bytes, instead of the hundreds of bytes of the hash maps and sets of a Guava {@link
+ * com.google.common.graph.ImmutableGraph}, and the stages of BFG that walk the class graph look
+ * nodes up by id instead of hashing them for every edge.
+ *
+ * <p>The graph is also a Guava {@link Graph}, for the code that works on nodes rather than ids,
+ * e.g., at the boundary with resolvers and tests. Its sets of nodes and successors are views, so
+ * using it as a {@link Graph} doesn't copy it. Predecessors are indexed the first time they are
+ * asked for.
+ *
+ * <p>This class is thread-safe.
+ */
+final class IndexedGraph<N> extends AbstractGraph<N> {
+
+  /** Maps ids to nodes. */
+  private final ImmutableList<N> nodes;
+
+  /** Maps nodes to ids, in the same order. */
+  private final ImmutableMap<N, Integer> ids;
+
+  /** The successors of node 'i' are targets[offsets[i]] to targets[offsets[i + 1] - 1]. */
+  private final int[] offsets;
+
+  private final int[] targets;
+
+  /** The graph with every edge reversed, or null if it hasn't been needed yet. */
+  @Nullable private volatile IndexedGraph<N> transpose;
+
+  private IndexedGraph(
+      ImmutableList<N> nodes, ImmutableMap<N, Integer> ids, int[] offsets, int[] targets) {
+    this.nodes = nodes;
+    this.ids = ids;
+    this.offsets = offsets;
+    this.targets = targets;
+  }
+
+  static <N> Builder<N> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Returns a graph with the nodes and edges of 'graph', or 'graph' itself if it's already an
+   * {@link IndexedGraph}. Nodes are numbered in the order of {@code graph.nodes()}.
+   */
+  static <N> IndexedGraph<N> copyOf(Graph<N> graph) {
+    if (graph instanceof IndexedGraph) {
+      return (IndexedGraph<N>) graph;
+    }
+    checkArgument(graph.isDirected(), "Expected a directed graph");
+    Builder<N> builder = builder();
+    for (N node : graph.nodes()) {
+      builder.addNode(node);
+    }
+    for (N node : graph.nodes()) {
+      int id = builder.addNode(node);
+      for (N successor : graph.successors(node)) {
+        builder.putEdgeById(id, builder.addNode(successor));
+      }
+    }
+    return builder.build();
+  }
+
+  int nodeCount() {
+    return nodes.size();
+  }
+
+  /** Returns the node whose id is 'id'. */
+  N node(int id) {
+    return nodes.get(id);
+  }
+
+  /** Returns the id of 'node', or -1 if it isn't in the graph. */
+  int id(Object node) {
+    Integer id = ids.get(node);
+    return id == null ? -1 : id;
+  }
+
+  /** Returns the index, in {@link #target}, of the first successor of node 'id'. */
+  int successorsStart(int id) {
+    return offsets[id];
+  }
+
+  /** Returns the index, in {@link #target}, after the last successor of node 'id'. */
+  int successorsEnd(int id) {
+    return offsets[id + 1];
+  }
+
+  /** Returns the id of the node that edge 'edge' points to. */
+  int target(int edge) {
+    return targets[edge];
+  }
+
+  /** Returns true iff there's an edge from node 'source' to node 'target'. */
+  boolean hasEdge(int source, int target) {
+    return Arrays.binarySearch(targets, offsets[source], offsets[source + 1], target) >= 0;
+  }
+
+  /** Returns the graph with every edge reversed. Node ids are the same as in this graph. */
+  IndexedGraph<N> transpose() {
+    IndexedGraph<N> result = transpose;
+    if (result == null) {
+      int[] reverseOffsets = new int[offsets.length];
+      for (int target : targets) {
+        reverseOffsets[target + 1]++;
+      }
+      for (int i = 1; i < reverseOffsets.length; i++) {
+        reverseOffsets[i] += reverseOffsets[i - 1];
+      }
+      int[] next = Arrays.copyOf(reverseOffsets, nodeCount());
+      int[] reverseTargets = new int[targets.length];
+      // Sources are visited in increasing order, so each node's predecessors come out sorted.
+      for (int source = 0; source < nodeCount(); source++) {
+        for (int edge = offsets[source]; edge < offsets[source + 1]; edge++) {
+          reverseTargets[next[targets[edge]]++] = source;
+        }
+      }
+      result = new IndexedGraph<>(nodes, ids, reverseOffsets, reverseTargets);
+      result.transpose = this;
+      transpose = result;
+    }
+    return result;
+  }
+
+  @Override
+  public Set<N> nodes() {
+    return ids.keySet();
+  }
+
+  @Override
+  protected long edgeCount() {
+    return targets.length;
+  }
+
+  @Override
+  public boolean isDirected() {
+    return true;
+  }
+
+  @Override
+  public boolean allowsSelfLoops() {
+    return false;
+  }
+
+  @Override
+  public ElementOrder<N> nodeOrder() {
+    return ElementOrder.insertion();
+  }
+
+  @Override
+  public Set<N> adjacentNodes(N node) {
+    return Sets.union(successors(node), predecessors(node));
+  }
+
+  @Override
+  public Set<N> predecessors(N node) {
+    return transpose().successors(node);
+  }
+
+  @Override
+  public Set<N> successors(N node) {
+    int id = checkedId(node);
+    return new NodeSet(offsets[id], offsets[id + 1]);
+  }
+
+  @Override
+  public int outDegree(N node) {
+    int id = checkedId(node);
+    return offsets[id + 1] - offsets[id];
+  }
+
+  @Override
+  public boolean hasEdgeConnecting(N source, N target) {
+    int sourceId = id(source);
+    int targetId = id(target);
+    return sourceId >= 0 && targetId >= 0 && hasEdge(sourceId, targetId);
+  }
+
+  private int checkedId(N node) {
+    int id = id(checkNotNull(node));
+    checkArgument(id >= 0, "Node %s is not an element of this graph.", node);
+    return id;
+  }
+
+  /** The nodes that targets[start] to targets[end - 1] point to. */
+  private class NodeSet extends AbstractSet<N> {
+    private final int start;
+    private final int end;
+
+    NodeSet(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+
+    @Override
+    public boolean contains(Object node) {
+      int id = id(node);
+      return id >= 0 && Arrays.binarySearch(targets, start, end, id) >= 0;
+    }
+
+    @Override
+    public UnmodifiableIterator<N> iterator() {
+      return new UnmodifiableIterator<N>() {
+        int next = start;
+
+        @Override
+        public boolean hasNext() {
+          return next < end;
+        }
+
+        @Override
+        public N next() {
+          if (next >= end) {
+            throw new NoSuchElementException();
+          }
+          return nodes.get(targets[next++]);
+        }
+      };
+    }
+  }
+
+  /**
+   * Collects nodes and edges. Edges are kept as pairs of ids until {@link #build}, which sorts them
+   * into rows and drops duplicates. Edges from a node to itself are dropped, since none of the
+   * graph processing has any use for them.
+   *
+   * <p>Not thread-safe.
+   */
+  static final class Builder<N> {
+    private final Map<N, Integer> ids = new HashMap<>();
+
+    private final List<N> nodes = new ArrayList<>();
+
+    private int[] sources = new int[16];
+
+    private int[] targets = new int[16];
+
+    private int edgeCount;
+
+    private Builder() {}
+
+    /** Adds 'node' if it isn't in the graph yet, and returns its id. */
+    int addNode(N node) {
+      Integer id = ids.get(checkNotNull(node));
+      if (id != null) {
+        return id;
+      }
+      ids.put(node, nodes.size());
+      nodes.add(node);
+      return nodes.size() - 1;
+    }
+
+    /** Returns the node whose id is 'id'. */
+    N node(int id) {
+      return nodes.get(id);
+    }
+
+    int nodeCount() {
+      return nodes.size();
+    }
+
+    /** Adds an edge from 'source' to 'target', and adds the nodes if they aren't there yet. */
+    Builder<N> putEdge(N source, N target) {
+      putEdgeById(addNode(source), addNode(target));
+      return this;
+    }
+
+    /**
+     * Adds an edge between the nodes whose ids are 'source' and 'target', which must have been
+     * added already. Named apart from {@link #putEdge(Object, Object)}, which graphs of integers
+     * would otherwise confuse it with.
+     */
+    Builder<N> putEdgeById(int source, int target) {
+      checkArgument(
+          source >= 0 && source < nodes.size() && target >= 0 && target < nodes.size(),
+          "No such node: %s -> %s",
+          source,
+          target);
+      if (source == target) {
+        return this;
+      }
+      if (edgeCount == sources.length) {
+        sources = Arrays.copyOf(sources, 2 * edgeCount);
+        targets = Arrays.copyOf(targets, 2 * edgeCount);
+      }
+      sources[edgeCount] = source;
+      targets[edgeCount] = target;
+      edgeCount++;
+      return this;
+    }
+
+    IndexedGraph<N> build() {
+      int nodeCount = nodes.size();
+      int[] offsets = new int[nodeCount + 1];
+      for (int i = 0; i < edgeCount; i++) {
+        offsets[sources[i] + 1]++;
+      }
+      for (int i = 1; i <= nodeCount; i++) {
+        offsets[i] += offsets[i - 1];
+      }
+      int[] next = Arrays.copyOf(offsets, nodeCount);
+      int[] rows = new int[edgeCount];
+      for (int i = 0; i < edgeCount; i++) {
+        rows[next[sources[i]]++] = targets[i];
+      }
+      // Sort each row, and move it down over the duplicates dropped from the rows before it.
+      int size = 0;
+      for (int node = 0; node < nodeCount; node++) {
+        int start = offsets[node];
+        int end = offsets[node + 1];
+        Arrays.sort(rows, start, end);
+        offsets[node] = size;
+        for (int i = start; i < end; i++) {
+          if (size == offsets[node] || rows[i] != rows[size - 1]) {
+            rows[size++] = rows[i];
+          }
+        }
+      }
+      offsets[nodeCount] = size;
+      ImmutableMap.Builder<N, Integer> orderedIds = ImmutableMap.builder();
+      for (int id = 0; id < nodeCount; id++) {
+        orderedIds.put(nodes.get(id), id);
+      }
+      return new IndexedGraph<>(
+          ImmutableList.copyOf(nodes),
+          orderedIds.build(),
+          offsets,
+          size == rows.length ? rows : Arrays.copyOf(rows, size));
+    }
+  }
+}
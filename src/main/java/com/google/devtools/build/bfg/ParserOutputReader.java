@@ -0,0 +1,109 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/**
+ * Builds the class graph, and the map of classes to the files that define them, out of the {@link
+ * ParserOutput} messages written by a language-specific parser.
+ *
+ * <p>The edges of a class are the union of its edges in all the messages, so a parser can write its
+ * output in pieces, e.g., one message per file. {@link #readDelimited} adds each message to the
+ * graph as soon as it is read, so the graph is built while the parser is still running, and the
+ * parser's output is never held in memory as a whole.
+ */
+class ParserOutputReader {
+
+  private final IndexedGraph.Builder<String> classGraph = IndexedGraph.builder();
+
+  private final Map<String, Path> classToFile = new LinkedHashMap<>();
+
+  /**
+   * Every message repeats the names of the classes it mentions, so without interning the graph
+   * would keep a copy of a class's name for each edge into it.
+   */
+  private final ClassNames classNames = new ClassNames();
+
+  /** Reads a single {@link ParserOutput} message, which makes up all of 'in'. */
+  static ParserOutputReader readMessage(InputStream in) throws IOException {
+    ParserOutputReader reader = new ParserOutputReader();
+    reader.add(ParserOutput.parseFrom(in));
+    return reader;
+  }
+
+  /**
+   * Reads length-delimited {@link ParserOutput} messages, as written by {@link
+   * ParserOutput#writeDelimitedTo}, until the end of 'in'.
+   */
+  static ParserOutputReader readDelimited(InputStream in) throws IOException {
+    ParserOutputReader reader = new ParserOutputReader();
+    ParserOutput parserOutput;
+    while ((parserOutput = ParserOutput.parseDelimitedFrom(in)) != null) {
+      reader.add(parserOutput);
+    }
+    return reader;
+  }
+
+  /** Adds the classes, edges and files of 'parserOutput'. */
+  void add(ParserOutput parserOutput) {
+    parserOutput
+        .getClassToClassMap()
+        .forEach(
+            (u, deps) -> {
+              int src = classGraph.addNode(classNames.intern(u));
+              for (String s : deps.getElementsList()) {
+                classGraph.putEdgeById(src, classGraph.addNode(classNames.intern(s)));
+              }
+            });
+    parserOutput.getClassToFileMap().forEach(this::putFiles);
+  }
+
+  private void putFiles(String classname, Strings filenames) {
+    checkState(
+        filenames.getElementsList().size() == 1,
+        "BFG currently only supports a single file per class, got %s --> %s",
+        classname,
+        filenames);
+    Path file = Paths.get(filenames.getElements(0));
+    Path previous = classToFile.put(classNames.intern(classname), file);
+    checkState(
+        previous == null || previous.equals(file),
+        "BFG currently only supports a single file per class, got %s --> [%s, %s]",
+        classname,
+        previous,
+        file);
+  }
+
+  /** The class dependency graph: (u, v) if class 'u' mentions class 'v'. */
+  IndexedGraph<String> classGraph() {
+    return classGraph.build();
+  }
+
+  /** Maps class names to the files that define them. */
+  ImmutableMap<String, Path> classToFile() {
+    return ImmutableMap.copyOf(classToFile);
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.bfg;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.devtools.build.bfg.ClassGraphPreconditions.checkNoInnerClassesPresent;
 import static com.google.devtools.build.bfg.ProjectBuildRuleUtilities.mapDirectoriesToPackages;
@@ -24,9 +25,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.graph.Graph;
-import com.google.common.graph.Graphs;
 import com.google.common.graph.ImmutableGraph;
-import com.google.re2j.Pattern;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,58 +37,70 @@ class ProjectClassToRuleResolver implements ClassToRuleResolver {
 
   private final Logger logger = Logger.getLogger(ProjectBuildRule.class.getName());
 
-  private final ImmutableGraph<String> classGraph;
+  private final IndexedGraph<String> classGraph;
 
-  private final Pattern whiteList;
+  private final ClassNameMatcher whiteList;
 
   private final Path workspace;
 
   /** Maps each class name to the file it's defined in. */
   private final ImmutableMap<String, Path> classToFile;
 
+  /** The number of threads to find strongly connected components on. */
+  private final int numThreads;
+
   /** The maximum percentage of classes that can be unresolved before BFG errors out. */
   static final double UNRESOLVED_THRESHOLD = 0.7;
 
   ProjectClassToRuleResolver(
-      ImmutableGraph<String> classGraph,
-      Pattern whiteList,
+      Graph<String> classGraph,
+      ClassNameMatcher whiteList,
       ImmutableMap<String, Path> classToFile,
       Path workspace) {
+    this(classGraph, whiteList, classToFile, workspace, 1 /* numThreads */);
+  }
+
+  ProjectClassToRuleResolver(
+      Graph<String> classGraph,
+      ClassNameMatcher whiteList,
+      ImmutableMap<String, Path> classToFile,
+      Path workspace,
+      int numThreads) {
+    checkArgument(numThreads > 0, "numThreads must be positive, got %s", numThreads);
     checkNoInnerClassesPresent(classGraph.nodes());
     this.classToFile = classToFile;
     this.workspace = workspace;
-    this.classGraph = classGraph;
+    this.classGraph = IndexedGraph.copyOf(classGraph);
     this.whiteList = whiteList;
+    this.numThreads = numThreads;
   }
 
   @Override
   public ImmutableMap<String, BuildRule> resolve(Set<String> classes) {
     ImmutableSet<String> projectClasses =
-        classes.stream().filter(name -> whiteList.matcher(name).find()).collect(toImmutableSet());
+        classes.stream().filter(name -> whiteList.matches(name)).collect(toImmutableSet());
 
     Map<String, Path> classToSrcFileMap =
         Maps.filterKeys(classToFile, k -> projectClasses.contains(k));
 
     handleUnresolvedClasses(projectClasses, classToSrcFileMap.keySet());
 
-    ImmutableGraph<String> resolvedClassGraph =
-        ImmutableGraph.copyOf(Graphs.inducedSubgraph(classGraph, classToSrcFileMap.keySet()));
-
-    ImmutableGraph<Path> srcFileGraph =
-        ClassToSourceGraphConsolidator.map(resolvedClassGraph, classToSrcFileMap);
+    // Only the classes with a source file are kept, without copying the class graph.
+    IndexedGraph<Path> srcFileGraph =
+        ClassToSourceGraphConsolidator.map(classGraph, classToSrcFileMap);
 
-    ImmutableGraph<ImmutableSet<Path>> componentDAG =
-        new StronglyConnectedComponents<>(srcFileGraph).computeComponentDAG();
+    StronglyConnectedComponents<Path> components =
+        numThreads > 1
+            ? StronglyConnectedComponents.inParallel(srcFileGraph, numThreads)
+            : new StronglyConnectedComponents<>(srcFileGraph);
+    ImmutableGraph<ImmutableSet<Path>> componentDAG = components.computeComponentDAG();
 
-    return ImmutableMap.copyOf(
-        mapClassToBuildRule(componentDAG, classToSrcFileMap, resolvedClassGraph));
+    return ImmutableMap.copyOf(mapClassToBuildRule(componentDAG, classToSrcFileMap));
   }
 
-  /** Maps each top level class name to a build rule. */
+  /** Maps each top level class name of the class graph with a source file to a build rule. */
   private Map<String, BuildRule> mapClassToBuildRule(
-      ImmutableGraph<ImmutableSet<Path>> componentDAG,
-      Map<String, Path> classToSrcFileMap,
-      Graph<String> classGraph) {
+      ImmutableGraph<ImmutableSet<Path>> componentDAG, Map<String, Path> classToSrcFileMap) {
 
     ImmutableMap<Path, Path> dirToBuildFileMap = mapDirectoriesToPackages(componentDAG.nodes());
     Map<Path, BuildRule> srcToTargetMap = new HashMap<>();
@@ -99,9 +110,12 @@ class ProjectClassToRuleResolver implements ClassToRuleResolver {
       component.stream().forEach(src -> srcToTargetMap.put(src, rule));
     }
     ImmutableMap.Builder<String, BuildRule> classToBuildRuleMap = ImmutableMap.builder();
-    for (String className : classGraph.nodes()) {
+    for (int node = 0; node < classGraph.nodeCount(); node++) {
+      String className = classGraph.node(node);
       Path srcFile = classToSrcFileMap.get(className);
-      classToBuildRuleMap.put(className, srcToTargetMap.get(srcFile));
+      if (srcFile != null) {
+        classToBuildRuleMap.put(className, srcToTargetMap.get(srcFile));
+      }
     }
     return classToBuildRuleMap.build();
   }
@@ -20,45 +20,77 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.graph.Graph;
-import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
 
 /**
  * This algorithm takes as input a graph and uses Tarjan's algorithm to produce a collection of
  * strongly connected components.
  *
+ * <p>The depth-first search keeps its own stack instead of recursing, so a long chain of
+ * dependencies can't overflow the thread's stack, and its bookkeeping is kept in arrays indexed by
+ * the ids of an {@link IndexedGraph}, instead of in an object per node.
+ *
+ * <p>{@link #inParallel} finds the same components on a pool of threads instead, by trimming and
+ * forward-backward search. See {@link ForwardBackwardSearch}.
+ *
  * <p>Algorithm Description:
  * https://en.wikipedia.org/wiki/Tarjan's_strongly_connected_components_algorithm
  */
 class StronglyConnectedComponents<N> {
 
-  /** Resulting strongly connected components */
-  private final ImmutableList.Builder<ImmutableSet<N>> connectedComponents;
+  /** Marks a node that DFS hasn't discovered yet. */
+  private static final int UNDISCOVERED = -1;
+
+  /** Value of {@link #numThreads} that runs Tarjan's algorithm on the calling thread. */
+  private static final int SERIAL = 0;
 
   /** Original graph to be processed */
-  private final Graph<N> graph;
+  private final IndexedGraph<N> graph;
 
-  /** Stack of nodes that have not been assigned a component */
-  private final Deque<N> unassignedNodeStack;
+  /** The number of threads to find the components on, or {@link #SERIAL}. */
+  private final int numThreads;
 
-  /** Counter of the number of nodes DFS has discovered, used to set discovery times of nodes */
-  private int numberOfNodesDiscovered;
+  /**
+   * The component of each node, numbered in the order the components are found, i.e., in reverse
+   * topological order. Null until {@link #computeComponentIds} runs.
+   */
+  private int[] componentIds;
 
-  /** Map connecting each node to metadata relevant for Tarjan's algorithm. */
-  private final HashMap<N, TarjanMetadata> tarjanMetadataMap;
+  private int componentCount;
+
+  /** The nodes grouped by component, in the order of the component ids. */
+  private int[] nodesByComponent;
 
   StronglyConnectedComponents(Graph<N> graph) {
-    this.graph = checkNotNull(graph);
-    this.unassignedNodeStack = new ArrayDeque<>();
-    this.numberOfNodesDiscovered = 0;
-    this.tarjanMetadataMap = new HashMap<>();
-    this.connectedComponents = new ImmutableList.Builder<>();
+    this(graph, SERIAL);
+  }
+
+  private StronglyConnectedComponents(Graph<N> graph, int numThreads) {
+    checkArgument(checkNotNull(graph).isDirected());
+    this.graph = IndexedGraph.copyOf(graph);
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Returns an instance that finds the components on 'numThreads' threads, rather than by Tarjan's
+   * algorithm on the calling thread. The components are the same, but they're listed in another
+   * reverse topological order, which depends on the graph and not on the number of threads.
+   */
+  static <N> StronglyConnectedComponents<N> inParallel(Graph<N> graph, int numThreads) {
+    checkArgument(numThreads > 0, "numThreads must be positive, got %s", numThreads);
+    return new StronglyConnectedComponents<>(graph, numThreads);
   }
 
   /**
@@ -66,13 +98,8 @@ class StronglyConnectedComponents<N> {
    * components is in reverse topological order.
    */
   Collection<ImmutableSet<N>> compute() {
-    checkArgument(graph.isDirected());
-    for (N node : graph.nodes()) {
-      if (!isNodeDiscovered(node)) {
-        stronglyConnectedDFS(node);
-      }
-    }
-    return connectedComponents.build();
+    computeComponentIds();
+    return components();
   }
 
   /**
@@ -85,95 +112,552 @@ class StronglyConnectedComponents<N> {
    * order.
    */
   ImmutableGraph<ImmutableSet<N>> computeComponentDAG() {
-    Collection<ImmutableSet<N>> components = compute();
-    Map<N, ImmutableSet<N>> nodeToComponentMap = new HashMap<>();
-    MutableGraph<ImmutableSet<N>> metaGraph =
-        GraphBuilder.directed().allowsSelfLoops(false).build();
-    for (ImmutableSet<N> component : components) {
+    computeComponentIds();
+    IndexedGraph.Builder<ImmutableSet<N>> metaGraph = IndexedGraph.builder();
+    for (ImmutableSet<N> component : components()) {
       metaGraph.addNode(component);
-      component.stream().forEach(node -> nodeToComponentMap.put(node, component));
-
-      for (N node : component) {
-        for (N successor : graph.successors(node)) {
-          if (!component.equals(nodeToComponentMap.get(successor))) {
-            metaGraph.putEdge(component, nodeToComponentMap.get(successor));
-          }
-        }
+    }
+    for (int node = 0; node < graph.nodeCount(); node++) {
+      for (int edge = graph.successorsStart(node); edge < graph.successorsEnd(node); edge++) {
+        // Edges within a component are dropped as self loops.
+        metaGraph.putEdgeById(componentIds[node], componentIds[graph.target(edge)]);
       }
     }
-    return ImmutableGraph.copyOf(metaGraph);
+    return ImmutableGraph.copyOf(metaGraph.build());
   }
 
-  /**
-   * DFS tailored for Tarjan's algorithm. Alongside the additional bookkeeping, the most notable
-   * distinction is that nodes are only removed from the stack, whenever we detect a root in a DFS
-   * subtree. Here we are defining a root to be any node without any back or cross edges.
-   */
-  private void stronglyConnectedDFS(N node) {
-    discoverNode(node);
-    for (N neighbor : graph.successors(node)) {
-      if (!isNodeDiscovered(neighbor)) {
-        stronglyConnectedDFS(neighbor);
-        updateLowNumber(node, neighbor);
-      } else if (isNodeBeingExplored(neighbor)) {
-        updateLowNumber(node, neighbor);
-      }
-    }
-    if (isComponentRoot(node)) {
-      /* Pop elements from the stack until you reach the current node. */
-      ImmutableSet.Builder<N> currentSCC = new ImmutableSet.Builder<N>();
-      N poppedNode;
-      do {
-        poppedNode = unassignedNodeStack.pop();
-        tarjanMetadataMap.get(poppedNode).isOnStack = false;
-        currentSCC.add(poppedNode);
-      } while (poppedNode != node);
-      connectedComponents.add(currentSCC.build());
+  /** Returns the components, in the order of their ids. */
+  private ImmutableList<ImmutableSet<N>> components() {
+    int[] start = new int[componentCount + 1];
+    for (int componentId : componentIds) {
+      start[componentId + 1]++;
+    }
+    for (int i = 1; i <= componentCount; i++) {
+      start[i] += start[i - 1];
     }
+    ImmutableList.Builder<ImmutableSet<N>> components = ImmutableList.builder();
+    for (int i = 0; i < componentCount; i++) {
+      ImmutableSet.Builder<N> component = ImmutableSet.builder();
+      for (int j = start[i]; j < start[i + 1]; j++) {
+        component.add(graph.node(nodesByComponent[j]));
+      }
+      components.add(component.build());
+    }
+    return components.build();
   }
 
-  /** Updates the lowest reachable node from the current node. */
-  private void updateLowNumber(N rootNode, N childNode) {
-    tarjanMetadataMap.get(rootNode).lowNumber =
-        Math.min(
-            tarjanMetadataMap.get(rootNode).lowNumber, tarjanMetadataMap.get(childNode).lowNumber);
+  /** Fills in {@link #componentIds}, unless that's already been done. */
+  private void computeComponentIds() {
+    if (componentIds != null) {
+      return;
+    }
+    if (numThreads == SERIAL) {
+      runTarjan();
+    } else {
+      componentIds = new ForwardBackwardSearch(graph).run(numThreads);
+      groupNodesByComponent();
+    }
   }
 
-  private void discoverNode(N node) {
-    tarjanMetadataMap.put(node, new TarjanMetadata(numberOfNodesDiscovered++));
-    unassignedNodeStack.push(node);
-  }
+  /**
+   * Runs Tarjan's algorithm. Nodes are only removed from the stack of unassigned nodes whenever we
+   * detect the root of a DFS subtree, i.e., a node from which no node discovered before it can be
+   * reached. The nodes are listed by component in the order they're popped off the stack.
+   */
+  private void runTarjan() {
+    int nodeCount = graph.nodeCount();
+    // The order a node is visited in the DFS traversal.
+    int[] discoveryNumber = new int[nodeCount];
+    Arrays.fill(discoveryNumber, UNDISCOVERED);
+    // The smallest discovery number reachable in the DFS tree from each node.
+    int[] lowNumber = new int[nodeCount];
+    // True iff the node has yet to be assigned a strongly connected component.
+    boolean[] isOnStack = new boolean[nodeCount];
+    // Stack of nodes that have not been assigned a component.
+    int[] unassignedNodeStack = new int[nodeCount];
+    int unassignedCount = 0;
+    // The path of the DFS from its root, and the next edge to follow from each node on it.
+    int[] path = new int[nodeCount];
+    int[] nextEdge = new int[nodeCount];
+    int pathLength = 0;
 
-  private boolean isNodeBeingExplored(N node) {
-    return tarjanMetadataMap.containsKey(node) && tarjanMetadataMap.get(node).isOnStack;
+    componentIds = new int[nodeCount];
+    nodesByComponent = new int[nodeCount];
+    int poppedCount = 0;
+    int numberOfNodesDiscovered = 0;
+    for (int root = 0; root < nodeCount; root++) {
+      if (discoveryNumber[root] != UNDISCOVERED) {
+        continue;
+      }
+      discoveryNumber[root] = lowNumber[root] = numberOfNodesDiscovered++;
+      isOnStack[root] = true;
+      unassignedNodeStack[unassignedCount++] = root;
+      path[pathLength] = root;
+      nextEdge[pathLength++] = graph.successorsStart(root);
+      while (pathLength > 0) {
+        int node = path[pathLength - 1];
+        int edge = nextEdge[pathLength - 1];
+        if (edge < graph.successorsEnd(node)) {
+          nextEdge[pathLength - 1]++;
+          int neighbor = graph.target(edge);
+          if (discoveryNumber[neighbor] == UNDISCOVERED) {
+            discoveryNumber[neighbor] = lowNumber[neighbor] = numberOfNodesDiscovered++;
+            isOnStack[neighbor] = true;
+            unassignedNodeStack[unassignedCount++] = neighbor;
+            path[pathLength] = neighbor;
+            nextEdge[pathLength++] = graph.successorsStart(neighbor);
+          } else if (isOnStack[neighbor]) {
+            lowNumber[node] = Math.min(lowNumber[node], lowNumber[neighbor]);
+          }
+          continue;
+        }
+        // All of the node's successors have been explored.
+        pathLength--;
+        if (lowNumber[node] == discoveryNumber[node]) {
+          // Pop elements from the stack until you reach the current node.
+          int poppedNode;
+          do {
+            poppedNode = unassignedNodeStack[--unassignedCount];
+            isOnStack[poppedNode] = false;
+            componentIds[poppedNode] = componentCount;
+            nodesByComponent[poppedCount++] = poppedNode;
+          } while (poppedNode != node);
+          componentCount++;
+        }
+        if (pathLength > 0) {
+          int parent = path[pathLength - 1];
+          lowNumber[parent] = Math.min(lowNumber[parent], lowNumber[node]);
+        }
+      }
+    }
   }
 
-  private boolean isNodeDiscovered(N node) {
-    return tarjanMetadataMap.containsKey(node);
+  /** Fills in {@link #nodesByComponent} from {@link #componentIds}, in the order of node ids. */
+  private void groupNodesByComponent() {
+    int nodeCount = graph.nodeCount();
+    for (int node = 0; node < nodeCount; node++) {
+      componentCount = Math.max(componentCount, componentIds[node] + 1);
+    }
+    int[] start = new int[componentCount + 1];
+    for (int componentId : componentIds) {
+      start[componentId + 1]++;
+    }
+    for (int i = 1; i <= componentCount; i++) {
+      start[i] += start[i - 1];
+    }
+    nodesByComponent = new int[nodeCount];
+    for (int node = 0; node < nodeCount; node++) {
+      nodesByComponent[start[componentIds[node]]++] = node;
+    }
   }
 
   /**
-   * Returns true iff 'node' is the first node we encountered in some strongly-connected component.
+   * Finds the components of a graph on a pool of threads, and numbers them in a reverse topological
+   * order that only depends on the graph.
+   *
+   * <p>First, nodes that have no successors left are trimmed off as components of their own, i.e.,
+   * the nodes that can't reach a cycle, and then nodes that have no predecessors left. In a
+   * dependency graph, that's most nodes. The rest are split by forward-backward search: the nodes
+   * that both reach and are reached from a pivot node are its component, and the nodes that are
+   * reached from it only, that only reach it, or neither, are three parts that can't share a
+   * component. Each part is split the same way, in parallel.
+   *
+   * <p>Parts are told apart by giving each one a color that's never used again. A search only
+   * follows edges between nodes of its own color. Since no other part ever has that color, it
+   * doesn't matter whether a search sees another thread's writes to the colors of other parts.
+   *
+   * <p>Algorithm Description: Hong, Rodia and Olukotun, "On fast parallel detection of strongly
+   * connected components (SCC) in small-world graphs", SC '13.
    */
-  private boolean isComponentRoot(N node) {
-    return tarjanMetadataMap.get(node).lowNumber == tarjanMetadataMap.get(node).discoveryNumber;
-  }
+  private static final class ForwardBackwardSearch {
+
+    /** Parts smaller than this are split by the task that found them, instead of a new task. */
+    private static final int FORK_THRESHOLD = 1024;
+
+    /** The number of nodes that a trimming task starts from. */
+    private static final int TRIM_GRAIN = 4096;
+
+    /** Index into the parts of a split, of the nodes in the pivot's component. */
+    private static final int IN_COMPONENT = 3;
+
+    /** Values of {@link #trimmedAs}. */
+    private static final int NOT_TRIMMED = 0;
+
+    private static final int SINK = 1;
+
+    private static final int SOURCE = 2;
+
+    private final IndexedGraph<?> graph;
 
-  /** Metadata necessary for implementing Tarjan's algorithm. */
-  private static class TarjanMetadata {
-    /** The order a node is visited in the DFS traversal. */
-    private final int discoveryNumber;
+    private final IndexedGraph<?> transpose;
 
-    /** This is the smallest discovery number reachable in the DFS tree from this node. */
-    private int lowNumber;
+    /**
+     * For each node, the number of its predecessors that haven't been trimmed, in the lower 32
+     * bits, and its level so far in the upper 32 bits. The level of a source is the length of the
+     * longest path to it, i.e., one more than the largest level of its predecessors. Both are
+     * updated at once, when a predecessor is trimmed.
+     */
+    private final AtomicLongArray inDegrees;
 
-    /** Returns true iff the node has yet to be assigned a strongly connected component. */
-    private boolean isOnStack;
+    /** Same as {@link #inDegrees}, for successors. The level of a sink is of paths from it. */
+    private final AtomicLongArray outDegrees;
+
+    /** Whether each node was trimmed as a sink, as a source, or not at all. */
+    private final AtomicIntegerArray trimmedAs;
+
+    /** The color of the part each node is in, or 0 once its component is known. */
+    private final int[] colors;
+
+    /** The color of the last forward and backward search to reach each node. */
+    private final int[] forwardMarks;
+
+    private final int[] backwardMarks;
+
+    private final AtomicInteger nextColor = new AtomicInteger(1);
+
+    /** For each node that wasn't trimmed, the smallest node in its component. */
+    private final int[] smallestNodes;
+
+    ForwardBackwardSearch(IndexedGraph<?> graph) {
+      this.graph = graph;
+      // Built once here, since the tasks can't share in building it.
+      this.transpose = graph.transpose();
+      int nodeCount = graph.nodeCount();
+      long[] in = new long[nodeCount];
+      long[] out = new long[nodeCount];
+      for (int node = 0; node < nodeCount; node++) {
+        in[node] = transpose.successorsEnd(node) - transpose.successorsStart(node);
+        out[node] = graph.successorsEnd(node) - graph.successorsStart(node);
+      }
+      this.inDegrees = new AtomicLongArray(in);
+      this.outDegrees = new AtomicLongArray(out);
+      this.trimmedAs = new AtomicIntegerArray(nodeCount);
+      this.colors = new int[nodeCount];
+      this.forwardMarks = new int[nodeCount];
+      this.backwardMarks = new int[nodeCount];
+      this.smallestNodes = new int[nodeCount];
+    }
+
+    /** Returns the component id of each node. */
+    int[] run(int numThreads) {
+      int nodeCount = graph.nodeCount();
+      int[] remaining;
+      ForkJoinPool pool = new ForkJoinPool(numThreads);
+      try {
+        // Sinks are trimmed to the end before any source is, so which nodes are trimmed as which
+        // doesn't depend on timing.
+        pool.invoke(new Trim(SINK, 0, nodeCount));
+        pool.invoke(new Trim(SOURCE, 0, nodeCount));
+        int remainingCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+          if (trimmedAs.get(node) == NOT_TRIMMED) {
+            remainingCount++;
+          }
+        }
+        remaining = new int[remainingCount];
+        int color = nextColor.getAndIncrement();
+        remainingCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+          if (trimmedAs.get(node) == NOT_TRIMMED) {
+            remaining[remainingCount++] = node;
+            colors[node] = color;
+          }
+        }
+        if (remaining.length > 0) {
+          pool.invoke(new Split(null /* completer */, remaining));
+        }
+      } finally {
+        pool.shutdownNow();
+      }
 
-    private TarjanMetadata(int discoveryNumber) {
-      this.discoveryNumber = discoveryNumber;
-      this.lowNumber = discoveryNumber;
-      this.isOnStack = true;
+      // Sinks come first, by increasing level, and sources last, by decreasing level, so that
+      // every edge between them goes to an earlier component. Nodes of the same level are in the
+      // order of their ids.
+      int[] componentIds = new int[nodeCount];
+      int sinkCount = numberTrimmedNodes(SINK, 0 /* firstId */, componentIds);
+      int sourceFirstId = numberRemainingComponents(remaining, sinkCount, componentIds);
+      numberTrimmedNodes(SOURCE, sourceFirstId, componentIds);
+      return componentIds;
+    }
+
+    /**
+     * Numbers the nodes trimmed as 'kind' from 'firstId' on, and returns the id after the last.
+     */
+    private int numberTrimmedNodes(int kind, int firstId, int[] outComponentIds) {
+      int nodeCount = graph.nodeCount();
+      AtomicLongArray degrees = kind == SINK ? outDegrees : inDegrees;
+      int[] levels = new int[nodeCount];
+      int maxLevel = -1;
+      for (int node = 0; node < nodeCount; node++) {
+        if (trimmedAs.get(node) == kind) {
+          levels[node] = level(degrees.get(node));
+          maxLevel = Math.max(maxLevel, levels[node]);
+        }
+      }
+      // Sorts them by level, and then by id.
+      int[] start = new int[maxLevel + 2];
+      for (int node = 0; node < nodeCount; node++) {
+        if (trimmedAs.get(node) == kind) {
+          start[rank(kind, levels[node], maxLevel) + 1]++;
+        }
+      }
+      for (int i = 1; i < start.length; i++) {
+        start[i] += start[i - 1];
+      }
+      for (int node = 0; node < nodeCount; node++) {
+        if (trimmedAs.get(node) == kind) {
+          outComponentIds[node] = firstId + start[rank(kind, levels[node], maxLevel)]++;
+        }
+      }
+      return firstId + start[maxLevel + 1];
+    }
+
+    private static int rank(int kind, int level, int maxLevel) {
+      return kind == SINK ? level : maxLevel - level;
+    }
+
+    private static int level(long degree) {
+      return (int) (degree >>> 32);
+    }
+
+    /**
+     * Numbers the components of the nodes that weren't trimmed from 'firstId' on, in the
+     * post-order of a depth-first search, which starts from and follows the components in the
+     * order of their smallest nodes' ids. Returns the id after the last.
+     */
+    private int numberRemainingComponents(int[] remaining, int firstId, int[] outComponentIds) {
+      // For now, components are numbered in the order of their smallest nodes.
+      int[] componentOf = new int[graph.nodeCount()];
+      int count = 0;
+      for (int node : remaining) {
+        componentOf[node] =
+            smallestNodes[node] == node ? count++ : componentOf[smallestNodes[node]];
+      }
+      int[] memberStart = new int[count + 1];
+      for (int node : remaining) {
+        memberStart[componentOf[node] + 1]++;
+      }
+      for (int i = 1; i <= count; i++) {
+        memberStart[i] += memberStart[i - 1];
+      }
+      int[] members = new int[remaining.length];
+      int[] nextFree = Arrays.copyOf(memberStart, count);
+      for (int node : remaining) {
+        members[nextFree[componentOf[node]]++] = node;
+      }
+
+      // The DFS keeps its own stack, as in runTarjan(). Each component on the path has a member
+      // whose edges are being followed, and the next of its edges.
+      int[] finishOrder = new int[count];
+      int finishedCount = 0;
+      boolean[] isDiscovered = new boolean[count];
+      int[] path = new int[count];
+      int[] nextMember = new int[count];
+      int[] nextEdge = new int[count];
+      int pathLength = 0;
+      for (int root = 0; root < count; root++) {
+        if (isDiscovered[root]) {
+          continue;
+        }
+        isDiscovered[root] = true;
+        path[pathLength] = root;
+        nextMember[pathLength] = memberStart[root];
+        nextEdge[pathLength++] = graph.successorsStart(members[memberStart[root]]);
+        while (pathLength > 0) {
+          int top = pathLength - 1;
+          int component = path[top];
+          if (nextMember[top] == memberStart[component + 1]) {
+            pathLength--;
+            finishOrder[component] = finishedCount++;
+            continue;
+          }
+          if (nextEdge[top] == graph.successorsEnd(members[nextMember[top]])) {
+            if (++nextMember[top] < memberStart[component + 1]) {
+              nextEdge[top] = graph.successorsStart(members[nextMember[top]]);
+            }
+            continue;
+          }
+          int target = graph.target(nextEdge[top]++);
+          // Edges to trimmed nodes go to sinks, which are numbered already.
+          if (trimmedAs.get(target) != NOT_TRIMMED) {
+            continue;
+          }
+          int successor = componentOf[target];
+          if (!isDiscovered[successor]) {
+            isDiscovered[successor] = true;
+            path[pathLength] = successor;
+            nextMember[pathLength] = memberStart[successor];
+            nextEdge[pathLength++] = graph.successorsStart(members[memberStart[successor]]);
+          }
+        }
+      }
+      for (int node : remaining) {
+        outComponentIds[node] = firstId + finishOrder[componentOf[node]];
+      }
+      return firstId + count;
+    }
+
+    /**
+     * Assigns the pivot's component among 'nodes', which are in increasing order and all have the
+     * same color, and returns the other parts that aren't empty, each with a new color.
+     */
+    private List<int[]> split(int[] nodes) {
+      // The middle node cuts a chain of components in half.
+      int pivot = nodes[nodes.length / 2];
+      int color = colors[pivot];
+      int[] queue = new int[nodes.length];
+      markReachable(graph, pivot, color, forwardMarks, queue);
+      markReachable(transpose, pivot, color, backwardMarks, queue);
+
+      int[] partSizes = new int[IN_COMPONENT + 1];
+      for (int node : nodes) {
+        partSizes[partOf(node, color)]++;
+      }
+      int[][] parts = new int[IN_COMPONENT + 1][];
+      for (int i = 0; i <= IN_COMPONENT; i++) {
+        parts[i] = new int[partSizes[i]];
+      }
+      Arrays.fill(partSizes, 0);
+      for (int node : nodes) {
+        int part = partOf(node, color);
+        parts[part][partSizes[part]++] = node;
+      }
+
+      int[] component = parts[IN_COMPONENT];
+      for (int node : component) {
+        smallestNodes[node] = component[0];
+        colors[node] = 0;
+      }
+      List<int[]> unsplit = new ArrayList<>(IN_COMPONENT);
+      for (int i = 0; i < IN_COMPONENT; i++) {
+        if (parts[i].length > 0) {
+          int partColor = nextColor.getAndIncrement();
+          for (int node : parts[i]) {
+            colors[node] = partColor;
+          }
+          unsplit.add(parts[i]);
+        }
+      }
+      return unsplit;
+    }
+
+    /** Returns 1 if only forward search reached 'node', 2 if only backward search did, etc. */
+    private int partOf(int node, int color) {
+      return (forwardMarks[node] == color ? 1 : 0) | (backwardMarks[node] == color ? 2 : 0);
+    }
+
+    /** Marks the nodes of color 'color' that can be reached from 'start' in 'g'. */
+    private void markReachable(IndexedGraph<?> g, int start, int color, int[] marks, int[] queue) {
+      int head = 0;
+      int tail = 0;
+      marks[start] = color;
+      queue[tail++] = start;
+      while (head < tail) {
+        int node = queue[head++];
+        for (int edge = g.successorsStart(node); edge < g.successorsEnd(node); edge++) {
+          int target = g.target(edge);
+          if (colors[target] == color && marks[target] != color) {
+            marks[target] = color;
+            queue[tail++] = target;
+          }
+        }
+      }
+    }
+
+    /**
+     * Trims a range of nodes as sinks or as sources, and any node that's left without successors
+     * or predecessors, respectively, by trimming them.
+     */
+    private final class Trim extends RecursiveAction {
+      private static final long serialVersionUID = 0L;
+
+      private final int kind;
+      private final int from;
+      private final int to;
+
+      Trim(int kind, int from, int to) {
+        this.kind = kind;
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (to - from > TRIM_GRAIN) {
+          int middle = (from + to) >>> 1;
+          invokeAll(new Trim(kind, from, middle), new Trim(kind, middle, to));
+          return;
+        }
+        // A sink's successors have all been trimmed, and its predecessors' out-degrees go down.
+        // Likewise for a source's predecessors and successors.
+        AtomicLongArray degrees = kind == SINK ? outDegrees : inDegrees;
+        IndexedGraph<?> untrimmedNeighbors = kind == SINK ? transpose : graph;
+        int[] stack = new int[16];
+        for (int root = from; root < to; root++) {
+          int size = 0;
+          stack[size++] = root;
+          while (size > 0) {
+            int node = stack[--size];
+            long degree = degrees.get(node);
+            if ((int) degree > 0 || !trimmedAs.compareAndSet(node, NOT_TRIMMED, kind)) {
+              continue;
+            }
+            long neighborLevel = (long) (level(degree) + 1) << 32;
+            int start = untrimmedNeighbors.successorsStart(node);
+            int end = untrimmedNeighbors.successorsEnd(node);
+            if (size + end - start > stack.length) {
+              stack = Arrays.copyOf(stack, Math.max(2 * stack.length, size + end - start));
+            }
+            for (int edge = start; edge < end; edge++) {
+              int neighbor = untrimmedNeighbors.target(edge);
+              long oldDegree;
+              long newDegree;
+              do {
+                oldDegree = degrees.get(neighbor);
+                long level = Math.max(oldDegree & ~0xFFFFFFFFL, neighborLevel);
+                newDegree = level | ((int) oldDegree - 1);
+              } while (!degrees.compareAndSet(neighbor, oldDegree, newDegree));
+              if ((int) newDegree == 0) {
+                stack[size++] = neighbor;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Splits a part until all of its nodes are assigned to components. Large parts that come out
+     * of it are forked off, and the task completes when they do.
+     */
+    private final class Split extends CountedCompleter<Void> {
+      private static final long serialVersionUID = 0L;
+
+      private final int[] nodes;
+
+      Split(@Nullable CountedCompleter<?> completer, int[] nodes) {
+        super(completer);
+        this.nodes = nodes;
+      }
+
+      @Override
+      public void compute() {
+        // Small parts are split here rather than recursively, so a long chain of components
+        // doesn't overflow the stack.
+        ArrayDeque<int[]> unsplit = new ArrayDeque<>();
+        unsplit.push(nodes);
+        while (!unsplit.isEmpty()) {
+          for (int[] part : split(unsplit.pop())) {
+            if (part.length >= FORK_THRESHOLD) {
+              addToPendingCount(1);
+              new Split(this, part).fork();
+            } else {
+              unsplit.push(part);
+            }
+          }
+        }
+        tryComplete();
+      }
     }
   }
 }
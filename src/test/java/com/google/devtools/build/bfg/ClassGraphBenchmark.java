@@ -0,0 +1,332 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.graph.Graph;
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.Graphs;
+import com.google.common.graph.ImmutableGraph;
+import com.google.common.graph.MutableGraph;
+import com.google.re2j.Pattern;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures the memory and time that the class graph takes from loading to its strongly connected
+ * components of source files, with Guava graphs as before, and with {@link IndexedGraph}, on a
+ * generated graph, e.g.,
+ *
+ * <pre>
+ * bazel run //src/test/java/com/google/devtools/build/bfg:ClassGraphBenchmark -- 1000000
+ * </pre>
+ *
+ * <p>The graph has the given number of edges, between the classes of 2,000 packages, their inner
+ * classes, AutoValue classes, and external classes. Most edges go to a few popular classes, and
+ * mostly from later classes to earlier ones, with a few cycles, as in real code. The "before"
+ * implementations are kept here as they were. An optional second argument is the number of
+ * threads to preprocess the graph on, which defaults to 1.
+ */
+public class ClassGraphBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 2;
+
+  private static final int MEASURED_ITERATIONS = 5;
+
+  private static final int PACKAGES = 2_000;
+
+  private static final int CLASSES_PER_PACKAGE = 25;
+
+  private static final int EXTERNAL_CLASSES = 5_000;
+
+  private static final Pattern WHITE_LIST = Pattern.compile("com\\.bench\\.");
+
+  private static final Pattern BLACK_LIST = Pattern.compile("AutoValue_");
+
+  private static final ClassNameMatcher WHITE_LIST_MATCHER =
+      ClassNameMatcher.compile(WHITE_LIST.pattern());
+
+  private static final ClassNameMatcher BLACK_LIST_MATCHER =
+      ClassNameMatcher.compile(BLACK_LIST.pattern());
+
+  /** Keeps the result of a stage alive while its size is measured. */
+  private static Object retained;
+
+  public static void main(String[] args) {
+    int edgeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    String[][] edges = generateEdges(edgeCount, new Random(42));
+    ImmutableMap<String, Path> classToFile = classToFile();
+    System.out.printf("%d edges, %d classes with files%n", edgeCount, classToFile.size());
+
+    ImmutableGraph<ImmutableSet<Path>> before = legacyComponents(legacyLoad(edges), classToFile);
+    ImmutableGraph<ImmutableSet<Path>> after = components(load(edges), classToFile);
+    if (!ImmutableSet.copyOf(before.nodes()).equals(ImmutableSet.copyOf(after.nodes()))) {
+      throw new AssertionError("The components differ");
+    }
+    System.out.printf(
+        "%d source files in %d components%n",
+        ImmutableSet.copyOf(classToFile.values()).size(),
+        after.nodes().size());
+
+    System.out.printf(
+        "class graph  before %6.1f bytes/edge  after %6.1f bytes/edge%n",
+        (double) retainedBytes(() -> legacyLoad(edges)) / edgeCount,
+        (double) retainedBytes(() -> load(edges)) / edgeCount);
+    report("load", () -> legacyLoad(edges), () -> load(edges));
+    ImmutableGraph<String> legacyGraph = legacyLoad(edges);
+    IndexedGraph<String> graph = load(edges);
+    report(
+        "preprocess",
+        () -> legacyPreProcessClassGraph(legacyGraph, WHITE_LIST, BLACK_LIST),
+        () ->
+            ClassGraphPreprocessor.preProcessClassGraph(
+                graph, WHITE_LIST_MATCHER, BLACK_LIST_MATCHER, numThreads));
+    report(
+        "end to end",
+        () -> legacyComponents(legacyLoad(edges), classToFile),
+        () -> components(load(edges), classToFile));
+  }
+
+  private static IndexedGraph<String> load(String[][] edges) {
+    IndexedGraph.Builder<String> builder = IndexedGraph.builder();
+    for (String[] edge : edges) {
+      builder.putEdge(edge[0], edge[1]);
+    }
+    return builder.build();
+  }
+
+  private static ImmutableGraph<ImmutableSet<Path>> components(
+      IndexedGraph<String> classGraph, ImmutableMap<String, Path> classToFile) {
+    IndexedGraph<String> graph =
+        ClassGraphPreprocessor.preProcessClassGraph(
+            classGraph, WHITE_LIST_MATCHER, BLACK_LIST_MATCHER);
+    ImmutableSet<String> projectClasses =
+        graph.nodes().stream().filter(WHITE_LIST_MATCHER::matches).collect(toImmutableSet());
+    Map<String, Path> classToSrcFileMap =
+        Maps.filterKeys(classToFile, k -> projectClasses.contains(k));
+    return new StronglyConnectedComponents<>(
+            ClassToSourceGraphConsolidator.map(graph, classToSrcFileMap))
+        .computeComponentDAG();
+  }
+
+  private static ImmutableGraph<String> legacyLoad(String[][] edges) {
+    MutableGraph<String> graph = GraphBuilder.directed().build();
+    for (String[] edge : edges) {
+      graph.putEdge(edge[0], edge[1]);
+    }
+    return ImmutableGraph.copyOf(graph);
+  }
+
+  private static ImmutableGraph<ImmutableSet<Path>> legacyComponents(
+      ImmutableGraph<String> classGraph, ImmutableMap<String, Path> classToFile) {
+    ImmutableGraph<String> graph = legacyPreProcessClassGraph(classGraph, WHITE_LIST, BLACK_LIST);
+    ImmutableSet<String> projectClasses = legacyProjectClasses(graph.nodes());
+    Map<String, Path> classToSrcFileMap =
+        Maps.filterKeys(classToFile, k -> projectClasses.contains(k));
+    ImmutableGraph<String> resolvedClassGraph =
+        ImmutableGraph.copyOf(Graphs.inducedSubgraph(graph, classToSrcFileMap.keySet()));
+    return new StronglyConnectedComponents<>(legacyMap(resolvedClassGraph, classToSrcFileMap))
+        .computeComponentDAG();
+  }
+
+  private static ImmutableSet<String> legacyProjectClasses(Collection<String> classes) {
+    return classes
+        .stream()
+        .filter(name -> WHITE_LIST.matcher(name).find())
+        .collect(toImmutableSet());
+  }
+
+  private static ImmutableGraph<String> legacyPreProcessClassGraph(
+      ImmutableGraph<String> classGraph, Pattern whiteList, Pattern blackList) {
+    return legacyCollapseInnerClasses(legacyTrimClassGraph(classGraph, whiteList, blackList));
+  }
+
+  private static ImmutableGraph<String> legacyTrimClassGraph(
+      ImmutableGraph<String> classGraph, Pattern whiteList, Pattern blackList) {
+    MutableGraph<String> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
+    for (String src : classGraph.nodes()) {
+      if (!whiteList.matcher(src).find() || blackList.matcher(src).find()) {
+        continue;
+      }
+      graph.addNode(src);
+      for (String dst : classGraph.successors(src)) {
+        if (blackList.matcher(dst).find()) {
+          continue;
+        }
+        graph.putEdge(src, dst);
+      }
+    }
+    return ImmutableGraph.copyOf(graph);
+  }
+
+  private static ImmutableGraph<String> legacyCollapseInnerClasses(
+      ImmutableGraph<String> classGraph) {
+    ClassNames classNames = new ClassNames();
+    MutableGraph<String> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
+    for (String src : classGraph.nodes()) {
+      String outerSrc = classNames.outerClassName(src);
+      graph.addNode(outerSrc);
+      for (String dst : classGraph.successors(src)) {
+        String outerDst = classNames.outerClassName(dst);
+        if (outerSrc.equals(outerDst)) {
+          continue;
+        }
+        graph.putEdge(outerSrc, outerDst);
+      }
+    }
+    return ImmutableGraph.copyOf(graph);
+  }
+
+  private static ImmutableGraph<Path> legacyMap(
+      Graph<String> classGraph, Map<String, Path> classToSourceFileMap) {
+    MutableGraph<Path> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
+    for (String sourceNode : classGraph.nodes()) {
+      Path sourcePath = classToSourceFileMap.get(sourceNode);
+      graph.addNode(sourcePath);
+      for (String successorNode : classGraph.successors(sourceNode)) {
+        Path successorPath = classToSourceFileMap.get(successorNode);
+        if (!sourcePath.equals(successorPath)) {
+          graph.putEdge(sourcePath, successorPath);
+        }
+      }
+    }
+    return ImmutableGraph.copyOf(graph);
+  }
+
+  /**
+   * Returns 'edgeCount' edges from project classes, or their inner classes, to project classes,
+   * inner classes, AutoValue classes and external classes.
+   */
+  private static String[][] generateEdges(int edgeCount, Random random) {
+    List<String> classes = new ArrayList<>();
+    for (int p = 0; p < PACKAGES; p++) {
+      for (int c = 0; c < CLASSES_PER_PACKAGE; c++) {
+        classes.add(className(p, c));
+      }
+    }
+    String[][] edges = new String[edgeCount][];
+    int i = 0;
+    while (i < edgeCount) {
+      int sourceIndex = random.nextInt(classes.size());
+      String source = classes.get(sourceIndex);
+      if (random.nextInt(4) == 0) {
+        source += "$Builder";
+      }
+      String target;
+      int kind = random.nextInt(10);
+      if (kind < 2) {
+        target = "org.external.Class" + skewed(random, EXTERNAL_CLASSES);
+      } else if (kind < 3) {
+        target = className(random.nextInt(PACKAGES), random.nextInt(CLASSES_PER_PACKAGE));
+        target = target.replace(".Class", ".AutoValue_Class");
+      } else {
+        // Classes mostly depend on classes before them, with a few cycles.
+        int bound = random.nextInt(100) == 0 ? classes.size() : sourceIndex + 1;
+        target = classes.get(skewed(random, bound));
+        if (kind < 4) {
+          target += "$Builder";
+        }
+      }
+      // Guava graphs don't allow self loops.
+      if (!source.equals(target)) {
+        edges[i++] = new String[] {source, target};
+      }
+    }
+    return edges;
+  }
+
+  /** Returns a number from 0 to 'bound' - 1, where small numbers are much more likely. */
+  private static int skewed(Random random, int bound) {
+    return (int) (bound * Math.pow(random.nextDouble(), 3));
+  }
+
+  private static String className(int p, int c) {
+    return String.format("com.bench.p%d.Class%d", p, c);
+  }
+
+  /** Maps every project class to a file, with two classes in each file. */
+  private static ImmutableMap<String, Path> classToFile() {
+    ImmutableMap.Builder<String, Path> result = ImmutableMap.builder();
+    for (int p = 0; p < PACKAGES; p++) {
+      for (int c = 0; c < CLASSES_PER_PACKAGE; c++) {
+        Path file = Paths.get(String.format("com/bench/p%d/File%d.java", p, c / 2));
+        result.put(className(p, c), file);
+      }
+    }
+    return result.build();
+  }
+
+  private static void report(String stage, Supplier<?> before, Supplier<?> after) {
+    double[] beforeResult = measure(before);
+    double[] afterResult = measure(after);
+    System.out.printf(
+        "%-11s  before %7.1f ms %8.1f MB allocated  after %7.1f ms %8.1f MB allocated%n",
+        stage, beforeResult[1], beforeResult[0], afterResult[1], afterResult[0]);
+  }
+
+  /** Returns the median megabytes allocated and milliseconds spent by 'stage'. */
+  private static double[] measure(Supplier<?> stage) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      stage.get();
+    }
+    double[] megabytes = new double[MEASURED_ITERATIONS];
+    double[] millis = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      stage.get();
+      millis[i] = (System.nanoTime() - start) / 1e6;
+      megabytes[i] = (allocatedBytes() - bytes) / 1e6;
+    }
+    Arrays.sort(megabytes);
+    Arrays.sort(millis);
+    return new double[] {megabytes[MEASURED_ITERATIONS / 2], millis[MEASURED_ITERATIONS / 2]};
+  }
+
+  /** Returns the bytes of heap that the result of 'stage' keeps alive. */
+  private static long retainedBytes(Supplier<?> stage) {
+    long before = usedHeapAfterGc();
+    retained = stage.get();
+    long after = usedHeapAfterGc();
+    retained = null;
+    return after - before;
+  }
+
+  private static long usedHeapAfterGc() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /** Returns the bytes allocated by this thread so far, as reported by HotSpot. */
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -22,7 +22,7 @@ import com.google.common.graph.Graph;
 import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.ImmutableGraph;
 import com.google.common.graph.MutableGraph;
-import com.google.re2j.Pattern;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -32,10 +32,10 @@ import org.junit.runners.JUnit4;
 public class ClassGraphPreprocessorTest {
 
   /** Regular expression to match everything */
-  private static final Pattern EVERYTHING = Pattern.compile(".*");
+  private static final ClassNameMatcher EVERYTHING = ClassNameMatcher.compile(".*");
 
   /** Regular expression to match nothing. */
-  private static final Pattern NOTHING = Pattern.compile("a^");
+  private static final ClassNameMatcher NOTHING = ClassNameMatcher.compile("a^");
 
   /** Tests whether the black listed class names are removed from the class graph. */
   @Test
@@ -44,7 +44,7 @@ public class ClassGraphPreprocessorTest {
     graph.putEdge("com.BlackList", "com.WhiteList");
     graph.putEdge("com.WhiteList", "com.BlackList");
 
-    Pattern blackList = Pattern.compile("BlackList");
+    ClassNameMatcher blackList = ClassNameMatcher.compile("BlackList");
 
     Graph<String> actual =
         preProcessClassGraph(ImmutableGraph.copyOf(graph), EVERYTHING, blackList);
@@ -84,7 +84,7 @@ public class ClassGraphPreprocessorTest {
     graph.putEdge("com.WhiteList", "com.OtherList");
     graph.putEdge("com.OtherList", "com.TransitiveDependency");
 
-    Pattern whiteList = Pattern.compile("WhiteList");
+    ClassNameMatcher whiteList = ClassNameMatcher.compile("WhiteList");
 
     Graph<String> actual = preProcessClassGraph(ImmutableGraph.copyOf(graph), whiteList, NOTHING);
 
@@ -111,8 +111,8 @@ public class ClassGraphPreprocessorTest {
     graph.putEdge("com.BlackList", "com.OtherList");
     graph.putEdge("com.WhiteList", "com.BlackList");
 
-    Pattern blackList = Pattern.compile("BlackList");
-    Pattern whiteList = Pattern.compile("WhiteList");
+    ClassNameMatcher blackList = ClassNameMatcher.compile("BlackList");
+    ClassNameMatcher whiteList = ClassNameMatcher.compile("WhiteList");
 
     Graph<String> actual = preProcessClassGraph(ImmutableGraph.copyOf(graph), whiteList, blackList);
 
@@ -171,6 +171,36 @@ public class ClassGraphPreprocessorTest {
     assertThat(actual.edges()).containsExactly(EndpointPair.ordered("OtherClass", "Class"));
   }
 
+  /** Tests that the graph, including the order of its nodes, doesn't depend on the threads. */
+  @Test
+  public void sameGraphOnSeveralThreads() {
+    MutableGraph<String> graph = newGraph();
+    Random random = new Random(1);
+    for (int i = 0; i < 20_000; i++) {
+      String src = "com.p" + random.nextInt(50) + ".Class" + random.nextInt(100);
+      String dst = "com.p" + random.nextInt(50) + ".Class" + random.nextInt(100);
+      if (random.nextBoolean()) {
+        src += "$Inner";
+      }
+      if (random.nextInt(10) == 0) {
+        dst = "org.External" + random.nextInt(100);
+      }
+      if (!src.equals(dst)) {
+        graph.putEdge(src, dst);
+      }
+    }
+    ClassNameMatcher whiteList = ClassNameMatcher.compile("com\\.p[0-3]");
+    ClassNameMatcher blackList = ClassNameMatcher.compile("Class1\\b");
+
+    IndexedGraph<String> expected = preProcessClassGraph(graph, whiteList, blackList, 1);
+    IndexedGraph<String> actual = preProcessClassGraph(graph, whiteList, blackList, 4);
+
+    assertThat(actual.nodes()).containsExactlyElementsIn(expected.nodes()).inOrder();
+    assertThat(actual).isEqualTo(expected);
+    assertThat(actual.nodes()).doesNotContain("com.p1.Class1");
+    assertThat(actual.nodes()).contains("com.p1.Class10");
+  }
+
   /** Returns a Directed Mutable Graph */
   private MutableGraph<String> newGraph() {
     return GraphBuilder.directed().build();
@@ -0,0 +1,137 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.bfg.ClassNameMatcher.RegexMatcher;
+import com.google.devtools.build.bfg.ClassNameMatcher.SegmentTrieMatcher;
+import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ClassNameMatcher}. */
+@RunWith(JUnit4.class)
+public class ClassNameMatcherTest {
+
+  private static final ImmutableList<String> CLASS_NAMES =
+      ImmutableList.of(
+          "",
+          "com",
+          "com.",
+          "com.foo",
+          "com.foo.Bar",
+          "com.foo.Bar$Inner",
+          "com.foobar.Baz",
+          "com.foo.bar.Baz",
+          "com.fo.Bar",
+          "xcom.foo.Bar",
+          "org.com.foo.Bar",
+          "org.xcom.foo.Bar",
+          "org.bar.Baz",
+          "com.org.bar.Baz",
+          "org.barn.Baz",
+          "org.foo.AutoValue_Bar",
+          "comfoo.Bar",
+          "Bar");
+
+  /** Tests that literal alternations are compiled into a trie, and everything else isn't. */
+  @Test
+  public void compilesLiteralsIntoTrie() {
+    assertThat(ClassNameMatcher.compile("com\\.foo\\.")).isInstanceOf(SegmentTrieMatcher.class);
+    assertThat(ClassNameMatcher.compile("^com\\.foo|org\\.bar"))
+        .isInstanceOf(SegmentTrieMatcher.class);
+    assertThat(ClassNameMatcher.compile("^(?:com\\.foo|org\\.bar).*"))
+        .isInstanceOf(SegmentTrieMatcher.class);
+    assertThat(ClassNameMatcher.compile("AutoValue_")).isInstanceOf(SegmentTrieMatcher.class);
+    assertThat(ClassNameMatcher.compile(".*")).isInstanceOf(SegmentTrieMatcher.class);
+
+    assertThat(ClassNameMatcher.compile("com.foo")).isInstanceOf(RegexMatcher.class);
+    assertThat(ClassNameMatcher.compile("com\\.p[0-3]")).isInstanceOf(RegexMatcher.class);
+    assertThat(ClassNameMatcher.compile("Bar$")).isInstanceOf(RegexMatcher.class);
+    assertThat(ClassNameMatcher.compile("(?i)com")).isInstanceOf(RegexMatcher.class);
+    assertThat(ClassNameMatcher.compile("a^")).isInstanceOf(RegexMatcher.class);
+    assertThat(ClassNameMatcher.compile("(com|org)x*")).isInstanceOf(RegexMatcher.class);
+  }
+
+  /** Tests that every matcher answers the same as Pattern.find(). */
+  @Test
+  public void matchesSameAsFind() {
+    ImmutableList<String> regexes =
+        ImmutableList.of(
+            "",
+            ".*",
+            "^",
+            "com",
+            "^com",
+            "com\\.",
+            "^com\\.",
+            "com\\.foo",
+            "^com\\.foo",
+            "com\\.foo\\.",
+            "^com\\.foo\\.",
+            "com\\.foo\\.Bar",
+            "^com\\.foo\\.Bar\\$",
+            "^com\\.foo\\.Ba.*",
+            "com\\.foo|org\\.bar",
+            "^com\\.foo\\.|^org\\.bar\\.",
+            "^com\\.foo|org\\.bar\\.",
+            "^(com\\.foo|org\\.bar)",
+            "(?:com\\.foo\\.|org\\.bar\\.).*",
+            "^(?:com\\.foo\\.|com\\.foobar\\.|com\\.foo\\.bar\\.)",
+            "o\\.foo\\.B",
+            "m\\.foo",
+            "\\.foo\\.",
+            "\\.",
+            "foo\\.\\.",
+            "AutoValue_",
+            "|com",
+            "^|org",
+            "com.foo",
+            "com\\.p[0-3]",
+            "Bar$",
+            "a^",
+            "\\bfoo\\b");
+    for (String regex : regexes) {
+      Pattern pattern = Pattern.compile(regex);
+      ClassNameMatcher matcher = ClassNameMatcher.compile(regex);
+      for (String className : CLASS_NAMES) {
+        assertWithMessage("'%s' in '%s'", regex, className)
+            .that(matcher.matches(className))
+            .isEqualTo(pattern.matcher(className).find());
+      }
+    }
+  }
+
+  /** Tests that the regex matcher's remembered answers are the same as its first ones. */
+  @Test
+  public void rememberedAnswersAreTheSame() {
+    ClassNameMatcher matcher = ClassNameMatcher.compile("com\\.f[aeiou]o");
+    for (int i = 0; i < 2; i++) {
+      assertThat(matcher.matches("com.foo.Bar")).isTrue();
+      assertThat(matcher.matches("com.fxo.Bar")).isFalse();
+    }
+  }
+
+  /** Tests that invalid expressions are rejected by re2j. */
+  @Test(expected = PatternSyntaxException.class)
+  public void invalidRegex() {
+    ClassNameMatcher.compile("com\\.(foo");
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.bfg.ClassNames.getOuterClassName;
+import static com.google.devtools.build.bfg.ClassNames.isInnerClass;
+import static com.google.devtools.build.bfg.ClassNames.lastPartStart;
+import static com.google.devtools.build.bfg.ClassNames.qualifiedTopLevelClassEnd;
+import static com.google.devtools.build.bfg.ClassNames.topLevelClassEnd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ClassNames}. */
+@RunWith(JUnit4.class)
+public class ClassNamesTest {
+
+  @Test
+  public void internReturnsTheFirstInstance() {
+    ClassNames classNames = new ClassNames();
+    String first = new String("com.Foo");
+    String second = new String("com.Foo");
+
+    assertThat(classNames.intern(first)).isSameAs(first);
+    assertThat(classNames.intern(second)).isSameAs(first);
+    assertThat(classNames.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void outerClassNameIsInterned() {
+    ClassNames classNames = new ClassNames();
+    String outer = classNames.intern("com.Foo");
+
+    assertThat(classNames.outerClassName(new String("com.Foo$Bar"))).isSameAs(outer);
+    assertThat(classNames.outerClassName(new String("com.Foo$Bar$Baz"))).isSameAs(outer);
+    assertThat(classNames.outerClassName(new String("com.Foo"))).isSameAs(outer);
+  }
+
+  @Test
+  public void innerClasses() {
+    assertThat(isInnerClass("com.Foo$Bar")).isTrue();
+    assertThat(isInnerClass("com.Foo")).isFalse();
+    assertThat(getOuterClassName("com.Foo$Bar$Baz")).isEqualTo("com.Foo");
+    assertThat(getOuterClassName("$Foo")).isEmpty();
+    String topLevel = "com.Foo";
+    assertThat(getOuterClassName(topLevel)).isSameAs(topLevel);
+  }
+
+  @Test
+  public void topLevelClass() {
+    assertThat(topLevelClassEnd("com.google.Outer.Inner")).isEqualTo("com.google.Outer".length());
+    assertThat(topLevelClassEnd("Outer.Inner")).isEqualTo("Outer".length());
+    assertThat(topLevelClassEnd("com.google.inner")).isEqualTo(-1);
+    assertThat(topLevelClassEnd("com.google_Outer")).isEqualTo(-1);
+    assertThat(topLevelClassEnd("com.Outer_1")).isEqualTo(-1);
+    assertThat(topLevelClassEnd("com.mixedCase.Outer")).isEqualTo(-1);
+    assertThat(topLevelClassEnd("")).isEqualTo(-1);
+  }
+
+  @Test
+  public void qualifiedTopLevelClass() {
+    assertThat(qualifiedTopLevelClassEnd("java.util.Map.Entry"))
+        .isEqualTo("java.util.Map".length());
+    assertThat(qualifiedTopLevelClassEnd("com.Outer_1")).isEqualTo("com.Outer_1".length());
+    assertThat(qualifiedTopLevelClassEnd("com.Outer$Inner")).isEqualTo("com.Outer$Inner".length());
+    assertThat(qualifiedTopLevelClassEnd("Outer.Inner")).isEqualTo(-1);
+    assertThat(qualifiedTopLevelClassEnd("com.google")).isEqualTo(-1);
+  }
+
+  @Test
+  public void lastPart() {
+    assertThat(lastPartStart("java.util.List")).isEqualTo("java.util.".length());
+    assertThat(lastPartStart("List")).isEqualTo(0);
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.ImmutableGraph;
+import com.google.common.graph.MutableGraph;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IndexedGraph}. */
+@RunWith(JUnit4.class)
+public class IndexedGraphTest {
+
+  @Test
+  public void nodesAreNumberedInTheOrderTheyAreAdded() {
+    IndexedGraph<String> graph =
+        IndexedGraph.<String>builder().putEdge("c", "a").putEdge("a", "b").build();
+
+    assertThat(graph.nodeCount()).isEqualTo(3);
+    assertThat(graph.node(0)).isEqualTo("c");
+    assertThat(graph.node(1)).isEqualTo("a");
+    assertThat(graph.node(2)).isEqualTo("b");
+    assertThat(graph.id("b")).isEqualTo(2);
+    assertThat(graph.id("d")).isEqualTo(-1);
+    assertThat(graph.nodes()).containsExactly("c", "a", "b").inOrder();
+  }
+
+  @Test
+  public void successorsAreSortedByIdWithoutDuplicatesOrSelfLoops() {
+    IndexedGraph.Builder<String> builder = IndexedGraph.builder();
+    int a = builder.addNode("a");
+    int b = builder.addNode("b");
+    int c = builder.addNode("c");
+    builder
+        .putEdgeById(a, c)
+        .putEdgeById(a, b)
+        .putEdgeById(a, c)
+        .putEdgeById(a, a)
+        .putEdgeById(c, b)
+        .putEdgeById(a, b);
+    IndexedGraph<String> graph = builder.build();
+
+    assertThat(successorIds(graph, a)).containsExactly(b, c).inOrder();
+    assertThat(successorIds(graph, b)).isEmpty();
+    assertThat(successorIds(graph, c)).containsExactly(b);
+    assertThat(graph.hasEdge(a, c)).isTrue();
+    assertThat(graph.hasEdge(c, a)).isFalse();
+    assertThat(graph.edges()).hasSize(3);
+  }
+
+  @Test
+  public void transposeReversesEveryEdge() {
+    IndexedGraph<String> graph =
+        IndexedGraph.<String>builder()
+            .putEdge("a", "b")
+            .putEdge("a", "c")
+            .putEdge("c", "b")
+            .build();
+
+    IndexedGraph<String> transpose = graph.transpose();
+
+    assertThat(successorIds(transpose, graph.id("b")))
+        .containsExactly(graph.id("a"), graph.id("c"))
+        .inOrder();
+    assertThat(successorIds(transpose, graph.id("a"))).isEmpty();
+    assertThat(transpose.transpose()).isSameAs(graph);
+    assertThat(graph.predecessors("b")).containsExactly("a", "c");
+  }
+
+  /** Tests that an {@link IndexedGraph} equals a Guava graph with the same nodes and edges. */
+  @Test
+  public void equalsGuavaGraph() {
+    MutableGraph<String> expected = GraphBuilder.directed().allowsSelfLoops(false).build();
+    expected.putEdge("a", "b");
+    expected.putEdge("b", "c");
+    expected.putEdge("c", "a");
+    expected.addNode("d");
+
+    IndexedGraph<String> graph = IndexedGraph.copyOf(ImmutableGraph.copyOf(expected));
+
+    assertThat(graph).isEqualTo(expected);
+    assertThat(graph.successors("a")).containsExactly("b");
+    assertThat(graph.successors("a").contains("c")).isFalse();
+    assertThat(graph.adjacentNodes("a")).containsExactly("b", "c");
+    assertThat(graph.hasEdgeConnecting("c", "a")).isTrue();
+    assertThat(graph.hasEdgeConnecting("a", "c")).isFalse();
+    assertThat(graph.outDegree("d")).isEqualTo(0);
+    assertThat(IndexedGraph.copyOf(graph)).isSameAs(graph);
+  }
+
+  @Test
+  public void successorsOfMissingNode_throwsException() {
+    IndexedGraph<String> graph = IndexedGraph.<String>builder().putEdge("a", "b").build();
+    try {
+      graph.successors("c");
+      fail("Expected IllegalArgumentException but nothing was thrown.");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("c");
+    }
+  }
+
+  @Test
+  public void emptyGraph() {
+    IndexedGraph<String> graph = IndexedGraph.<String>builder().build();
+
+    assertThat(graph.nodeCount()).isEqualTo(0);
+    assertThat(graph.nodes()).isEmpty();
+    assertThat(graph.edges()).isEmpty();
+    assertThat(graph.transpose().nodeCount()).isEqualTo(0);
+  }
+
+  private static ImmutableList<Integer> successorIds(IndexedGraph<?> graph, int node) {
+    List<Integer> result = new ArrayList<>();
+    for (int edge = graph.successorsStart(node); edge < graph.successorsEnd(node); edge++) {
+      result.add(graph.target(edge));
+    }
+    return ImmutableList.copyOf(result);
+  }
+}
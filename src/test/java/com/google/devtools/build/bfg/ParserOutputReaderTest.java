@@ -0,0 +1,119 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.MutableGraph;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import protos.com.google.devtools.build.bfg.Bfg.ParserOutput;
+import protos.com.google.devtools.build.bfg.Bfg.Strings;
+
+/** Tests for {@link ParserOutputReader}. */
+@RunWith(JUnit4.class)
+public class ParserOutputReaderTest {
+
+  @Test
+  public void readMessage() throws IOException {
+    ParserOutput parserOutput =
+        classInFile("com.A", "/src/com/A.java", "com.B", "com.C")
+            .toBuilder()
+            .mergeFrom(classInFile("com.B", "/src/com/B.java", "com.A"))
+            .build();
+
+    ParserOutputReader reader =
+        ParserOutputReader.readMessage(new ByteArrayInputStream(parserOutput.toByteArray()));
+
+    MutableGraph<String> expected = GraphBuilder.directed().build();
+    expected.putEdge("com.A", "com.B");
+    expected.putEdge("com.A", "com.C");
+    expected.putEdge("com.B", "com.A");
+    assertThat(reader.classGraph()).isEqualTo(expected);
+    assertThat(reader.classToFile())
+        .containsExactly(
+            "com.A", Paths.get("/src/com/A.java"), "com.B", Paths.get("/src/com/B.java"));
+  }
+
+  /** The edges of a class are the union of its edges in all the messages. */
+  @Test
+  public void readDelimited_mergesMessages() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    classInFile("com.A", "/src/com/A.java", "com.C").writeDelimitedTo(out);
+    classInFile("com.B", "/src/com/B.java").writeDelimitedTo(out);
+    // The edges of a cycle, which only come once all the files are parsed.
+    edges("com.A", "com.B").writeDelimitedTo(out);
+    edges("com.B", "com.A").writeDelimitedTo(out);
+
+    ParserOutputReader reader =
+        ParserOutputReader.readDelimited(new ByteArrayInputStream(out.toByteArray()));
+
+    MutableGraph<String> expected = GraphBuilder.directed().build();
+    expected.putEdge("com.A", "com.B");
+    expected.putEdge("com.A", "com.C");
+    expected.putEdge("com.B", "com.A");
+    assertThat(reader.classGraph()).isEqualTo(expected);
+    assertThat(reader.classToFile())
+        .containsExactly(
+            "com.A", Paths.get("/src/com/A.java"), "com.B", Paths.get("/src/com/B.java"));
+  }
+
+  @Test
+  public void readDelimited_emptyStream() throws IOException {
+    ParserOutputReader reader =
+        ParserOutputReader.readDelimited(new ByteArrayInputStream(new byte[0]));
+
+    assertThat(reader.classGraph().nodes()).isEmpty();
+    assertThat(reader.classToFile()).isEmpty();
+  }
+
+  @Test
+  public void classDefinedInTwoFiles_throws() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    classInFile("com.A", "/src/com/A.java").writeDelimitedTo(out);
+    classInFile("com.A", "/test/com/A.java").writeDelimitedTo(out);
+
+    try {
+      ParserOutputReader.readDelimited(new ByteArrayInputStream(out.toByteArray()));
+      fail("Expected an exception");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageThat().contains("com.A");
+    }
+  }
+
+  /** Returns the message for a file that defines 'className', which depends on 'dependencies'. */
+  private static ParserOutput classInFile(String className, String file, String... dependencies) {
+    return edges(className, dependencies)
+        .toBuilder()
+        .putClassToFile(className, Strings.newBuilder().addElements(file).build())
+        .build();
+  }
+
+  /** Returns a message with only the edges from 'className' to 'dependencies'. */
+  private static ParserOutput edges(String className, String... dependencies) {
+    Strings.Builder successors = Strings.newBuilder();
+    for (String dependency : dependencies) {
+      successors.addElements(dependency);
+    }
+    return ParserOutput.newBuilder().putClassToClass(className, successors.build()).build();
+  }
+}
@@ -27,7 +27,6 @@ import com.google.common.graph.ImmutableGraph;
 import com.google.common.graph.MutableGraph;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
-import com.google.re2j.Pattern;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
@@ -43,7 +42,7 @@ public class ProjectClassToRuleResolverTest {
 
   private Path workspace;
 
-  private static final Pattern WHITELIST_DEFAULT = Pattern.compile(".*");
+  private static final ClassNameMatcher WHITELIST_DEFAULT = ClassNameMatcher.compile(".*");
 
   @Before
   public void setUp() throws IOException {
@@ -172,7 +171,7 @@ public class ProjectClassToRuleResolverTest {
     ProjectClassToRuleResolver resolver =
         newResolver(
             classgraph,
-            Pattern.compile("com.hello.*"),
+            ClassNameMatcher.compile("com.hello.*"),
             ImmutableMap.of(
                 "com.A",
                 workspace.resolve("java/com/A.java"),
@@ -238,7 +237,9 @@ public class ProjectClassToRuleResolverTest {
 
   /** Constructs a ProjectClassToRuleResolver using default workspace path and arguments */
   private ProjectClassToRuleResolver newResolver(
-      Graph<String> classGraph, Pattern whiteList, ImmutableMap<String, Path> classToFile) {
+      Graph<String> classGraph,
+      ClassNameMatcher whiteList,
+      ImmutableMap<String, Path> classToFile) {
     return new ProjectClassToRuleResolver(
         ImmutableGraph.copyOf(classGraph), whiteList, classToFile, workspace);
   }
@@ -0,0 +1,129 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures how finding strongly connected components scales with the number of threads, on a
+ * generated graph, e.g.,
+ *
+ * <pre>
+ * bazel run //src/test/java/com/google/devtools/build/bfg:StronglyConnectedComponentsBenchmark \
+ *     -- 1000000 5 8
+ * </pre>
+ *
+ * <p>The arguments are the number of nodes, the number of edges per node, and the largest number
+ * of threads to measure, which defaults to the number of processors. As in {@link
+ * ClassGraphBenchmark}, edges mostly go from later nodes to a few popular earlier ones, with a few
+ * cycles. Tarjan's algorithm on the calling thread is the baseline.
+ */
+public class StronglyConnectedComponentsBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 2;
+
+  private static final int MEASURED_ITERATIONS = 5;
+
+  public static void main(String[] args) {
+    int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int edgesPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int maxThreads =
+        args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    IndexedGraph<Integer> graph = generateGraph(nodeCount, edgesPerNode, new Random(42));
+
+    ImmutableList<ImmutableSet<Integer>> expected =
+        ImmutableList.copyOf(new StronglyConnectedComponents<>(graph).compute());
+    ImmutableList<ImmutableSet<Integer>> parallel =
+        ImmutableList.copyOf(StronglyConnectedComponents.inParallel(graph, 1).compute());
+    if (!ImmutableSet.copyOf(expected).equals(ImmutableSet.copyOf(parallel))) {
+      throw new AssertionError("The components differ");
+    }
+    System.out.printf(
+        "%d nodes, %d edges, %d components, %d processors%n",
+        nodeCount,
+        graph.edgeCount(),
+        expected.size(),
+        Runtime.getRuntime().availableProcessors());
+
+    double tarjan = measure(() -> new StronglyConnectedComponents<>(graph).compute());
+    System.out.printf("tarjan        %8.1f ms%n", tarjan);
+    for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+      reportParallel(graph, numThreads, parallel, tarjan);
+      if (numThreads < maxThreads && numThreads * 2 > maxThreads) {
+        reportParallel(graph, maxThreads, parallel, tarjan);
+      }
+    }
+  }
+
+  private static void reportParallel(
+      IndexedGraph<Integer> graph,
+      int numThreads,
+      ImmutableList<ImmutableSet<Integer>> expected,
+      double tarjan) {
+    ImmutableList<ImmutableSet<Integer>> components =
+        ImmutableList.copyOf(StronglyConnectedComponents.inParallel(graph, numThreads).compute());
+    if (!expected.equals(components)) {
+      throw new AssertionError("The order of the components depends on the number of threads");
+    }
+    double millis =
+        measure(() -> StronglyConnectedComponents.inParallel(graph, numThreads).compute());
+    System.out.printf(
+        "%2d threads    %8.1f ms  %5.2fx tarjan%n", numThreads, millis, tarjan / millis);
+  }
+
+  /**
+   * Returns a graph of 'nodeCount' nodes with about 'edgesPerNode' edges from each, mostly to
+   * earlier nodes.
+   */
+  private static IndexedGraph<Integer> generateGraph(
+      int nodeCount, int edgesPerNode, Random random) {
+    IndexedGraph.Builder<Integer> builder = IndexedGraph.builder();
+    for (int node = 0; node < nodeCount; node++) {
+      builder.addNode(node);
+    }
+    for (int source = 0; source < nodeCount; source++) {
+      for (int i = 0; i < edgesPerNode; i++) {
+        int bound = random.nextInt(100) == 0 ? nodeCount : source + 1;
+        // Self loops are dropped.
+        builder.putEdgeById(source, skewed(random, bound));
+      }
+    }
+    return builder.build();
+  }
+
+  /** Returns a number from 0 to 'bound' - 1, where small numbers are much more likely. */
+  private static int skewed(Random random, int bound) {
+    return (int) (bound * Math.pow(random.nextDouble(), 3));
+  }
+
+  /** Returns the median milliseconds spent by 'stage'. */
+  private static double measure(Supplier<?> stage) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      stage.get();
+    }
+    double[] millis = new double[MEASURED_ITERATIONS];
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long start = System.nanoTime();
+      stage.get();
+      millis[i] = (System.nanoTime() - start) / 1e6;
+    }
+    Arrays.sort(millis);
+    return millis[MEASURED_ITERATIONS / 2];
+  }
+}
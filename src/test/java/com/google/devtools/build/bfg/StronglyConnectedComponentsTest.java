@@ -0,0 +1,268 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.bfg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.graph.EndpointPair;
+import com.google.common.graph.Graph;
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.Graphs;
+import com.google.common.graph.ImmutableGraph;
+import com.google.common.graph.MutableGraph;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StronglyConnectedComponents}. */
+@RunWith(JUnit4.class)
+public class StronglyConnectedComponentsTest {
+
+  @Test
+  public void cyclesBecomeOneComponent() {
+    MutableGraph<String> graph = newGraph();
+    graph.putEdge("a", "b");
+    graph.putEdge("b", "c");
+    graph.putEdge("c", "a");
+    graph.putEdge("c", "d");
+    graph.putEdge("d", "e");
+    graph.putEdge("e", "d");
+    graph.addNode("f");
+
+    ImmutableList<ImmutableSet<String>> components =
+        ImmutableList.copyOf(new StronglyConnectedComponents<>(graph).compute());
+
+    assertThat(components)
+        .containsExactly(
+            ImmutableSet.of("a", "b", "c"), ImmutableSet.of("d", "e"), ImmutableSet.of("f"));
+    assertReverseTopologicalOrder(graph, components);
+  }
+
+  @Test
+  public void componentDAG() {
+    MutableGraph<String> graph = newGraph();
+    graph.putEdge("a", "b");
+    graph.putEdge("b", "a");
+    graph.putEdge("a", "c");
+    graph.putEdge("b", "c");
+    graph.putEdge("c", "d");
+    graph.putEdge("a", "d");
+
+    ImmutableGraph<ImmutableSet<String>> dag =
+        new StronglyConnectedComponents<>(graph).computeComponentDAG();
+
+    MutableGraph<ImmutableSet<String>> expected = GraphBuilder.directed().build();
+    expected.putEdge(ImmutableSet.of("a", "b"), ImmutableSet.of("c"));
+    expected.putEdge(ImmutableSet.of("a", "b"), ImmutableSet.of("d"));
+    expected.putEdge(ImmutableSet.of("c"), ImmutableSet.of("d"));
+    assertThat(dag).isEqualTo(expected);
+    // nodes() is in reverse topological order.
+    assertThat(dag.nodes())
+        .containsExactly(ImmutableSet.of("d"), ImmutableSet.of("c"), ImmutableSet.of("a", "b"))
+        .inOrder();
+  }
+
+  @Test
+  public void emptyGraph() {
+    assertThat(new StronglyConnectedComponents<>(newGraph()).compute()).isEmpty();
+    assertThat(new StronglyConnectedComponents<>(newGraph()).computeComponentDAG().nodes())
+        .isEmpty();
+  }
+
+  /** Tests that a long chain doesn't overflow the stack, as a recursive search would. */
+  @Test
+  public void longChain() {
+    IndexedGraph.Builder<Integer> builder = IndexedGraph.builder();
+    int length = 1_000_000;
+    for (int i = 0; i < length; i++) {
+      builder.putEdge(i, i + 1);
+    }
+    // Closes the chain into a single cycle.
+    builder.putEdge(length, 0);
+
+    ImmutableList<ImmutableSet<Integer>> components =
+        ImmutableList.copyOf(new StronglyConnectedComponents<>(builder.build()).compute());
+
+    assertThat(components).hasSize(1);
+    assertThat(components.get(0)).hasSize(length + 1);
+  }
+
+  @Test
+  public void randomGraphs() {
+    Random random = new Random(1);
+    for (int iteration = 0; iteration < 50; iteration++) {
+      MutableGraph<Integer> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
+      int nodeCount = 1 + random.nextInt(30);
+      for (int i = 0; i < nodeCount; i++) {
+        graph.addNode(i);
+      }
+      for (int i = random.nextInt(3 * nodeCount); i > 0; i--) {
+        int source = random.nextInt(nodeCount);
+        int target = random.nextInt(nodeCount);
+        if (source != target) {
+          graph.putEdge(source, target);
+        }
+      }
+
+      ImmutableList<ImmutableSet<Integer>> components =
+          ImmutableList.copyOf(new StronglyConnectedComponents<>(graph).compute());
+
+      assertReverseTopologicalOrder(graph, components);
+      // Two nodes are in the same component iff each can reach the other.
+      Map<Integer, ImmutableSet<Integer>> componentOf = componentOf(components);
+      for (int u = 0; u < nodeCount; u++) {
+        for (int v = 0; v < nodeCount; v++) {
+          boolean mutuallyReachable =
+              reachable(graph, u).contains(v) && reachable(graph, v).contains(u);
+          assertThat(componentOf.get(u).equals(componentOf.get(v))).isEqualTo(mutuallyReachable);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void parallelFindsTheSameComponents() {
+    Random random = new Random(2);
+    for (int iteration = 0; iteration < 50; iteration++) {
+      MutableGraph<Integer> graph = GraphBuilder.directed().allowsSelfLoops(false).build();
+      int nodeCount = 1 + random.nextInt(2000);
+      for (int i = 0; i < nodeCount; i++) {
+        graph.addNode(i);
+      }
+      // Mostly edges to smaller nodes, with a few back edges to close cycles.
+      for (int i = random.nextInt(3 * nodeCount); i > 0; i--) {
+        int source = random.nextInt(nodeCount);
+        int target =
+            random.nextInt(20) == 0 ? random.nextInt(nodeCount) : random.nextInt(source + 1);
+        if (source != target) {
+          graph.putEdge(source, target);
+        }
+      }
+
+      ImmutableList<ImmutableSet<Integer>> expected =
+          ImmutableList.copyOf(new StronglyConnectedComponents<>(graph).compute());
+      ImmutableList<ImmutableSet<Integer>> components =
+          ImmutableList.copyOf(StronglyConnectedComponents.inParallel(graph, 1).compute());
+
+      assertThat(components).containsExactlyElementsIn(expected);
+      assertReverseTopologicalOrder(graph, components);
+      for (int numThreads : new int[] {2, 4}) {
+        // Same components, in the same order.
+        assertThat(StronglyConnectedComponents.inParallel(graph, numThreads).compute())
+            .containsExactlyElementsIn(components)
+            .inOrder();
+        assertThat(StronglyConnectedComponents.inParallel(graph, numThreads).computeComponentDAG())
+            .isEqualTo(new StronglyConnectedComponents<>(graph).computeComponentDAG());
+      }
+    }
+  }
+
+  @Test
+  public void parallelComponentDAG() {
+    MutableGraph<String> graph = newGraph();
+    graph.putEdge("a", "b");
+    graph.putEdge("b", "a");
+    graph.putEdge("a", "c");
+    graph.putEdge("b", "c");
+    graph.putEdge("c", "d");
+    graph.putEdge("a", "d");
+
+    ImmutableGraph<ImmutableSet<String>> dag =
+        StronglyConnectedComponents.inParallel(graph, 4).computeComponentDAG();
+
+    assertThat(dag).isEqualTo(new StronglyConnectedComponents<>(graph).computeComponentDAG());
+    assertThat(dag.nodes())
+        .containsExactly(ImmutableSet.of("d"), ImmutableSet.of("c"), ImmutableSet.of("a", "b"))
+        .inOrder();
+  }
+
+  /** Tests a chain of cycles that trimming leaves alone, which is split many times. */
+  @Test
+  public void parallelLongChainOfCycles() {
+    IndexedGraph.Builder<Integer> builder = IndexedGraph.builder();
+    int cycleCount = 100_000;
+    for (int i = 0; i < cycleCount; i++) {
+      builder.putEdge(2 * i, 2 * i + 1);
+      builder.putEdge(2 * i + 1, 2 * i);
+      builder.putEdge(2 * i + 1, 2 * i + 2);
+    }
+    builder.putEdge(2 * cycleCount, 2 * cycleCount + 1);
+    builder.putEdge(2 * cycleCount + 1, 2 * cycleCount);
+
+    ImmutableList<ImmutableSet<Integer>> components =
+        ImmutableList.copyOf(StronglyConnectedComponents.inParallel(builder.build(), 4).compute());
+
+    assertThat(components).hasSize(cycleCount + 1);
+    for (int i = 0; i <= cycleCount; i++) {
+      int first = 2 * (cycleCount - i);
+      assertThat(components.get(i)).containsExactly(first, first + 1);
+    }
+  }
+
+  @Test
+  public void parallelLongCycle() {
+    IndexedGraph.Builder<Integer> builder = IndexedGraph.builder();
+    int length = 1_000_000;
+    for (int i = 0; i < length; i++) {
+      builder.putEdge(i, i + 1);
+    }
+    builder.putEdge(length, 0);
+    // A tail that trimming removes.
+    builder.putEdge(0, -1);
+
+    ImmutableList<ImmutableSet<Integer>> components =
+        ImmutableList.copyOf(StronglyConnectedComponents.inParallel(builder.build(), 4).compute());
+
+    assertThat(components).hasSize(2);
+    assertThat(components.get(0)).containsExactly(-1);
+    assertThat(components.get(1)).hasSize(length + 1);
+  }
+
+  /** Asserts that every edge between two components goes to an earlier component. */
+  private static <N> void assertReverseTopologicalOrder(
+      Graph<N> graph, ImmutableList<ImmutableSet<N>> components) {
+    Map<N, ImmutableSet<N>> componentOf = componentOf(components);
+    assertThat(componentOf.keySet()).containsExactlyElementsIn(graph.nodes());
+    for (EndpointPair<N> edge : graph.edges()) {
+      int source = components.indexOf(componentOf.get(edge.source()));
+      int target = components.indexOf(componentOf.get(edge.target()));
+      assertThat(target).isAtMost(source);
+    }
+  }
+
+  private static <N> Map<N, ImmutableSet<N>> componentOf(
+      ImmutableList<ImmutableSet<N>> components) {
+    Map<N, ImmutableSet<N>> result = new HashMap<>();
+    for (ImmutableSet<N> component : components) {
+      for (N node : component) {
+        assertThat(result.put(node, component)).isNull();
+      }
+    }
+    return result;
+  }
+
+  private static <N> ImmutableSet<N> reachable(Graph<N> graph, N node) {
+    return ImmutableSet.copyOf(Graphs.reachableNodes(graph, node));
+  }
+
+  private static MutableGraph<String> newGraph() {
+    return GraphBuilder.directed().allowsSelfLoops(false).build();
+  }
+}